@@ -14,6 +14,9 @@ import org.helioviewer.base.FileUtils;
 import org.helioviewer.base.logging.Log;
 import org.helioviewer.jhv.gui.ImageViewerGui;
 import org.helioviewer.jhv.opengl.GLInfo;
+import org.helioviewer.viewmodel.view.jp2view.AdaptiveQualityController;
+import org.helioviewer.viewmodel.view.jp2view.DecodedFrameCache;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CacheMemoryBudget;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 
 /**
@@ -112,6 +115,21 @@ public class Settings {
 
             setLookAndFeelEverywhere(val);
 
+            updateJPIPSettings();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * The new values of the properties of the JPIP cache and streaming are
+     * updated. Unlike update(), it does not touch the GUI, so it can be used
+     * without one.
+     */
+    public void updateJPIPSettings() {
+        try {
+            String val;
+
             double size = 0;
             val = getProperty("jpip.cache.size");
             if (val != null) {
@@ -124,6 +142,60 @@ public class Settings {
             }
 
             JHV_Kdu_cache.updateCacheDirectory(JHVDirectory.CACHE.getFile(), size);
+
+            // Memory budgets of the cache objects, in Mbytes
+            double imageMemory = CacheMemoryBudget.DEFAULT_IMAGE_BUDGET / 1048576.0;
+            double totalMemory = CacheMemoryBudget.DEFAULT_GLOBAL_BUDGET / 1048576.0;
+            double framesMemory = DecodedFrameCache.DEFAULT_BUDGET / 1048576.0;
+            try {
+                val = getProperty("jpip.memory.image");
+                if (val != null)
+                    imageMemory = Double.valueOf(val);
+                val = getProperty("jpip.memory.total");
+                if (val != null)
+                    totalMemory = Double.valueOf(val);
+                val = getProperty("jpip.memory.frames");
+                if (val != null)
+                    framesMemory = Double.valueOf(val);
+            } catch (NumberFormatException ex) {
+                Log.error(">> Settings.update(boolean) > Invalid jpip memory size: " + val);
+            }
+            CacheMemoryBudget.getSingletonInstance().setBudgets(Math.round(imageMemory * 1048576.0), Math.round(totalMemory * 1048576.0));
+            DecodedFrameCache.setBudget(Math.round(framesMemory * 1048576.0));
+
+            // Bounds of the fidelity lowered while playing remote movies
+            boolean adaptiveEnabled = true;
+            int minQualityLayers = AdaptiveQualityController.DEFAULT_MIN_QUALITY_LAYERS;
+            int maxResolutionReduction = AdaptiveQualityController.DEFAULT_MAX_RESOLUTION_REDUCTION;
+            double lowMargin = AdaptiveQualityController.DEFAULT_LOW_MARGIN;
+            double highMargin = AdaptiveQualityController.DEFAULT_HIGH_MARGIN;
+            long minStepInterval = AdaptiveQualityController.DEFAULT_MIN_STEP_INTERVAL;
+            try {
+                val = getProperty("jpip.adaptive.enabled");
+                if (val != null)
+                    adaptiveEnabled = Boolean.parseBoolean(val);
+                val = getProperty("jpip.adaptive.layers.min");
+                if (val != null)
+                    minQualityLayers = Integer.valueOf(val);
+                val = getProperty("jpip.adaptive.resolution.reduction.max");
+                if (val != null)
+                    maxResolutionReduction = Integer.valueOf(val);
+                val = getProperty("jpip.adaptive.margin.low");
+                if (val != null)
+                    lowMargin = Double.valueOf(val);
+                val = getProperty("jpip.adaptive.margin.high");
+                if (val != null)
+                    highMargin = Double.valueOf(val);
+                val = getProperty("jpip.adaptive.step.interval");
+                if (val != null)
+                    minStepInterval = Long.valueOf(val);
+            } catch (NumberFormatException ex) {
+                Log.error(">> Settings.update(boolean) > Invalid adaptive quality setting: " + val);
+            }
+            AdaptiveQualityController.setEnabled(adaptiveEnabled);
+            AdaptiveQualityController.setBounds(minQualityLayers, maxResolutionReduction);
+            AdaptiveQualityController.setMargins(lowMargin, highMargin);
+            AdaptiveQualityController.setMinStepInterval(minStepInterval);
         } catch (Exception ex) {
             ex.printStackTrace();
         }
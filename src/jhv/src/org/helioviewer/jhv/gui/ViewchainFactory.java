@@ -14,6 +14,7 @@ import org.helioviewer.jhv.opengl.GLInfo;
 import org.helioviewer.viewmodel.factory.BufferedImageViewFactory;
 import org.helioviewer.viewmodel.factory.GLViewFactory;
 import org.helioviewer.viewmodel.factory.ViewFactory;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.metadata.HelioviewerMetaData;
 import org.helioviewer.viewmodel.metadata.MetaData;
 import org.helioviewer.viewmodel.view.ComponentView;
@@ -191,7 +192,8 @@ public class ViewchainFactory {
 
         synchronized (layeredView) {
             // wait until image is loaded
-            while (newLayer.getAdapter(SubimageDataView.class).getSubimageData(true) == null) {
+            ImageData imageData;
+            while ((imageData = newLayer.getAdapter(SubimageDataView.class).getSubimageData(true)) == null) {
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException e) {
@@ -199,6 +201,7 @@ public class ViewchainFactory {
                 }
 
             }
+            imageData.release();
             
             // Get meta data
             MetaData metaData = null;
@@ -130,11 +130,7 @@ public class MoviePanel extends JPanel implements ActionListener, ChangeListener
 
     // Status
     private static boolean isAdvanced = false;
-    /****/
-    // TEST
-    //private boolean isPlaying = false;
-    public static boolean isPlaying = false;
-    /****/
+    private boolean isPlaying = false;
     private boolean isDragging = false;
 
     // Gui elements
@@ -144,13 +140,7 @@ public class MoviePanel extends JPanel implements ActionListener, ChangeListener
     private JButton playPauseButton;
     private JButton nextFrameButton;
     private JButton advancedButton;   
-    /****/
-    // TEST
-    //private JSpinner speedSpinner;
-    public static JSpinner speedSpinner;
-    public static int currentFrameNumberInitial;
-    public static int maximumAccessibleFrameNumberInitial;    
-    /****/    
+    private JSpinner speedSpinner;
     private JComboBox speedUnitComboBox;
     private JComboBox animationModeComboBox;
 
@@ -158,11 +148,7 @@ public class MoviePanel extends JPanel implements ActionListener, ChangeListener
     private JPanel speedPanel;
 
     // References
-    /****/
-    // TEST
-    public static MovieView view;
-    //private MovieView view;
-    /****/
+    private MovieView view;
     private TimedMovieView timedView = null;
 
     // Icons
@@ -405,16 +391,6 @@ public class MoviePanel extends JPanel implements ActionListener, ChangeListener
             if (!onlyGUI) {
                 view.playMovie();
             }
-            
-            /****/
-            // TEST
-            currentFrameNumberInitial = view.getCurrentFrameNumber();
-            maximumAccessibleFrameNumberInitial = view.getMaximumAccessibleFrameNumber();
-            System.out.println("********************************************************");
-            System.out.println("currentFrameNumberInitial: " + currentFrameNumberInitial);
-            System.out.println("maximumAccessibleFrameNumberInitial: " + maximumAccessibleFrameNumberInitial);
-            System.out.println("********************************************************");
-            /****/
         }
 
     }
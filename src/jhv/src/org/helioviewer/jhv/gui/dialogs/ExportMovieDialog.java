@@ -81,6 +81,7 @@ import org.helioviewer.jhv.gui.interfaces.ShowableDialog;
 import org.helioviewer.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.viewmodel.changeevent.RegionUpdatedReason;
 import org.helioviewer.viewmodel.changeevent.TimestampChangedReason;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imagedata.JavaBufferedImageData;
 import org.helioviewer.viewmodel.metadata.MetaData;
 import org.helioviewer.viewmodel.metadata.ObserverMetaData;
@@ -816,8 +817,10 @@ public class ExportMovieDialog extends JDialog implements ActionListener, Proper
                 }
 
                 // Get frame
-                BufferedImage input = ((JavaBufferedImageData) topmostView.getAdapter(SubimageDataView.class).getSubimageData(true)).getBufferedImage();
+                JavaBufferedImageData frame = (JavaBufferedImageData) topmostView.getAdapter(SubimageDataView.class).getSubimageData(true);
+                BufferedImage input = frame.getBufferedImage();
                 if (input == null) {
+                    frame.release();
                     return;
                 }
 
@@ -836,6 +839,9 @@ public class ExportMovieDialog extends JDialog implements ActionListener, Proper
                 g.fillRect(0, 0, output.getWidth(), output.getHeight());
                 g.drawImage(input, null, 0, 0);
                 int hardSubtitleFontSize = Math.max(1, (output.getHeight() - input.getHeight() - 5) / topmostView.getAdapter(LayeredView.class).getNumberOfVisibleLayer());
+
+                // The frame has been copied into the output image
+                frame.release();
                 g.setFont(new Font("Arial", Font.BOLD, hardSubtitleFontSize));
                 g.setColor(Color.WHITE);
 
@@ -1126,7 +1132,12 @@ public class ExportMovieDialog extends JDialog implements ActionListener, Proper
             // Get topmost view, which is not the ComponentView
             SubimageDataView topmostSubimageView = topmostView.getAdapter(SubimageDataView.class);
             // If viewport is correct, go on
-            if (topmostSubimageView.getSubimageData(true) != null && topmostSubimageView.getSubimageData(true).getWidth() == imagePanel.getViewport().getWidth()) {
+            ImageData imageData = topmostSubimageView.getSubimageData(true);
+            boolean viewportCorrect = imageData != null && imageData.getWidth() == imagePanel.getViewport().getWidth();
+            if (imageData != null) {
+                imageData.release();
+            }
+            if (viewportCorrect) {
                 // Give other layers a chance to finish
                 try {
                     Thread.sleep(500);
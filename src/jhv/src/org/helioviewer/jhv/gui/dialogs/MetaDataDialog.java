@@ -43,7 +43,6 @@ import org.helioviewer.viewmodel.view.jp2view.JHVJP2View;
 import org.helioviewer.viewmodel.view.jp2view.JHVJPXView;
 import org.helioviewer.viewmodel.view.jp2view.JP2Image;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
-import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -213,7 +212,7 @@ public class MetaDataDialog extends JDialog implements ActionListener, ShowableD
                 }
 
                 try {
-                    xmlText = KakaduUtils.getXml(img.getFamilySrc(), boxNumber);
+                    xmlText = img.getXml(boxNumber);
                 } catch (JHV_KduException e) {
                     e.printStackTrace();
                 }
@@ -8,7 +8,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -44,7 +43,7 @@ import org.helioviewer.jhv.gui.IconBank;
 import org.helioviewer.jhv.gui.IconBank.JHVIcon;
 import org.helioviewer.jhv.gui.ImageViewerGui;
 import org.helioviewer.jhv.gui.interfaces.ShowableDialog;
-import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CacheManager;
 
 /**
  * Dialog that allows the user to change default preferences and settings.
@@ -390,24 +389,41 @@ public class PreferencesDialog extends JDialog implements ShowableDialog {
     }
 
     /**
-     * Builds the string showing the size of the cache currently used.
+     * Builds the string showing the size of the cache currently used and the
+     * statistics of the CacheManager.
      * 
      * @return String showing the size of the cache currently used
      */
     private String getCacheSizeText() {
+        CacheManager manager = CacheManager.getSingletonInstance();
+
+        String text = "Occupied size: " + getSizeText(manager.getOccupiedSize());
+        if (manager.getQuota() > 0)
+            text += " (" + Math.round(100.0 * manager.getOccupiedSize() / manager.getQuota()) + "%)";
+        text += " in " + manager.getNumFiles() + " files";
+
+        double hitRate = manager.getHitRate();
+        if (hitRate >= 0)
+            text += ", hit rate: " + Math.round(hitRate * 100.0) + "%";
+        if (manager.getEvictedFiles() > 0)
+            text += ", evicted: " + getSizeText(manager.getEvictedBytes());
+        return text;
+    }
 
-        long len = 0;
-        File[] list = JHV_Kdu_cache.getCacheFiles(JHVDirectory.CACHE.getFile());
-
-        for (File f : list)
-            len += f.length();
-
+    /**
+     * Builds the string showing a size in bytes, Kbytes or Mbytes.
+     * 
+     * @param len
+     *            Size in bytes
+     * @return String showing the size
+     */
+    private static String getSizeText(long len) {
         if (len < 1024)
-            return ("Occupied size: " + len + " bytes");
+            return (len + " bytes");
         else if (len < 1048576)
-            return ("Occupied size: " + ((double) Math.round(((double) len / 1024.0) * 100.0) / 100.0) + " Kbytes");
+            return (((double) Math.round(((double) len / 1024.0) * 100.0) / 100.0) + " Kbytes");
         else
-            return ("Occupied size: " + ((double) Math.round(((double) len / 1048576.0) * 100.0) / 100.0) + " Mbytes");
+            return (((double) Math.round(((double) len / 1048576.0) * 100.0) / 100.0) + " Mbytes");
     }
 
     /**
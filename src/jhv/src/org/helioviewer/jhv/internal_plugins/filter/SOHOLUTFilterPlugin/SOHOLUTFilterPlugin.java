@@ -2,6 +2,7 @@ package org.helioviewer.jhv.internal_plugins.filter.SOHOLUTFilterPlugin;
 
 import org.helioviewer.base.logging.Log;
 import org.helioviewer.viewmodel.filter.Filter;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.imageformat.SingleChannelImageFormat;
 import org.helioviewer.viewmodel.metadata.HelioviewerMetaData;
 import org.helioviewer.viewmodel.metadata.MetaData;
@@ -52,7 +53,10 @@ public class SOHOLUTFilterPlugin extends FilterContainer {
     @Override
     protected void installFilterImpl(FilterView filterView, FilterTabList tabList) {
         // Only applicable for SingeChannelFormat
-        if (!(filterView.getAdapter(SubimageDataView.class).getSubimageData(true).getImageFormat() instanceof SingleChannelImageFormat))
+        ImageData imageData = filterView.getAdapter(SubimageDataView.class).getSubimageData(true);
+        boolean singleChannel = imageData.getImageFormat() instanceof SingleChannelImageFormat;
+        imageData.release();
+        if (!singleChannel)
             return;
 
         SOHOLUTFilter filter = new SOHOLUTFilter();
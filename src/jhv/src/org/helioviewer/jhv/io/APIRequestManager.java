@@ -113,7 +113,7 @@ public class APIRequestManager {
      * @throws IOException
      */
     private static ImageInfoView loadImage(boolean addToViewChain, String observatory, String instrument, String detector, String measurement, String startTime) throws MalformedURLException, IOException {
-        String fileRequest = Settings.getSingletonInstance().getProperty("API.jp2images.path") + "?action=getJP2Image&observatory=" + observatory + "&instrument=" + instrument + "&detector=" + detector + "&measurement=" + measurement + "&date=" + startTime + "&json=true";
+        String fileRequest = getImageRequest(observatory, instrument, detector, measurement, startTime);
         String jpipRequest = fileRequest + "&jpip=true";
 
         // get URL from server where file with image series is located
@@ -160,12 +160,7 @@ public class APIRequestManager {
      * @throws IOException
      */
     private static ImageInfoView loadImageSeries(boolean addToViewChain, String observatory, String instrument, String detector, String measurement, String startTime, String endTime, String cadence) throws MalformedURLException, IOException {
-        String fileRequest = Settings.getSingletonInstance().getProperty("API.jp2series.path") + "?action=getJPX&observatory=" + observatory + "&instrument=" + instrument + "&detector=" + detector + "&measurement=" + measurement + "&startTime=" + startTime + "&endTime=" + endTime;
-
-        if (cadence != null) {
-            fileRequest += "&cadence=" + cadence;
-        }
-
+        String fileRequest = getImageSeriesRequest(observatory, instrument, detector, measurement, startTime, endTime, cadence);
         String jpipRequest = fileRequest + "&jpip=true&verbose=true&linked=true";
 
         Log.debug(">> APIRequestManager.loadImageSeries(boolean,String,String,String,String,String,String,String) > jpip request url: " + jpipRequest);
@@ -189,6 +184,25 @@ public class APIRequestManager {
         return null;
     }
 
+    /**
+     * Returns the http request url of a single image.
+     */
+    private static String getImageRequest(String observatory, String instrument, String detector, String measurement, String startTime) {
+        return Settings.getSingletonInstance().getProperty("API.jp2images.path") + "?action=getJP2Image&observatory=" + observatory + "&instrument=" + instrument + "&detector=" + detector + "&measurement=" + measurement + "&date=" + startTime + "&json=true";
+    }
+
+    /**
+     * Returns the http request url of an image series.
+     */
+    private static String getImageSeriesRequest(String observatory, String instrument, String detector, String measurement, String startTime, String endTime, String cadence) {
+        String fileRequest = Settings.getSingletonInstance().getProperty("API.jp2series.path") + "?action=getJPX&observatory=" + observatory + "&instrument=" + instrument + "&detector=" + detector + "&measurement=" + measurement + "&startTime=" + startTime + "&endTime=" + endTime;
+
+        if (cadence != null) {
+            fileRequest += "&cadence=" + cadence;
+        }
+        return fileRequest;
+    }
+
     /**
      * Sends an request to the server to compute where the image series is
      * located on the server together with meta information like timestamps for
@@ -346,4 +360,52 @@ public class APIRequestManager {
             return loadImageSeries(true, observatory, instrument, detector, measurement, startTime, endTime, cadence);
         }
     }
+
+    /**
+     * Sends the same request as
+     * {@link #requestAndOpenRemoteFile(String, String, String, String, String, String, String)}
+     * but only returns the location of the image or image series, without
+     * loading it. The errors are thrown instead of displayed, so that it can
+     * be used without the GUI.
+     * 
+     * @param cadence
+     *            cadence between two frames (null for single images).
+     * @param startTime
+     *            start time of the requested image
+     * @param endTime
+     *            end time of the requested image (empty for single images).
+     * @param observatory
+     *            observatory of the requested image
+     * @param instrument
+     *            instrument of the requested image
+     * @param detector
+     *            detector of the requested image.
+     * @param measurement
+     *            measurement of the requested image.
+     * @return JPIP uri of the image or image series
+     * @throws IOException
+     */
+    public static URI requestRemoteURI(String cadence, String startTime, String endTime, String observatory, String instrument, String detector, String measurement) throws IOException {
+        String jpipRequest;
+        if (endTime.equals("")) {
+            jpipRequest = getImageRequest(observatory, instrument, detector, measurement, startTime) + "&jpip=true";
+        } else {
+            jpipRequest = getImageSeriesRequest(observatory, instrument, detector, measurement, startTime, endTime, cadence) + "&jpip=true&verbose=true&linked=true";
+        }
+
+        DownloadStream ds = new DownloadStream(new URL(jpipRequest), JHVGlobals.getStdConnectTimeout(), JHVGlobals.getStdReadTimeout());
+        APIResponse response = new APIResponse(new BufferedReader(new InputStreamReader(ds.getInput())));
+
+        if (!response.hasData())
+            throw new IOException("Could not understand server answer from " + jpipRequest);
+
+        String error = response.getString("error");
+        if (error != null)
+            throw new IOException("Data query returned error: " + error);
+
+        if (response.getURI() == null)
+            throw new IOException("No data to load returned from " + jpipRequest);
+
+        return response.getURI();
+    }
 }
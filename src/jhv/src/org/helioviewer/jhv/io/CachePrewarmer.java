@@ -0,0 +1,194 @@
+package org.helioviewer.jhv.io;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.AbstractList;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.base.logging.LogSettings;
+import org.helioviewer.jhv.JHVDirectory;
+import org.helioviewer.jhv.JHVGlobals;
+import org.helioviewer.jhv.KakaduEngine;
+import org.helioviewer.jhv.Settings;
+import org.helioviewer.jhv.resourceloader.ResourceLoader;
+import org.helioviewer.jhv.resourceloader.SystemProperties;
+import org.helioviewer.viewmodel.view.jp2view.J2KCacheWarmer;
+import org.helioviewer.viewmodel.view.jp2view.JP2Image;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CachePersistenceService;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+
+/**
+ * Headless entry point filling the JPIP disk cache, so that the images and
+ * movies opened later in JHelioviewer are served locally.
+ *
+ * <p>
+ * The images are given with the same -jhv requests as JHelioviewer itself
+ * (see {@link CommandLineProcessor}), which are resolved through the
+ * Helioviewer API, or directly with -jpip urls. Their frames are streamed
+ * into the cache directory of JHelioviewer without creating any view or
+ * window, which makes it suitable to be run by cron.
+ *
+ * <p>
+ * Options, in addition to -jhv and -jpip:
+ * <ul>
+ * <li>-layers N: number of quality layers, all of them by default</li>
+ * <li>-resolution N: resolution level, 0 (the full resolution) by default</li>
+ * <li>-window N: number of frames requested at a time</li>
+ * </ul>
+ */
+public class CachePrewarmer {
+
+    /** Time given to the cache files to be written before exiting (ms) */
+    private static final long PERSISTENCE_TIMEOUT = 60000;
+
+    public static void main(String[] args) {
+        if (args.length == 0 || (args.length == 1 && (args[0].equals("-h") || args[0].equals("--help")))) {
+            System.out.println(getUsageMessage());
+            return;
+        }
+
+        // There is no GUI at all
+        System.setProperty("java.awt.headless", "true");
+
+        CommandLineProcessor.setArguments(args);
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+        Locale.setDefault(Locale.US);
+
+        LogSettings.init("/settings/log4j.initial.properties", JHVDirectory.SETTINGS.getPath() + "log4j.properties", JHVDirectory.LOGS.getPath(), false);
+        JHVGlobals.createDirs();
+        Settings.getSingletonInstance().load();
+        SystemProperties.setPlatform();
+
+        if (!initKakadu()) {
+            System.exit(2);
+            return;
+        }
+
+        JP2Image.setCachePath(JHVDirectory.CACHE.getFile());
+        Settings.getSingletonInstance().updateJPIPSettings();
+
+        int qualityLayers = getIntOption("layers", -1);
+        int resolutionLevel = getIntOption("resolution", 0);
+        int windowSize = getIntOption("window", J2KCacheWarmer.DEFAULT_WINDOW_SIZE);
+
+        int failures = 0;
+        for (URI uri : getImageURIs()) {
+            if (!prewarm(uri, qualityLayers, resolutionLevel, windowSize))
+                failures++;
+        }
+
+        // The cache files are written in the background
+        try {
+            if (!CachePersistenceService.getSingletonInstance().awaitDrained(PERSISTENCE_TIMEOUT))
+                Log.warn(">> CachePrewarmer > The cache files could not be completely written.");
+        } catch (InterruptedException e) {
+        }
+
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Downloads an image into the disk cache.
+     *
+     * @return True, if the image was downloaded
+     */
+    private static boolean prewarm(URI uri, int qualityLayers, int resolutionLevel, int windowSize) {
+        JP2Image image = null;
+        long start = System.currentTimeMillis();
+
+        try {
+            image = new JP2Image(uri);
+            image.addReference();
+
+            J2KCacheWarmer warmer = new J2KCacheWarmer(image);
+            warmer.setWindowSize(windowSize);
+            long received = warmer.warm(qualityLayers, resolutionLevel);
+
+            Log.info(">> CachePrewarmer > " + uri + ": " + (image.getCompositionLayerRange().getEnd() + 1) + " frames, " + (received >> 10) + " Kbytes received in " + (System.currentTimeMillis() - start) + " ms.");
+            return true;
+        } catch (IOException e) {
+            Log.error(">> CachePrewarmer > Error downloading " + uri, e);
+        } catch (JHV_KduException e) {
+            Log.error(">> CachePrewarmer > Error opening " + uri, e);
+        } catch (IllegalArgumentException e) {
+            Log.error(">> CachePrewarmer > Cannot prewarm " + uri, e);
+        } finally {
+            if (image != null)
+                image.abolish();
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the -jhv requests through the API and adds the -jpip urls.
+     */
+    private static AbstractList<URI> getImageURIs() {
+        LinkedList<URI> uris = new LinkedList<URI>();
+
+        for (JHVRequest request : CommandLineProcessor.getJHVOptionValues()) {
+            for (JHVRequestLayer layer : request.imageLayers) {
+                try {
+                    uris.add(APIRequestManager.requestRemoteURI(request.cadence, request.startTime, request.endTime, layer.observatory, layer.instrument, layer.detector, layer.measurement));
+                } catch (IOException e) {
+                    Log.error(">> CachePrewarmer > Could not resolve " + layer.observatory + " " + layer.instrument + " " + layer.detector + " " + layer.measurement, e);
+                }
+            }
+        }
+
+        uris.addAll(CommandLineProcessor.getJPIPOptionValues());
+        return uris;
+    }
+
+    /** Loads the Kakadu libraries as JHelioviewer does */
+    private static boolean initKakadu() {
+        URI libs = JHVDirectory.LIBS.getFile().toURI();
+        URI libsBackup = JHVDirectory.LIBS_LAST_CONFIG.getFile().toURI();
+        URI libsRemote = null;
+        try {
+            libsRemote = new URI(Settings.getSingletonInstance().getProperty("default.remote.lib.path"));
+        } catch (URISyntaxException e) {
+            Log.error("Invalid uri for remote library server");
+        }
+
+        KakaduEngine engine = new KakaduEngine();
+        if (null == ResourceLoader.getSingletonInstance().loadResource("kakadu", libsRemote, libs, libs, libsBackup, System.getProperties())) {
+            Log.fatal("Could not load Kakadu libraries");
+            return false;
+        }
+
+        try {
+            engine.startKduMessageSystem();
+        } catch (JHV_KduException e) {
+            Log.fatal("Failed to setup Kakadu message handlers.", e);
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns the value of an integer option, or the default one */
+    private static int getIntOption(String option, int defaultValue) {
+        AbstractList<String> values = CommandLineProcessor.getOptionValues(option);
+        if (values.isEmpty())
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(values.get(values.size() - 1));
+        } catch (NumberFormatException e) {
+            Log.error(">> CachePrewarmer > Invalid value of -" + option + ": " + values.get(values.size() - 1));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the command line usage message.
+     *
+     * @return command line usage message.
+     */
+    public static String getUsageMessage() {
+        return "Fills the JPIP cache of JHelioviewer with the given images.\n\n" + "-jhv  \"request\"\n" + "      A jhv request, as accepted by JHelioviewer. The option can be used multiple times.\n\n" + "-jpip  JPIP_URL\n" + "      A jpip url of a JP2 or JPX image. The option can be used multiple times.\n\n" + "-layers  N\n" + "      Number of quality layers to download (default: all).\n\n" + "-resolution  N\n" + "      Resolution level to download, 0 being the full resolution (default: 0).\n\n" + "-window  N\n" + "      Number of frames requested at a time (default: " + J2KCacheWarmer.DEFAULT_WINDOW_SIZE + ").\n\n" + "Example:\n" + "      -jhv \"[startTime=2003-10-05T00:00:00Z;endTime=2003-10-06T00:00:00Z;linked=true;cadence=3600;imageScale=5000;imageLayers=[SOHO,EIT,EIT,171,1,100]]\" -layers 4";
+    }
+}
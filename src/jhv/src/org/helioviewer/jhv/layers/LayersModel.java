@@ -187,10 +187,31 @@ public class LayersModel implements ViewListener {
         }
 
         activeLayer = idx;
+        updateRenderPriorities();
 
         this.fireActiveLayerChanged(idx);
     }
 
+    /**
+     * Gives the rendering of the active layer precedence over the other
+     * visible layers, and of those over the hidden layers
+     */
+    private void updateRenderPriorities() {
+        for (int i = 0; i < getNumLayers(); i++) {
+            View view = getLayer(i);
+            JHVJP2View jp2View = view == null ? null : view.getAdapter(JHVJP2View.class);
+            if (jp2View != null) {
+                if (i == activeLayer) {
+                    jp2View.setRenderPriority(JHVJP2View.RenderPriority.ACTIVE);
+                } else if (isVisible(view)) {
+                    jp2View.setRenderPriority(JHVJP2View.RenderPriority.VISIBLE);
+                } else {
+                    jp2View.setRenderPriority(JHVJP2View.RenderPriority.BACKGROUND);
+                }
+            }
+        }
+    }
+
     /**
      * Return a String containing the current timestamp of the given layer,
      * return an empty string if no timing information is available
@@ -689,6 +710,7 @@ public class LayersModel implements ViewListener {
                 View view = layerReason.getSubView();
                 int idx = findView(view);
                 if (idx != -1) {
+                    updateRenderPriorities();
                     this.fireLayerChanged(idx);
                 }
             } else if (layerReason.getLayerChangeType() == LayerChangedReason.LayerChangeType.LAYER_DOWNLOADED) {
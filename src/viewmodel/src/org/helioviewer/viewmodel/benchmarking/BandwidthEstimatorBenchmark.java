@@ -0,0 +1,60 @@
+package org.helioviewer.viewmodel.benchmarking;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimator;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimatorFactory;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimatorFactory.EstimatorType;
+
+/**
+ * Compares the bandwidth estimators offline by replaying a recorded trace of
+ * a JPIP channel. Every line of the trace holds the arrival time in
+ * milliseconds and the number of bytes received, separated by white space. A
+ * line with only a time marks the start of a response. Empty lines and lines
+ * starting with '#' are ignored.
+ *
+ * <p>
+ * Usage: <code>BandwidthEstimatorBenchmark &lt;trace file&gt;</code>
+ */
+public class BandwidthEstimatorBenchmark {
+
+    /** A simple driver method */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: BandwidthEstimatorBenchmark <trace file>");
+            return;
+        }
+
+        EstimatorType[] types = EstimatorType.values();
+        BandwidthEstimator[] estimators = new BandwidthEstimator[types.length];
+        for (int i = 0; i < types.length; i++)
+            estimators[i] = BandwidthEstimatorFactory.create(types[i]);
+
+        BufferedReader in = new BufferedReader(new FileReader(args[0]));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+
+                String[] parts = line.split("\\s+");
+                long time = Long.parseLong(parts[0]);
+
+                for (BandwidthEstimator estimator : estimators) {
+                    if (parts.length < 2)
+                        estimator.transferStarted(time);
+                    else
+                        estimator.dataReceived(Long.parseLong(parts[1]), time);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        for (BandwidthEstimator estimator : estimators)
+            System.out.println(estimator);
+    }
+}
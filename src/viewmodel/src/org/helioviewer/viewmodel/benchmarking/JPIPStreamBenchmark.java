@@ -0,0 +1,130 @@
+package org.helioviewer.viewmodel.benchmarking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.helioviewer.viewmodel.view.jp2view.io.BufferedChunkedInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.ChunkedInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.WindowedInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSegmentBufferPool;
+
+/**
+ * Measures the throughput of the JPIP response parsers by replaying a recorded
+ * jpp-stream. The recorded bytes (the body of one or more JPIP responses, i.e.
+ * the data-bin segments and EOR messages without any HTTP framing) are wrapped
+ * in HTTP chunks of the given size and parsed repeatedly from memory, once with
+ * the unbuffered <code>ChunkedInputStream</code> and once with the
+ * <code>BufferedChunkedInputStream</code>.
+ *
+ * <p>
+ * Usage: <code>JPIPStreamBenchmark &lt;jpp-stream file&gt; [chunk size]
+ * [loops]</code>
+ */
+public class JPIPStreamBenchmark {
+
+    /** The default size of the replayed HTTP chunks */
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    /** The default number of times the stream is parsed */
+    private static final int DEFAULT_LOOP_COUNT = 32;
+
+    /** A simple driver method */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: JPIPStreamBenchmark <jpp-stream file> [chunk size] [loops]");
+            return;
+        }
+
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CHUNK_SIZE;
+        int loopCount = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_LOOP_COUNT;
+
+        byte[] chunked = toChunked(readFile(new File(args[0])), chunkSize);
+        double megabytes = (double) chunked.length * loopCount / (1 << 20);
+
+        // Warm up both paths and check that they agree
+        long legacySegments = parseLegacy(chunked);
+        long bufferedSegments = parseBuffered(chunked);
+        if (legacySegments != bufferedSegments)
+            throw new IOException("Parsers disagree: " + legacySegments + " vs. " + bufferedSegments + " segments");
+
+        System.out.println(args[0] + ": " + chunked.length + " bytes, " + bufferedSegments + " segments, chunk size " + chunkSize);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < loopCount; i++)
+            parseLegacy(chunked);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.format("ChunkedInputStream:         %8.2f MB/s\n", megabytes / seconds);
+
+        begin = System.nanoTime();
+        for (int i = 0; i < loopCount; i++)
+            parseBuffered(chunked);
+        seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.format("BufferedChunkedInputStream: %8.2f MB/s\n", megabytes / seconds);
+
+        System.out.println(JPIPSegmentBufferPool.getSingletonInstance());
+    }
+
+    /** Parses the chunked bytes with the unbuffered transport */
+    private static long parseLegacy(byte[] chunked) throws IOException {
+        return countSegments(new JPIPDataInputStream(new ChunkedInputStream(new ByteArrayInputStream(chunked))));
+    }
+
+    /** Parses the chunked bytes with the buffered transport */
+    private static long parseBuffered(byte[] chunked) throws IOException {
+        return countSegments(new JPIPDataInputStream(new BufferedChunkedInputStream(new WindowedInputStream(new ByteArrayInputStream(chunked)))));
+    }
+
+    /** Reads all the segments of the stream */
+    private static long countSegments(JPIPDataInputStream jpip) throws IOException {
+        long count = 0;
+        JPIPDataSegment seg;
+
+        while ((seg = jpip.readSegment()) != null) {
+            count += seg.isEOR ? 0 : 1;
+            seg.release();
+        }
+        return count;
+    }
+
+    /** Wraps the given bytes in HTTP chunks of the given size */
+    private static byte[] toChunked(byte[] data, int chunkSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + (data.length / chunkSize + 2) * 12);
+        byte[] crlf = { 13, 10 };
+
+        for (int off = 0; off < data.length; off += chunkSize) {
+            int len = Math.min(chunkSize, data.length - off);
+            byte[] header = Integer.toHexString(len).getBytes();
+            out.write(header, 0, header.length);
+            out.write(crlf, 0, 2);
+            out.write(data, off, len);
+            out.write(crlf, 0, 2);
+        }
+
+        out.write('0');
+        out.write(crlf, 0, 2);
+        out.write(crlf, 0, 2);
+
+        return out.toByteArray();
+    }
+
+    /** Reads the whole file into memory */
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
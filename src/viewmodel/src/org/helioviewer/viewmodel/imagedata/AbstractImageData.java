@@ -18,6 +18,7 @@ public abstract class AbstractImageData implements JavaBufferedImageData {
     protected BufferedImage image = null;
     protected ColorMask colorMask;
     protected DataBufferPool dataBufferPool = null;
+    private ImageDataReleaseListener releaseListener = null;
 
     /**
      * Default constructor.
@@ -63,6 +64,27 @@ public abstract class AbstractImageData implements JavaBufferedImageData {
         this.colorMask = mask;
     }
 
+    /**
+     * Sets the listener told when the image data is released. The listener is
+     * not copied by the copy constructor, since copies have pixel data of
+     * their own.
+     * 
+     * @param listener
+     *            listener, or null
+     */
+    public void setReleaseListener(ImageDataReleaseListener listener) {
+        releaseListener = listener;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void release() {
+        if (releaseListener != null) {
+            releaseListener.imageDataReleased(this);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -55,4 +55,17 @@ public interface ImageData {
 
     public void setColorMask(ColorMask mask);
 
+    /**
+     * Tells that the caller does not read the image data any more.
+     * 
+     * <p>
+     * Image data obtained with
+     * {@link org.helioviewer.viewmodel.view.SubimageDataView#getSubimageData(boolean)}
+     * in read-only mode should be released once, when the caller is done with
+     * it, so that the view producing it can reuse its pixel data. The image
+     * data must not be read after it has been released. Image data which is
+     * never released is never reused.
+     */
+    public void release();
+
 }
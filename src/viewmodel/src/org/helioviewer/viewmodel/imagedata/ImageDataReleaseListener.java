@@ -0,0 +1,27 @@
+package org.helioviewer.viewmodel.imagedata;
+
+/**
+ * Listener told when the image data produced by a view is released by a
+ * reader.
+ *
+ * <p>
+ * A view which reuses the pixel data of the image data it produces, e.g. to
+ * decode the next frames of a movie without allocating new arrays, sets this
+ * listener on the image data. It may then reuse the pixel data once every
+ * reader has released it.
+ *
+ * @see ImageData#release()
+ *
+ */
+public interface ImageDataReleaseListener {
+
+    /**
+     * Callback function that will be called every time the image data is
+     * released by a reader.
+     *
+     * @param imageData
+     *            Image data released
+     */
+    public void imageDataReleased(ImageData imageData);
+
+}
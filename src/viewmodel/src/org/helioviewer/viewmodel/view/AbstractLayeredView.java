@@ -77,6 +77,10 @@ public abstract class AbstractLayeredView extends AbstractView implements Layere
         public MetaDataView metaDataView;
         public SubimageDataView subimageDataView;
 
+        /**
+         * The image data last read from the layer, which is kept until newer
+         * image data is read and then released
+         */
         public ImageData imageData;
 
         public Vector2dInt renderOffset;
@@ -89,7 +93,12 @@ public abstract class AbstractLayeredView extends AbstractView implements Layere
                 ImageData newData = subimageDataView.getSubimageData(true);
                 if (newData != null && newData != imageData) {
                     needsRedraw = true;
+                    if (imageData != null)
+                        imageData.release();
                     imageData = newData;
+                } else if (newData != null) {
+                    // Already kept
+                    newData.release();
                 }
                 return imageData;
             }
@@ -120,13 +129,15 @@ public abstract class AbstractLayeredView extends AbstractView implements Layere
         /**
          * Recalculates the view adapters, in case the view chain has changed.
          */
-        public void update() {
+        public synchronized void update() {
             if (view != null) {
                 regionView = view.getAdapter(RegionView.class);
                 viewportView = view.getAdapter(ViewportView.class);
                 metaDataView = view.getAdapter(MetaDataView.class);
                 subimageDataView = view.getAdapter(SubimageDataView.class);
             }
+            if (imageData != null)
+                imageData.release();
             imageData = null;
         }
     }
@@ -11,6 +11,7 @@ import org.helioviewer.viewmodel.changeevent.SubImageDataChangedReason;
 import org.helioviewer.viewmodel.changeevent.SynchronizedROIChangedReason;
 import org.helioviewer.viewmodel.changeevent.LayerChangedReason.LayerChangeType;
 import org.helioviewer.viewmodel.factory.BufferedImageViewFactory;
+import org.helioviewer.viewmodel.view.jp2view.JHVJP2View;
 
 /**
  * Implementation of SynchronizeView for use in an overview view chain.
@@ -221,6 +222,12 @@ public class SynchronizeOverviewChainView extends AbstractSynchronizeChainView {
         // create new image view and add it to new sub view chain
         ImageInfoView newImageView = viewFactory.createViewFromSource(sourceImageView, true);
 
+        // the overview is rendered after the layers of the main view
+        JHVJP2View newJP2View = newImageView.getAdapter(JHVJP2View.class);
+        if (newJP2View != null) {
+            newJP2View.setRenderPriority(JHVJP2View.RenderPriority.BACKGROUND);
+        }
+
         // if no major filter view found
         if (first == null) {
             getAdapter(LayeredView.class).addLayer(newImageView);
@@ -1,5 +1,16 @@
 package org.helioviewer.viewmodel.view.cache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.helioviewer.viewmodel.changeevent.CacheStatusChangedReason;
 import org.helioviewer.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.viewmodel.changeevent.CacheStatusChangedReason.CacheType;
@@ -7,13 +18,18 @@ import org.helioviewer.viewmodel.io.APIResponse;
 import org.helioviewer.viewmodel.io.APIResponseDump;
 import org.helioviewer.viewmodel.view.CachedMovieView;
 import org.helioviewer.viewmodel.view.ImageInfoView;
+import org.helioviewer.viewmodel.view.jp2view.concurrency.ProgressSignal;
 import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
 
 /**
  * Cache to parse and buffer all timestamps from all images of an image series.
  * 
  * <p>
- * To parse the time stamps, this class has its own thread.
+ * To parse the time stamps, this class has its own thread, which waits for the
+ * meta data of the frames on the data signal of the image. The frames whose
+ * meta data has arrived are parsed in chunks by a pool of threads shared by all
+ * the caches, and the time stamps are kept as milliseconds since the Epoch; the
+ * ImmutableDateTime objects are only created when asked for.
  * 
  * @author Markus Langenberg
  * 
@@ -22,13 +38,55 @@ public abstract class DateTimeCache {
 
     protected CachedMovieView parent;
 
-    private ImmutableDateTime[] cache;
+    /** Value of the frames not parsed yet */
+    protected static final long NOT_PARSED = Long.MIN_VALUE;
+
+    /** Number of frames parsed by a thread at a time */
+    private static final int CHUNK_SIZE = 64;
+
+    /** The threads parsing the chunks, shared by all the caches */
+    private static final int NUM_PARSERS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService parserExecutor = Executors.newFixedThreadPool(NUM_PARSERS, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DateTime Parser");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** The time stamps in ms since the Epoch, NOT_PARSED if missing */
+    private final long[] epochMillis;
+
+    /** The objects of the time stamps, created when asked for */
+    private final AtomicReferenceArray<ImmutableDateTime> cache;
+
+    protected volatile boolean stopParsing = false;
 
-    protected boolean stopParsing = false;
+    /** All the frames before this one are parsed */
+    protected volatile int nextDateToParse = 0;
 
-    protected int nextDateToParse = 0;
+    /**
+     * All the frames before this one are published and checked to be in
+     * order, so they can be searched by time
+     */
+    private volatile int indexedUntil = 0;
+
+    /** Whether the time stamps published are in ascending order */
+    private volatile boolean sorted = true;
+
+    /** The last frame found by time, tried first by the next search */
+    private volatile int cursor = 0;
     private Thread parsingThread = null;
 
+    /** Maximum time to wait for more meta data before trying again (ms) */
+    private static final long DATA_TIMEOUT = 1000;
+
+    /**
+     * Signaled when more meta data arrives and when a time stamp is parsed,
+     * or a signal of its own if not set
+     */
+    private volatile ProgressSignal dataSignal = new ProgressSignal();
+
     /**
      * Default constructor.
      * 
@@ -37,12 +95,25 @@ public abstract class DateTimeCache {
      */
     public DateTimeCache(CachedMovieView _parent) {
         parent = _parent;
-        cache = new ImmutableDateTime[_parent.getMaximumFrameNumber() + 1];
+        epochMillis = new long[_parent.getMaximumFrameNumber() + 1];
+        Arrays.fill(epochMillis, NOT_PARSED);
+        cache = new AtomicReferenceArray<ImmutableDateTime>(epochMillis.length);
 
         parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.COMPLETE, 0)));
         parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.PARTIAL, 0)));
     }
 
+    /**
+     * Sets the signal of the data of the image, to wait for the meta data
+     * instead of polling. The signal is also signaled every time a time stamp
+     * is parsed.
+     * 
+     * @param _dataSignal
+     */
+    public void setDataSignal(ProgressSignal _dataSignal) {
+        dataSignal = _dataSignal;
+    }
+
     /**
      * Returns the last layer, whose meta data is already parsed.
      * 
@@ -66,18 +137,135 @@ public abstract class DateTimeCache {
      * @return Date and time of the given frame
      */
     public ImmutableDateTime getDateTime(int frameNumber) {    	
-    	if (cache[frameNumber] == null) {
+        ImmutableDateTime dateTime = cache.get(frameNumber);
+        if (dateTime != null)
+            return dateTime;
 
-            do {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            } while (cache[frameNumber] == null && !stopParsing);
+        long millis = getMillis(frameNumber);
+        if (millis == NOT_PARSED)
+            return null;
+
+        dateTime = ImmutableDateTime.fromMillis(millis);
+        if (!cache.compareAndSet(frameNumber, null, dateTime))
+            dateTime = cache.get(frameNumber);
+        return dateTime;
+    }
+
+    /**
+     * Reads the time stamp of the given frame number from the cache, without
+     * creating an object, waiting until it is available like
+     * {@link #getDateTime(int)}.
+     * 
+     * @param frameNumber
+     *            Frame number to fetch the time stamp for
+     * @return Milliseconds since the Epoch, NOT_PARSED if the parsing was
+     *         stopped before
+     */
+    public long getMillis(int frameNumber) {
+        long progress = dataSignal.getCount();
+
+        while (!isParsed(frameNumber) && !stopParsing) {
+            try {
+                dataSignal.waitForProgress(progress, DATA_TIMEOUT);
+            } catch (InterruptedException e) {
+                break;
+            }
+            progress = dataSignal.getCount();
+        }
+
+        return isParsed(frameNumber) ? epochMillis[frameNumber] : NOT_PARSED;
+    }
+
+    /**
+     * Returns the frame closest in time to the given time. Of two frames
+     * equally close, the later one is returned.
+     * 
+     * <p>
+     * The frames parsed are searched by bisection, trying first the frame
+     * found last and the one after it, so following a movie played forwards
+     * usually takes constant time. If the time is after the frames parsed so
+     * far, waits until a frame at or after it is parsed, as
+     * {@link #getDateTime(int)} does. If the time stamps are not in
+     * ascending order, the frames are searched one after another.
+     * 
+     * @param millis
+     *            The time in milliseconds since the Epoch
+     * @return The frame number, -1 if the parsing was stopped before
+     */
+    public int getFrameNumber(long millis) {
+        int last = epochMillis.length - 1;
+
+        while (sorted) {
+            int indexed = indexedUntil;
+
+            if (indexed > last || (indexed > 0 && epochMillis[indexed - 1] >= millis)) {
+                int frameNumber = findFirstNotBefore(millis, indexed);
+                cursor = frameNumber;
+                return chooseClosest(millis, Math.min(frameNumber, last));
+            }
+
+            // Waits for the next frame, publishing the following ones
+            if (getMillis(indexed) == NOT_PARSED)
+                return -1;
+
+            // Stopped without publishing the frames
+            if (indexedUntil == indexed)
+                break;
         }
-        
-        return cache[frameNumber];
+
+        int frameNumber = -1;
+        long currentMillis;
+        do {
+            currentMillis = getMillis(++frameNumber);
+            if (currentMillis == NOT_PARSED)
+                return -1;
+        } while (currentMillis < millis && frameNumber < last);
+
+        return chooseClosest(millis, frameNumber);
+    }
+
+    /**
+     * Returns the first frame not before the given time among the first
+     * frames, which must be in ascending order.
+     * 
+     * @param millis
+     *            The time in milliseconds since the Epoch
+     * @param numFrames
+     *            The number of frames searched
+     * @return The frame number, numFrames if all the frames are before
+     */
+    private int findFirstNotBefore(long millis, int numFrames) {
+        int hint = cursor;
+        for (int i = hint; i <= hint + 1 && i < numFrames; i++) {
+            if (epochMillis[i] >= millis && (i == 0 || epochMillis[i - 1] < millis))
+                return i;
+        }
+
+        int low = 0, high = numFrames;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (epochMillis[middle] < millis)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Chooses between a frame and the one before it, whichever is closer to
+     * the given time, the frame itself if equally close.
+     */
+    private int chooseClosest(long millis, int frameNumber) {
+        if (frameNumber > 0 && millis - epochMillis[frameNumber - 1] < epochMillis[frameNumber] - millis)
+            return frameNumber - 1;
+        return frameNumber;
+    }
+
+    /** Tells if a frame has been parsed and published */
+    private boolean isParsed(int frameNumber) {
+        // The volatile read makes the values before it visible
+        return frameNumber < nextDateToParse && epochMillis[frameNumber] != NOT_PARSED;
     }
 
     /**
@@ -101,6 +289,7 @@ public abstract class DateTimeCache {
      */
     public void stopParsing() {
         stopParsing = true;
+        dataSignal.signal();
 
         if (parsingThread != null && parsingThread.isAlive()) {
             try {
@@ -117,11 +306,14 @@ public abstract class DateTimeCache {
      * This function is called from the parsing thread. It test first, whether
      * the time stamps are available via an API response. If that is not the
      * cause, it waits until the meta data are loaded, so it can read the time
-     * stamps from the meta data.
+     * stamps from the meta data. The frames available are parsed in chunks in
+     * parallel, and the parsed frames are published up to the first frame
+     * missing.
      */
     private void parseAll() {
 
         nextDateToParse = 0;
+        int numFrames = parent.getMaximumFrameNumber() + 1;
 
         if (parent instanceof ImageInfoView) {
             APIResponse apiResponse = APIResponseDump.getSingletonInstance().getResponse(((ImageInfoView) parent).getUri());
@@ -132,49 +324,140 @@ public abstract class DateTimeCache {
                 if (rawFrames != null) {
                     String[] frames = rawFrames.split(",");
 
-                    if (frames.length - 1 == parent.getMaximumFrameNumber()) {
-                        do {
-                            cache[nextDateToParse] = new ImmutableDateTime(Integer.parseInt(frames[nextDateToParse]));
-                            fireChangeEventIfNecessary();
-                            nextDateToParse++;
-
-                        } while (!stopParsing && nextDateToParse <= parent.getMaximumFrameNumber());
+                    if (frames.length == numFrames) {
+                        for (int i = 0; i < numFrames && !stopParsing; i++) {
+                            epochMillis[i] = Long.parseLong(frames[i].trim()) * 1000;
+                        }
+                        if (!stopParsing)
+                            publish(numFrames);
                     }
                 }
             }
         }
 
-        while (!stopParsing && nextDateToParse <= parent.getMaximumFrameNumber()) {
+        while (!stopParsing && nextDateToParse < numFrames) {
+
+            long progress = dataSignal.getCount();
+            int first = nextDateToParse;
+            parseChunks(first, Math.min(numFrames, first + CHUNK_SIZE * NUM_PARSERS));
+
+            if (stopParsing)
+                break;
+
+            int next = first;
+            while (next < numFrames && epochMillis[next] != NOT_PARSED)
+                next++;
 
-            cache[nextDateToParse] = parseDateTime(nextDateToParse);
-            
-            if (nextDateToParse < cache.length && cache[nextDateToParse] == null) {
+            if (next > first) {
+                publish(next);
+            } else {
+                // Tried again as soon as more meta data arrives
                 try {
-                    Thread.sleep(200);
+                    dataSignal.waitForProgress(progress, DATA_TIMEOUT);
                 } catch (InterruptedException e) {
                 }
+            }
+        }
+    }
 
-            } else {
-                fireChangeEventIfNecessary();
+    /**
+     * Parses the frames of a range not parsed yet, in chunks on the parser
+     * threads. A chunk stops at its first frame whose meta data is missing.
+     * 
+     * @param first
+     *            First frame of the range
+     * @param end
+     *            Frame after the last one of the range
+     */
+    private void parseChunks(int first, int end) {
+        List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+
+        for (int start = first; start < end; start += CHUNK_SIZE) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(end, start + CHUNK_SIZE);
+
+            chunks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = chunkStart; i < chunkEnd && !stopParsing; i++) {
+                        if (epochMillis[i] != NOT_PARSED)
+                            continue;
+
+                        long millis = parseMillis(i);
+                        if (millis == NOT_PARSED)
+                            break;
+                        epochMillis[i] = millis;
+                    }
+                    return null;
+                }
+            });
+        }
 
-                nextDateToParse++;
+        try {
+            // The values written by the threads are visible once they are done
+            for (Future<Void> future : parserExecutor.invokeAll(chunks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
             }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publishes the frames parsed up to a frame, waking up the threads waiting
+     * for them.
+     * 
+     * @param next
+     *            The frame after the last one parsed
+     */
+    private void publish(int next) {
+        int first = Math.max(1, indexedUntil);
+        for (int i = first; i < next && sorted; i++) {
+            if (epochMillis[i] < epochMillis[i - 1])
+                sorted = false;
         }
+        indexedUntil = next;
+
+        nextDateToParse = next;
+        fireChangeEventIfNecessary(next - 1);
+        dataSignal.signal();
     }
 
     /**
      * Fires a change event into the view chain, if the cache status has
      * changed.
+     * 
+     * @param lastParsed
+     *            The last frame parsed
      */
-    private void fireChangeEventIfNecessary() {
-        if (nextDateToParse <= parent.getImageCacheStatus().getImageCachedCompletelyUntil()) {
-            parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.COMPLETE, nextDateToParse)));
+    private void fireChangeEventIfNecessary(int lastParsed) {
+        if (lastParsed <= parent.getImageCacheStatus().getImageCachedCompletelyUntil()) {
+            parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.COMPLETE, lastParsed)));
 
-        } else if (nextDateToParse <= parent.getImageCacheStatus().getImageCachedPartiallyUntil()) {
-            parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.PARTIAL, nextDateToParse)));
+        } else if (lastParsed <= parent.getImageCacheStatus().getImageCachedPartiallyUntil()) {
+            parent.fireChangeEvent(new ChangeEvent(new CacheStatusChangedReason(parent, CacheType.PARTIAL, lastParsed)));
         }
     }
 
+    /**
+     * Parses the time stamp of the given frame number, called by the parser
+     * threads. By default, it is taken from
+     * {@link #parseDateTime(int)}; specialized classes may parse it without
+     * creating an object.
+     * 
+     * @param frameNumber
+     *            Frame number to parse the time stamp for
+     * @return Milliseconds since the Epoch, NOT_PARSED if the meta data is
+     *         not available yet
+     */
+    protected long parseMillis(int frameNumber) {
+        ImmutableDateTime dateTime = parseDateTime(frameNumber);
+        return dateTime == null ? NOT_PARSED : dateTime.getMillis();
+    }
+
     /**
      * Parses the date and time of the given frame number.
      * 
@@ -0,0 +1,138 @@
+package org.helioviewer.viewmodel.view.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.helioviewer.viewmodel.view.CachedMovieView;
+import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
+import org.junit.After;
+import org.junit.Test;
+
+public class DateTimeCacheTest {
+
+    /** A cache of the given time stamps, of which the first ones are parsed */
+    public class TestCache extends DateTimeCache {
+        private final long[] times;
+        private final int available;
+
+        public TestCache(long[] _times, int _available) {
+            super(createView(_times.length));
+            times = _times;
+            available = _available;
+        }
+
+        protected ImmutableDateTime parseDateTime(int frameNumber) {
+            return frameNumber < available ? ImmutableDateTime.fromMillis(times[frameNumber]) : null;
+        }
+    }
+
+    TestCache cache = null;
+
+    /** A view with the given number of frames, whose frames are all cached */
+    static CachedMovieView createView(final int numFrames) {
+        final ImageCacheStatus status = (ImageCacheStatus) Proxy.newProxyInstance(DateTimeCacheTest.class.getClassLoader(), new Class<?>[] { ImageCacheStatus.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getReturnType() == int.class ? Integer.valueOf(numFrames - 1) : null;
+            }
+        });
+        return (CachedMovieView) Proxy.newProxyInstance(DateTimeCacheTest.class.getClassLoader(), new Class<?>[] { CachedMovieView.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getMaximumFrameNumber"))
+                    return Integer.valueOf(numFrames - 1);
+                if (method.getName().equals("getImageCacheStatus"))
+                    return status;
+                return null;
+            }
+        });
+    }
+
+    TestCache parse(long[] times) {
+        return parse(times, times.length);
+    }
+
+    TestCache parse(long[] times, int available) {
+        cache = new TestCache(times, available);
+        cache.startParsing();
+        return cache;
+    }
+
+    @After
+    public void stop() {
+        if (cache != null)
+            cache.stopParsing();
+    }
+
+    @Test
+    public void testExact() {
+        long[] times = { 1000, 2000, 3000, 4000 };
+        TestCache c = parse(times);
+        for (int i = 0; i < times.length; i++)
+            assertEquals(i, c.getFrameNumber(times[i]));
+    }
+
+    @Test
+    public void testClosest() {
+        TestCache c = parse(new long[] { 1000, 2000, 3000, 4000 });
+        assertEquals(0, c.getFrameNumber(1400));
+        assertEquals(1, c.getFrameNumber(1600));
+        assertEquals(2, c.getFrameNumber(2999));
+        assertEquals(0, c.getFrameNumber(0));
+        assertEquals(3, c.getFrameNumber(100000));
+    }
+
+    /** Of two frames equally close, the later one is returned */
+    @Test
+    public void testTies() {
+        TestCache c = parse(new long[] { 1000, 2000, 3000, 4000 });
+        assertEquals(1, c.getFrameNumber(1500));
+        assertEquals(2, c.getFrameNumber(2500));
+        assertEquals(3, c.getFrameNumber(3500));
+    }
+
+    /** Of frames with the same time stamp, the first one is returned */
+    @Test
+    public void testDuplicates() {
+        TestCache c = parse(new long[] { 1000, 2000, 2000, 2000, 3000 });
+        assertEquals(1, c.getFrameNumber(2000));
+        assertEquals(1, c.getFrameNumber(1600));
+        assertEquals(4, c.getFrameNumber(2500));
+    }
+
+    /** Out of order, the first frame not before the time or the one before */
+    @Test
+    public void testOutOfOrder() {
+        TestCache c = parse(new long[] { 0, 30, 10, 40 });
+        assertEquals(1, c.getFrameNumber(20));
+        assertEquals(0, c.getFrameNumber(5));
+        assertEquals(3, c.getFrameNumber(35));
+        assertEquals(1, c.getFrameNumber(30));
+        assertEquals(3, c.getFrameNumber(50));
+    }
+
+    @Test
+    public void testFollowingFrames() {
+        long[] times = new long[1000];
+        for (int i = 0; i < times.length; i++)
+            times[i] = 1000000000000L + i * 12000L + (i % 7) * 100;
+        TestCache c = parse(times);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < times.length; i++)
+                assertEquals(i, c.getFrameNumber(times[i] + 1));
+        }
+        for (int i = times.length - 1; i >= 0; i--)
+            assertEquals(i, c.getFrameNumber(times[i] - 1));
+    }
+
+    /** A time after the frames parsed once the parsing is stopped */
+    @Test
+    public void testStopped() {
+        TestCache c = parse(new long[] { 1000, 2000, 3000, 4000 }, 2);
+        assertEquals(1, c.getFrameNumber(2000));
+        c.stopParsing();
+        assertEquals(-1, c.getFrameNumber(4000));
+    }
+}
@@ -18,8 +18,14 @@ import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
  */
 public class HelioviewerDateTimeCache extends DateTimeCache {
 
-    private boolean isLASCO;
-    private boolean checkedForLasco = false;
+    private volatile boolean isLASCO;
+    private volatile boolean checkedForLasco = false;
+
+    /** The time returned for date and time which cannot be parsed */
+    private static final long INVALID_MILLIS = new ImmutableDateTime(0, 0, 0, 0, 0, 0).getMillis();
+
+    /** The first year entirely in the Gregorian calendar */
+    private static final int GREGORIAN_YEAR = 1583;
 
     private MultiFrameMetaDataContainer source;
 
@@ -55,9 +61,17 @@ public class HelioviewerDateTimeCache extends DateTimeCache {
     /**
      * {@inheritDoc} This class implements this function for helioviewer images.
      */
-    protected ImmutableDateTime parseDateTime(int frameNumber) {    	
+    protected ImmutableDateTime parseDateTime(int frameNumber) {
+        long millis = parseMillis(frameNumber);
+        return millis == NOT_PARSED ? null : ImmutableDateTime.fromMillis(millis);
+    }
+
+    /**
+     * {@inheritDoc} This class implements this function for helioviewer images.
+     */
+    protected long parseMillis(int frameNumber) {    	
         if (parent.getImageCacheStatus().getImageStatus(frameNumber) == null)
-            return null;
+            return NOT_PARSED;
 
         checkForLasco();
 
@@ -66,15 +80,15 @@ public class HelioviewerDateTimeCache extends DateTimeCache {
             if (isLASCO) {
                 observedDate += "T" + source.get("TIME_OBS", frameNumber);
             }
-            return parseDateTime(observedDate);
+            return parseMillis(observedDate);
 
         } catch (IOException e) {
             if (e.getMessage() == "No XML data present") {
                 nextDateToParse = parent.getMaximumFrameNumber() + 1;
                 stopParsing = true;
-                return new ImmutableDateTime(0, 0, 0, 0, 0, 0);
+                return INVALID_MILLIS;
             }
-            return null;
+            return NOT_PARSED;
         }
     }
 
@@ -97,31 +111,98 @@ public class HelioviewerDateTimeCache extends DateTimeCache {
      * @return object representing date and time
      */
     public static ImmutableDateTime parseDateTime(String dateTime) {
+        return ImmutableDateTime.fromMillis(parseMillis(dateTime));
+    }
 
-        int year = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0;
-
-        if (dateTime != null) {
-            try {
-                String[] firstDivide = dateTime.split("T");
-                String[] secondDivide1 = firstDivide[0].split("[-/]");
-                String[] secondDivide2 = firstDivide[1].split(":");
-                String[] thirdDivide = secondDivide2[2].split("\\.");
-                year = Integer.valueOf(secondDivide1[0]);
-                month = Integer.valueOf(secondDivide1[1]);
-                day = Integer.valueOf(secondDivide1[2]);
-                hour = Integer.valueOf(secondDivide2[0]);
-                minute = Integer.valueOf(secondDivide2[1]);
-                second = Integer.valueOf(thirdDivide[0]);
-            } catch (Exception e) {
-                year = 0;
-                month = 0;
-                day = 0;
-                hour = 0;
-                minute = 0;
-                second = 0;
+    /**
+     * Parses date and time given in one string, in the format of
+     * {@link #parseDateTime(String)}, into milliseconds since the Epoch.
+     * 
+     * <p>
+     * The string is scanned once, without regular expressions and without a
+     * Calendar, so it can be called for every frame of a movie.
+     * 
+     * @param dateTime
+     *            Date and time given in one string
+     * @return Milliseconds since the Epoch, the time of year 0 if the string
+     *         cannot be parsed
+     */
+    public static long parseMillis(String dateTime) {
+        if (dateTime == null)
+            return INVALID_MILLIS;
+
+        // The fields and the separator after each of them
+        int[] fields = new int[6];
+        int pos = 0;
+        int length = dateTime.length();
+
+        for (int field = 0; field < 6; field++) {
+            int start = pos;
+            int value = 0;
+            while (pos < length && pos - start < 9) {
+                char c = dateTime.charAt(pos);
+                if (c < '0' || c > '9')
+                    break;
+                value = value * 10 + (c - '0');
+                pos++;
             }
+            if (pos == start)
+                return INVALID_MILLIS;
+            fields[field] = value;
+
+            char separator = pos < length ? dateTime.charAt(pos) : 0;
+            boolean valid;
+            switch (field) {
+            case 0:
+            case 1:
+                valid = separator == '-' || separator == '/';
+                break;
+            case 2:
+                valid = separator == 'T';
+                break;
+            case 3:
+            case 4:
+                valid = separator == ':';
+                break;
+            default:
+                // The fraction of the seconds is ignored
+                valid = separator == 0 || separator == '.';
+            }
+            if (!valid)
+                return INVALID_MILLIS;
+            pos++;
         }
 
-        return new ImmutableDateTime(year, month != 0 ? month - 1 : 0, day, hour, minute, second);
+        int month = fields[1] != 0 ? fields[1] - 1 : 0;
+
+        // The Calendar follows the Julian calendar before the Gregorian one
+        // was introduced, e.g. for the year 0 of the missing dates
+        if (fields[0] < GREGORIAN_YEAR)
+            return new ImmutableDateTime(fields[0], month, fields[2], fields[3], fields[4], fields[5]).getMillis();
+
+        long days = daysSinceEpoch(fields[0] + month / 12, month % 12 + 1, fields[2]);
+        return ((days * 24 + fields[3]) * 60 + fields[4]) * 60000L + fields[5] * 1000L;
+    }
+
+    /**
+     * Returns the number of days from the Epoch to a date of the Gregorian
+     * calendar. Days beyond the end of the month carry over to the next ones.
+     * 
+     * @param year
+     * @param month
+     *            The month, starting with 1
+     * @param day
+     *            The day of the month, starting with 1
+     * @return The number of days
+     */
+    private static long daysSinceEpoch(long year, int month, int day) {
+        // Years starting in March, so the leap day is the last one
+        if (month <= 2)
+            year--;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
     }
 }
@@ -0,0 +1,68 @@
+package org.helioviewer.viewmodel.view.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
+import org.junit.Test;
+
+public class HelioviewerDateTimeCacheTest {
+
+    /** The time returned for the strings which cannot be parsed */
+    static final long INVALID = new ImmutableDateTime(0, 0, 0, 0, 0, 0).getMillis();
+
+    /** The time as computed by the Calendar, month starting with 1 */
+    static long millis(int year, int month, int day, int hour, int minute, int second) {
+        return new ImmutableDateTime(year, month - 1, day, hour, minute, second).getMillis();
+    }
+
+    @Test
+    public void testFormats() {
+        assertEquals(millis(2003, 10, 5, 12, 34, 56), HelioviewerDateTimeCache.parseMillis("2003-10-05T12:34:56"));
+        assertEquals(millis(2003, 10, 5, 12, 34, 56), HelioviewerDateTimeCache.parseMillis("2003/10/05T12:34:56"));
+        assertEquals(millis(1970, 1, 1, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("1970-01-01T00:00:00"));
+        assertEquals(0, HelioviewerDateTimeCache.parseMillis("1970-01-01T00:00:00"));
+    }
+
+    @Test
+    public void testFractionIgnored() {
+        assertEquals(millis(2010, 6, 1, 23, 59, 59), HelioviewerDateTimeCache.parseMillis("2010-06-01T23:59:59.999"));
+        assertEquals(millis(2010, 6, 1, 23, 59, 59), HelioviewerDateTimeCache.parseMillis("2010-06-01T23:59:59.5Z"));
+    }
+
+    @Test
+    public void testLeapDays() {
+        assertEquals(millis(2000, 2, 29, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("2000-02-29T00:00:00"));
+        assertEquals(millis(2004, 2, 29, 12, 0, 0), HelioviewerDateTimeCache.parseMillis("2004-02-29T12:00:00"));
+        assertEquals(millis(1900, 3, 1, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("1900-03-01T00:00:00"));
+    }
+
+    /** Before 1583 the Calendar follows the Julian calendar */
+    @Test
+    public void testJulianDates() {
+        assertEquals(millis(1500, 3, 1, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("1500-03-01T00:00:00"));
+        assertEquals(millis(1582, 10, 4, 12, 0, 0), HelioviewerDateTimeCache.parseMillis("1582-10-04T12:00:00"));
+        assertEquals(millis(1583, 1, 1, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("1583-01-01T00:00:00"));
+    }
+
+    /** Fields out of range carry over, as with the lenient Calendar */
+    @Test
+    public void testOverflow() {
+        assertEquals(millis(2001, 2, 29, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("2001-02-29T00:00:00"));
+        assertEquals(millis(2011, 12, 31, 24, 0, 0), HelioviewerDateTimeCache.parseMillis("2011-12-31T24:00:00"));
+        assertEquals(millis(2011, 13, 1, 0, 0, 0), HelioviewerDateTimeCache.parseMillis("2011-13-01T00:00:00"));
+        assertEquals(millis(2011, 5, 10, 10, 59, 60), HelioviewerDateTimeCache.parseMillis("2011-05-10T10:59:60"));
+    }
+
+    @Test
+    public void testInvalid() {
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis(null));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis(""));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("0000-00-00T00:00:00"));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("2003-10-05"));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("2003-10-05 12:34:56"));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("2003-10-05T12:34"));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("2003-1O-05T12:34:56"));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("-2003-10-05T12:34:56"));
+        assertEquals(INVALID, HelioviewerDateTimeCache.parseMillis("2003-10-05T12:34:56Z"));
+    }
+}
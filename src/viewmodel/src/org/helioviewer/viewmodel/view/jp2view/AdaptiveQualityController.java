@@ -0,0 +1,198 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+/**
+ * Closed-loop controller of the fidelity requested while a remote movie is
+ * being played.
+ *
+ * <p>
+ * The controller watches the margin between the current frame and the last
+ * frame available for display (the partial watermark of the
+ * <code>ImageCacheStatus</code>), measured in seconds of playback at the
+ * target frame rate. If the margin falls below the low watermark, the
+ * playback is about to freeze, so the fidelity is lowered one step: first the
+ * number of quality layers is halved down to the user-set minimum, then the
+ * resolution level is lowered up to the user-set maximum. If the margin grows
+ * beyond the high watermark, the fidelity is raised one step in the opposite
+ * order. Two consecutive steps are at least a minimum interval apart, so that
+ * the server has time to react to every change.
+ *
+ * <p>
+ * The controller only limits the request windows: the rendered resolution is
+ * unchanged and the missing detail is simply not downloaded.
+ *
+ * <p>
+ * The bounds, the watermarks and the interval are set by the user for all the
+ * controllers together, see the jpip.adaptive.* settings.
+ */
+public class AdaptiveQualityController {
+
+    /** The default low watermark, in seconds of playback */
+    public static final double DEFAULT_LOW_MARGIN = 1.0;
+
+    /** The default high watermark, in seconds of playback */
+    public static final double DEFAULT_HIGH_MARGIN = 4.0;
+
+    /** The default minimum time between two steps, in milliseconds */
+    public static final long DEFAULT_MIN_STEP_INTERVAL = 2000;
+
+    /** The default minimum number of quality layers requested */
+    public static final int DEFAULT_MIN_QUALITY_LAYERS = 1;
+
+    /** The default maximum number of resolution levels dropped */
+    public static final int DEFAULT_MAX_RESOLUTION_REDUCTION = 2;
+
+    // The settings of all the controllers
+    private static volatile boolean enabled = true;
+
+    private static volatile double lowMargin = DEFAULT_LOW_MARGIN;
+    private static volatile double highMargin = DEFAULT_HIGH_MARGIN;
+    private static volatile long minStepInterval = DEFAULT_MIN_STEP_INTERVAL;
+
+    /** The user-set bounds of the degradation */
+    private static volatile int minQualityLayers = DEFAULT_MIN_QUALITY_LAYERS;
+    private static volatile int maxResolutionReduction = DEFAULT_MAX_RESOLUTION_REDUCTION;
+
+    /** The current cap of quality layers, or -1 if there is none */
+    private int qualityLayers = -1;
+
+    /** The current number of resolution levels dropped */
+    private int resolutionReduction = 0;
+
+    /** The time of the last step */
+    private long lastStep = 0;
+
+    /**
+     * Updates the controller with the current playback margin.
+     *
+     * @param margin
+     *            Seconds of playback available ahead of the current frame
+     * @param maxQualityLayers
+     *            Number of quality layers requested by the view
+     * @param availableResolutionReduction
+     *            Number of resolution levels below the level requested by the
+     *            view
+     * @param timeMillis
+     *            The current time in milliseconds
+     * @return True, if the fidelity to request has changed
+     */
+    public synchronized boolean update(double margin, int maxQualityLayers, int availableResolutionReduction, long timeMillis) {
+        // A controller disabled while degraded returns to the full fidelity
+        if (!enabled)
+            return reset();
+
+        if (timeMillis - lastStep < minStepInterval)
+            return false;
+
+        int currentLayers = qualityLayers < 0 ? maxQualityLayers : Math.min(qualityLayers, maxQualityLayers);
+        int minLayers = Math.max(1, Math.min(minQualityLayers, maxQualityLayers));
+        int maxReduction = Math.max(0, Math.min(maxResolutionReduction, availableResolutionReduction));
+
+        if (margin < lowMargin) {
+            if (currentLayers > minLayers) {
+                qualityLayers = Math.max(minLayers, currentLayers / 2);
+            } else if (resolutionReduction < maxReduction) {
+                resolutionReduction++;
+            } else {
+                return false;
+            }
+        } else if (margin > highMargin) {
+            if (resolutionReduction > 0) {
+                resolutionReduction--;
+            } else if (qualityLayers >= 0) {
+                qualityLayers = currentLayers * 2 >= maxQualityLayers ? -1 : currentLayers * 2;
+            } else {
+                return false;
+            }
+        } else {
+            return false;
+        }
+
+        lastStep = timeMillis;
+        return true;
+    }
+
+    /**
+     * Returns to the full fidelity.
+     *
+     * @return True, if the fidelity was degraded
+     */
+    public synchronized boolean reset() {
+        boolean degraded = isDegraded();
+        qualityLayers = -1;
+        resolutionReduction = 0;
+        lastStep = 0;
+        return degraded;
+    }
+
+    /** Tells if the fidelity is currently below the one of the view. */
+    public synchronized boolean isDegraded() {
+        return qualityLayers >= 0 || resolutionReduction > 0;
+    }
+
+    /**
+     * Returns the number of quality layers to request.
+     *
+     * @param requested
+     *            Number of quality layers requested by the view
+     */
+    public synchronized int getQualityLayers(int requested) {
+        return qualityLayers < 0 ? requested : Math.min(qualityLayers, requested);
+    }
+
+    /** Returns the number of resolution levels to drop from the request. */
+    public synchronized int getResolutionReduction() {
+        return resolutionReduction;
+    }
+
+    /**
+     * Enables or disables all the controllers. A disabled controller returns
+     * to the full fidelity on its next update.
+     */
+    public static void setEnabled(boolean _enabled) {
+        enabled = _enabled;
+    }
+
+    /** Tells if the controllers are enabled. */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the bounds of the degradation of all the controllers.
+     *
+     * @param _minQualityLayers
+     *            Minimum number of quality layers requested
+     * @param _maxResolutionReduction
+     *            Maximum number of resolution levels dropped
+     */
+    public static void setBounds(int _minQualityLayers, int _maxResolutionReduction) {
+        minQualityLayers = Math.max(1, _minQualityLayers);
+        maxResolutionReduction = Math.max(0, _maxResolutionReduction);
+    }
+
+    /**
+     * Sets the watermarks of the playback margin of all the controllers.
+     *
+     * @param _lowMargin
+     *            Margin in seconds below which the fidelity is lowered
+     * @param _highMargin
+     *            Margin in seconds above which the fidelity is raised
+     */
+    public static void setMargins(double _lowMargin, double _highMargin) {
+        lowMargin = _lowMargin;
+        highMargin = Math.max(_lowMargin, _highMargin);
+    }
+
+    /**
+     * Sets the minimum time in milliseconds between two steps of all the
+     * controllers.
+     */
+    public static void setMinStepInterval(long _minStepInterval) {
+        minStepInterval = Math.max(0, _minStepInterval);
+    }
+
+    /** Returns a string representation of the controller state. */
+    public synchronized String toString() {
+        return getClass().getSimpleName() + " [qualityLayers=" + (qualityLayers < 0 ? "all" : String.valueOf(qualityLayers)) + " resolutionReduction=" + resolutionReduction + "]";
+    }
+}
@@ -0,0 +1,160 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet.ResolutionLevel;
+import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
+
+/**
+ * Cache of the frames decoded by a <code>J2KRender</code> while a movie is
+ * played, so that the following loops do not run the compositor again.
+ *
+ * <p>
+ * The frames are the 8-bit or ARGB buffers handed to the view, stored by
+ * composition layer for the region, resolution and quality layers they were
+ * decoded with. When any of those parameters changes, all the frames are
+ * dropped. The buffers are shared with the views, so they must not be written
+ * once they are stored.
+ *
+ * <p>
+ * The memory of the frames of all the images together is limited by a budget;
+ * every image gets an equal share of it, and the least recently used frames
+ * are evicted beyond the share.
+ */
+public class DecodedFrameCache {
+
+    /** The default memory budget of all the images together (bytes) */
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    private static volatile long budget = DEFAULT_BUDGET;
+
+    /** The parameters of the frames stored */
+    private SubImage subImage = null;
+    private ResolutionLevel resolution = null;
+    private int qualityLayers = -1;
+
+    /** The frames, from the least to the most recently used */
+    private final LinkedHashMap<Integer, Object> frames = new LinkedHashMap<Integer, Object>(64, 0.75f, true);
+
+    /** The memory of the frames stored */
+    private long size = 0;
+
+    // Statistics
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Sets the memory budget of the frames of all the images together.
+     *
+     * @param _budget
+     *            The budget in bytes, 0 to disable the cache
+     */
+    public static void setBudget(long _budget) {
+        budget = Math.max(0, _budget);
+    }
+
+    /** Returns the memory budget of all the images together (bytes). */
+    public static long getBudget() {
+        return budget;
+    }
+
+    /** Returns the memory the frames of one image may use (bytes). */
+    private static long getImageBudget() {
+        return budget / Math.max(1, JP2Image.numJP2ImagesInUse());
+    }
+
+    /**
+     * Sets the parameters of the frames to be decoded. The frames stored are
+     * dropped if the region, resolution or quality layers differ.
+     *
+     * @param params
+     *            The current parameters
+     * @return True, if the frames were dropped
+     */
+    synchronized boolean setParameters(JP2ImageParameter params) {
+        if (params.subImage.equals(subImage) && params.resolution.equals(resolution) && params.qualityLayers == qualityLayers)
+            return false;
+
+        subImage = params.subImage;
+        resolution = params.resolution;
+        qualityLayers = params.qualityLayers;
+        clear();
+        return true;
+    }
+
+    /**
+     * Returns the frame of a composition layer.
+     *
+     * @param compositionLayer
+     * @return A byte[] or int[] buffer, or null if not stored
+     */
+    synchronized Object get(int compositionLayer) {
+        Object frame = frames.get(compositionLayer);
+        if (frame == null)
+            misses++;
+        else
+            hits++;
+        return frame;
+    }
+
+    /** Tells if the frame of a composition layer is stored. */
+    synchronized boolean contains(int compositionLayer) {
+        return frames.containsKey(compositionLayer);
+    }
+
+    /**
+     * Stores a frame decoded with the current parameters, evicting the least
+     * recently used ones beyond the budget.
+     *
+     * @param compositionLayer
+     * @param frame
+     *            A byte[] or int[] buffer
+     */
+    synchronized void put(int compositionLayer, Object frame) {
+        long frameSize = getSize(frame);
+        long imageBudget = getImageBudget();
+        if (frameSize > imageBudget)
+            return;
+
+        Object old = frames.put(compositionLayer, frame);
+        size += frameSize - (old == null ? 0 : getSize(old));
+
+        Iterator<Object> it = frames.values().iterator();
+        while (size > imageBudget && it.hasNext()) {
+            size -= getSize(it.next());
+            it.remove();
+        }
+    }
+
+    /** Drops all the frames. */
+    synchronized void clear() {
+        frames.clear();
+        size = 0;
+    }
+
+    /** Returns the memory of the frames stored (bytes). */
+    synchronized long getMemoryUsage() {
+        return size;
+    }
+
+    /** Returns the number of frames found in the cache. */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of frames not found in the cache. */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the memory of a buffer */
+    private static long getSize(Object frame) {
+        if (frame instanceof byte[])
+            return ((byte[]) frame).length;
+        else if (frame instanceof int[])
+            return 4L * ((int[]) frame).length;
+        return 0;
+    }
+}
@@ -0,0 +1,196 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+
+/**
+ * The keywords of one section of the XML box of a frame, e.g. the FITS header,
+ * as an immutable table.
+ *
+ * <p>
+ * The table is extracted by scanning the XML once, without building a
+ * document: every element inside the section becomes a keyword, with its text
+ * as the value, and only the first element of a name is kept. The text is
+ * taken as it is, entities are not resolved. Keywords and values are
+ * interned, since most of them are the same for all the frames of a movie, and
+ * the keywords are kept sorted to be looked up by binary search.
+ *
+ * <p>
+ * Being immutable, a table can be queried by any thread without locks.
+ */
+public final class FitsHeader {
+
+    private static final String[] EMPTY = new String[0];
+
+    /** The keywords, sorted */
+    private final String[] keys;
+
+    /** The values, in the order of the keywords, null for empty elements */
+    private final String[] values;
+
+    private FitsHeader(String[] _keys, String[] _values) {
+        keys = _keys;
+        values = _values;
+    }
+
+    /**
+     * Extracts the keywords of a section of an XML box.
+     *
+     * @param xml
+     *            The contents of the XML box, which must contain a meta
+     *            element
+     * @param section
+     *            The name of the section, e.g. "fits"
+     * @return The table of the keywords
+     * @throws JHV_KduException
+     *             If the meta element or the section is missing
+     */
+    public static FitsHeader parse(String xml, String section) throws JHV_KduException {
+        if (xml.indexOf("$OBS") >= 0)
+            xml = xml.replace("$OBS", "");
+
+        int meta = findStartTag(xml, "meta", 0);
+        if (meta < 0)
+            throw new JHV_KduException("Failed parsing XML data");
+
+        int start = findStartTag(xml, section, meta);
+        if (start < 0)
+            throw new JHV_KduException("Failed parsing XML data");
+
+        int startEnd = xml.indexOf('>', start);
+        if (startEnd < 0)
+            throw new JHV_KduException("Failed parsing XML data");
+        if (xml.charAt(startEnd - 1) == '/')
+            return new FitsHeader(EMPTY, EMPTY);
+
+        int end = xml.indexOf("</" + section, startEnd);
+        if (end < 0)
+            end = xml.length();
+
+        // Collected in document order
+        int size = 0;
+        String[] names = new String[64];
+        String[] texts = new String[64];
+
+        int pos = startEnd + 1;
+        while ((pos = xml.indexOf('<', pos)) >= 0 && pos < end) {
+            if (xml.startsWith("<!--", pos)) {
+                int close = xml.indexOf("-->", pos + 4);
+                pos = close < 0 ? end : close + 3;
+                continue;
+            }
+
+            char first = pos + 1 < end ? xml.charAt(pos + 1) : '/';
+            if (first == '/' || first == '?' || first == '!') {
+                pos++;
+                continue;
+            }
+
+            int nameEnd = pos + 1;
+            while (nameEnd < end && !isNameEnd(xml.charAt(nameEnd)))
+                nameEnd++;
+
+            int tagEnd = xml.indexOf('>', nameEnd);
+            if (tagEnd < 0 || tagEnd > end)
+                break;
+
+            String name = xml.substring(pos + 1, nameEnd);
+            String text = null;
+            pos = tagEnd + 1;
+
+            if (xml.charAt(tagEnd - 1) != '/') {
+                int textEnd = xml.indexOf('<', pos);
+                if (textEnd < 0)
+                    textEnd = end;
+                if (textEnd > pos)
+                    text = xml.substring(pos, textEnd).intern();
+                pos = textEnd;
+            }
+
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+            }
+            names[size] = name;
+            texts[size] = text;
+            size++;
+        }
+
+        // Sorted by keyword; the sort is stable, so the first occurrence of
+        // a keyword comes first
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        final String[] unsorted = names;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return unsorted[a].compareTo(unsorted[b]);
+            }
+        });
+
+        int count = 0;
+        String[] keys = new String[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            String key = names[order[i]];
+            if (count > 0 && keys[count - 1].equals(key))
+                continue;
+            keys[count] = key.intern();
+            values[count] = texts[order[i]];
+            count++;
+        }
+
+        if (count < size) {
+            keys = Arrays.copyOf(keys, count);
+            values = Arrays.copyOf(values, count);
+        }
+        return new FitsHeader(keys, values);
+    }
+
+    /**
+     * Returns the value of a keyword.
+     *
+     * @param key
+     *            The keyword
+     * @return The value, null if the keyword is missing or empty
+     */
+    public String get(String key) {
+        int i = Arrays.binarySearch(keys, key);
+        return i < 0 ? null : values[i];
+    }
+
+    /** Tells if the keyword is present, even if empty. */
+    public boolean contains(String key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+
+    /** Returns the number of keywords. */
+    public int size() {
+        return keys.length;
+    }
+
+    /** Returns the keywords, sorted. */
+    public String[] getKeys() {
+        return keys.clone();
+    }
+
+    /** Returns the position of the start tag of an element, -1 if missing */
+    private static int findStartTag(String xml, String name, int from) {
+        String tag = "<" + name;
+        int pos = from;
+        while ((pos = xml.indexOf(tag, pos)) >= 0) {
+            int after = pos + tag.length();
+            if (after < xml.length() && isNameEnd(xml.charAt(after)))
+                return pos;
+            pos = after;
+        }
+        return -1;
+    }
+
+    /** Tells if a character ends the name of a tag */
+    private static boolean isNameEnd(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+}
@@ -0,0 +1,106 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.junit.Test;
+
+public class FitsHeaderTest {
+
+    static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<meta>\n<fits>\n"
+            + "<TELESCOP>SOHO</TELESCOP>\n<INSTRUME>EIT</INSTRUME>\n<WAVELNTH>195</WAVELNTH>\n"
+            + "<DATE_OBS>2003-10-05T12:34:56.789Z</DATE_OBS>\n</fits>\n"
+            + "<helioviewer>\n<HV_ROTATION>0.0</HV_ROTATION>\n</helioviewer>\n</meta>";
+
+    @Test
+    public void testValues() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse(XML, "fits");
+        assertEquals(4, header.size());
+        assertEquals("SOHO", header.get("TELESCOP"));
+        assertEquals("EIT", header.get("INSTRUME"));
+        assertEquals("195", header.get("WAVELNTH"));
+        assertEquals("2003-10-05T12:34:56.789Z", header.get("DATE_OBS"));
+        assertNull(header.get("HV_ROTATION"));
+        assertFalse(header.contains("HV_ROTATION"));
+
+        FitsHeader helioviewer = FitsHeader.parse(XML, "helioviewer");
+        assertEquals(1, helioviewer.size());
+        assertEquals("0.0", helioviewer.get("HV_ROTATION"));
+    }
+
+    @Test
+    public void testKeysSorted() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse(XML, "fits");
+        assertArrayEquals(new String[] { "DATE_OBS", "INSTRUME", "TELESCOP", "WAVELNTH" }, header.getKeys());
+    }
+
+    /** Entities are not resolved */
+    @Test
+    public void testEntities() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse("<meta><fits><HISTORY>a &amp; b &lt;c&gt;</HISTORY></fits></meta>", "fits");
+        assertEquals("a &amp; b &lt;c&gt;", header.get("HISTORY"));
+    }
+
+    @Test
+    public void testEmptyElements() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse("<meta><fits><A/><B /><C></C><D>1</D></fits></meta>", "fits");
+        assertEquals(4, header.size());
+        for (String key : new String[] { "A", "B", "C" }) {
+            assertNull(header.get(key));
+            assertTrue(header.contains(key));
+        }
+        assertEquals("1", header.get("D"));
+    }
+
+    /** Only the first element of a name is kept */
+    @Test
+    public void testDuplicates() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse("<meta><fits><B>1</B><A>2</A><B>3</B><A>4</A><B>5</B></fits></meta>", "fits");
+        assertEquals(2, header.size());
+        assertEquals("2", header.get("A"));
+        assertEquals("1", header.get("B"));
+    }
+
+    @Test
+    public void testAttributesAndComments() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse("<meta><fits type=\"header\"><!-- <X>0</X> --><A unit=\"s\">1</A>\n<B>2</B></fits></meta>", "fits");
+        assertEquals(2, header.size());
+        assertEquals("1", header.get("A"));
+        assertEquals("2", header.get("B"));
+        assertFalse(header.contains("X"));
+    }
+
+    /** The name of the section must match as a whole */
+    @Test
+    public void testSectionName() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse("<meta><fitsx><A>1</A></fitsx><fits><B>2</B></fits></meta>", "fits");
+        assertEquals(1, header.size());
+        assertEquals("2", header.get("B"));
+    }
+
+    @Test
+    public void testEmptySection() throws JHV_KduException {
+        assertEquals(0, FitsHeader.parse("<meta><fits/></meta>", "fits").size());
+        assertEquals(0, FitsHeader.parse("<meta><fits></fits></meta>", "fits").size());
+    }
+
+    @Test
+    public void testObsRemoved() throws JHV_KduException {
+        FitsHeader header = FitsHeader.parse("<meta><fits><OBSRVTRY>$OBSSOHO</OBSRVTRY></fits></meta>", "fits");
+        assertEquals("SOHO", header.get("OBSRVTRY"));
+    }
+
+    @Test(expected = JHV_KduException.class)
+    public void testMissingMeta() throws JHV_KduException {
+        FitsHeader.parse("<fits><A>1</A></fits>", "fits");
+    }
+
+    @Test(expected = JHV_KduException.class)
+    public void testMissingSection() throws JHV_KduException {
+        FitsHeader.parse("<meta><helioviewer><A>1</A></helioviewer></meta>", "fits");
+    }
+}
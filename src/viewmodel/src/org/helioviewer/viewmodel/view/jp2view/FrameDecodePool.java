@@ -0,0 +1,215 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet.ResolutionLevel;
+import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+
+/**
+ * Pool of threads decoding the frames of a movie ahead of the playhead, each
+ * one with its own {@link FrameDecoder}, so that a movie is played with
+ * several cores instead of one.
+ *
+ * <p>
+ * The <code>J2KRender</code> schedules the frames it is going to display
+ * next, in playback order, and takes them one by one as the playhead reaches
+ * them, waiting for a frame which is still being decoded. Frames scheduled
+ * with other parameters (region, resolution or quality layers) are discarded.
+ */
+class FrameDecodePool {
+
+    /** Maximum number of threads of a pool */
+    public static final int MAX_WORKERS = 8;
+
+    /** The image being decoded */
+    private final JP2Image image;
+
+    /** The decoding threads */
+    private final Thread[] workers;
+
+    // The parameters of the frames scheduled
+    private SubImage subImage = null;
+    private ResolutionLevel resolution = null;
+    private int qualityLayers = -1;
+
+    /** Increased when the parameters change, to discard the frames decoding */
+    private int generation = 0;
+
+    /** The frames to decode, in playback order */
+    private final LinkedList<Integer> queue = new LinkedList<Integer>();
+
+    /** The frames being decoded */
+    private final HashSet<Integer> inProgress = new HashSet<Integer>();
+
+    /** The frames decoded and not taken yet */
+    private final HashMap<Integer, Object> decoded = new HashMap<Integer, Object>();
+
+    private volatile boolean stop = false;
+
+    /**
+     * Returns the number of threads a pool gets, sharing the cores of the
+     * machine with the render threads of all the images.
+     */
+    static int getNumWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.min(MAX_WORKERS, (cores - 1) / Math.max(1, JP2Image.numJP2ImagesInUse()));
+    }
+
+    /**
+     * Constructor, starts the threads.
+     *
+     * @param _image
+     * @param numWorkers
+     */
+    FrameDecodePool(JP2Image _image, int numWorkers) {
+        image = _image;
+        workers = new Thread[Math.max(1, numWorkers)];
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(JHVJP2View.renderGroup, new Worker(), "FrameDecodePool-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Returns the number of threads. */
+    int size() {
+        return workers.length;
+    }
+
+    /**
+     * Schedules the frames to be displayed next. The frames scheduled before
+     * and not in the list any more are dropped.
+     *
+     * @param params
+     *            The parameters of the frames
+     * @param frames
+     *            The frames, in playback order
+     */
+    synchronized void schedule(JP2ImageParameter params, int[] frames) {
+        setParameters(params);
+
+        HashSet<Integer> upcoming = new HashSet<Integer>();
+        queue.clear();
+        for (int frame : frames) {
+            upcoming.add(frame);
+            if (!inProgress.contains(frame) && !decoded.containsKey(frame))
+                queue.add(frame);
+        }
+
+        // The frames already passed are not displayed any more
+        Iterator<Integer> it = decoded.keySet().iterator();
+        while (it.hasNext()) {
+            if (!upcoming.contains(it.next()))
+                it.remove();
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Takes a frame, waiting if it is being decoded.
+     *
+     * @param numLayer
+     *            The composition layer
+     * @param params
+     *            The parameters to display the frame with
+     * @return A byte[] or int[] buffer, or null if the frame was not decoded
+     *         with these parameters
+     */
+    synchronized Object take(int numLayer, JP2ImageParameter params) {
+        setParameters(params);
+        queue.remove(Integer.valueOf(numLayer));
+
+        try {
+            while (inProgress.contains(numLayer) && !stop)
+                wait();
+        } catch (InterruptedException e) {
+            // The playback was stopped
+            Thread.currentThread().interrupt();
+        }
+        return decoded.remove(numLayer);
+    }
+
+    /** Drops the frames if the parameters differ */
+    private void setParameters(JP2ImageParameter params) {
+        if (params.subImage.equals(subImage) && params.resolution.equals(resolution) && params.qualityLayers == qualityLayers)
+            return;
+
+        subImage = params.subImage;
+        resolution = params.resolution;
+        qualityLayers = params.qualityLayers;
+        generation++;
+
+        queue.clear();
+        decoded.clear();
+    }
+
+    /** Stops the threads and releases their decoders. */
+    void abolish() {
+        synchronized (this) {
+            stop = true;
+            queue.clear();
+            decoded.clear();
+            notifyAll();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /** A decoding thread */
+    private class Worker implements Runnable {
+
+        public void run() {
+            FrameDecoder decoder = new FrameDecoder(image);
+
+            try {
+                while (true) {
+                    int numLayer;
+                    int workGeneration;
+                    JP2ImageParameter params;
+
+                    synchronized (FrameDecodePool.this) {
+                        while (queue.isEmpty() && !stop)
+                            FrameDecodePool.this.wait();
+                        if (stop)
+                            break;
+
+                        numLayer = queue.removeFirst();
+                        workGeneration = generation;
+                        params = new JP2ImageParameter(subImage, resolution, qualityLayers, numLayer);
+                        inProgress.add(numLayer);
+                    }
+
+                    Object frame = null;
+                    try {
+                        frame = decoder.decode(numLayer, params);
+                    } catch (JHV_KduException e) {
+                        Log.warn(">> FrameDecodePool.Worker.run() > " + e.getMessage());
+                    }
+
+                    synchronized (FrameDecodePool.this) {
+                        inProgress.remove(numLayer);
+                        if (frame != null && workGeneration == generation && !stop)
+                            decoded.put(numLayer, frame);
+                        FrameDecodePool.this.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+            } finally {
+                decoder.abolish();
+            }
+        }
+    }
+}
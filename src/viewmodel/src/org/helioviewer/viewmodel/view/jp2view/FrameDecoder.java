@@ -0,0 +1,225 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.io.File;
+import java.io.IOException;
+
+import kdu_jni.Jp2_threadsafe_family_src;
+import kdu_jni.Jpx_source;
+import kdu_jni.KduException;
+import kdu_jni.Kdu_cache;
+import kdu_jni.Kdu_compositor_buf;
+import kdu_jni.Kdu_coords;
+import kdu_jni.Kdu_dims;
+import kdu_jni.Kdu_region_compositor;
+
+import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
+
+/**
+ * Decodes frames of a <code>JP2Image</code> with its own Kakadu objects, so
+ * that several frames can be decoded at the same time on different threads.
+ *
+ * <p>
+ * For a remote image, the decoder reads the data through a secondary cache
+ * attached to the cache object of the image, which shares its data-bins; for a
+ * local image, it opens the file again. The objects are created on the first
+ * decode, and released by the image when they become invalid, i.e. when its
+ * cache object is trimmed.
+ *
+ * <p>
+ * A decoder is used by one thread at a time.
+ */
+class FrameDecoder {
+
+    /** Maximum of samples to process per iteration */
+    private static final int MAX_RENDER_SAMPLES = 50000;
+
+    /** The image being decoded */
+    private final JP2Image image;
+
+    // The Kakadu objects, null until the first decode
+    private Kdu_cache cache = null;
+    private Jp2_threadsafe_family_src familySrc = null;
+    private Jpx_source jpxSrc = null;
+    private Kdu_region_compositor compositor = null;
+
+    /** A buffer for the regions of the compositor */
+    private int[] localIntBuffer = new int[0];
+
+    /**
+     * Constructor.
+     *
+     * @param _image
+     */
+    FrameDecoder(JP2Image _image) {
+        image = _image;
+        image.addDecoder(this);
+    }
+
+    /**
+     * Decodes a frame.
+     *
+     * @param numLayer
+     *            The composition layer
+     * @param params
+     *            The region, resolution and quality layers to decode
+     * @return A byte[] buffer for images with less than 3 components, an
+     *         int[] buffer otherwise
+     * @throws JHV_KduException
+     */
+    Object decode(int numLayer, JP2ImageParameter params) throws JHV_KduException {
+        image.getDecoderLock().readLock().lock();
+
+        try {
+            if (compositor == null)
+                create();
+
+            // The data stored in the cache file is loaded on demand
+            JHV_Kdu_cache cacheRef = image.getCacheRef();
+            if (cacheRef != null)
+                cacheRef.loadCodestream(numLayer);
+
+            compositor.Refresh();
+            compositor.Remove_compositing_layer(-1, true);
+
+            JP2Image.deactivateColorLookupTable(jpxSrc, numLayer);
+
+            Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
+            compositor.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);
+
+            compositor.Set_max_quality_layers(params.qualityLayers);
+            compositor.Set_scale(false, false, false, params.resolution.getZoomPercent());
+            compositor.Set_buffer_surface(KakaduUtils.roiToKdu_dims(params.subImage));
+
+            Kdu_dims actualBufferedRegion = new Kdu_dims();
+            Kdu_compositor_buf compositorBuf = compositor.Get_composition_buffer(actualBufferedRegion);
+
+            Kdu_coords actualOffset = new Kdu_coords();
+            actualOffset.Assign(actualBufferedRegion.Access_pos());
+
+            int width = params.subImage.width;
+            boolean singleChannel = image.getNumComponents() < 3;
+            byte[] byteBuffer = singleChannel ? new byte[params.subImage.getNumPixels()] : null;
+            int[] intBuffer = singleChannel ? null : new int[params.subImage.getNumPixels()];
+
+            Kdu_dims newRegion = new Kdu_dims();
+
+            while (!compositor.Is_processing_complete()) {
+                compositor.Process(MAX_RENDER_SAMPLES, newRegion);
+
+                Kdu_coords newOffset = newRegion.Access_pos();
+                Kdu_coords newSize = newRegion.Access_size();
+
+                newOffset.Subtract(actualOffset);
+
+                int newPixels = newSize.Get_x() * newSize.Get_y();
+                if (newPixels == 0)
+                    continue;
+
+                localIntBuffer = newPixels > localIntBuffer.length ? new int[newPixels << 1] : localIntBuffer;
+
+                compositorBuf.Get_region(newRegion, localIntBuffer);
+
+                int srcIdx = 0;
+                int destIdx = newOffset.Get_x() + newOffset.Get_y() * width;
+
+                int newWidth = newSize.Get_x();
+                int newHeight = newSize.Get_y();
+
+                if (singleChannel) {
+                    for (int row = 0; row < newHeight; row++, destIdx += width, srcIdx += newWidth) {
+                        for (int col = 0; col < newWidth; ++col) {
+                            byteBuffer[destIdx + col] = (byte) ((localIntBuffer[srcIdx + col] >> 8) & 0xFF);
+                        }
+                    }
+                } else {
+                    for (int row = 0; row < newHeight; row++, destIdx += width, srcIdx += newWidth) {
+                        System.arraycopy(localIntBuffer, srcIdx, intBuffer, destIdx, newWidth);
+                    }
+                }
+            }
+
+            if (compositorBuf != null)
+                compositorBuf.Native_destroy();
+
+            return singleChannel ? byteBuffer : intBuffer;
+
+        } catch (KduException ex) {
+            // The objects are created again for the next frame
+            release();
+            throw new JHV_KduException("Failed to decode frame " + numLayer + ": " + ex.getMessage(), ex);
+        } finally {
+            image.getDecoderLock().readLock().unlock();
+        }
+    }
+
+    /** Creates the Kakadu objects */
+    private void create() throws KduException, JHV_KduException {
+        familySrc = new Jp2_threadsafe_family_src();
+
+        JHV_Kdu_cache cacheRef = image.getCacheRef();
+        if (cacheRef != null) {
+            cache = new Kdu_cache();
+            cache.Attach_to(cacheRef);
+            familySrc.Open(cache);
+        } else {
+            try {
+                familySrc.Open(new File(image.getURI()).getCanonicalPath(), true);
+            } catch (IOException ex) {
+                throw new JHV_KduException("Failed to open familySrc", ex);
+            }
+        }
+
+        jpxSrc = new Jpx_source();
+        jpxSrc.Open(familySrc, false);
+
+        compositor = new Kdu_region_compositor();
+        compositor.Create(jpxSrc, JP2Image.CODESTREAM_CACHE_THRESHOLD);
+        compositor.Set_thread_env(null, 0);
+    }
+
+    /**
+     * Releases the Kakadu objects. Called by the image, with the write lock of
+     * its decoders held, when its cache object is replaced.
+     */
+    void release() {
+        try {
+            if (compositor != null) {
+                compositor.Remove_compositing_layer(-1, true);
+                compositor.Native_destroy();
+            }
+            if (jpxSrc != null) {
+                jpxSrc.Close();
+                jpxSrc.Native_destroy();
+            }
+            if (familySrc != null) {
+                familySrc.Close();
+                familySrc.Native_destroy();
+            }
+            if (cache != null) {
+                cache.Close();
+                cache.Native_destroy();
+            }
+        } catch (KduException ex) {
+            ex.printStackTrace();
+        } finally {
+            compositor = null;
+            jpxSrc = null;
+            familySrc = null;
+            cache = null;
+        }
+    }
+
+    /** Releases the Kakadu objects for good. */
+    void abolish() {
+        image.getDecoderLock().readLock().lock();
+        try {
+            release();
+        } finally {
+            image.getDecoderLock().readLock().unlock();
+        }
+        image.removeDecoder(this);
+    }
+}
@@ -0,0 +1,130 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.HashSet;
+
+import org.helioviewer.base.math.Interval;
+import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
+import org.helioviewer.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
+
+/**
+ * Schedules the view-window requests of a movie being played, so that the
+ * frames are received in the order they are going to be displayed.
+ *
+ * <p>
+ * Instead of requesting all the frames from the current one to the end of the
+ * movie at once, the frames which will be displayed next are requested in
+ * small windows. Every frame of the look-ahead gets a priority which grows as
+ * the playhead gets closer to it, while the frames already complete in the
+ * <code>ImageCacheStatus</code> are demoted below all the others. The next
+ * window is the run of consecutive frames, in playback order, around the frame
+ * with the highest priority. Since the look-ahead is taken from the
+ * <code>J2KRender</code>, the LOOP, STOP and SWING animation modes are
+ * respected.
+ *
+ * <p>
+ * Only one window is requested at a time: a new view-window request on the
+ * channel supersedes the previous ones, so the next window is scheduled once
+ * the current one is complete.
+ */
+public class FramePrefetchScheduler {
+
+    /** Seconds of playback which are looked ahead */
+    public static final int DEFAULT_LOOK_AHEAD_SECONDS = 4;
+
+    /** Minimum number of frames which are looked ahead */
+    public static final int MIN_LOOK_AHEAD = 8;
+
+    /** Priority of the frames already complete */
+    private static final double DEMOTED = -1.0;
+
+    /** Priority of the frames which do not need to be requested at all */
+    private static final double SATISFIED = -2.0;
+
+    private int lookAheadSeconds = DEFAULT_LOOK_AHEAD_SECONDS;
+
+    /**
+     * Returns the number of frames to look ahead at the given frame rate.
+     *
+     * @param fps
+     *            Frames per second of the playback
+     */
+    public int getLookAhead(int fps) {
+        return Math.max(MIN_LOOK_AHEAD, lookAheadSeconds * Math.max(1, fps));
+    }
+
+    /** Sets the number of seconds of playback which are looked ahead. */
+    public void setLookAheadSeconds(int seconds) {
+        lookAheadSeconds = Math.max(1, seconds);
+    }
+
+    /**
+     * Returns the priority of a frame of the look-ahead.
+     *
+     * @param distance
+     *            Position of the frame in the look-ahead, 0 for the next one
+     * @param lookAhead
+     *            Length of the look-ahead
+     * @param status
+     *            Cache status of the frame, may be null
+     * @param partialIsEnough
+     *            Whether a partial frame needs no more data
+     * @return The priority, between 0 and 1 for the frames which are missing
+     */
+    static double getPriority(int distance, int lookAhead, CacheStatus status, boolean partialIsEnough) {
+        if (status == CacheStatus.COMPLETE)
+            return DEMOTED;
+        if (status == CacheStatus.PARTIAL && partialIsEnough)
+            return SATISFIED;
+        return (lookAhead - distance) / (double) lookAhead;
+    }
+
+    /**
+     * Returns the next window to request.
+     *
+     * @param frames
+     *            The next frames in playback order, as returned by
+     *            <code>J2KRender.getLookAhead</code>
+     * @param cacheStatus
+     *            The cache status of the movie
+     * @param maxWindowSize
+     *            Maximum number of frames of the window
+     * @param partialIsEnough
+     *            Whether partial frames need no more data, which is the case
+     *            while the requested fidelity is lowered
+     * @return The composition layers of the window, or null if all the frames
+     *         of the look-ahead are in the cache
+     */
+    public Interval<Integer> getNextWindow(int[] frames, ImageCacheStatus cacheStatus, int maxWindowSize, boolean partialIsEnough) {
+        double[] priorities = new double[frames.length];
+        HashSet<Integer> seen = new HashSet<Integer>();
+
+        int best = -1;
+        for (int i = 0; i < frames.length; i++) {
+            // A frame displayed twice (SWING) only counts the first time
+            if (!seen.add(frames[i]))
+                priorities[i] = SATISFIED;
+            else
+                priorities[i] = getPriority(i, frames.length, cacheStatus.getImageStatus(frames[i]), partialIsEnough);
+
+            if (best == -1 || priorities[i] > priorities[best])
+                best = i;
+        }
+
+        if (best == -1 || priorities[best] < 0)
+            return null;
+
+        // Extends the window with the following frames of the same run
+        int first = frames[best], last = frames[best];
+        int direction = 0;
+        for (int i = best + 1; i < frames.length && last - first + 1 < maxWindowSize; i++) {
+            int step = frames[i] - frames[i - 1];
+            if ((step != 1 && step != -1) || (direction != 0 && step != direction) || priorities[i] < 0)
+                break;
+            direction = step;
+            first = Math.min(first, frames[i]);
+            last = Math.max(last, frames[i]);
+        }
+
+        return new Interval<Integer>(first, last);
+    }
+}
@@ -0,0 +1,168 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.awt.Rectangle;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.base.math.Interval;
+import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet.ResolutionLevel;
+import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPConstants;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPQuery;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequestField;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocketPool;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CacheMemoryBudget;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
+
+/**
+ * Downloads the frames of a remote image into its cache object, without any
+ * view, so that the data is stored in the cache file and served locally when
+ * the image is opened later.
+ *
+ * <p>
+ * The frames are requested window by window, with the whole image at the
+ * given resolution level and number of quality layers. Every window is
+ * requested again until the server tells that it is complete, or that it has
+ * sent all the requested quality layers. A window which does not get any new
+ * data, or which is still incomplete after a number of requests, is left
+ * behind.
+ */
+public class J2KCacheWarmer {
+
+    /** The default number of frames requested at a time */
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+
+    /** The maximum number of requests of a window */
+    private static final int MAX_WINDOW_REQUESTS = 32;
+
+    /** The image being downloaded */
+    private final JP2Image image;
+
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Constructor.
+     *
+     * @param _image
+     *            A remote image
+     */
+    public J2KCacheWarmer(JP2Image _image) {
+        if (!_image.isRemote())
+            throw new IllegalArgumentException("The image is not remote: " + _image.getURI());
+        image = _image;
+    }
+
+    /** Sets the number of frames requested at a time. */
+    public void setWindowSize(int _windowSize) {
+        windowSize = Math.max(1, _windowSize);
+    }
+
+    /**
+     * Downloads the frames of the image.
+     *
+     * @param qualityLayers
+     *            Number of quality layers, or -1 for all of them
+     * @param resolutionLevel
+     *            Resolution level, 0 for the full resolution
+     * @return Number of bytes received
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    public long warm(int qualityLayers, int resolutionLevel) throws IOException, JHV_KduException {
+        Interval<Integer> layers = image.getCompositionLayerRange();
+        int maxQualityLayers = image.getQualityLayerRange().getEnd();
+        if (qualityLayers < 0 || qualityLayers > maxQualityLayers)
+            qualityLayers = maxQualityLayers;
+
+        int maxResolutionLevel = image.getResolutionSet().getMaxResolutionLevels();
+        ResolutionLevel resolution = image.getResolutionSet().getResolutionLevel(Math.max(0, Math.min(resolutionLevel, maxResolutionLevel)));
+
+        JHV_Kdu_cache cache = image.getCacheRef();
+        JPIPSocketPool pool = JPIPSocketPool.getSingletonInstance();
+        JPIPSocket socket = pool.acquire(image.getURI(), image);
+        long received = 0;
+
+        try {
+            // A new channel has to be told what the cache already has
+            JPIPResponse connectResponse = socket.takeConnectResponse();
+            if (connectResponse != null)
+                cache.addJPIPResponseData(connectResponse);
+            KakaduUtils.updateServerCacheModel(socket, cache, true);
+
+            for (int first = layers.getStart(); first <= layers.getEnd(); first += windowSize) {
+                int last = Math.min(first + windowSize - 1, layers.getEnd());
+                JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+                req.setQuery(createQuery(first, last, qualityLayers, resolution).toString());
+
+                received += downloadWindow(socket, req, cache, first, last);
+
+                // The frames already stored in the cache file are let go
+                CacheMemoryBudget budget = CacheMemoryBudget.getSingletonInstance();
+                if (budget.isOverBudget(cache)) {
+                    image.trimCache(new long[0], budget.getTrimTarget());
+                    cache = image.getCacheRef();
+                }
+            }
+        } catch (IOException e) {
+            pool.invalidate(socket);
+            socket = null;
+            throw e;
+        } finally {
+            pool.release(socket);
+        }
+        return received;
+    }
+
+    /**
+     * Requests a window until it is complete, it makes no progress or the
+     * maximum number of requests is reached.
+     *
+     * @return Number of bytes received
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    private long downloadWindow(JPIPSocket socket, JPIPRequest req, JHV_Kdu_cache cache, int first, int last) throws IOException, JHV_KduException {
+        long received = 0;
+
+        for (int requests = 1;; requests++) {
+            socket.send(req);
+            JPIPResponse res = socket.receive();
+            if (res == null)
+                throw new EOFException("Connection closed while downloading the frames " + first + "-" + last);
+            received += res.getResponseSize();
+
+            int newData = cache.getNewDataSize();
+            if (cache.addJPIPResponseData(res) || res.getStatus() == JPIPConstants.EOR_QUALITY_LIMIT_REACHED) {
+                Log.debug(">> J2KCacheWarmer.warm() > Frames " + first + "-" + last + " of " + image.getURI() + " downloaded.");
+                return received;
+            }
+
+            if (res.getStatus() == JPIPConstants.EOR_SESSION_LIMIT_REACHED)
+                throw new IOException("The server ended the session while downloading the frames " + first + "-" + last);
+
+            if (cache.getNewDataSize() == newData || requests == MAX_WINDOW_REQUESTS) {
+                Log.warn(">> J2KCacheWarmer.warm() > Frames " + first + "-" + last + " of " + image.getURI() + " left incomplete, EOR code " + res.getStatus() + ".");
+                return received;
+            }
+        }
+    }
+
+    /** Creates the query of a window, with the whole image */
+    private static JPIPQuery createQuery(int first, int last, int qualityLayers, ResolutionLevel resolution) {
+        Rectangle resDims = resolution.getResolutionBounds();
+
+        JPIPQuery query = new JPIPQuery();
+        query.setField(JPIPRequestField.CONTEXT.toString(), "jpxl<" + first + "-" + last + ">");
+        query.setField(JPIPRequestField.LAYERS.toString(), String.valueOf(qualityLayers));
+        query.setField(JPIPRequestField.FSIZ.toString(), String.valueOf(resDims.width) + "," + String.valueOf(resDims.height) + "," + "closest");
+        query.setField(JPIPRequestField.ROFF.toString(), "0,0");
+        query.setField(JPIPRequestField.RSIZ.toString(), String.valueOf(resDims.width) + "," + String.valueOf(resDims.height));
+        return query;
+    }
+}
@@ -3,9 +3,8 @@ package org.helioviewer.viewmodel.view.jp2view;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.net.SocketException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
 
 import org.helioviewer.base.logging.Log;
 import org.helioviewer.base.math.Interval;
@@ -13,11 +12,16 @@ import org.helioviewer.base.message.Message;
 import org.helioviewer.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.viewmodel.changeevent.SubImageDataChangedReason;
 import org.helioviewer.viewmodel.view.CachedMovieView;
+import org.helioviewer.viewmodel.view.MovieView;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
 import org.helioviewer.viewmodel.view.jp2view.J2KRender.RenderReasons;
 import org.helioviewer.viewmodel.view.jp2view.JHVJP2View.ReaderMode;
 import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet.ResolutionLevel;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimator;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimatorFactory;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.PlaybackBandwidthEstimator;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataInputStream;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
@@ -25,13 +29,15 @@ import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPQuery;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequest;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequestField;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSelectorChannel;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSelectorTransport;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocketPool;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CacheMemoryBudget;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
 
-import org.helioviewer.jhv.gui.components.MoviePanel;
-
 /**
  * This class has two different purposes. The first is to connect to and
  * retrieve image data from a JPIP server (if the image is remote). The second
@@ -57,6 +63,12 @@ public class J2KReader implements Runnable   {
     /** Whether IOExceptions and other messages, should be shown or not */
     private static final boolean verbose = false;
 
+    /** Time in milliseconds the channel is polled before checking the signals */
+    private static final long CHANNEL_POLL_INTERVAL = 50;
+
+    /** Time in milliseconds after which a silent server is given up */
+    private static final long CHANNEL_TIMEOUT = 40000;
+
     /** The thread that this object runs on. */
     private volatile Thread myThread;
 
@@ -72,41 +84,44 @@ public class J2KReader implements Runnable   {
     /** The JPIPSocket used to connect to the server. */
     private JPIPSocket socket;
 
+    /**
+     * The channel of the non-blocking transport used instead of the socket,
+     * if the transport has been enabled.
+     */
+    private JPIPSelectorChannel channel;
+
     /** The a reference to the cache object used by the run method. */
     private JHV_Kdu_cache cacheRef;    
     
-    /** 
-     * Percentage variation of the bandwidth. 
-     * If occurs a variation greater or equal than this percentage 
-     * must update the bandwidth on the server.
-     * Valuable between 0 and 1.
-     * */
-    //private static final double BW_PERCENT = 0.25;    
-
     /**
-     * The estimated, last and average bandwidth.
-     * A negative value means that there is not a previous
-     * valid value to take into account.
-     */   
-    private double bw = -1;
-    public static double bw_last = -1;
-    private double bw_avg = -1;      
-    private double bw_error = 0;
-    private double bw_error_over_estimated = 0;
-    private double bw_error_low_estimated = 0;
-    
-    /** The time when the last response was received. */
-    private long time_initial;    
-    private long time_end;
-    
-    /** The size of the response from the server for a second. */
-    private long responseSize = 0;   
-    
+     * The estimator of the bandwidth of this reader's channel, corrected with
+     * the state of the movie playback.
+     */
+    private final PlaybackBandwidthEstimator bandwidthEstimator = new PlaybackBandwidthEstimator(BandwidthEstimatorFactory.create());
+
+    /** Indicates if the movie was being played the last time it was checked */
+    private boolean wasPlaying = false;
+
+    /** Seconds of movie buffered ahead when the playback started */
+    private double bufferSetpoint = -1;
+
     private JP2ImageParameter prevParams = null;    
     private JP2ImageParameter currParams = null;
     private int prevCompositionLayer = -1;
     private int currFps = J2KRender.getMovieSpeed();
     private int prevFps;    
+
+    /** The scheduler of the frames requested while playing */
+    private final FramePrefetchScheduler prefetchScheduler = new FramePrefetchScheduler();
+
+    /** The frames of the last window requested, or null if all were requested */
+    private Interval<Integer> prefetchWindow = null;
+
+    /** Time of the last refinement signalled in the progressive mode */
+    private long lastRefinementTime = 0;
+
+    /** Indicates if the cache status has to be downgraded with the next data */
+    private boolean downgradeNecessary = false;
    
     /**
      * The constructor. Creates and connects the socket if image is remote.
@@ -123,18 +138,26 @@ public class J2KReader implements Runnable   {
         cacheRef = parentImageRef.getCacheRef();
 
         // Attempts to connect socket if image is remote.
-        if (parentImageRef.isRemote()) {       	
-            socket = parentImageRef.getSocket();
+        if (parentImageRef.isRemote() && JPIPSelectorTransport.isEnabled()) {
+            socket = null;
+            openChannel();
+        } else if (parentImageRef.isRemote()) {
+            JPIPSocketPool pool = JPIPSocketPool.getSingletonInstance();
+            socket = pool.acquire(parentImageRef.getURI(), parentImageRef);
+            socket.setBandwidthEstimator(bandwidthEstimator);
 
-            if (socket == null) {
-            	socket = new JPIPSocket();               
-    			JPIPResponse res = (JPIPResponse) socket.connect(parentImageRef.getURI());
-    			cacheRef.addJPIPResponseData(res);            	
+            try {
+                JPIPResponse res = socket.takeConnectResponse();
+                if (res != null)
+                    cacheRef.addJPIPResponseData(res);
+
+                KakaduUtils.updateServerCacheModel(socket, cacheRef, true);
+            } catch (IOException e) {
+                pool.invalidate(socket);
+                socket = null;
+                throw e;
             }
-            
-            if (!parentImageRef.isMultiFrame())
-                KakaduUtils.updateServerCacheModel(socket, cacheRef, true);            
-            
+
         } else {
             socket = null;
         }
@@ -179,10 +202,15 @@ public class J2KReader implements Runnable   {
 
         try {
             if (socket != null) {            
-            	printForDebug("[abolish][socket.close][CID: " + socket.getJpipChannelID() + "] . isMainView: " + parentViewRef.isMainView);                
-            	socket.close();
+            	printForDebug("[abolish][socket.release][CID: " + socket.getJpipChannelID() + "] . isMainView: " + parentViewRef.isMainView);
+            	JPIPSocketPool.getSingletonInstance().release(socket);
                 socket = null;
             }
+            if (channel != null) {
+                printForDebug("[abolish][channel.close][CID: " + channel.getJpipChannelID() + "] . isMainView: " + parentViewRef.isMainView);
+                channel.close();
+                channel = null;
+            }
 
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -190,133 +218,250 @@ public class J2KReader implements Runnable   {
     }
     
     public boolean isConnected() {
-        return (socket != null && socket.isConnected());
+        return (socket != null && socket.isConnected()) || (channel != null && !channel.isClosed());
     }
 
-    /** Calculate the estimated bandwidth between client and server **/
-    private boolean mbwControl(long size, String cid)
-    {
-    	boolean notify = false;
+    /**
+     * Opens a channel of the non-blocking transport and tells the server the
+     * content of the cache. The data of the first response is added to the
+     * cache with the data of the following ones.
+     * 
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    private void openChannel() throws IOException, JHV_KduException {
+        JPIPSelectorChannel newChannel = JPIPSelectorTransport.getSingletonInstance().open(parentImageRef.getURI());
+        newChannel.setBandwidthEstimator(bandwidthEstimator);
 
-    	if (size <= 0) return false;
-    	
-    	// Calculate the elapsed time
-    	double time = (double)(time_end - time_initial)/1000.0;
-    	
-    	// Increment the size of the response
-    	responseSize += (size * 8);  	
-    	  	
-        if (time >= 1.0) {    		
-    		// Calculate the actual bandwidth
-    		bw = (double)responseSize / time;
-    		
-    		// Calculate the average bandwidth
-    		//System.out.format("\n[" + cid +  "] bw: %10.4f KB/s \tbw_last: %10.4f KB/s\n", ((bw/8)/1024), ((bw_last/8)/1024));
-    		//System.out.println("bw: " + bw);
-    		//System.out.println("bw_last: " + bw_last);
-    		
-    		bw_avg = (bw_last != -1)? ((0.1*bw) + (0.9*bw_last)): bw;    		
-    		    		
-    		bw_error = (bw_error != 0)? (bw_error + (Math.abs(bw - bw_avg)/Math.max(bw, bw_avg)))/2:Math.abs(bw - bw_avg)/Math.max(bw, bw_avg);
-    		
-    		if (bw > bw_avg){
-    			bw_error_over_estimated = (bw_error_over_estimated != 0)? (bw_error_over_estimated + (Math.abs(bw - bw_avg)/bw))/2:Math.abs(bw - bw_avg)/bw;
-    		}
-    		
-    		if (bw_avg > bw){
-    			bw_error_low_estimated = (bw_error_low_estimated != 0)? (bw_error_low_estimated + (Math.abs(bw_avg - bw)/bw_avg))/2:Math.abs(bw_avg - bw)/bw_avg;
-    		}
-    		
-    		System.out.println("\n[" + cid +  "] bw_error_over_estimated: " + bw_error_over_estimated);
-    		System.out.println("[" + cid +  "] bw_error_low_estimated: " + bw_error_low_estimated);
-    		
-    		System.out.format("\n[" + cid +  "] bw: %10.4f KB/s \tbw_avg: %10.4f KB/s \tbw_error: %10.4f %%", ((bw/8)/1024), ((bw_avg/8)/1024), bw_error);
-            // Update the last bandwidth
-            bw_last = (bw_last != -1)? (bw_last + bw_avg)/2: bw_avg;
-    		
-    		//if (!MoviePanel.isPlaying) return false;
-   		
-       		double setpoint = (((MoviePanel.maximumAccessibleFrameNumberInitial + 1) - MoviePanel.currentFrameNumberInitial))/Double.valueOf(MoviePanel.speedSpinner.getValue().toString());
-       		
-    		//if ((MoviePanel.view != null) && (MoviePanel.view.getMaximumAccessibleFrameNumber()<MoviePanel.view.getMaximumFrameNumber())){
-    		if ((MoviePanel.view != null) && (MoviePanel.isPlaying) && (MoviePanel.view.getMaximumAccessibleFrameNumber()<MoviePanel.view.getMaximumFrameNumber())){    			
-        		
-    			System.out.println("\n[" + cid +  "] CurrentFrameNumber: " + MoviePanel.view.getCurrentFrameNumber());
-    			System.out.println("[" + cid +  "] MaximumAccessibleFrameNumber: " + (MoviePanel.view.getMaximumAccessibleFrameNumber()+1));
-    			System.out.println("[" + cid +  "] Difference between frames: " + ((MoviePanel.view.getMaximumAccessibleFrameNumber()+1) - MoviePanel.view.getCurrentFrameNumber()));
-    			
-        		double measured_value = ((MoviePanel.view.getMaximumAccessibleFrameNumber()+1) - MoviePanel.view.getCurrentFrameNumber())/Double.valueOf(MoviePanel.speedSpinner.getValue().toString());
-           		System.out.println("[" + cid +  "] Setpoint: " + setpoint);
-        		System.out.println("[" + cid +  "] Measured Value: " + measured_value);           		
-        		System.out.flush();       		
-        		
-        		// Método TCP
-        		if (measured_value < setpoint) {
-        			System.out.println("1. KB/s: " + ((bw_avg/8)/1024));        			
-
-        			double x1 = 0;
-            		double y1 = 0.50;
-            		double x2 = setpoint;
-            		double y2 = 0.01;
-            		
-            		double factor_corrector = ((y1-y2)/(x1-x2))*measured_value + y1 - ((y1-y2)/(x1-x2)*x1); 
-        			System.out.println("[" + cid +  "] factor_corrector: " + factor_corrector);
-        			
-        			if (bw_error > 0){
-        				bw_avg = bw_avg - bw_avg*(factor_corrector); 
-        			}
-        			System.out.println("[" + cid +  "] [measured_value < setpoint] New bw_avg: " + bw_avg);
-        			System.out.println("[" + cid +  "] 2. KB/s: " + ((bw_avg/8)/1024));
-        		}
-        		
-        		if (measured_value > setpoint){
-        			System.out.println("[" + cid +  "] 1. KB/s: " + ((bw_avg/8)/1024));
-        			
-        			if (bw_error > 0){
-        				bw_avg = bw_avg + bw_avg*(bw_error);
-        			}
-        			
-        			System.out.println("[" + cid +  "] [measured_value > setpoint] New bw_avg: " + bw_avg);
-        			System.out.println("[" + cid +  "] 2. KB/s: " + ((bw_avg/8)/1024));
-        		}
-    		}
-    		
-    		System.out.format("\n[" + cid +  "][bandwidth] Size: %10d bits \t Time: %10.4f seg.\t bw: %10s.\n", responseSize, time, mbwUnit(bw));
-            System.out.flush();
-            
-    		/****/
-            // TEST
-            //if ((bw_last == -1) || ((bw_last != -1) && (Math.abs(bw_avg - bw_last) >= BW_PERCENT*bw_avg))) {
-                notify = true;
-                
-                // Update the last bandwidth
-                //bw_last = bw_avg;
-            //}
-        	/****/
-            
-            // Initialize the size of the response
-            responseSize = 0;
-            
-            // Update the initial time
-            time_initial = time_end;
-    	}
-    	
-		if ((!MoviePanel.isPlaying) && (MoviePanel.view != null)) {
-    		System.out.println("[" + cid +  "] MaximumAccesibleFrameNumber: " + MoviePanel.view.getMaximumAccessibleFrameNumber());
-    		return false;    			
-		}
-    	
-    	return notify;
+        try {
+            newChannel.awaitOpen(CHANNEL_TIMEOUT);
+            KakaduUtils.updateServerCacheModel(newChannel, cacheRef, true);
+        } catch (IOException e) {
+            newChannel.close();
+            throw e;
+        } catch (JHV_KduException e) {
+            newChannel.close();
+            throw e;
+        }
+        channel = newChannel;
     }
-    
-    public void printTimeStamp(String message){
-		long now = System.currentTimeMillis();
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(now);
-        DateFormat formatter = new SimpleDateFormat("dd/MM/yyyy hh:mm:ss.SSS");
-        System.out.println(formatter.format(calendar.getTime()) + " [" + message + "]");
+
+    /**
+     * Replaces the broken connection with a new one. The broken connection is
+     * given up only once a new one is available, so that the reconnection is
+     * retried.
+     * 
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    private void reconnect() throws IOException, JHV_KduException {
+        if (channel != null) {
+            JPIPSelectorChannel brokenChannel = channel;
+            openChannel();
+            brokenChannel.close();
+            return;
+        }
+
+        JPIPSocketPool pool = JPIPSocketPool.getSingletonInstance();
+        JPIPSocket newSocket = pool.acquire(parentImageRef.getURI(), parentImageRef);
+        pool.invalidate(socket);
+        socket = newSocket;
+        socket.setBandwidthEstimator(bandwidthEstimator);
+
+        JPIPResponse res = socket.takeConnectResponse();
+        if (res != null)
+            cacheRef.addJPIPResponseData(res);
+
+        KakaduUtils.updateServerCacheModel(socket, cacheRef, true);
     }
-    
+
+    /** Closes the connection after an error, so that it is reopened. */
+    private void closeConnection() {
+        if (channel != null) {
+            channel.close();
+        } else if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                Log.error(">> J2KReader.run() > Error closing socket", ioe);
+                if (ioe instanceof SocketException && ioe.getMessage().contains("Broken pipe")) {
+                    Message.err("Broken pipe error", "Broken pipe error! This error is a known bug. It occurs when too many movies with too many frames are loaded. Movie playback might not work or will be very slow. Try removing the current layers and load shorter movies or select a larger movie cadence. We are sorry for this inconvenience and are working on the problem.", false);
+                }
+            }
+        }
+    }
+
+    /** Tells if the connection has been closed and has to be reopened. */
+    private boolean isClosed() {
+        return channel != null ? channel.isClosed() : (socket != null && socket.isClosed());
+    }
+
+    /** Tells if the connection can be used. */
+    private boolean isOpen() {
+        return channel != null ? !channel.isClosed() : (socket != null && !socket.isClosed());
+    }
+
+    /** Returns the jpip channel ID of the connection, for debugging. */
+    private String getJpipChannelID() {
+        return channel != null ? channel.getJpipChannelID() : (socket != null ? socket.getJpipChannelID() : null);
+    }
+
+    /** Returns the number of requests whose response is pending. */
+    private int getNumPendingRequests() {
+        return channel != null ? channel.getNumPendingRequests() : socket.getNumPendingRequests();
+    }
+
+    /** Sends a request through the connection. */
+    private void send(JPIPRequest req) throws IOException {
+        if (channel != null)
+            channel.send(req);
+        else
+            socket.send(req);
+    }
+
+    /**
+     * Reports the state of the movie playback to the bandwidth estimator, and
+     * tells if the server has to be told a new bandwidth. Only while the movie
+     * is being played the bandwidth is updated.
+     */
+    private boolean updateBandwidth() {
+        boolean playing = parentViewRef.getRender().getMovieMode();
+
+        if (parentViewRef instanceof MovieView) {
+            MovieView movieView = (MovieView) parentViewRef;
+            double buffered = (movieView.getMaximumAccessibleFrameNumber() + 1 - movieView.getCurrentFrameNumber()) / (double) Math.max(1, J2KRender.getMovieSpeed());
+
+            if (playing && !wasPlaying)
+                bufferSetpoint = buffered;
+
+            if (playing && movieView.getMaximumAccessibleFrameNumber() < movieView.getMaximumFrameNumber())
+                bandwidthEstimator.setBufferLevel(buffered, bufferSetpoint);
+            else
+                bandwidthEstimator.clearBufferLevel();
+        }
+        wasPlaying = playing;
+
+        return bandwidthEstimator.pollNewEstimate() && playing;
+    }
+
+    /**
+     * Tells if the main view of a movie is being played. Only then the
+     * fidelity of the requests is adapted to the playback and the frames are
+     * prefetched in playback order.
+     */
+    private boolean isPlayingMainMovie() {
+        return parentViewRef.isMainView && parentViewRef instanceof CachedMovieView && parentViewRef.getRender().getMovieMode();
+    }
+
+    /**
+     * Feeds the playback margin to the adaptive quality controller, and tells
+     * if the fidelity to request has changed. The margin is the playback time
+     * left until the last frame which can be displayed.
+     */
+    private boolean updateAdaptiveQuality() {
+        AdaptiveQualityController controller = parentViewRef.getAdaptiveQualityController();
+
+        if (!isPlayingMainMovie() || currParams == null)
+            return false;
+
+        MovieView movieView = (MovieView) parentViewRef;
+        ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
+
+        int currentFrame = movieView.getCurrentFrameNumber();
+        int partialUntil = cacheStatus.getImageCachedPartiallyUntil();
+
+        double margin;
+        if (partialUntil >= movieView.getMaximumFrameNumber())
+            margin = Double.POSITIVE_INFINITY;
+        else
+            margin = (partialUntil - currentFrame) / (double) Math.max(1, J2KRender.getMovieSpeed());
+
+        int availableReduction = parentImageRef.getResolutionSet().getMaxResolutionLevels() - currParams.resolution.getZoomLevel();
+
+        if (controller.update(margin, currParams.qualityLayers, availableReduction, System.currentTimeMillis())) {
+            printForDebug("\t\t[J2KReader] Playback margin " + margin + " s: " + controller);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the window of frames to prefetch next, starting from the frame
+     * being displayed and following the playback order.
+     * 
+     * @return The next window, or null if the look-ahead is in the cache or
+     *         the movie is not being played
+     */
+    private Interval<Integer> getNextPrefetchWindow() {
+        if (!isPlayingMainMovie())
+            return null;
+
+        int fps = Math.max(1, J2KRender.getMovieSpeed());
+        ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
+        return prefetchScheduler.getNextWindow(getUpcomingFrames(), cacheStatus, fps, parentViewRef.getAdaptiveQualityController().isDegraded());
+    }
+
+    /**
+     * Returns the frame being displayed followed, if the movie is being
+     * played, by the frames to be displayed next.
+     */
+    private int[] getUpcomingFrames() {
+        if (!isPlayingMainMovie())
+            return new int[] { currParams.compositionLayer };
+
+        int fps = Math.max(1, J2KRender.getMovieSpeed());
+        int[] lookAhead = parentViewRef.getRender().getLookAhead(prefetchScheduler.getLookAhead(fps));
+
+        // The frame being displayed comes first
+        int[] frames = new int[lookAhead.length + 1];
+        frames[0] = currParams.compositionLayer;
+        System.arraycopy(lookAhead, 0, frames, 1, lookAhead.length);
+        return frames;
+    }
+
+    /**
+     * Trims the cache object if it exceeds its memory budget, keeping the data
+     * of the frame being displayed and of the frames to be displayed next.
+     * It is only done when no response is pending, so that the server cache
+     * model can be updated at once.
+     * 
+     * @return True, if some data was lost and has to be requested again
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    private boolean trimCacheIfNeeded() throws IOException, JHV_KduException {
+        CacheMemoryBudget budget = CacheMemoryBudget.getSingletonInstance();
+        if (getNumPendingRequests() > 0 || !budget.isOverBudget(cacheRef))
+            return false;
+
+        int[] frames = getUpcomingFrames();
+        long[] keptCodestreams = new long[frames.length];
+        for (int i = 0; i < frames.length; i++)
+            keptCodestreams[i] = frames[i];
+
+        Collection<Long> trimmedCodestreams = parentImageRef.trimCache(keptCodestreams, budget.getTrimTarget());
+        cacheRef = parentImageRef.getCacheRef();
+        if (trimmedCodestreams.isEmpty())
+            return false;
+
+        if (channel != null)
+            KakaduUtils.updateServerCacheModel(channel, cacheRef, false);
+        else
+            KakaduUtils.updateServerCacheModel(socket, cacheRef, false);
+
+        if (parentViewRef instanceof CachedMovieView) {
+            ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
+            for (long codestreamID : trimmedCodestreams)
+                cacheStatus.downgradeImageStatus((int) codestreamID);
+        }
+        return true;
+    }
+
+    /** Returns the bandwidth estimator of this reader. */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return bandwidthEstimator;
+    }
+
     /** Calculate the unit of the bandwidth */
     private String mbwUnit(double bw_value)
     {
@@ -351,17 +496,42 @@ public class J2KReader implements Runnable   {
     private JPIPQuery createQuery(JP2ImageParameter currParams, int iniLayer, int endLayer, boolean sendMbw) {
         JPIPQuery query = new JPIPQuery();
   
+        int qualityLayers = currParams.qualityLayers;
+        ResolutionLevel resolution = currParams.resolution;
+        int x = currParams.subImage.x, y = currParams.subImage.y;
+        int width = currParams.subImage.width, height = currParams.subImage.height;
+
+        // While playing, the fidelity may be lowered to keep up with the
+        // frame rate
+        if (isPlayingMainMovie()) {
+            AdaptiveQualityController controller = parentViewRef.getAdaptiveQualityController();
+            qualityLayers = controller.getQualityLayers(qualityLayers);
+
+            if (controller.getResolutionReduction() > 0) {
+                ResolutionLevel reduced = parentImageRef.getResolutionSet().getResolutionLevel(resolution, controller.getResolutionReduction());
+                int shift = reduced.getZoomLevel() - resolution.getZoomLevel();
+                Rectangle bounds = reduced.getResolutionBounds();
+
+                x = Math.min(x >> shift, bounds.width - 1);
+                y = Math.min(y >> shift, bounds.height - 1);
+                width = Math.max(1, Math.min((width + (1 << shift) - 1) >> shift, bounds.width - x));
+                height = Math.max(1, Math.min((height + (1 << shift) - 1) >> shift, bounds.height - y));
+                resolution = reduced;
+            }
+        }
+
         query.setField(JPIPRequestField.CONTEXT.toString(), "jpxl<" + iniLayer + "-" + endLayer + ">");
-        query.setField(JPIPRequestField.LAYERS.toString(), String.valueOf(currParams.qualityLayers));
+        query.setField(JPIPRequestField.LAYERS.toString(), String.valueOf(qualityLayers));
 
-        Rectangle resDims = currParams.resolution.getResolutionBounds();
+        Rectangle resDims = resolution.getResolutionBounds();
 
         query.setField(JPIPRequestField.FSIZ.toString(), String.valueOf(resDims.width) + "," + String.valueOf(resDims.height) + "," + "closest");
-        query.setField(JPIPRequestField.ROFF.toString(), String.valueOf(currParams.subImage.x) + "," + String.valueOf(currParams.subImage.y));
-        query.setField(JPIPRequestField.RSIZ.toString(), String.valueOf(currParams.subImage.width) + "," + String.valueOf(currParams.subImage.height));        
+        query.setField(JPIPRequestField.ROFF.toString(), String.valueOf(x) + "," + String.valueOf(y));
+        query.setField(JPIPRequestField.RSIZ.toString(), String.valueOf(width) + "," + String.valueOf(height));        
         
-        if (bw_avg != -1 && sendMbw) {
-            query.setField(JPIPRequestField.MBW.toString(), mbwUnit(bw_avg));
+        double mbw = bandwidthEstimator.getBandwidth();
+        if (mbw != -1 && sendMbw) {
+            query.setField(JPIPRequestField.MBW.toString(), mbwUnit(mbw));
             query.setField(JPIPRequestField.SRATE.toString(), String.valueOf(J2KRender.getMovieSpeed()));
             query.setField(JPIPRequestField.DRATE.toString(), "1");
         }
@@ -371,7 +541,7 @@ public class J2KReader implements Runnable   {
     /** Create an updated JPIP query */
     private JPIPQuery createUpdatedQuery() {    	
     	JPIPQuery updated_query = new JPIPQuery();    	
-        updated_query.setField(JPIPRequestField.MBW.toString(), mbwUnit(bw_avg));
+        updated_query.setField(JPIPRequestField.MBW.toString(), mbwUnit(bandwidthEstimator.getBandwidth()));
         updated_query.setField(JPIPRequestField.SRATE.toString(), String.valueOf(J2KRender.getMovieSpeed()));
         updated_query.setField(JPIPRequestField.DRATE.toString(), "1");                                    	
         return updated_query;    	
@@ -385,17 +555,13 @@ public class J2KReader implements Runnable   {
         
         int curLayer = currParams.compositionLayer;        
         int endLayer = curLayer == 0 ? layers.getEnd() : curLayer - 1;
-        
-    	/****/
-    	/*
-        // If video is playing, anticipate the current layer
-    	if (parentViewRef.getRender().getMovieMode() && layers.getEnd()>J2KRender.getMovieSpeed()) {
-        	curLayer = currParams.compositionLayer + J2KRender.getMovieSpeed();
-        	if (curLayer > layers.getEnd()) curLayer = curLayer - layers.getEnd();
+
+        // While playing, the next frames are prefetched window by window
+        prefetchWindow = parentViewRef.isMainView ? getNextPrefetchWindow() : null;
+        if (prefetchWindow != null) {
+            curLayer = prefetchWindow.getStart();
+            endLayer = prefetchWindow.getEnd();
         }
-    	int endLayer = curLayer == 0 ? layers.getEnd() : curLayer - 1;
-    	*/
-    	/****/
         
         /****/
         // TEST
@@ -414,8 +580,8 @@ public class J2KReader implements Runnable   {
         /****/
                                                    		
         req.setQuery(query.toString());
-        socket.send(req);
-        printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "][sendQuery]: " + query.toString());
+        send(req);
+        printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "][sendQuery]: " + query.toString());
     }
     
     /** Send an updated query */
@@ -424,8 +590,8 @@ public class J2KReader implements Runnable   {
         JPIPQuery query = new JPIPQuery();
        	query = createUpdatedQuery();
         req.setQuery(query.toString());
-        socket.send(req);
-        printForDebug("\t\t\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "][sendUpdatedQuery]: " + query.toString());
+        send(req);
+        printForDebug("\t\t\t\t[J2KReader][CID: " + getJpipChannelID() + "][sendUpdatedQuery]: " + query.toString());
     }
     
     /** Check, whether view parameters have changed */
@@ -455,8 +621,11 @@ public class J2KReader implements Runnable   {
 
     /** Update the cache status */
     private void updateCacheStatus(CacheStatus status) {
-    	Interval<Integer> layers = parentImageRef.getCompositionLayerRange();
-        
+    	updateCacheStatus(status, parentImageRef.getCompositionLayerRange());
+    }
+
+    /** Update the cache status of the given frames */
+    private void updateCacheStatus(CacheStatus status, Interval<Integer> layers) {
         if (parentViewRef.isMainView() && parentViewRef instanceof CachedMovieView) {
             ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
             for(int j = layers.getEnd(); j >= layers.getStart(); j--) {
@@ -473,9 +642,6 @@ public class J2KReader implements Runnable   {
     }
     
     public void run() {
-        boolean complete = false;
-        boolean downgradeNecessary = false;        
-        int pending = 0;        
         boolean isReconnected = false;
         
         // Update the cache status
@@ -485,7 +651,7 @@ public class J2KReader implements Runnable   {
        	
     		// Wait for signal
             try {
-            	printForDebug("\n\t[J2KReader] WaitForSignal. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode() + ". pending: " + pending);        	
+            	printForDebug("\n\t[J2KReader] WaitForSignal. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());        	
             	parentViewRef.readerSignal.waitForSignal();
             } catch (InterruptedException e) {
                 continue;
@@ -502,24 +668,16 @@ public class J2KReader implements Runnable   {
             	isReconnected = false;
             	
                 // If socket is closed, but communication is necessary, open it
-                if (socket != null && socket.isClosed() && (parentViewRef.isPersistent() || viewHasChanged())) {
+                if (isClosed() && (parentViewRef.isPersistent() || viewHasChanged())) {
                     try {
-                    	printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "] Connecting with the server. isMainView: " + parentViewRef.isMainView);
-                    	socket = new JPIPSocket();
-                        socket.connect(parentImageRef.getURI());
-                        if (!parentImageRef.isMultiFrame()) {
-                            KakaduUtils.updateServerCacheModel(socket, cacheRef, true);
-                        }                        
+                    	printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "] Connecting with the server. isMainView: " + parentViewRef.isMainView);
+                        reconnect();
                         isReconnected = true;
                     } catch (IOException e) {
                         if (verbose) {
                             e.printStackTrace();
                         }
-                        try {                       	
-                        	socket.close();
-                        } catch (IOException ioe) {
-                            Log.error(">> J2KReader.run() > Error closing socket.", ioe);
-                        }
+                        closeConnection();
                         parentViewRef.fireChangeEvent(new ChangeEvent(new SubImageDataChangedReason(parentViewRef)));
 
                         // Send signal to try again
@@ -530,145 +688,30 @@ public class J2KReader implements Runnable   {
                 }
 
                 // If socket is open, get image data
-                if (socket != null && !socket.isClosed()) {
+                if (isOpen()) {
 
                     try {
-                        JPIPResponse res = null;
                         Interval<Integer> layers = parentImageRef.getCompositionLayerRange();                        
                         
                     	if (viewHasChanged() || isReconnected) {                    		
                     		// If view has changed downgrade caching status
                     		downgradeNecessary = true;                    		
                     		sendQuery();
-                            pending++;                            
-                            printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  1 Query . isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());
+                            printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  1 Query . isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());
                     	}                    	
                     	
-                        // While there are pending queries
-                    	while (pending > 0 && !stop) {
-                    		printForDebug("\t\t[J2KReader][socket.receive][CID: " + socket.getJpipChannelID() + "] pending: " + pending + ". isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());
-                            res = socket.receiveHeader();
-                            JPIPDataInputStream jpip;
-                            jpip = socket.receiveJPIPDataStream();                                
-                            JPIPDataSegment seg;                                                   
-                            
-                            complete = false;                        
-                            time_initial = System.currentTimeMillis();
-                            
-                            // Receive response     
-                            while ((seg=jpip.readSegment())!= null && !stop) {
-                                time_end = System.currentTimeMillis();
-                                res.addJpipDataSegment(seg);
-                                
-                                if (res != null) {
-                                	
-                                	// Calculate estimated bandwidth
-                                	//boolean notify = mbwControl(res.getResponseSize());                                		
-                                	
-                                	/****/
-                                	// TEST
-                                	boolean notify = false;
-                                	if (parentViewRef.isMainView){
-                                        //printTimeStamp(String.valueOf(res.getResponseSize()));
-                                		notify = mbwControl(res.getResponseSize(), socket.getJpipChannelID());
-                                	}
-                                	/****/
-                                	
-                            		/****/
-                                	// TEST
-                                	// Update estimated bandwidth  (Only in Video Mode)                              
-                                	//if (parentViewRef.isMainView && parentViewRef.getRender().getMovieMode() && notify) {
-                                	
-                                	// Always notify the new mbw
-                                	//if (notify && bw_avg!=-1 && parentViewRef.getRender().getMovieMode()) {
-                                	if (notify && bw_avg!=-1) {                                		
-                                		sendUpdatedQuery();
-                                		pending++;
-                                		printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  2 Updated Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());
-                                    }
-                            		/****/
-                                        
-                                    // Downgrade, if necessary
-                                    if (downgradeNecessary && res.getResponseSize() > 0 && parentViewRef.isMainView() && parentViewRef instanceof CachedMovieView) {
-                                    	printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  Downgrade.");     
-                                            		
-                                        ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
-                                                
-                                        for(int i = layers.getEnd(); i >= layers.getStart(); i--) {
-                                            cacheStatus.downgradeImageStatus(i);
-                                        }                                            
-                                        downgradeNecessary = false;                                            
-                                    }                                    
-
-                                    // Add response to cache - if query complete, react
-                                    if (cacheRef.addJPIPResponseData(res)) {
-                                    	printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  Query completed. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());                                           
-                                                
-                                        // Mark query as completed                                    
-                                        complete = true;                                    
-
-                                        // Tell the cache status
-                                        updateCacheStatus(CacheStatus.COMPLETE);
-                                    }                                    
-                                        
-                                    // Fire ChangeEvent, if wanted
-                                    if ((parentViewRef.getReaderMode() == ReaderMode.ONLYFIREONCOMPLETE && complete) || parentViewRef.getReaderMode() == ReaderMode.ALWAYSFIREONNEWDATA) {
-                                        parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
-                                    }                                    
-                                }                                
-                                
-                                // Let others do their work, too
-                                Thread.yield();                              
-                                
-                                // Check if there are any signal 
-                                if (parentViewRef.isMainView && (parentViewRef.readerSignal.isSignaled() || Thread.interrupted())) {                                	
-                                	
-                                	printForDebug("\t\t# parentViewRef.reasonReaderSignal: " + parentViewRef.readerSignal.getReason() + ". pending: " + pending);
-                                	
-                                	parentViewRef.readerSignal.setSignal(false);                                	
-                                	
-                                    if (viewHasChanged()) {
-                                		downgradeNecessary = true;
-                                		sendQuery();
-                                        pending++;                                        
-                                        printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  3 Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());                                		
-                                	} else {
-                                    	if (parentViewRef.readerSignal.getReason() == ReaderReasons.FPS && fpsHasChanged()) {
-                                    		sendUpdatedQuery();
-                                    		pending++;
-                                    		printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  4 Updated Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());                                    			
-                                    	} else {
-                                    		if (parentViewRef.readerSignal.getReason() == ReaderReasons.PLAY || parentViewRef.readerSignal.getReason() == ReaderReasons.PAUSE) {
-                                    			sendQuery();
-                                    			pending++;
-                                    			printForDebug("\t\t[J2KReader][CID: " + socket.getJpipChannelID() + "]  5 Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());	
-                                    		}
-                                    	}                                		
-                                	}  
-                                }
-                                
-                            } // endWhile. (readSegment)                            
-                            
-                        	pending--;                          	
-                            
-                        } // endWhile. (pending)                        
+                        if (channel != null)
+                            receiveFromChannel(layers);
+                        else
+                            receiveFromSocket(layers);
                         
                     } catch (IOException e) {                    	
                         if (verbose) {
                             System.out.println(e.getMessage());
                             e.printStackTrace();
                         }
-                    	if (socket != null) {
-                            try {
-                            	printForDebug("[Exception][socket.close][CID: " + socket.getJpipChannelID() + "]  isMainView: " + parentViewRef.isMainView);
-                            	socket.close();                            	
-                            } catch (IOException ioe) {
-                                Log.error(">> J2KReader.run() > Error closing socket", ioe);
-                                if (ioe instanceof SocketException && ioe.getMessage().contains("Broken pipe")) {
-                                    Message.err("Broken pipe error", "Broken pipe error! This error is a known bug. It occurs when too many movies with too many frames are loaded. Movie playback might not work or will be very slow. Try removing the current layers and load shorter movies or select a larger movie cadence. We are sorry for this inconvenience and are working on the problem.", false);
-                                }
-                            }
-                        }
+                        printForDebug("[Exception][close][CID: " + getJpipChannelID() + "]  isMainView: " + parentViewRef.isMainView);
+                        closeConnection();
                         parentViewRef.fireChangeEvent(new ChangeEvent());
 
                         // Send signal to try again
@@ -679,5 +722,206 @@ public class J2KReader implements Runnable   {
                 }
             }
         }        
-    }    
+    }
+
+    /**
+     * Receives the pending responses from the socket, segment by segment.
+     * 
+     * @param layers
+     *            The composition layers of the image
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    private void receiveFromSocket(Interval<Integer> layers) throws IOException, JHV_KduException {
+        // While there are pending queries
+        while (socket.getNumPendingRequests() > 0 && !stop) {
+            printForDebug("\t\t[J2KReader][socket.receive][CID: " + socket.getJpipChannelID() + "] pending: " + socket.getNumPendingRequests() + ". isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());
+            JPIPResponse res = socket.receiveHeader();
+            JPIPDataInputStream jpip = socket.receiveJPIPDataStream();
+            JPIPDataSegment seg;
+
+            // Receive response
+            while ((seg = jpip.readSegment()) != null && !stop) {
+                res.addJpipDataSegment(seg);
+                responseDataReceived(res, layers);
+
+                // Let others do their work, too
+                Thread.yield();
+
+                checkSignals();
+            }
+        }
+    }
+
+    /**
+     * Receives the pending responses from the channel of the non-blocking
+     * transport. The data is taken from the queue of the channel as the I/O
+     * thread parses it, and the signals are checked at least every
+     * CHANNEL_POLL_INTERVAL milliseconds, even if no data arrives.
+     * 
+     * @param layers
+     *            The composition layers of the image
+     * @throws IOException
+     *             If the channel failed or the server did not answer in time
+     * @throws JHV_KduException
+     */
+    private void receiveFromChannel(Interval<Integer> layers) throws IOException, JHV_KduException {
+        while ((channel.getNumPendingRequests() > 0 || channel.hasReceivedData()) && !stop) {
+            JPIPResponse res;
+            try {
+                res = channel.poll(CHANNEL_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (res != null)
+                responseDataReceived(res, layers);
+            else if (System.currentTimeMillis() - channel.getLastActivityTime() > CHANNEL_TIMEOUT)
+                throw new SocketTimeoutException("No data received from the JPIP server");
+
+            checkSignals();
+        }
+
+        // The data received before a failure has been added, the failure is
+        // handled as with the socket
+        if (channel.isClosed() && !stop)
+            throw channel.getFailure() != null ? channel.getFailure() : new IOException("The channel is closed");
+    }
+
+    /**
+     * Adds the data received for a response to the cache, and reacts to it:
+     * the bandwidth and the fidelity are updated, the cache status is told
+     * and the render is signalled.
+     * 
+     * @param res
+     *            The response, with the data segments not added yet
+     * @param layers
+     *            The composition layers of the image
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    private void responseDataReceived(JPIPResponse res, Interval<Integer> layers) throws IOException, JHV_KduException {
+        boolean complete = false;
+
+    	// Calculate estimated bandwidth
+    	//boolean notify = mbwControl(res.getResponseSize());                                		
+    	
+    	/****/
+    	// TEST
+    	boolean notify = false;
+    	if (parentViewRef.isMainView){
+    		notify = updateBandwidth();
+    	}
+    	/****/
+    	
+		/****/
+    	// TEST
+    	// Update estimated bandwidth  (Only in Video Mode)                              
+    	//if (parentViewRef.isMainView && parentViewRef.getRender().getMovieMode() && notify) {
+    	
+    	// Always notify the new mbw
+    	//if (notify && bw_avg!=-1 && parentViewRef.getRender().getMovieMode()) {
+    	if (notify && bandwidthEstimator.getBandwidth() != -1) {                                		
+    		sendUpdatedQuery();
+    		printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  2 Updated Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());
+        }
+
+    	// Adapt the fidelity to the playback, if it is falling behind
+    	if (updateAdaptiveQuality()) {
+    		downgradeNecessary = true;
+    		sendQuery();
+    	}
+		/****/
+            
+        // Downgrade, if necessary
+        if (downgradeNecessary && res.getResponseSize() > 0 && parentViewRef.isMainView() && parentViewRef instanceof CachedMovieView) {
+        	printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  Downgrade.");     
+                		
+            ImageCacheStatus cacheStatus = ((CachedMovieView) parentViewRef).getImageCacheStatus();
+                    
+            for(int i = layers.getEnd(); i >= layers.getStart(); i--) {
+                cacheStatus.downgradeImageStatus(i);
+            }                                            
+            downgradeNecessary = false;                                            
+        }                                    
+
+        // Add response to cache - if query complete, react.
+        // A superseded request does not complete the current window.
+        if (cacheRef.addJPIPResponseData(res) && !res.isCancelled()) {
+        	printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  Query completed. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());                                           
+                    
+            // Mark query as completed                                    
+            complete = true;                                    
+
+            // Tell the cache status. Frames received with a
+            // lowered fidelity are only partial.
+            CacheStatus status = CacheStatus.COMPLETE;
+            if (isPlayingMainMovie() && parentViewRef.getAdaptiveQualityController().isDegraded())
+                status = CacheStatus.PARTIAL;
+
+            // A prefetched window only completes its frames,
+            // and is followed by the next one
+            if (prefetchWindow != null)
+                updateCacheStatus(status, prefetchWindow);
+            else
+                updateCacheStatus(status);
+
+            // The data lost by a trim is requested again
+            if (trimCacheIfNeeded() || prefetchWindow != null)
+                sendQuery();
+        }                                    
+            
+        // Fire ChangeEvent, if wanted
+        if ((parentViewRef.getReaderMode() == ReaderMode.ONLYFIREONCOMPLETE && complete) || parentViewRef.getReaderMode() == ReaderMode.ALWAYSFIREONNEWDATA) {
+            parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
+        } else if (parentViewRef.getReaderMode() == ReaderMode.PROGRESSIVE) {
+            // The refinements are limited to the display rate
+            long now = System.currentTimeMillis();
+            if (complete) {
+                parentViewRef.getRender().refinementComplete();
+            }
+            if (complete || now - lastRefinementTime >= J2KRender.PROGRESSIVE_INTERVAL) {
+                lastRefinementTime = now;
+                parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
+            } else {
+                // The data is not left behind if no more arrives,
+                // e.g. when the response is cut by a limit
+                parentViewRef.getRender().scheduleRefinement(lastRefinementTime + J2KRender.PROGRESSIVE_INTERVAL - now);
+            }
+        }
+    }
+
+    /**
+     * Checks if the main view has been signalled while the responses are
+     * received, and sends the query the signal calls for.
+     * 
+     * @throws IOException
+     */
+    private void checkSignals() throws IOException {
+        if (parentViewRef.isMainView && (parentViewRef.readerSignal.isSignaled() || Thread.interrupted())) {                                	
+        	
+        	printForDebug("\t\t# parentViewRef.reasonReaderSignal: " + parentViewRef.readerSignal.getReason() + ". pending: " + getNumPendingRequests());
+        	
+        	parentViewRef.readerSignal.setSignal(false);                                	
+        	
+            if (viewHasChanged()) {
+        		downgradeNecessary = true;
+        		sendQuery();
+                printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  3 Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());                                		
+        	} else {
+            	if (parentViewRef.readerSignal.getReason() == ReaderReasons.FPS && fpsHasChanged()) {
+            		sendUpdatedQuery();
+            		printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  4 Updated Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());                                    			
+            	} else {
+            		if (parentViewRef.readerSignal.getReason() == ReaderReasons.PLAY || parentViewRef.readerSignal.getReason() == ReaderReasons.PAUSE) {
+            			// A paused movie is requested with the full fidelity
+            			if (parentViewRef.readerSignal.getReason() == ReaderReasons.PAUSE && parentViewRef.getAdaptiveQualityController().reset())
+            				downgradeNecessary = true;
+            			sendQuery();
+            			printForDebug("\t\t[J2KReader][CID: " + getJpipChannelID() + "]  5 Query. isMainView: " + parentViewRef.isMainView + ". Mode: " + parentViewRef.getRender().getMovieMode());	
+            		}
+            	}                                		
+        	}  
+        }
+    }
 }
\ No newline at end of file
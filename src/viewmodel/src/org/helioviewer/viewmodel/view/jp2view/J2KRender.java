@@ -1,5 +1,8 @@
 package org.helioviewer.viewmodel.view.jp2view;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import kdu_jni.KduException;
 import kdu_jni.Kdu_compositor_buf;
 import kdu_jni.Kdu_coords;
@@ -12,7 +15,12 @@ import org.helioviewer.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.viewmodel.changeevent.NonConstantMetaDataChangedReason;
 import org.helioviewer.viewmodel.imagedata.ARGBInt32ImageData;
 import org.helioviewer.viewmodel.imagedata.ColorMask;
+import org.helioviewer.viewmodel.imagedata.ImageData;
+import org.helioviewer.viewmodel.imagedata.ImageDataReleaseListener;
 import org.helioviewer.viewmodel.imagedata.SingleChannelByte8ImageData;
+import org.helioviewer.viewmodel.imagetransport.Byte8ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.ImageTransport;
+import org.helioviewer.viewmodel.imagetransport.Int32ImageTransport;
 import org.helioviewer.viewmodel.metadata.MetaData;
 import org.helioviewer.viewmodel.metadata.NonConstantMetaData;
 import org.helioviewer.viewmodel.view.CachedMovieView;
@@ -20,7 +28,15 @@ import org.helioviewer.viewmodel.view.LinkedMovieManager;
 import org.helioviewer.viewmodel.view.MovieView;
 import org.helioviewer.viewmodel.view.MovieView.AnimationMode;
 import org.helioviewer.viewmodel.view.cache.DateTimeCache;
+import org.helioviewer.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
+import org.helioviewer.viewmodel.view.jp2view.JHVJP2View.ReaderMode;
+import org.helioviewer.viewmodel.view.jp2view.JHVJP2View.RenderPriority;
+import org.helioviewer.viewmodel.view.jp2view.concurrency.FramePool;
 import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
+import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet.ResolutionLevel;
+import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_thread_env;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
 
@@ -28,15 +44,16 @@ import org.helioviewer.base.Benchmark;
 
 /**
  * The J2KRender class handles all of the decompression, buffering, and
- * filtering of the image data. It essentially just waits for the shared object
- * in the JP2ImageView to signal it.
+ * filtering of the image data. It is run by the {@link RenderExecutor} when the
+ * shared object in the JP2ImageView is signaled, and at the deadlines of the
+ * frames of a movie.
  * 
  * @author caplins
  * @author Benjamin Wamsler
  * @author Desmond Amadigwe
  * @author Markus Langenberg
  */
-class J2KRender implements Runnable {
+class J2KRender implements RenderExecutor.Task, ImageDataReleaseListener {
 
     /**
      * There could be multiple reason that the Render object was signaled. This
@@ -46,12 +63,33 @@ class J2KRender implements Runnable {
         NEW_DATA, OTHER, MOVIE_PLAY
     };
 
-    /** The thread that this object runs on. */
-    private volatile Thread myThread;
-
-    /** A boolean flag used for stopping the thread. */
+    /** A boolean flag used for stopping the render. */
     private volatile boolean stop;
 
+    /** Whether the frames of a movie are being rendered one after another */
+    private volatile boolean playing = false;
+
+    /** Submits the render when the view signals it and it is not playing */
+    private final Runnable signalListener = new Runnable() {
+        public void run() {
+            if (!playing)
+                RenderExecutor.getSingletonInstance().submit(J2KRender.this);
+        }
+    };
+
+    /** Whether the render waits for the data of a frame not accessible yet */
+    private volatile boolean waitingForData = false;
+
+    /** Submits the render when data arrives for the frame it waits for */
+    private final Runnable dataListener = new Runnable() {
+        public void run() {
+            if (waitingForData) {
+                waitingForData = false;
+                RenderExecutor.getSingletonInstance().submit(J2KRender.this);
+            }
+        }
+    };
+
     /** A reference to the JP2Image this object is owned by. */
     private JP2Image parentImageRef;
 
@@ -68,11 +106,49 @@ class J2KRender implements Runnable {
 
     /** An integer buffer used in the run method. */
     private int[] localIntBuffer = new int[0];
-    private int[] intBuffer = new int[0];
 
-    /** A byte buffer used in the run method. */
+    /** The frame handed to the view, from the frame pools or the cache */
+    private int[] intBuffer = new int[0];
     private byte[] byteBuffer = new byte[0];
 
+    /**
+     * The buffers the frames are decoded into. A frame is only decoded into
+     * again once the view and every reader of the view chain have released
+     * it, so a frame being read is never written while decoding the next ones.
+     */
+    private final FramePool<int[]> intFrames = new FramePool<int[]>();
+    private final FramePool<byte[]> byteFrames = new FramePool<byte[]>();
+
+    /** The frames decoded while playing a movie */
+    private final DecodedFrameCache frameCache = new DecodedFrameCache();
+
+    /** The parameters of the last region decoded, null if not complete */
+    private JP2ImageParameter lastDecodedParams = null;
+
+    /** The compositor and amount of data the last region was decoded with */
+    private Kdu_region_compositor lastDecodedCompositor = null;
+    private long lastDecodedDataSize = 0;
+
+    /** Minimum time between two passes of the progressive mode (ms) */
+    public static final int PROGRESSIVE_INTERVAL = 200;
+
+    /** Number of quality layers of the first pass of the progressive mode */
+    private static final int PROGRESSIVE_FIRST_LAYERS = 1;
+
+    /** The composition layer, resolution and quality refined */
+    private int progressiveLayer = -1;
+    private ResolutionLevel progressiveResolution = null;
+    private int progressiveMaxLayers = -1;
+
+    /** Number of quality layers of the last pass of the progressive mode */
+    private int progressiveLayers = PROGRESSIVE_FIRST_LAYERS;
+
+    /** Whether the reader has received all the data of its request */
+    private final AtomicBoolean refinementComplete = new AtomicBoolean(false);
+
+    /** The threads decoding the next frames of a movie, null until played */
+    private FrameDecodePool decodePool = null;
+
     /** Maximum of samples to process per rendering iteration */
     private final int MAX_RENDER_SAMPLES = 50000;
 
@@ -81,13 +157,20 @@ class J2KRender implements Runnable {
     // private final int MAX_RENDER_ITERATIONS = 150;
 
     /** It says if the render is going to play a movie instead of a single image */
-    private boolean movieMode = false;
+    private volatile boolean movieMode = false;
 
     private boolean linkedMovieMode = false;
 
     private static int movieSpeed;
     private float actualMovieFramerate = 0.0f;
     private long lastSleepTime = 0;
+
+    // The frames rendered since the frame rate was measured
+    private int numFrames = 0;
+    private long tini = 0;
+
+    /** The schedule of the frames on the shared clock, null if not started */
+    private PlaybackClock.Subscription clockSubscription = null;
     private int lastCompositionLayerRendered = -1;
 
     private NextFrameCandidateChooser nextFrameCandidateChooser = new NextFrameCandidateLoopChooser();
@@ -107,41 +190,67 @@ class J2KRender implements Runnable {
         compositorRef = parentImageRef.getCompositorRef();
 
         stop = false;
-        myThread = null;
     }
 
-    /** Starts the J2KRender thread. */
+    /** Registers the render with the shared render threads. */
     void start() {
-        if (myThread != null)
+        if (clockSubscription != null)
             stop();
 
-        myThread = new Thread(JHVJP2View.renderGroup, this, "J2KRender");
+        clockSubscription = PlaybackClock.getSingletonInstance().subscribe(parentImageRef.getURI().toString());
         stop = false;
-        myThread.start();
+        playing = false;
+        waitingForData = false;
+
+        numFrames = 0;
+        lastFrame = -1;
+        tini = PlaybackClock.getSingletonInstance().nanoTime();
+
+        // TEST
+        // Initialize the frame-rate
+        //movieSpeed = 20;
+        movieSpeed = 5;
+
+        RenderExecutor.getSingletonInstance().add(this);
+        parentViewRef.renderRequestedSignal.setListener(signalListener);
+        parentImageRef.getDataSignal().addListener(dataListener);
+
+        // A signal sent before
+        if (parentViewRef.renderRequestedSignal.isSignaled())
+            RenderExecutor.getSingletonInstance().submit(this);
     }
 
-    /** Stops the J2KRender thread. */
+    /** Unregisters the render, waiting until it is not running. */
     void stop() {
-        if (myThread != null && myThread.isAlive()) {
-            try {
-                stop = true;
-
-                do {
-                    myThread.interrupt();
-                    myThread.join(100);
-                } while (myThread.isAlive());
-
-            } catch (InterruptedException ex) {
-            } catch (NullPointerException e) {
-            } finally {
-                myThread = null;
-
-                intBuffer = new int[0];
-                byteBuffer = new byte[0];
+        if (clockSubscription != null) {
+            stop = true;
+            parentViewRef.renderRequestedSignal.setListener(null);
+            parentImageRef.getDataSignal().removeListener(dataListener);
+            RenderExecutor.getSingletonInstance().remove(this);
+            playing = false;
+
+            intBuffer = new int[0];
+            byteBuffer = new byte[0];
+            intFrames.clear();
+            byteFrames.clear();
+            frameCache.clear();
+
+            if (decodePool != null) {
+                decodePool.abolish();
+                decodePool = null;
             }
+
+            PlaybackClock.getSingletonInstance().unsubscribe(clockSubscription);
+            clockSubscription = null;
         }
     }
 
+    /** Runs the render again at once, e.g. to stop waiting for a frame. */
+    private void wakeUp() {
+        if (clockSubscription != null)
+            RenderExecutor.getSingletonInstance().submit(this);
+    }
+
     /** Destroys the resources associated with this object */
     void abolish() {
         stop();
@@ -149,12 +258,14 @@ class J2KRender implements Runnable {
 
     public void setMovieMode(boolean val) {
 
-        if (movieMode) {
-            myThread.interrupt();
+        boolean wasMovieMode = movieMode;
+        movieMode = val;
+
+        if (wasMovieMode) {
+            wakeUp();
             System.gc();
         }
 
-        movieMode = val;
         if (frameChooser instanceof AbsoluteFrameChooser) {
             ((AbsoluteFrameChooser) frameChooser).resetStartTime(currParams.compositionLayer);
         }
@@ -167,22 +278,31 @@ class J2KRender implements Runnable {
 
     public void setMovieRelativeSpeed(int framesPerSecond) {
 
-        if (movieMode && lastSleepTime > 1000) {
-            myThread.interrupt();
-        }
-
         movieSpeed = framesPerSecond;
         frameChooser = new RelativeFrameChooser();
+
+        if (movieMode && lastSleepTime > 1000) {
+            restartSchedule();
+        }
     }
 
     public void setMovieAbsoluteSpeed(int secondsPerSecond) {
 
+        movieSpeed = secondsPerSecond;
+        frameChooser = new AbsoluteFrameChooser();
+
         if (movieMode && lastSleepTime > 1000) {
-            myThread.interrupt();
+            restartSchedule();
         }
+    }
 
-        movieSpeed = secondsPerSecond;
-        frameChooser = new AbsoluteFrameChooser();
+    /** Renders the next frame at once and schedules the following ones anew */
+    private void restartSchedule() {
+        PlaybackClock.Subscription subscription = clockSubscription;
+        if (subscription != null) {
+            subscription.restart();
+            wakeUp();
+        }
     }
 
     public void setAnimationMode(AnimationMode mode) {
@@ -203,6 +323,16 @@ class J2KRender implements Runnable {
         return actualMovieFramerate;
     }
 
+    /**
+     * Returns the schedule of the frames on the playback clock, with its
+     * counters of late and dropped frames and jitter.
+     * 
+     * @return The subscription, null if the render is not started
+     */
+    public PlaybackClock.Subscription getClockSubscription() {
+        return clockSubscription;
+    }
+
     public boolean isMovieMode() {
         return movieMode;
     }
@@ -215,44 +345,58 @@ class J2KRender implements Runnable {
     	return movieMode;
     }
 
-    private void renderLayer(int numLayer) {    	
+    /**
+     * Returns the frames which will be displayed after the current one, in
+     * playback order, according to the current animation mode. The state of
+     * the animation is not changed.
+     * 
+     * @param count
+     *            Maximum number of frames to return
+     * @return The next frames, fewer than count if the playback stops before
+     */
+    public int[] getLookAhead(int count) {
+        return nextFrameCandidateChooser.getLookAhead(parentViewRef.getImageViewParams().compositionLayer, count);
+    }
+
+    /**
+     * Decodes a composition layer into byteBuffer or intBuffer.
+     * 
+     * @param numLayer
+     *            The composition layer
+     * @param detached
+     *            Whether the frame is decoded into a new buffer, which is kept
+     *            by the frame cache, instead of the frame pools
+     */
+    private void renderLayer(int numLayer, boolean detached) {    	
 
     	parentImageRef.getLock().lock();
 
         try {
+            // The compositor is created again when the cache is trimmed
+            compositorRef = parentImageRef.getCompositorRef();
+
             if (JP2Image.numJP2ImagesInUse() == 1) {
                 compositorRef.Set_thread_env(JHV_Kdu_thread_env.getSingletonInstance(), 0);
             } else {
                 compositorRef.Set_thread_env(null, 0);
             }
 
-            compositorRef.Refresh();
-            compositorRef.Remove_compositing_layer(-1, true);
-
-            parentImageRef.deactivateColorLookupTable(numLayer);
-
-            Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
-
-            compositorRef.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);            
-           
-            if (lastCompositionLayerRendered != numLayer) {
-                lastCompositionLayerRendered = numLayer;
-              
-                parentImageRef.updateResolutionSet(numLayer);
-                
-                MetaData metaData = parentViewRef.getMetaData();
-                
-                if (metaData instanceof NonConstantMetaData && ((NonConstantMetaData) metaData).checkForModifications()) {
-
-                    parentViewRef.updateParameter();
-                    currParams = parentViewRef.getImageViewParams();
-
-                    parentViewRef.addChangedReason(new NonConstantMetaDataChangedReason(parentViewRef, metaData));
-                }
+            // The data stored in the cache file is loaded on demand
+            JHV_Kdu_cache cacheRef = parentImageRef.getCacheRef();
+            if (cacheRef != null)
+                cacheRef.loadCodestream(numLayer);
+
+            long dataSize = cacheRef != null ? cacheRef.getTotalDataSize() : 0;
+            byte[] lastByteBuffer = byteBuffer;
+            int[] lastIntBuffer = intBuffer;
+
+            // When panning, the compositor keeps the pixels of the previous
+            // region and only decodes the newly exposed strips
+            int qualityLayers = getProgressiveQualityLayers(numLayer);
+            boolean pan = isPan(numLayer, qualityLayers, dataSize);
+            if (!pan) {
+                renderSetup(numLayer, qualityLayers);
             }
-            
-            compositorRef.Set_max_quality_layers(currParams.qualityLayers);
-            compositorRef.Set_scale(false, false, false, currParams.resolution.getZoomPercent());
            
             Kdu_dims requestedBufferedRegion = KakaduUtils.roiToKdu_dims(currParams.subImage);
             
@@ -266,14 +410,40 @@ class J2KRender implements Runnable {
 
             Kdu_dims newRegion = new Kdu_dims();
 
+            int numPixels = currParams.subImage.getNumPixels();
             if (parentImageRef.getNumComponents() < 3) {
-                if (currParams.subImage.getNumPixels() != byteBuffer.length || (!movieMode && !linkedMovieMode)) {
-                    byteBuffer = new byte[currParams.subImage.getNumPixels()];
+                if (detached) {
+                    byteBuffer = new byte[numPixels];
+                } else {
+                    // The buffers of another size are dropped
+                    do {
+                        byteBuffer = byteFrames.take();
+                    } while (byteBuffer != null && byteBuffer.length != numPixels);
+
+                    if (byteBuffer == null)
+                        byteBuffer = new byte[numPixels];
+                    else
+                        Arrays.fill(byteBuffer, (byte) 0);
+                    byteFrames.lend(byteBuffer);
                 }
+                if (pan)
+                    copyOverlap(lastByteBuffer, byteBuffer);
             } else {
-                if (currParams.subImage.getNumPixels() != intBuffer.length || (!movieMode && !linkedMovieMode)) {
-                    intBuffer = new int[currParams.subImage.getNumPixels()];
+                if (detached) {
+                    intBuffer = new int[numPixels];
+                } else {
+                    do {
+                        intBuffer = intFrames.take();
+                    } while (intBuffer != null && intBuffer.length != numPixels);
+
+                    if (intBuffer == null)
+                        intBuffer = new int[numPixels];
+                    else
+                        Arrays.fill(intBuffer, 0);
+                    intFrames.lend(intBuffer);
                 }
+                if (pan)
+                    copyOverlap(lastIntBuffer, intBuffer);
             }
             
             boolean stopProcess = false;            
@@ -321,148 +491,468 @@ class J2KRender implements Runnable {
             if (compositorBuf != null)
                 compositorBuf.Native_destroy();
 
+            // What the next render needs to pan from this one
+            lastDecodedParams = stopProcess ? null : new JP2ImageParameter(currParams.subImage, currParams.resolution, qualityLayers, numLayer);
+            lastDecodedCompositor = compositorRef;
+            lastDecodedDataSize = dataSize;
+
         } catch (KduException e) {        	
+            lastDecodedParams = null;
             e.printStackTrace();            
+        } catch (JHV_KduException e) {
+            lastDecodedParams = null;
+            e.printStackTrace();
         } finally {
         	parentImageRef.getLock().unlock();
         }
     }
 
     /**
-     * The method that decompresses and renders the image. It pushes it to the
-     * ViewObserver.
+     * Adds a reference to a frame handed to the view, for a reader of the
+     * view chain, which releases it with {@link ImageData#release()}. The
+     * frames not decoded into the frame pools, e.g. those kept by the frame
+     * cache, are ignored.
+     * 
+     * @param frame
      */
-    public void run() {
-        int numFrames = 0;
-        lastFrame = -1;
-        long tfrm, tmax = 0;
-        long tnow, tini = System.currentTimeMillis();      
-        
-        // TEST
-        // Initialize the frame-rate
-        //movieSpeed = 20;
-        movieSpeed = 5;
-        
-        while (!stop) {       	
-        	
-            try {
-            	parentViewRef.renderRequestedSignal.waitForSignal();
-            } catch (InterruptedException ex) {
-                continue;
-            }        	
+    void retainFrame(ImageData frame) {
+        ImageTransport transport = frame.getImageTransport();
+        if (transport instanceof Byte8ImageTransport)
+            byteFrames.retain(((Byte8ImageTransport) transport).getByte8PixelData());
+        else if (transport instanceof Int32ImageTransport)
+            intFrames.retain(((Int32ImageTransport) transport).getInt32PixelData());
+    }
+
+    /**
+     * Releases a reference to a frame handed to the view, either the one of
+     * the view once the frame is replaced, or the one of a reader. The frames
+     * not decoded into the frame pools are ignored.
+     */
+    public void imageDataReleased(ImageData frame) {
+        ImageTransport transport = frame.getImageTransport();
+        if (transport instanceof Byte8ImageTransport)
+            byteFrames.release(((Byte8ImageTransport) transport).getByte8PixelData());
+        else if (transport instanceof Int32ImageTransport)
+            intFrames.release(((Int32ImageTransport) transport).getInt32PixelData());
+    }
+
+    /**
+     * Returns the number of quality layers to decode. In the progressive mode
+     * of a remote image, the first pass after a change of composition layer,
+     * resolution or quality decodes only the first quality layers, which are
+     * usually in the cache already, and every following pass, triggered by
+     * new data, doubles them; once the reader has received all the data, the
+     * whole quality is decoded. Otherwise, or if all the data of the frame was
+     * received before, all the quality layers are decoded.
+     * 
+     * @param numLayer
+     * @return The number of quality layers to decode
+     */
+    private int getProgressiveQualityLayers(int numLayer) {
+        boolean complete = refinementComplete.getAndSet(false);
+        int maxLayers = currParams.qualityLayers;
+
+        if (movieMode || linkedMovieMode || parentViewRef.getReaderMode() != ReaderMode.PROGRESSIVE || !parentImageRef.isRemote())
+            return maxLayers;
+
+        if (numLayer != progressiveLayer || maxLayers != progressiveMaxLayers || !currParams.resolution.equals(progressiveResolution)) {
+            progressiveLayer = numLayer;
+            progressiveMaxLayers = maxLayers;
+            progressiveResolution = currParams.resolution;
+            // A frame already received needs no preview
+            progressiveLayers = isFrameComplete(numLayer) ? maxLayers : PROGRESSIVE_FIRST_LAYERS;
+        } else {
+            progressiveLayers = Math.min(maxLayers, 2 * progressiveLayers);
+        }
+
+        if (complete)
+            progressiveLayers = maxLayers;
+        return Math.min(maxLayers, progressiveLayers);
+    }
+
+    /**
+     * Tells the render that the reader has received all the data of the
+     * current request, so the next pass of the progressive mode decodes the
+     * whole quality.
+     */
+    void refinementComplete() {
+        refinementComplete.set(true);
+    }
+
+    /**
+     * Runs a pass of the progressive mode after the given delay, for the data
+     * received since the last pass, unless the render is signalled before.
+     * 
+     * @param delay
+     *            The delay (ms)
+     */
+    void scheduleRefinement(long delay) {
+        if (clockSubscription != null && !playing)
+            RenderExecutor.getSingletonInstance().schedule(this, PlaybackClock.getSingletonInstance().nanoTime() + delay * 1000000L);
+    }
+
+    /**
+     * Prepares the compositor to decode a composition layer from scratch.
+     * 
+     * @param numLayer
+     * @param qualityLayers
+     *            The number of quality layers to decode
+     * @throws KduException
+     */
+    private void renderSetup(int numLayer, int qualityLayers) throws KduException {
+        compositorRef.Refresh();
+        compositorRef.Remove_compositing_layer(-1, true);
+
+        parentImageRef.deactivateColorLookupTable(numLayer);
+
+        Kdu_dims dimsRef1 = new Kdu_dims(), dimsRef2 = new Kdu_dims();
+
+        compositorRef.Add_compositing_layer(numLayer, dimsRef1, dimsRef2);            
+           
+        if (lastCompositionLayerRendered != numLayer) {
+            lastCompositionLayerRendered = numLayer;
+          
+            parentImageRef.updateResolutionSet(numLayer);
             
-            currParams = parentViewRef.getImageViewParams();
-            nextFrameCandidateChooser.updateRange();
+            MetaData metaData = parentViewRef.getMetaData();
             
-            while (!Thread.interrupted() && !stop) {
-            	
-            	
-                tfrm = System.currentTimeMillis();
-                int curLayer = currParams.compositionLayer;
-                                
-                
-                if (parentViewRef instanceof MovieView) {
+            if (metaData instanceof NonConstantMetaData && ((NonConstantMetaData) metaData).checkForModifications()) {
 
-                    MovieView parent = (MovieView) parentViewRef;
-                    if (parent.getMaximumAccessibleFrameNumber() < curLayer) {
-                        try {
-                            Thread.sleep(200);
-                        } catch (InterruptedException e) {
-                        }
-                        parentViewRef.renderRequestedSignal.signal(RenderReasons.NEW_DATA);
-                        break;
-                    }
-                }
-                
-                if (movieMode && parentViewRef instanceof JHVJPXView) {
-                    JHVJPXView jpxView = ((JHVJPXView) parentViewRef);
-                    LinkedMovieManager movieManager = jpxView.getLinkedMovieManager();
-                    if (movieManager != null && movieManager.isMaster(jpxView)) {
-                        movieManager.updateCurrentFrameToMaster(new ChangeEvent());
-                    }
-                }                
+                parentViewRef.updateParameter();
+                currParams = parentViewRef.getImageViewParams();
 
-                renderLayer(curLayer);                
-                
-                int width = currParams.subImage.width;
-                int height = currParams.subImage.height;
-                
-                if (parentImageRef.getNumComponents() < 3) {                	
-                    if (currParams.subImage.getNumPixels() == byteBuffer.length) {                    	
-                		parentViewRef.setSubimageData(new SingleChannelByte8ImageData(width, height, byteBuffer, new ColorMask()), currParams.subImage, curLayer);
-
-                		/****/
-                        // TEST
-                    	//if (movieMode) {
-                            /*
-                    		Benchmark b = new Benchmark();
-                    		b.setParameters(byteBuffer, currParams.subImage.x, currParams.subImage.y, width, height, curLayer, "/tmp/soc/");
-                    		//b.writeToDisk(0, 0, 1024, 1024);                    		
-                    		b.writeToDisk(0, 0, 1280, 720);
-                            */
-                    	//}
-                        /****/                		
-                		
-                    } else {
-                        Log.warn("J2KRender: Params out of sync, skip frame");
-                    }
+                parentViewRef.addChangedReason(new NonConstantMetaDataChangedReason(parentViewRef, metaData));
+            }
+        }
+        
+        compositorRef.Set_max_quality_layers(qualityLayers);
+        compositorRef.Set_scale(false, false, false, currParams.resolution.getZoomPercent());
+    }
 
-                } else {
-                    if (currParams.subImage.getNumPixels() == intBuffer.length) {
-                        parentViewRef.setSubimageData(new ARGBInt32ImageData(width, height, intBuffer, new ColorMask()), currParams.subImage, curLayer);
-                    } else {
-                        Log.warn("J2KRender: Params out of sync, skip frame");
-                    }
-                }                
-                
-                if (!movieMode) {
-                    break;
-                }
-                else {                	
+    /**
+     * Tells if the region to render is a pan of the last region rendered: the
+     * same composition layer, resolution and quality layers, from the same
+     * compositor and data, with a different but overlapping region. Movies
+     * are not panned, since their buffers are reused.
+     * 
+     * @param numLayer
+     * @param qualityLayers
+     *            The number of quality layers to decode
+     * @param dataSize
+     *            The amount of data in the cache object
+     */
+    private boolean isPan(int numLayer, int qualityLayers, long dataSize) {
+        JP2ImageParameter last = lastDecodedParams;
+        if (last == null || movieMode || linkedMovieMode || lastDecodedCompositor != compositorRef || lastDecodedDataSize != dataSize)
+            return false;
+        if (last.compositionLayer != numLayer || last.qualityLayers != qualityLayers || !last.resolution.equals(currParams.resolution))
+            return false;
+        if (last.subImage.equals(currParams.subImage))
+            return false;
+
+        // The buffer must still hold the last region
+        int lastPixels = last.subImage.getNumPixels();
+        if (parentImageRef.getNumComponents() < 3 ? byteBuffer.length != lastPixels : intBuffer.length != lastPixels)
+            return false;
+
+        SubImage a = last.subImage, b = currParams.subImage;
+        return a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height;
+    }
+
+    /**
+     * Copies the pixels of the last region rendered which are also in the
+     * current one.
+     * 
+     * @param src
+     *            byte[] or int[] buffer of the last region
+     * @param dest
+     *            Buffer of the same type for the current region
+     */
+    private void copyOverlap(Object src, Object dest) {
+        SubImage from = lastDecodedParams.subImage, to = currParams.subImage;
+
+        int x0 = Math.max(from.x, to.x), x1 = Math.min(from.x + from.width, to.x + to.width);
+        int y0 = Math.max(from.y, to.y), y1 = Math.min(from.y + from.height, to.y + to.height);
+
+        for (int y = y0; y < y1; y++) {
+            System.arraycopy(src, (y - from.y) * from.width + (x0 - from.x), dest, (y - to.y) * to.width + (x0 - to.x), x1 - x0);
+        }
+    }
+
+    /**
+     * Returns the frame of a composition layer decoded in a previous loop of
+     * the movie, or ahead of the playhead by the decode pool, with the current
+     * parameters. The meta data of the frame is checked as if it was decoded.
+     * 
+     * @param numLayer
+     * @return A byte[] or int[] buffer, or null if the frame has to be decoded
+     */
+    private Object getCachedFrame(int numLayer) {
+        frameCache.setParameters(currParams);
+        Object frame = frameCache.get(numLayer);
+
+        if (frame == null && decodePool != null) {
+            frame = decodePool.take(numLayer, currParams);
+            if (frame != null)
+                frameCache.put(numLayer, frame);
+        }
+
+        parentImageRef.getLock().lock();
+
+        try {
+            if (frame != null && lastCompositionLayerRendered != numLayer) {
+                lastCompositionLayerRendered = numLayer;
+
+                MetaData metaData = parentViewRef.getMetaData();
+
+                if (metaData instanceof NonConstantMetaData && ((NonConstantMetaData) metaData).checkForModifications()) {
+
+                    parentViewRef.updateParameter();
                     currParams = parentViewRef.getImageViewParams();
-                    numFrames += currParams.compositionLayer - lastFrame;
-                    lastFrame = currParams.compositionLayer;
-                    tmax = frameChooser.moveToNextFrame();
-                    if (lastFrame > currParams.compositionLayer) {
-                        lastFrame = -1;
-                    }
-                    tnow = System.currentTimeMillis();                    
 
-                    if ((tnow - tini) >= 1000) {
-                        actualMovieFramerate = (numFrames * 1000.0f) / (tnow - tini);
-                        tini = tnow;
-                        numFrames = 0;
-                    }
+                    parentViewRef.addChangedReason(new NonConstantMetaDataChangedReason(parentViewRef, metaData));
 
-                    lastSleepTime = tmax - (tnow - tfrm);                    
-                    
-                    if (lastSleepTime > 0) {
-                        try {
-                            Thread.sleep(lastSleepTime);
-                        } catch (InterruptedException ex) {
-                            break;
-                        }
-                    } else {
-                        Thread.yield();
+                    // The frame is decoded again, with the new parameters
+                    if (frameCache.setParameters(currParams)) {
+                        lastCompositionLayerRendered = -1;
+                        return null;
                     }
                 }
             }
+            return frame;
+        } finally {
+            parentImageRef.getLock().unlock();
+        }
+    }
+
+    /**
+     * Schedules the decoding of the frames following the current one in the
+     * decode pool, starting the pool on the first call. Only the frames which
+     * are complete and not decoded yet are scheduled.
+     * 
+     * @param numLayer
+     *            The current frame
+     */
+    private void scheduleDecoding(int numLayer) {
+        if (decodePool == null) {
+            int numWorkers = FrameDecodePool.getNumWorkers();
+            if (numWorkers < 1)
+                return;
+            decodePool = new FrameDecodePool(parentImageRef, numWorkers);
+        }
 
-            numFrames += currParams.compositionLayer - lastFrame;
-            lastFrame = currParams.compositionLayer;
-            if (lastFrame > currParams.compositionLayer) {
-                lastFrame = -1;
+        int[] lookAhead = nextFrameCandidateChooser.getLookAhead(numLayer, 2 * decodePool.size());
+        int[] frames = new int[lookAhead.length];
+        int numFrames = 0;
+
+        for (int frame : lookAhead) {
+            if (isFrameComplete(frame) && !frameCache.contains(frame))
+                frames[numFrames++] = frame;
+        }
+
+        int[] scheduled = new int[numFrames];
+        System.arraycopy(frames, 0, scheduled, 0, numFrames);
+        decodePool.schedule(currParams, scheduled);
+    }
+
+    /** Tells if all the data of a frame has been received */
+    private boolean isFrameComplete(int numLayer) {
+        if (!(parentViewRef instanceof CachedMovieView))
+            return false;
+        return ((CachedMovieView) parentViewRef).getImageCacheStatus().getImageStatus(numLayer) == CacheStatus.COMPLETE;
+    }
+
+    /**
+     * Time to wait for the data of a frame not accessible yet (ns). The render
+     * is run again as soon as the data arrives; this is only a fallback.
+     */
+    private static final long DATA_RETRY_DELAY = 1000000000L;
+
+    /**
+     * {@inheritDoc}
+     */
+    public RenderPriority getPriority() {
+        return parentViewRef.getRenderPriority();
+    }
+
+    /**
+     * The method that decompresses and renders the image. It pushes it to the
+     * ViewObserver. When playing a movie, it asks to be run again at the
+     * deadline of the next frame.
+     */
+    public long execute() {
+        if (stop)
+            return -1;
+
+        if (!playing) {
+            // A new request: the newest parameters of the view are rendered
+            parentViewRef.renderRequestedSignal.setSignal(false);
+            currParams = parentViewRef.getImageViewParams();
+            nextFrameCandidateChooser.updateRange();
+            clockSubscription.restart();
+        } else if (!movieMode) {
+            // The movie was stopped while waiting for the next frame
+            return stopPlaying();
+        } else {
+            clockSubscription.tick();
+        }
+
+        return renderFrame();
+    }
+
+    /**
+     * Renders the current frame and, when playing a movie, moves to the next
+     * one.
+     * 
+     * @return The deadline of the next frame, or -1 if there is none
+     */
+    private long renderFrame() {
+        int curLayer = currParams.compositionLayer;
+                        
+        
+        if (parentViewRef instanceof MovieView) {
+
+            MovieView parent = (MovieView) parentViewRef;
+            if (parent.getMaximumAccessibleFrameNumber() < curLayer) {
+                // Tried again when the data arrives, as a new request
+                stopPlaying();
+                parentViewRef.renderRequestedSignal.setSignal(true);
+                waitingForData = true;
+
+                // The data may have arrived before the flag was set
+                long now = PlaybackClock.getSingletonInstance().nanoTime();
+                if (parent.getMaximumAccessibleFrameNumber() >= curLayer) {
+                    waitingForData = false;
+                    return now;
+                }
+                return now + DATA_RETRY_DELAY;
+            }
+        }
+        
+        if (movieMode && parentViewRef instanceof JHVJPXView) {
+            JHVJPXView jpxView = ((JHVJPXView) parentViewRef);
+            LinkedMovieManager movieManager = jpxView.getLinkedMovieManager();
+            if (movieManager != null && movieManager.isMaster(jpxView)) {
+                movieManager.updateCurrentFrameToMaster(new ChangeEvent());
             }
-            tnow = System.currentTimeMillis();
+        }                
+
+        // The next frames are decoded in parallel while this one is
+        // displayed
+        if (movieMode)
+            scheduleDecoding(curLayer);
+
+        Object cachedFrame = (movieMode || linkedMovieMode) ? getCachedFrame(curLayer) : null;
+
+        if (cachedFrame instanceof byte[]) {
+            byteBuffer = (byte[]) cachedFrame;
+            lastDecodedParams = null;
+        } else if (cachedFrame instanceof int[]) {
+            intBuffer = (int[]) cachedFrame;
+            lastDecodedParams = null;
+        } else {
+            // Only the frames which will not get more data are kept
+            boolean keepFrame = (movieMode || linkedMovieMode) && isFrameComplete(curLayer);
+
+            renderLayer(curLayer, keepFrame);
+
+            if (keepFrame) {
+                // The parameters may have changed with the meta data
+                frameCache.setParameters(currParams);
+                if (parentImageRef.getNumComponents() < 3) {
+                    if (currParams.subImage.getNumPixels() == byteBuffer.length)
+                        frameCache.put(curLayer, byteBuffer);
+                } else {
+                    if (currParams.subImage.getNumPixels() == intBuffer.length)
+                        frameCache.put(curLayer, intBuffer);
+                }
+            }
+        }
+        
+        int width = currParams.subImage.width;
+        int height = currParams.subImage.height;
+        
+        if (parentImageRef.getNumComponents() < 3) {                	
+            if (currParams.subImage.getNumPixels() == byteBuffer.length) {                    	
+        		SingleChannelByte8ImageData frame = new SingleChannelByte8ImageData(width, height, byteBuffer, new ColorMask());
+        		frame.setReleaseListener(this);
+        		parentViewRef.setSubimageData(frame, currParams.subImage, curLayer);
+
+        		/****/
+                // TEST
+            	//if (movieMode) {
+                    /*
+            		Benchmark b = new Benchmark();
+            		b.setParameters(byteBuffer, currParams.subImage.x, currParams.subImage.y, width, height, curLayer, "/tmp/soc/");
+            		//b.writeToDisk(0, 0, 1024, 1024);                    		
+            		b.writeToDisk(0, 0, 1280, 720);
+                    */
+            	//}
+                /****/                		
+        		
+            } else {
+                Log.warn("J2KRender: Params out of sync, skip frame");
+            }
+
+        } else {
+            if (currParams.subImage.getNumPixels() == intBuffer.length) {
+                ARGBInt32ImageData frame = new ARGBInt32ImageData(width, height, intBuffer, new ColorMask());
+                frame.setReleaseListener(this);
+                parentViewRef.setSubimageData(frame, currParams.subImage, curLayer);
+            } else {
+                Log.warn("J2KRender: Params out of sync, skip frame");
+            }
+        }                
+        
+        if (!movieMode) {
+            return stopPlaying();
+        }
+
+        currParams = parentViewRef.getImageViewParams();
+        numFrames += currParams.compositionLayer - lastFrame;
+        lastFrame = currParams.compositionLayer;
+        frameChooser.moveToNextFrame();
+        if (lastFrame > currParams.compositionLayer) {
+            lastFrame = -1;
+        }
+        updateFramerate();
 
-            if ((tnow - tini) >= 1000) {
-                actualMovieFramerate = (numFrames * 1000.0f) / (tnow - tini);
-                tini = tnow;
-                numFrames = 0;
-            }            
+        lastSleepTime = clockSubscription.getTimeToDeadline() / 1000000;
+        playing = true;
+        return clockSubscription.getDeadline();
+    }
+
+    /**
+     * Ends a request or a movie.
+     * 
+     * @return The time to run again, now if the view was signaled meanwhile,
+     *         or -1
+     */
+    private long stopPlaying() {
+        playing = false;
+
+        numFrames += currParams.compositionLayer - lastFrame;
+        lastFrame = currParams.compositionLayer;
+        if (lastFrame > currParams.compositionLayer) {
+            lastFrame = -1;
+        }
+        updateFramerate();
+
+        // The signals are not submitted while playing
+        if (parentViewRef.renderRequestedSignal.isSignaled())
+            return PlaybackClock.getSingletonInstance().nanoTime();
+        return -1;
+    }
+
+    /** Measures the frame rate every second */
+    private void updateFramerate() {
+        long tnow = PlaybackClock.getSingletonInstance().nanoTime();
+
+        if ((tnow - tini) >= 1000000000L) {
+            actualMovieFramerate = (numFrames * 1000000000.0f) / (tnow - tini);
+            tini = tnow;
+            numFrames = 0;
         }
-        byteBuffer = new byte[0];
-        intBuffer = new int[0];
     }
 
     private abstract class NextFrameCandidateChooser {
@@ -486,18 +976,34 @@ class J2KRender implements Runnable {
         }
 
         public abstract int getNextCandidate(int lastCandidate);
+
+        /**
+         * Predicts the next candidates without changing the state of the
+         * chooser.
+         */
+        public abstract int[] getLookAhead(int lastCandidate, int count);
     }
 
     private class NextFrameCandidateLoopChooser extends NextFrameCandidateChooser {
 
         public int getNextCandidate(int lastCandidate) {
             if (++lastCandidate > layers.getEnd()) {
-                System.gc();
                 resetStartTime(layers.getStart());
                 return layers.getStart();
             }
             return lastCandidate;
         }
+
+        public int[] getLookAhead(int lastCandidate, int count) {
+            int numFrames = layers.getEnd() - layers.getStart() + 1;
+            int[] frames = new int[Math.max(0, Math.min(count, numFrames - 1))];
+            for (int i = 0; i < frames.length; i++) {
+                if (++lastCandidate > layers.getEnd())
+                    lastCandidate = layers.getStart();
+                frames[i] = lastCandidate;
+            }
+            return frames;
+        }
     }
 
     private class NextFrameCandidateStopChooser extends NextFrameCandidateChooser {
@@ -510,6 +1016,13 @@ class J2KRender implements Runnable {
             }
             return lastCandidate;
         }
+
+        public int[] getLookAhead(int lastCandidate, int count) {
+            int[] frames = new int[Math.max(0, Math.min(count, layers.getEnd() - lastCandidate))];
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = ++lastCandidate;
+            return frames;
+        }
     }
 
     private class NextFrameCandidateSwingChooser extends NextFrameCandidateChooser {
@@ -530,16 +1043,39 @@ class J2KRender implements Runnable {
 
             return lastCandidate;
         }
+
+        public int[] getLookAhead(int lastCandidate, int count) {
+            int numFrames = layers.getEnd() - layers.getStart() + 1;
+            int[] frames = new int[Math.max(0, Math.min(count, 2 * (numFrames - 1)))];
+            int direction = currentDirection;
+            for (int i = 0; i < frames.length; i++) {
+                lastCandidate += direction;
+                if (lastCandidate < layers.getStart() || lastCandidate > layers.getEnd()) {
+                    direction = -direction;
+                    lastCandidate += 2 * direction;
+                }
+                frames[i] = lastCandidate;
+            }
+            return frames;
+        }
     }
 
+    /**
+     * Moves to the next frame of the movie and schedules it on the playback
+     * clock, dropping the frames already due if the drop policy says so.
+     */
     private interface FrameChooser {
-        public long moveToNextFrame();
+        public void moveToNextFrame();
     }
 
     private class RelativeFrameChooser implements FrameChooser {
-        public long moveToNextFrame() {
+        public void moveToNextFrame() {
             currParams.compositionLayer = nextFrameCandidateChooser.getNextCandidate(currParams.compositionLayer);
-            return 1000 / movieSpeed;
+
+            int drop = clockSubscription.schedule(1000000000L / movieSpeed);
+            for (int i = 0; i < drop && movieMode; i++) {
+                currParams.compositionLayer = nextFrameCandidateChooser.getNextCandidate(currParams.compositionLayer);
+            }
         }
     }
 
@@ -547,33 +1083,52 @@ class J2KRender implements Runnable {
 
         private DateTimeCache dateTimeCache = ((CachedMovieView) parentViewRef).getDateTimeCache();
 
-        private long absoluteStartTime = dateTimeCache.getDateTime(currParams.compositionLayer).getMillis();
-        private long systemStartTime = System.currentTimeMillis();
+        private long absoluteStartTime = dateTimeCache.getMillis(currParams.compositionLayer);
+        private long systemStartTime = PlaybackClock.getSingletonInstance().nanoTime();
 
         public void resetStartTime(int frameNumber) {
-            absoluteStartTime = dateTimeCache.getDateTime(frameNumber).getMillis();
-            systemStartTime = System.currentTimeMillis();
+            absoluteStartTime = dateTimeCache.getMillis(frameNumber);
+            systemStartTime = PlaybackClock.getSingletonInstance().nanoTime();
         }
 
-        public long moveToNextFrame() {
+        /** Returns the time until a frame is due (ns of observation time) */
+        private long getTimeToFrame(int frameNumber) {
+            return Math.abs(dateTimeCache.getMillis(frameNumber) - absoluteStartTime) * 1000000 - ((PlaybackClock.getSingletonInstance().nanoTime() - systemStartTime) * movieSpeed);
+        }
+
+        public void moveToNextFrame() {
+            if (PlaybackClock.getSingletonInstance().getDropPolicy() == PlaybackClock.DropPolicy.NEVER_DROP) {
+                currParams.compositionLayer = nextFrameCandidateChooser.getNextCandidate(currParams.compositionLayer);
+
+                long diff = getTimeToFrame(currParams.compositionLayer);
+                clockSubscription.scheduleIn(diff / movieSpeed, 0);
+                if (diff < 0) {
+                    // The movie goes on from the late frame
+                    resetStartTime(currParams.compositionLayer);
+                }
+                return;
+            }
+
             int lastCandidate, nextCandidate = currParams.compositionLayer;
             long lastDiff, nextDiff = -Long.MAX_VALUE;
+            int skipped = -1;
 
             do {
                 lastCandidate = nextCandidate;
                 nextCandidate = nextFrameCandidateChooser.getNextCandidate(nextCandidate);
 
                 lastDiff = nextDiff;
-                nextDiff = Math.abs(dateTimeCache.getDateTime(nextCandidate).getMillis() - absoluteStartTime) - ((System.currentTimeMillis() - systemStartTime) * movieSpeed);
+                nextDiff = getTimeToFrame(nextCandidate);
+                skipped++;
             } while (nextDiff < 0);
 
             if (-lastDiff < nextDiff) {
                 currParams.compositionLayer = lastCandidate;
-                return lastDiff / movieSpeed;
+                clockSubscription.scheduleIn(lastDiff / movieSpeed, skipped - 1);
             } else {
                 currParams.compositionLayer = nextCandidate;
-                return nextDiff / movieSpeed;
+                clockSubscription.scheduleIn(nextDiff / movieSpeed, skipped);
             }
         }
-    }    
+    }
 }
\ No newline at end of file
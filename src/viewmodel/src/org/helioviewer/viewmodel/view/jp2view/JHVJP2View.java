@@ -65,7 +65,20 @@ import org.helioviewer.viewmodel.viewportimagesize.ViewportImageSizeAdapter;
 public class JHVJP2View extends AbstractView implements JP2View, ViewportView, RegionView, MetaDataView, SubimageDataView, ImageInfoView {
 
     public enum ReaderMode {
-        NEVERFIRE, ONLYFIREONCOMPLETE, ALWAYSFIREONNEWDATA, SIGNAL_RENDER_ONCE
+        NEVERFIRE, ONLYFIREONCOMPLETE, ALWAYSFIREONNEWDATA, SIGNAL_RENDER_ONCE, PROGRESSIVE
+    };
+
+    /**
+     * The priority of the rendering of the layer among all the layers, which
+     * share the same rendering threads. In order:
+     * <ul>
+     * <li>ACTIVE: The layer selected by the user</li>
+     * <li>VISIBLE: The other layers displayed. This is the default value.</li>
+     * <li>BACKGROUND: The hidden layers and the layers of the overview</li>
+     * </ul>
+     */
+    public enum RenderPriority {
+        ACTIVE, VISIBLE, BACKGROUND
     };
 
     // Member related to the view chain
@@ -86,10 +99,14 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
     protected J2KReader reader;
     protected ReaderMode readerMode = ReaderMode.ALWAYSFIREONNEWDATA;
     final ReasonSignal<ReaderReasons> readerSignal = new ReasonSignal<ReaderReasons>();
+
+    // Fidelity of the requests while playing, kept across reader restarts
+    protected final AdaptiveQualityController adaptiveQualityController = new AdaptiveQualityController();
     
     // Renderer
     protected J2KRender render;
     final ReasonSignal<RenderReasons> renderRequestedSignal = new ReasonSignal<RenderReasons>();
+    protected volatile RenderPriority renderPriority = RenderPriority.VISIBLE;
 
     // Renderer-ThreadGroup - This group is necessary to identify all renderer
     // threads
@@ -139,6 +156,16 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
     	return render;
     }
 
+    /**
+     * Returns the controller adapting the fidelity of the requests to the
+     * playback frame rate.
+     * 
+     * @return Adaptive quality controller of this view
+     */
+    public AdaptiveQualityController getAdaptiveQualityController() {
+        return adaptiveQualityController;
+    }
+
     /**
      * Sets the JPG2000 image used by this class.
      * 
@@ -181,6 +208,10 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
         }
 
         jp2Image.addReference();
+
+        // Only the data streamed for the main view is worth a preview
+        if (isMainView && jp2Image.isRemote() && readerMode == ReaderMode.ALWAYSFIREONNEWDATA)
+            readerMode = ReaderMode.PROGRESSIVE;
       
         try {
         	render = new J2KRender(this);
@@ -203,6 +234,10 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
      * current frame is loaded completely.</li>
      * <li>ALWAYSFIREONNEWDATA: Whenever new data is received, the reader fires
      * a ChangeEvent. This is the default value.</li>
+     * <li>PROGRESSIVE: The image is shown at once with the quality layers
+     * already received, and refined as new data is received, at most every
+     * {@link J2KRender#PROGRESSIVE_INTERVAL} ms. The main views of remote
+     * images are switched to this mode instead of the default one.</li>
      * </ul>
      * 
      * @param readerMode
@@ -222,6 +257,27 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
         return readerMode;
     }
 
+    /**
+     * Sets the priority of the rendering of this layer.
+     * 
+     * @param priority
+     *            New render priority
+     * @see RenderPriority
+     */
+    public void setRenderPriority(RenderPriority priority) {
+        renderPriority = priority;
+    }
+
+    /**
+     * Returns the priority of the rendering of this layer.
+     * 
+     * @return Current render priority
+     * @see #setRenderPriority(RenderPriority)
+     */
+    public RenderPriority getRenderPriority() {
+        return renderPriority;
+    }
+
     /**
      * Sets, whether this view is persistent.
      * 
@@ -314,9 +370,17 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * In read-only mode, the frame decoded by the render is returned, and its
+     * pixel data is not reused by the render until the caller has released it
+     * with {@link ImageData#release()}.
      */
     public synchronized ImageData getSubimageData(boolean readOnly) {
         if (readOnly || imageData == null) {
+            if (imageData != null && render != null) {
+                render.retainFrame(imageData);
+            }
             return imageData;
         } else {
             DataBufferPool dataBufferPool = ((JavaBufferedImageData) imageData).getDataBufferPool();
@@ -484,7 +548,7 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
     }
 
     /**
-     * Starts the J2KReader/J2KRender threads.
+     * Starts the J2KReader thread and the J2KRender task.
      */
     protected void startDecoding() {    		
     	reader.start();
@@ -711,6 +775,9 @@ public class JHVJP2View extends AbstractView implements JP2View, ViewportView, R
             if (newImageData != null) {
                 ((JavaBufferedImageData) newImageData).setDataBufferPool(dataBufferPool);
             }
+            // The reference of this view to the frame replaced is released
+            if (imageData != null && imageData != newImageData)
+                imageData.release();
             imageData = newImageData;
         }
         
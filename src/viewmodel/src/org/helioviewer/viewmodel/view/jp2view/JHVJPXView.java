@@ -15,6 +15,7 @@ import org.helioviewer.viewmodel.view.cache.LocalImageCacheStatus;
 import org.helioviewer.viewmodel.view.cache.RemoteImageCacheStatus;
 import org.helioviewer.viewmodel.view.jp2view.J2KReader.ReaderReasons;
 import org.helioviewer.viewmodel.view.jp2view.J2KRender.RenderReasons;
+import org.helioviewer.viewmodel.view.jp2view.concurrency.ProgressSignal;
 import org.helioviewer.viewmodel.view.jp2view.datetime.ImmutableDateTime;
 import org.helioviewer.viewmodel.view.jp2view.image.JP2ImageParameter;
 import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
@@ -35,6 +36,9 @@ import org.helioviewer.viewmodel.view.jp2view.image.SubImage;
  */
 public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovieView {
 
+    /** Maximum time to wait for the data of a frame before checking again (ms) */
+    private static final long ACCESSIBLE_FRAME_TIMEOUT = 1000;
+
     // Caching
     protected ImageCacheStatus imageCacheStatus;
     protected DateTimeCache dateTimeCache;
@@ -88,6 +92,8 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
         jp2Image.setImageCacheStatus(imageCacheStatus);
 
         dateTimeCache = new HelioviewerDateTimeCache(this, jp2Image);
+        dateTimeCache.setDataSignal(jp2Image.getDataSignal());
+        jp2Image.markStoredFrames();
 
         super.setJP2Image(newJP2Image);
 
@@ -123,13 +129,7 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
         frameNumber = Math.max(0, Math.min(getMaximumFrameNumber(), frameNumber));
 
         if (forceSignal && linkedMovieManager != null) {
-            while (getMaximumAccessibleFrameNumber() < imageViewParams.compositionLayer) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+            waitForAccessibleFrame(imageViewParams.compositionLayer);
             linkedMovieManager.setCurrentFrame(getFrameDateTime(frameNumber), event, forceSignal);
         } else {
             boolean changed;
@@ -160,25 +160,12 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
             return;
         }
 
-        int frameNumber = -1;
-        long timeMillis = time.getMillis();
-        long lastDiff, currentDiff = -Long.MAX_VALUE;
-
-        do {
-            lastDiff = currentDiff;
-
-            if (dateTimeCache.getDateTime(++frameNumber) == null) {
-                return;
-            }
-
-            currentDiff = dateTimeCache.getDateTime(frameNumber).getMillis() - timeMillis;
-        } while (currentDiff < 0 && frameNumber < jp2Image.getCompositionLayerRange().getEnd());
-
-        if (-lastDiff < currentDiff) {
-            setCurrentFrameNumber(frameNumber - 1, event, forceSignal);
-        } else {
-            setCurrentFrameNumber(frameNumber, event, forceSignal);
+        int frameNumber = dateTimeCache.getFrameNumber(time.getMillis());
+        if (frameNumber < 0) {
+            return;
         }
+
+        setCurrentFrameNumber(frameNumber, event, forceSignal);
     }
 
     /**
@@ -272,6 +259,20 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
         return 0;
     }
 
+    /**
+     * Returns the counters of late and dropped frames and jitter of the
+     * movie, kept by the playback clock.
+     * 
+     * @return The counters, null if the movie was never played
+     */
+    public PlaybackClock.Subscription getPlaybackCounters() {
+
+        if (render != null)
+            return render.getClockSubscription();
+
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -389,6 +390,26 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
         return linkedMovieManager;
     }
 
+    /**
+     * Waits until a frame is accessible. The thread is woken up as soon as the
+     * data of the image or the time stamps progress.
+     * 
+     * @param frameNumber
+     */
+    private void waitForAccessibleFrame(int frameNumber) {
+        ProgressSignal signal = jp2Image.getDataSignal();
+        long progress = signal.getCount();
+
+        while (getMaximumAccessibleFrameNumber() < frameNumber) {
+            try {
+                signal.waitForProgress(progress, ACCESSIBLE_FRAME_TIMEOUT);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            progress = signal.getCount();
+        }
+    }
+
     /**
      * Internal function for setting the current frame number.
      * 
@@ -404,13 +425,7 @@ public class JHVJPXView extends JHVJP2View implements TimedMovieView, CachedMovi
 
             imageViewParams.compositionLayer = frameNumber;
 
-            while (getMaximumAccessibleFrameNumber() < imageViewParams.compositionLayer) {           	
-            	try {
-                    Thread.sleep(200);                    
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+            waitForAccessibleFrame(imageViewParams.compositionLayer);
 
             this.event.copyFrom(event);
 
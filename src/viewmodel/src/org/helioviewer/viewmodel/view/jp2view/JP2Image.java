@@ -1,18 +1,21 @@
 package org.helioviewer.viewmodel.view.jp2view;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import kdu_jni.Jp2_palette;
 import kdu_jni.Jp2_threadsafe_family_src;
@@ -32,18 +35,17 @@ import org.helioviewer.base.math.MathUtils;
 import org.helioviewer.viewmodel.io.APIResponseDump;
 import org.helioviewer.viewmodel.metadata.MultiFrameMetaDataContainer;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
+import org.helioviewer.viewmodel.view.jp2view.concurrency.ProgressSignal;
 import org.helioviewer.viewmodel.view.jp2view.image.ResolutionSet;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocketPool;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CacheManager;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.CachePersistenceService;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_KduException;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_thread_env;
 import org.helioviewer.viewmodel.view.jp2view.kakadu.KakaduUtils;
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * This class can open JPEG2000 images, yeah baby! Modified to improve the JPIP
@@ -90,6 +92,9 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      */
     private Kdu_region_compositor compositor = new Kdu_region_compositor();
 
+    /** The amount of cache to allocate to each codestream */
+    static final int CODESTREAM_CACHE_THRESHOLD = 1024 * 256;
+
     /** The range of valid quality layers for the image. */
     private Interval<Integer> qLayerRange;
 
@@ -109,12 +114,53 @@ public class JP2Image implements MultiFrameMetaDataContainer {
     /** cache path */
     private static File cachePath;
 
-    private NodeList[] xmlCache;
+    /** The FITS keywords of the frames, null until extracted */
+    private AtomicReferenceArray<FitsHeader> fitsHeaders;
+
+    /** Maximum time to wait for more meta data before trying again (ms) */
+    private static final long METADATA_TIMEOUT = 500;
+
+    /** Maximum time to wait for the cache file to be written before a trim (ms) */
+    private static final long TRIM_DRAIN_TIMEOUT = 2000;
+
+    /**
+     * Signaled when data making the meta data or the frames accessible
+     * arrives
+     */
+    private final ProgressSignal dataSignal = new ProgressSignal();
+
+    // The rounds of extraction of the FITS keywords in the background
+    private final Object extractionLock = new Object();
+    private boolean extracting = false;
+    private boolean extractionRequested = false;
+    private int extractionTasks = 0;
+    private int nextExtractionFrame = 0;
+    private volatile int firstMissingFrame = Integer.MAX_VALUE;
+
+    /** Number of frames queued at a time by a round of extraction */
+    private static final int EXTRACTION_BATCH = 2 * Runtime.getRuntime().availableProcessors();
+
+    /** The threads extracting the FITS keywords of the frames of all images */
+    private static final ExecutorService metaDataExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "JP2Image metadata");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private JHVJP2View parentView;
     private ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Held for reading by the FrameDecoders while decoding, and for writing
+     * when the Kakadu objects they depend on are replaced.
+     */
+    private final ReentrantReadWriteLock decoderLock = new ReentrantReadWriteLock();
+
+    /** The FrameDecoders of this image */
+    private final HashSet<FrameDecoder> decoders = new HashSet<FrameDecoder>();
     private int referenceCounter = 0;
-    private JPIPSocket socket;
 
     /**
      * The number of output components (should be the number of 8 bits
@@ -183,7 +229,98 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
         createKakaduMachinery();
 
-        xmlCache = new NodeList[layerRange.getEnd() + 1];
+        fitsHeaders = new AtomicReferenceArray<FitsHeader>(layerRange.getEnd() + 1);
+
+        if (isMultiFrame()) {
+            // The frames whose XML box arrives later are extracted then
+            if (cache != null) {
+                dataSignal.addListener(new Runnable() {
+                    public void run() {
+                        extractMetaData();
+                    }
+                });
+            }
+            extractMetaData();
+        }
+    }
+
+    /**
+     * Extracts the FITS keywords of the frames not extracted yet in parallel,
+     * in the background. A round queues the frames in batches, in order, and
+     * stops at the first frame whose XML box is not available; if more data
+     * arrives meanwhile, another round follows. It is only started here, since
+     * this is called by the reader thread when data arrives.
+     */
+    private void extractMetaData() {
+        synchronized (extractionLock) {
+            if (extracting) {
+                extractionRequested = true;
+                return;
+            }
+            extracting = true;
+            startExtractionRound();
+        }
+
+        metaDataExecutor.execute(new Runnable() {
+            public void run() {
+                synchronized (extractionLock) {
+                    queueExtractionBatch();
+                }
+            }
+        });
+    }
+
+    /** Starts a round from the first frame. Called with the extractionLock. */
+    private void startExtractionRound() {
+        extractionRequested = false;
+        firstMissingFrame = Integer.MAX_VALUE;
+        nextExtractionFrame = layerRange.getStart();
+    }
+
+    /**
+     * Queues the next frames of the round not extracted yet, up to the first
+     * missing XML box, and ends the round when there are none. Called with
+     * the extractionLock once the previous batch is done.
+     */
+    private void queueExtractionBatch() {
+        while (true) {
+            int last = Math.min(layerRange.getEnd(), firstMissingFrame - 1);
+            while (nextExtractionFrame <= last && extractionTasks < EXTRACTION_BATCH) {
+                final int frameNumber = nextExtractionFrame++;
+                if (fitsHeaders.get(frameNumber) != null)
+                    continue;
+
+                extractionTasks++;
+                metaDataExecutor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (frameNumber < firstMissingFrame)
+                                getFitsHeader(frameNumber);
+                        } catch (JHV_KduException e) {
+                            // Not available yet
+                            synchronized (extractionLock) {
+                                firstMissingFrame = Math.min(firstMissingFrame, frameNumber);
+                            }
+                        } finally {
+                            synchronized (extractionLock) {
+                                if (--extractionTasks == 0)
+                                    queueExtractionBatch();
+                            }
+                        }
+                    }
+                });
+            }
+
+            if (extractionTasks > 0)
+                return;
+
+            // The round is over
+            if (!extractionRequested) {
+                extracting = false;
+                return;
+            }
+            startExtractionRound();
+        }
     }
 
     /**
@@ -193,35 +330,41 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * @throws JHV_KduException
      * @throws IOException
      */
-    private void initRemote() throws JHV_KduException {    	
-        // Creates the JPIP-socket necessary for communications
-        JPIPResponse res;
-        socket = new JPIPSocket();        
+    private void initRemote() throws JHV_KduException {
+        // Takes a JPIP-socket for the communications from the shared pool
+        JPIPSocketPool pool = JPIPSocketPool.getSingletonInstance();
+        JPIPSocket socket = null;
 
         try {
-            // Connects to the JPIP server, stores the first response in the res
-            // variable
-            res = (JPIPResponse) socket.connect(uri);
+            // Connects to the JPIP server, or reuses an open connection, and
+            // gets the first response if there is one
+            socket = pool.acquire(uri, this);
+            JPIPResponse res = socket.takeConnectResponse();
 
             // Parses the first JPIP response for the JPIP target-ID
-            String jpipTargetID;
+            String jpipTargetID = socket.getJpipTargetID();
 
-            if (res.getHeader("JPIP-tid") == null)
+            if (jpipTargetID == null)
                 throw new JHV_KduException("The target id was not sent by the server");
-            else
-                jpipTargetID = res.getHeader("JPIP-tid");
 
             if (jpipTargetID.contains("/")) {
                 jpipTargetID = jpipTargetID.substring(jpipTargetID.lastIndexOf("/") + 1);
             }
 
             // Creates the cache object and adds the first response to it.
-            cache = new JHV_Kdu_cache(jpipTargetID, cachePath, !isJpx);
-            cache.addJPIPResponseData(res);
+            cache = new JHV_Kdu_cache(jpipTargetID, cachePath);
+            cache.setDataSignal(dataSignal);
+            if (res != null)
+                cache.addJPIPResponseData(res);
+
+            // Tells the server what the cache file already has
+            if (cache.hasCachedData())
+                KakaduUtils.updateServerCacheModel(socket, cache, true);
 
             // Download the necessary initial data if there isn't any cache file
-            // yet
-            if ((cache.getCacheFile() == null) || !cache.getCacheFile().exists()) {
+            // yet. The metadata of a movie may be incomplete if its download
+            // was interrupted, so it is always completed.
+            if (!cache.hasCachedData() || isJpx) {
                 boolean initialDataLoaded = false;
                 int numTries = 0;
 
@@ -232,9 +375,14 @@ public class JP2Image implements MultiFrameMetaDataContainer {
                     } catch (IOException e) {
                         e.printStackTrace();
                         numTries++;
-                        socket.close();
-                        socket = new JPIPSocket();
-                        socket.connect(uri);
+                        pool.invalidate(socket);
+                        socket = null;
+                        socket = pool.acquire(uri, this);
+                        res = socket.takeConnectResponse();
+                        if (res != null)
+                            cache.addJPIPResponseData(res);
+                        if (cache.hasCachedData())
+                            KakaduUtils.updateServerCacheModel(socket, cache, true);
                     }
                 } while (!initialDataLoaded && numTries < 5);
             }
@@ -242,26 +390,18 @@ public class JP2Image implements MultiFrameMetaDataContainer {
             familySrc.Open(cache);
 
         } catch (SocketTimeoutException e) {
+            pool.invalidate(socket);
+            socket = null;
             throw new JHV_KduException("Timeout while communicating with the server:" + System.getProperty("line.separator") + e.getMessage(), e);
         } catch (IOException e) {
+            pool.invalidate(socket);
+            socket = null;
             throw new JHV_KduException("Error in the server communication:" + System.getProperty("line.separator") + e.getMessage(), e);
         } catch (KduException e) {
             throw new JHV_KduException("Kakadu engine error opening the image", e);
         } finally {
-            Timer timer = new Timer("WaitForCloseSocket");
-            timer.schedule(new TimerTask() {
-
-                public synchronized void run() {
-                    if (socket != null) {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            Log.error(">> JP2Image.initRemote() > Error closing socket.", e);
-                        }
-                        socket = null;
-                    }
-                }
-            }, 5000);
+            // The connection is kept open for the reader of this image
+            pool.release(socket);
         }
     }
 
@@ -291,9 +431,6 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      */
     private void createKakaduMachinery() throws JHV_KduException {
 
-        // The amount of cache to allocate to each codestream
-        final int CODESTREAM_CACHE_THRESHOLD = 1024 * 256;
-
         try {
             // Open the jpx source from the family source
             jpxSrc.Open(familySrc, false);
@@ -422,10 +559,6 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         return isJpx && frameCount > 1;
     }
 
-    public Jp2_threadsafe_family_src getFamilySrc() {
-        return familySrc;
-    }
-
     /**
      * Method that executes getValueFromXML(_keyword, _box, <currentBoxNumber>).
      * This will get the xml box from the currently shown frame
@@ -451,61 +584,64 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * @throws JHV_KduException
      */
     public String getValueFromXML(String _keyword, String _box, int _boxNumber) throws JHV_KduException {
+        if (_box.equals("fits"))
+            return getFitsHeader(_boxNumber - 1).get(_keyword);
 
-        if (xmlCache[_boxNumber - 1] == null) {
-            String xml = null;
-
-            lock.lock();
-            try {
-                xml = KakaduUtils.getXml(familySrc, _boxNumber);
-            } catch (JHV_KduException e) {
-                throw e;
-            } finally {
-                lock.unlock();
-            }
-
-            if (xml == null) {
-                throw new JHV_KduException("No XML data present");
-            } else if (!xml.contains("</meta>")) {
-                throw new JHV_KduException("XML data incomplete");
-            }
-
-            xml = xml.trim().replace("&", "&amp;").replace("$OBS", "");
-
-            InputStream in = null;
-            try {
-                in = new ByteArrayInputStream(xml.getBytes("UTF-8"));
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
-
-            try {
-                DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-                Document doc = builder.parse(in);
+        // Other sections are not kept
+        return FitsHeader.parse(readXml(_boxNumber), _box).get(_keyword);
+    }
 
-                xmlCache[_boxNumber - 1] = doc.getElementsByTagName("meta");
-            } catch (Exception e) {
-                throw new JHV_KduException("Failed parsing XML data", e);
-            }
+    /**
+     * Returns the FITS keywords of a frame. Once extracted, they are returned
+     * without locking.
+     * 
+     * @param frameNumber
+     *            The frame, starting at 0
+     * @return The FITS keywords
+     * @throws JHV_KduException
+     *             If the XML box of the frame is not available or not complete
+     */
+    public FitsHeader getFitsHeader(int frameNumber) throws JHV_KduException {
+        FitsHeader header = fitsHeaders.get(frameNumber);
+        if (header == null) {
+            header = FitsHeader.parse(readXml(frameNumber + 1), "fits");
+            fitsHeaders.set(frameNumber, header);
         }
+        return header;
+    }
 
+    /**
+     * Returns the raw contents of an XML box. The family source is only
+     * accessed under the image lock, since it may be replaced when the cache
+     * is trimmed.
+     * 
+     * @param _boxNumber
+     *            The box, starting at 1
+     * @return The XML, or null if the box is not available
+     * @throws JHV_KduException
+     *             If the image has been closed
+     */
+    public String getXml(int _boxNumber) throws JHV_KduException {
+        lock.lock();
         try {
-            NodeList nodes = ((Element) xmlCache[_boxNumber - 1].item(0)).getElementsByTagName(_box);
-            NodeList value = ((Element) nodes.item(0)).getElementsByTagName(_keyword);
-            Element line = (Element) value.item(0);
+            if (familySrc == null)
+                throw new JHV_KduException("Image closed");
+            return KakaduUtils.getXml(familySrc, _boxNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (line == null)
-                return null;
+    /** Reads an XML box, checking it is complete */
+    private String readXml(int _boxNumber) throws JHV_KduException {
+        String xml = getXml(_boxNumber);
 
-            Node child = line.getFirstChild();
-            if (child instanceof CharacterData) {
-                CharacterData cd = (CharacterData) child;
-                return cd.getData();
-            }
-            return null;
-        } catch (Exception e) {
-            throw new JHV_KduException("Failed parsing XML data", e);
+        if (xml == null) {
+            throw new JHV_KduException("No XML data present");
+        } else if (!xml.contains("</meta>")) {
+            throw new JHV_KduException("XML data incomplete");
         }
+        return xml;
     }
 
     /**
@@ -529,23 +665,6 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         return downloadURI;
     }
 
-    /**
-     * Returns the socket, if in remote mode.
-     * 
-     * The socket is returned only one time. After calling this function for the
-     * first time, it will always return null.
-     * 
-     * @return Socket connected to the server
-     */
-    public JPIPSocket getSocket() {
-        if (socket == null)
-            return null;
-
-        JPIPSocket output = socket;
-        socket = null;
-        return output;
-    }
-
     /** Returns the number of output components. */
     public int getNumComponents() {
         return numComponents;
@@ -573,22 +692,28 @@ public class JP2Image implements MultiFrameMetaDataContainer {
      * {@inheritDoc}
      */
     public String get(String key) {
-        try {
-            String value = getValueFromXML(key, "fits");
-            return value;
-        } catch (JHV_KduException e) {
-            if (e.getMessage() == "XML data incomplete" || e.getMessage().toLowerCase().contains("box not open")) {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e1) {
+        while (true) {
+            long progress = dataSignal.getCount();
+            try {
+                String value = getValueFromXML(key, "fits");
+                return value;
+            } catch (JHV_KduException e) {
+                String message = e.getMessage();
+                if (isRemote() && message != null && (message == "XML data incomplete" || message.toLowerCase().contains("box not open"))) {
+                    // Tried again as soon as more meta data arrives
+                    try {
+                        dataSignal.waitForProgress(progress, METADATA_TIMEOUT);
+                    } catch (InterruptedException e1) {
+                        return null;
+                    }
+                } else {
+                    if (message != "No XML data present") {
+                        e.printStackTrace();
+                    }
+                    return null;
                 }
-
-                get(key);
-            } else if (e.getMessage() != "No XML data present") {
-                e.printStackTrace();
             }
         }
-        return null;
     }
 
     /**
@@ -654,6 +779,12 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
     public static void setCachePath(File newCachePath) {
         cachePath = newCachePath;
+
+        // Writes the data which could not be written when quitting last time
+        if (cachePath != null) {
+            CachePersistenceService.recoverJournal(cachePath);
+            CacheManager.getSingletonInstance().setCachePath(cachePath);
+        }
     }
 
     public static File getCachePath() {
@@ -691,6 +822,8 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
         APIResponseDump.getSingletonInstance().removeResponse(uri);
 
+        // The meta data may still be read in the background
+        lock.lock();
         try {
             if (compositor != null) {
                 compositor.Set_thread_env(null, 0);
@@ -709,7 +842,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
                 cache.Close();
                 cache.Native_destroy();
 
-                JHV_Kdu_cache.updateCacheDirectory(cachePath);
+                CachePersistenceService.getSingletonInstance().maintainCacheDirectory();
             }
         } catch (KduException ex) {
             ex.printStackTrace();
@@ -718,6 +851,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
             jpxSrc = null;
             familySrc = null;
             cache = null;
+            lock.unlock();
         }
     }
 
@@ -773,13 +907,7 @@ public class JP2Image implements MultiFrameMetaDataContainer {
 
         try {
             lock.lock();
-            Jpx_codestream_source jpxStream = jpxSrc.Access_codestream(0);
-            Jp2_palette palette = jpxStream.Access_palette();
-
-            for (int i = 0; i < palette.Get_num_luts(); i++) {
-                jpxSrc.Access_layer(numLayer).Access_channels().Set_colour_mapping(i, 0, -1, numLayer);
-            }
-
+            deactivateColorLookupTable(jpxSrc, numLayer);
         } catch (KduException e) {
             e.printStackTrace();
         } finally {
@@ -787,10 +915,138 @@ public class JP2Image implements MultiFrameMetaDataContainer {
         }
     }
 
+    /**
+     * Deactivates the internal color lookup table of a composition layer of
+     * the given jpx source.
+     * 
+     * @param src
+     *            jpx source of the image
+     * @param numLayer
+     *            composition layer to deactivate internal color lookup for
+     * @throws KduException
+     */
+    static void deactivateColorLookupTable(Jpx_source src, int numLayer) throws KduException {
+        Jpx_codestream_source jpxStream = src.Access_codestream(0);
+        Jp2_palette palette = jpxStream.Access_palette();
+
+        for (int i = 0; i < palette.Get_num_luts(); i++) {
+            src.Access_layer(numLayer).Access_channels().Set_colour_mapping(i, 0, -1, numLayer);
+        }
+    }
+
     Lock getLock() {
         return lock;
     }
 
+    /** Returns the lock of the FrameDecoders */
+    ReadWriteLock getDecoderLock() {
+        return decoderLock;
+    }
+
+    /** Registers a FrameDecoder of this image */
+    void addDecoder(FrameDecoder decoder) {
+        synchronized (decoders) {
+            decoders.add(decoder);
+        }
+    }
+
+    /** Unregisters a FrameDecoder of this image */
+    void removeDecoder(FrameDecoder decoder) {
+        synchronized (decoders) {
+            decoders.remove(decoder);
+        }
+    }
+
+    /**
+     * Trims the cache object, so that the memory of the data not needed soon
+     * is released. Since the Kakadu objects refer to the cache object, they
+     * are created again on the trimmed one.
+     * 
+     * @param keptCodestreams
+     *            The codestreams to keep, in order of priority
+     * @param maxSize
+     *            Amount of data to keep in bytes
+     * @return The codestreams which lost data, which the server has to send
+     *         again
+     * @throws JHV_KduException
+     */
+    Collection<Long> trimCache(long[] keptCodestreams, long maxSize) throws JHV_KduException {
+        TreeSet<Long> trimmedCodestreams = new TreeSet<Long>();
+        long before = cache.getMemoryUsage();
+
+        // The codestreams can only be loaded again from the cache file if
+        // their data has been written to it
+        try {
+            CachePersistenceService.getSingletonInstance().awaitDrained(TRIM_DRAIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        decoderLock.writeLock().lock();
+        lock.lock();
+        try {
+            JHV_Kdu_cache trimmedCache = cache.trim(keptCodestreams, maxSize, trimmedCodestreams);
+
+            Jp2_threadsafe_family_src newFamilySrc = new Jp2_threadsafe_family_src();
+            Jpx_source newJpxSrc = new Jpx_source();
+            Kdu_region_compositor newCompositor = new Kdu_region_compositor();
+
+            try {
+                newFamilySrc.Open(trimmedCache);
+                newJpxSrc.Open(newFamilySrc, false);
+                newCompositor.Create(newJpxSrc, CODESTREAM_CACHE_THRESHOLD);
+                newCompositor.Set_thread_env(null, 0);
+            } catch (KduException ex) {
+                // The current objects are still usable
+                cache.takeCacheFile(trimmedCache);
+                trimmedCache.Close();
+                trimmedCache.Native_destroy();
+                throw ex;
+            }
+
+            // The decoders are attached to the old cache object
+            synchronized (decoders) {
+                for (FrameDecoder decoder : decoders)
+                    decoder.release();
+            }
+
+            compositor.Set_thread_env(null, 0);
+            compositor.Remove_compositing_layer(-1, true);
+            compositor.Native_destroy();
+            jpxSrc.Close();
+            jpxSrc.Native_destroy();
+            familySrc.Close();
+            familySrc.Native_destroy();
+            cache.Close();
+            cache.Native_destroy();
+
+            compositor = newCompositor;
+            jpxSrc = newJpxSrc;
+            familySrc = newFamilySrc;
+            cache = trimmedCache;
+
+        } catch (KduException ex) {
+            throw new JHV_KduException("Failed to trim the cache: " + ex.getMessage(), ex);
+        } finally {
+            lock.unlock();
+            decoderLock.writeLock().unlock();
+        }
+
+        Log.info(">> JP2Image.trimCache() > Cache of " + uri + " trimmed from " + (before >> 20) + " to " + (cache.getMemoryUsage() >> 20) + " Mbytes, " + trimmedCodestreams.size() + " codestreams to be downloaded again.");
+        return trimmedCodestreams;
+    }
+
+    /**
+     * Returns the signal of the data making the meta data or the frames
+     * accessible, to wait for it instead of polling. It is signaled by the
+     * cache of remote images and by the time stamps of the frames parsed.
+     * 
+     * @return The signal
+     */
+    public ProgressSignal getDataSignal() {
+        return dataSignal;
+    }
+
     /** Returns the cache reference */
     JHV_Kdu_cache getCacheRef() {
         return cache;
@@ -802,6 +1058,16 @@ public class JP2Image implements MultiFrameMetaDataContainer {
             cache.setImageCacheStatus(imageCacheStatus);
     }
 
+    /**
+     * Marks the frames downloaded in a previous session as partially cached,
+     * so that they can be played at once. The ImageCacheStatus must have been
+     * set before.
+     */
+    void markStoredFrames() {
+        if (cache != null)
+            cache.markStoredCodestreams(getCompositionLayerRange().getEnd());
+    }
+
     /** Returns the compositor reference */
     Kdu_region_compositor getCompositorRef() {
         return compositor;
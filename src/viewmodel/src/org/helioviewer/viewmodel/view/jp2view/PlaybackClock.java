@@ -0,0 +1,254 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The clock pacing the movies played by all the <code>J2KRender</code>
+ * tasks.
+ *
+ * <p>
+ * Every render subscribes to the clock, and schedules its frames on it; the
+ * {@link RenderExecutor} runs the render again at the deadline of the frame.
+ * The deadline of a frame is the deadline of the previous one plus the frame
+ * period, not the time the previous one was displayed plus the period, so the
+ * time spent decoding does not accumulate as drift. Schedules start on a tick
+ * of the clock which is a multiple of the period, so that the layers played at
+ * the same speed display their frames together.
+ *
+ * <p>
+ * When decoding falls behind the schedule, the {@link DropPolicy} decides
+ * whether the frames already due are skipped or displayed late. Each
+ * subscription counts its late and dropped frames and its jitter.
+ */
+public class PlaybackClock {
+
+    /** What a render loop does when it falls behind the schedule */
+    public enum DropPolicy {
+        /**
+         * Every frame is displayed. A frame later than a whole period restarts
+         * the schedule, so the movie is played slower instead of in a burst.
+         */
+        NEVER_DROP,
+        /**
+         * The frames whose deadline has passed by a whole period are dropped,
+         * i.e. skipped without being decoded, to keep the schedule.
+         */
+        DROP_LATE_FRAMES
+    }
+
+    private static final PlaybackClock singletonInstance = new PlaybackClock();
+
+    /** The origin of the time of the clock */
+    private final long epoch = System.nanoTime();
+
+    private volatile DropPolicy dropPolicy = DropPolicy.DROP_LATE_FRAMES;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private PlaybackClock() {
+    }
+
+    /** Returns the only instance of this class. */
+    public static PlaybackClock getSingletonInstance() {
+        return singletonInstance;
+    }
+
+    /** Returns the time of the clock (ns). */
+    public long nanoTime() {
+        return System.nanoTime() - epoch;
+    }
+
+    /** Returns what the render loops do when they fall behind. */
+    public DropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    /**
+     * Sets what the render loops do when they fall behind.
+     *
+     * @param policy
+     */
+    public void setDropPolicy(DropPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        dropPolicy = policy;
+    }
+
+    /**
+     * Subscribes a render loop.
+     *
+     * @param name
+     *            The name of the subscription, e.g. the image played
+     * @return The subscription, to schedule the frames on
+     */
+    public Subscription subscribe(String name) {
+        Subscription subscription = new Subscription(name);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Unsubscribes a render loop.
+     *
+     * @param subscription
+     */
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /** Returns the subscriptions of all the render loops. */
+    public List<Subscription> getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * The schedule of the frames of one render loop and its counters. The
+     * schedule is used by the render thread only; the counters can be read
+     * from any thread.
+     */
+    public class Subscription {
+
+        private final String name;
+
+        /** The deadline of the next frame, -1 if the schedule is stopped */
+        private volatile long deadline = -1;
+
+        // Counters
+        private volatile long frames = 0;
+        private volatile long lateFrames = 0;
+        private volatile long droppedFrames = 0;
+        private volatile long totalJitter = 0;
+        private volatile long maxJitter = 0;
+
+        private Subscription(String _name) {
+            name = _name;
+        }
+
+        /** Returns the name of the subscription. */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Stops the schedule, e.g. when the movie is paused. The next frame
+         * starts a new one.
+         */
+        void restart() {
+            deadline = -1;
+        }
+
+        /**
+         * Schedules the next frame one period after the previous one.
+         *
+         * @param period
+         *            The frame period (ns)
+         * @return The number of frames to drop before the next one, according
+         *         to the drop policy
+         */
+        int schedule(long period) {
+            long now = nanoTime();
+            period = Math.max(1, period);
+
+            if (deadline < 0) {
+                // Starts on the next tick shared by the layers at this speed
+                deadline = ((now + period - 1) / period) * period;
+                return 0;
+            }
+
+            deadline += period;
+            long lateness = now - deadline;
+            if (lateness <= 0)
+                return 0;
+
+            lateFrames++;
+            if (lateness < period)
+                return 0;
+
+            if (dropPolicy == DropPolicy.DROP_LATE_FRAMES) {
+                int drop = (int) Math.min(Integer.MAX_VALUE, lateness / period);
+                deadline += drop * period;
+                droppedFrames += drop;
+                return drop;
+            }
+
+            deadline = now;
+            return 0;
+        }
+
+        /**
+         * Schedules the next frame after a delay, for schedules which are not
+         * periodic.
+         *
+         * @param delay
+         *            The delay from now (ns), negative if the frame is late
+         * @param dropped
+         *            The number of frames skipped to choose this one
+         */
+        void scheduleIn(long delay, int dropped) {
+            if (delay < 0)
+                lateFrames++;
+            droppedFrames += dropped;
+            deadline = nanoTime() + Math.max(0, delay);
+        }
+
+        /** Returns the deadline of the next frame (ns), -1 if stopped. */
+        long getDeadline() {
+            return deadline;
+        }
+
+        /** Returns the time until the deadline of the next frame (ns). */
+        long getTimeToDeadline() {
+            return deadline < 0 ? 0 : deadline - nanoTime();
+        }
+
+        /**
+         * Counts the next frame as started, once its deadline has come, and
+         * its jitter.
+         */
+        void tick() {
+            long jitter = Math.max(0, nanoTime() - deadline);
+            totalJitter += jitter;
+            maxJitter = Math.max(maxJitter, jitter);
+            frames++;
+        }
+
+        /** Returns the number of frames displayed on schedule or late. */
+        public long getFrames() {
+            return frames;
+        }
+
+        /** Returns the number of frames decoded after their deadline. */
+        public long getLateFrames() {
+            return lateFrames;
+        }
+
+        /** Returns the number of frames dropped to keep the schedule. */
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        /** Returns the mean time between the deadlines and the frames (ns). */
+        public long getMeanJitter() {
+            long n = frames;
+            return n == 0 ? 0 : totalJitter / n;
+        }
+
+        /** Returns the maximum time between a deadline and its frame (ns). */
+        public long getMaxJitter() {
+            return maxJitter;
+        }
+
+        /** Resets the counters. */
+        public void resetCounters() {
+            frames = lateFrames = droppedFrames = totalJitter = maxJitter = 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String toString() {
+            return name + ": " + frames + " frames, " + lateFrames + " late, " + droppedFrames + " dropped, jitter " + getMeanJitter() / 1000 + " us (max " + maxJitter / 1000 + " us)";
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.helioviewer.viewmodel.view.jp2view;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.helioviewer.viewmodel.view.jp2view.JHVJP2View.RenderPriority;
+
+/**
+ * The threads rendering the images of all the layers, instead of one thread
+ * per layer.
+ *
+ * <p>
+ * Each layer registers a {@link Task}, which is run when it is submitted or
+ * when the time it asked for comes, e.g. the deadline of the next frame of a
+ * movie. A task is never run by two threads at the same time, and submitting a
+ * task which is already waiting to run does not queue it twice, so the
+ * requests coalesce and the task renders with the newest parameters of its
+ * layer when it runs.
+ *
+ * <p>
+ * The tasks ready to run are taken by priority, the active layer first, then
+ * the visible layers, and the hidden and overview layers last; among tasks of
+ * the same priority, the one which has been waiting longest is taken first.
+ */
+class RenderExecutor {
+
+    /** A unit of render work of a layer */
+    interface Task {
+
+        /** Returns the priority of the layer. */
+        RenderPriority getPriority();
+
+        /**
+         * Renders.
+         *
+         * @return The time of the playback clock to run again (ns), or -1 to
+         *         wait until it is submitted
+         */
+        long execute();
+    }
+
+    private static final RenderExecutor singletonInstance = new RenderExecutor();
+
+    /** The state of a task */
+    private static class Entry {
+        final Task task;
+        /** Time to run, -1 if not scheduled */
+        long time = -1;
+        boolean running = false;
+
+        Entry(Task _task) {
+            task = _task;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled when the tasks change */
+    private final Condition changed = lock.newCondition();
+
+    /** The tasks registered */
+    private final Map<Task, Entry> entries = new HashMap<Task, Entry>();
+
+    private final PlaybackClock clock = PlaybackClock.getSingletonInstance();
+
+    /** Returns the number of threads, one per core but at least two. */
+    static int getNumWorkers() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    private RenderExecutor() {
+        int numWorkers = getNumWorkers();
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(JHVJP2View.renderGroup, new Worker(), "J2KRender-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /** Returns the only instance of this class. */
+    static RenderExecutor getSingletonInstance() {
+        return singletonInstance;
+    }
+
+    /**
+     * Registers a task. It is not run until submitted.
+     *
+     * @param task
+     */
+    void add(Task task) {
+        lock.lock();
+        try {
+            if (!entries.containsKey(task))
+                entries.put(task, new Entry(task));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters a task, waiting until it is not running.
+     *
+     * @param task
+     */
+    void remove(Task task) {
+        lock.lock();
+        try {
+            Entry entry = entries.remove(task);
+            while (entry != null && entry.running)
+                changed.awaitUninterruptibly();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a registered task as soon as possible. It runs once more if it is
+     * running.
+     *
+     * @param task
+     */
+    void submit(Task task) {
+        schedule(task, clock.nanoTime());
+    }
+
+    /**
+     * Runs a registered task at the given time of the playback clock, unless
+     * it is already due to run earlier.
+     *
+     * @param task
+     * @param time
+     *            Time to run (ns)
+     */
+    void schedule(Task task, long time) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(task);
+            if (entry != null) {
+                if (entry.time < 0 || entry.time > time)
+                    entry.time = time;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next task to run, waiting until one is ready. Called with the
+     * lock held.
+     */
+    private Entry take() throws InterruptedException {
+        while (true) {
+            long now = clock.nanoTime();
+            Entry next = null;
+            long wakeUp = Long.MAX_VALUE;
+
+            for (Entry entry : entries.values()) {
+                if (entry.running || entry.time < 0)
+                    continue;
+
+                if (entry.time > now) {
+                    wakeUp = Math.min(wakeUp, entry.time);
+                } else if (next == null || comparePriority(entry, next) < 0 || (comparePriority(entry, next) == 0 && entry.time < next.time)) {
+                    next = entry;
+                }
+            }
+
+            if (next != null) {
+                next.running = true;
+                next.time = -1;
+                return next;
+            }
+
+            if (wakeUp == Long.MAX_VALUE)
+                changed.await();
+            else
+                changed.awaitNanos(wakeUp - now);
+        }
+    }
+
+    /** Orders tasks by priority, the most urgent first */
+    private static int comparePriority(Entry a, Entry b) {
+        return a.task.getPriority().compareTo(b.task.getPriority());
+    }
+
+    /** A rendering thread */
+    private class Worker implements Runnable {
+
+        public void run() {
+            while (true) {
+                Entry entry;
+
+                lock.lock();
+                try {
+                    entry = take();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+
+                long time = -1;
+                try {
+                    time = entry.task.execute();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    lock.lock();
+                    try {
+                        entry.running = false;
+                        // A submit while running wins over a later time
+                        if (time >= 0 && (entry.time < 0 || time < entry.time))
+                            entry.time = time;
+                        changed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.helioviewer.viewmodel.view.jp2view.concurrency;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * A pool of the buffers a producer thread decodes frames into, e.g. arrays of
+ * pixels, which are handed to consumer threads.
+ *
+ * <p>
+ * A buffer handed to the consumers is lent, and the pool counts the references
+ * to it: the one of the producer lending it, and one more for every consumer
+ * retaining it. It is only taken again by the producer once every reference
+ * has been released, so a frame being read is never written. A buffer whose
+ * references are never all released is simply never reused. A steady stream
+ * of frames of the same size allocates nothing, since the buffers released
+ * are taken again.
+ *
+ * @param <T>
+ *            The type of the buffers, e.g. an array of pixels
+ */
+public class FramePool<T> {
+
+    /** The buffers released, ready to be taken */
+    private final ArrayList<T> free = new ArrayList<T>();
+
+    /** The buffers lent to the consumers, with their number of references */
+    private final IdentityHashMap<Object, Integer> lent = new IdentityHashMap<Object, Integer>();
+
+    /**
+     * Takes a buffer released by the consumers. Its contents are those of an
+     * old frame.
+     *
+     * @return A buffer, or null if there is none
+     */
+    public synchronized T take() {
+        return free.isEmpty() ? null : free.remove(free.size() - 1);
+    }
+
+    /**
+     * Tells that a buffer, taken from the pool or new, is handed to the
+     * consumers. Called by the producer before handing it. The buffer has one
+     * reference, which is released once the frame is replaced by a newer one.
+     *
+     * @param buffer
+     */
+    public synchronized void lend(T buffer) {
+        lent.put(buffer, 1);
+    }
+
+    /**
+     * Adds a reference to a lent buffer, for a consumer which will read it.
+     * Buffers which were not lent by this pool are ignored.
+     *
+     * @param buffer
+     * @return True, if the buffer was lent by this pool
+     */
+    public synchronized boolean retain(Object buffer) {
+        Integer references = lent.get(buffer);
+        if (references == null)
+            return false;
+        lent.put(buffer, references + 1);
+        return true;
+    }
+
+    /**
+     * Releases a reference to a lent buffer. Once all its references are
+     * released, the buffer can be taken again. Buffers which were not lent by
+     * this pool are ignored.
+     *
+     * @param buffer
+     * @return True, if the buffer was lent by this pool
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized boolean release(Object buffer) {
+        Integer references = lent.get(buffer);
+        if (references == null)
+            return false;
+        if (references > 1) {
+            lent.put(buffer, references - 1);
+        } else {
+            lent.remove(buffer);
+            free.add((T) buffer);
+        }
+        return true;
+    }
+
+    /** Forgets all the buffers, e.g. when the producer stops. */
+    public synchronized void clear() {
+        free.clear();
+        lent.clear();
+    }
+}
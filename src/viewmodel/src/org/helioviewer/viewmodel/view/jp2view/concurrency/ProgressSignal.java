@@ -0,0 +1,89 @@
+package org.helioviewer.viewmodel.view.jp2view.concurrency;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Signals the progress of some data arriving in steps, e.g. the meta data of
+ * the frames of an image. Unlike a BooleanSignal, the signal is never reset:
+ * it counts the steps, and a thread waits for a step after the count it last
+ * saw, so no step is missed between checking the data and waiting. Any number
+ * of threads can wait, and listeners can be called instead for code which does
+ * not wait on a thread.
+ */
+public class ProgressSignal {
+
+    /** The number of steps signaled */
+    private long count = 0;
+
+    /** Called after every step */
+    private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+    /**
+     * Returns the number of steps signaled so far. To be read before checking
+     * the data, and passed to {@link #waitForProgress(long, long)} if it is
+     * not there yet.
+     *
+     * @return The number of steps
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Signals a step, waking up all the waiting threads and calling the
+     * listeners.
+     */
+    public void signal() {
+        synchronized (this) {
+            count++;
+            this.notifyAll();
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Waits until a step is signaled after the given count.
+     *
+     * @param lastCount
+     *            The count read before checking the data
+     * @param timeout
+     *            Maximum time to wait in ms, 0 to wait forever
+     * @return True, if a step was signaled, false if the time ran out
+     * @throws InterruptedException
+     */
+    public synchronized boolean waitForProgress(long lastCount, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (count == lastCount) {
+            if (timeout == 0) {
+                this.wait();
+            } else {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                this.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds code called after every step, on the thread signaling it.
+     *
+     * @param listener
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener
+     */
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+}
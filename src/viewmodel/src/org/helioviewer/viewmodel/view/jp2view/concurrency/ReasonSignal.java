@@ -16,6 +16,9 @@ public class ReasonSignal<T extends Enum<?>> {
     /** The reason the signal was signaled */
     private volatile T reason = null;
 
+    /** Called after every signal, null if none */
+    private volatile Runnable listener = null;
+
     /**
      * Default constructor. Assigns false to the isSignaled flag.
      */
@@ -43,11 +46,30 @@ public class ReasonSignal<T extends Enum<?>> {
     /**
      * Sets the isSignaled flag and wakes up one waiting thread. Doesn't bother
      * to notifyAll since the first thread woken up resets the flag anyway.
+     * Then the listener is called, if any.
+     */
+    public void signal(T _reason) {
+        synchronized (this) {
+            isSignaled = true;
+            reason = _reason;
+            this.notify();
+        }
+
+        Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
+
+    /**
+     * Sets the code called after every signal, for signals which are not
+     * waited for by a thread but handled by submitting some work.
+     * 
+     * @param _listener
+     *            The listener, null to remove it
      */
-    public synchronized void signal(T _reason) {
-        isSignaled = true;
-        reason = _reason;
-        this.notify();
+    public void setListener(Runnable _listener) {
+        listener = _listener;
     }
 
     /**
@@ -75,6 +75,27 @@ public class ImmutableDateTime implements Comparable<ImmutableDateTime> {
         }
     }
 
+    /** Used by {@link #fromMillis(long)} only. */
+    private ImmutableDateTime() {
+    }
+
+    /**
+     * Creates an object from a number of milliseconds since the Epoch. Unlike
+     * the other constructors, the time may be before the Epoch.
+     * 
+     * @param millis
+     * @return The new object
+     */
+    public static ImmutableDateTime fromMillis(long millis) {
+        ImmutableDateTime dateTime = new ImmutableDateTime();
+        dateTime.calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"));
+        dateTime.calendar.clear();
+        dateTime.calendar.setTimeInMillis(millis);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
+        timeFormat.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
+        return dateTime;
+    }
+
     /**
      * Returns the requested field. Field keys are the same as the Calendar
      * class, since that is the underlying DateTime representation. NOTE: The
@@ -0,0 +1,273 @@
+package org.helioviewer.viewmodel.view.jp2view.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimator;
+
+/**
+ *
+ * The class <code>BufferedChunkedInputStream</code> decodes HTTP chunked
+ * responses like <code>ChunkedInputStream</code>, but on top of a
+ * <code>WindowedInputStream</code>. The chunk headers are parsed directly from
+ * the window, without building any <code>String</code>, and the chunk payloads
+ * are delivered with bulk copies. Chunk extensions are ignored.
+ *
+ * @see java.io.InputStream
+ * @see ChunkedInputStream
+ * @see WindowedInputStream
+ * @version 0.1
+ *
+ */
+public class BufferedChunkedInputStream extends InputStream {
+
+    /** The number of bytes remaining in the current chunk */
+    private int chunkLength = 0;
+
+    /** Indicates if there are more chunks */
+    private boolean moreChunks = true;
+
+    /** The base input stream */
+    private WindowedInputStream in;
+
+    /** The total length in bytes of the read data */
+    private int totalLength = 0;
+
+    /** The estimator told about the received data, may be null */
+    private BandwidthEstimator estimator = null;
+
+    /** Bytes read one by one and not reported to the estimator yet */
+    private int unreported = 0;
+
+    /**
+     * Constructs a new object with a <code>WindowedInputStream</code> base
+     * object. The base object is shared with the HTTP layer and must not be
+     * wrapped again for the same response.
+     *
+     * @param in
+     *            A <code>WindowedInputStream</code> object as a base stream.
+     */
+    public BufferedChunkedInputStream(WindowedInputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Sets the estimator to be told about the content bytes as they are read.
+     * 
+     * @param _estimator
+     *            The estimator, or null
+     */
+    public void setBandwidthEstimator(BandwidthEstimator _estimator) {
+        estimator = _estimator;
+    }
+
+    /** Reports the bytes read to the estimator, if any. */
+    private void report(int n) {
+        if (estimator != null) {
+            estimator.dataReceived(n + unreported, System.currentTimeMillis());
+            unreported = 0;
+        }
+    }
+
+    /**
+     * Returns the total length of the read data.
+     */
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Tells if the last chunk has been read, so that the base stream is
+     * positioned at the beginning of the next message.
+     *
+     * @return True, if the whole chunked content has been read
+     */
+    public boolean isFinished() {
+        return !moreChunks && chunkLength == 0;
+    }
+
+    /**
+     * This kind of stream does not support marking.
+     *
+     * @return <code>False</code>
+     */
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads the next byte of the base stream, throwing an
+     * <code>EOFException</code> if the end of stream is reached.
+     */
+    private int next() throws IOException {
+        int c = in.read();
+        if (c < 0)
+            throw new EOFException("Unexpected end of stream decoding chunk");
+        return c;
+    }
+
+    /**
+     * Consumes the CRLF (or single LF/CR) which must follow a chunk.
+     *
+     * @throws java.io.IOException
+     */
+    private void readEmptyLine() throws IOException {
+        int c = next();
+
+        if (c == WindowedInputStream.CR) {
+            if (in.peek() == WindowedInputStream.LF)
+                in.read();
+        } else if (c != WindowedInputStream.LF)
+            throw new ProtocolException("An empty new line was expected after chunk");
+    }
+
+    /**
+     * Parses a chunk header, i.e. the hexadecimal length optionally followed by
+     * extensions and the end of line. When the last chunk is found the
+     * trailing empty line is consumed and <code>moreChunks</code> is reset.
+     *
+     * @throws java.io.IOException
+     */
+    private void readChunkHeader() throws IOException {
+        int c, digit, length = 0, digits = 0;
+
+        for (;;) {
+            c = next();
+
+            if (c >= '0' && c <= '9')
+                digit = c - '0';
+            else if (c >= 'a' && c <= 'f')
+                digit = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F')
+                digit = c - 'A' + 10;
+            else
+                break;
+
+            if (++digits > 7)
+                throw new ProtocolException("Invalid chunk length format");
+            length = (length << 4) | digit;
+        }
+
+        if (digits == 0)
+            throw new ProtocolException("Invalid chunk length format");
+
+        // Skips the chunk extensions and white spaces up to the end of line
+        while (c != WindowedInputStream.LF) {
+            if (c == WindowedInputStream.CR) {
+                if (in.peek() == WindowedInputStream.LF)
+                    in.read();
+                break;
+            }
+            c = next();
+        }
+
+        chunkLength = length;
+        totalLength += length;
+
+        if (length == 0) {
+            readEmptyLine();
+            moreChunks = false;
+        }
+    }
+
+    /**
+     * Reads the next byte of the chunked content. It will return -1 if there is
+     * no more chunks to decode. If the end of stream is reached before decoding
+     * correctly all the chunks, a <code>EOFException</code> is launched.
+     *
+     * @return The next byte read, or -1 is there is no more data.
+     * @throws java.io.IOException
+     */
+    public int read() throws IOException {
+        if (chunkLength == 0) {
+            if (!moreChunks)
+                return -1;
+            readChunkHeader();
+            if (!moreChunks)
+                return -1;
+        }
+
+        int res = next();
+
+        if (--chunkLength == 0) {
+            readEmptyLine();
+            report(1);
+        } else
+            unreported++;
+
+        return res;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes of the chunked content. The data is
+     * copied in bulk from the window, never crossing a chunk boundary in a
+     * single call.
+     *
+     * @return The number of bytes read, or -1 is there is no more data.
+     * @throws java.io.IOException
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len <= 0)
+            return 0;
+
+        if (chunkLength == 0) {
+            if (!moreChunks)
+                return -1;
+            readChunkHeader();
+            if (!moreChunks)
+                return -1;
+        }
+
+        int n = in.read(b, off, Math.min(len, chunkLength));
+        if (n < 0)
+            throw new EOFException("Unexpected end of stream decoding chunk");
+
+        if ((chunkLength -= n) == 0)
+            readEmptyLine();
+
+        report(n);
+        return n;
+    }
+
+    /**
+     * Reads exactly <code>len</code> bytes of the chunked content.
+     *
+     * @throws java.io.EOFException
+     *             If the content ends before <code>len</code> bytes were read.
+     * @throws java.io.IOException
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int n;
+
+        while (len > 0) {
+            if ((n = read(b, off, len)) < 0)
+                throw new EOFException("EOF reached before read " + len + " bytes");
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Consumes the rest of the chunked content, so that the base stream is
+     * positioned at the beginning of the next message.
+     *
+     * @throws java.io.IOException
+     */
+    public void drain() throws IOException {
+        while (moreChunks || chunkLength > 0) {
+            if (chunkLength == 0) {
+                readChunkHeader();
+                continue;
+            }
+
+            long n = in.skip(chunkLength);
+            if (n <= 0)
+                throw new EOFException("Unexpected end of stream decoding chunk");
+
+            if ((chunkLength -= (int) n) == 0)
+                readEmptyLine();
+        }
+    }
+}
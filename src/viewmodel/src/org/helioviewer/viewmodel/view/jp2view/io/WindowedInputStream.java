@@ -0,0 +1,216 @@
+package org.helioviewer.viewmodel.view.jp2view.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * The <code>WindowedInputStream</code> class is the buffered counterpart of
+ * <code>StringInputStream</code>. It reads from the base stream in large blocks
+ * into a reusable <code>ByteBuffer</code> window, so that the byte-by-byte
+ * parsing of HTTP headers, chunk framing and VBAS headers never reaches the
+ * socket. Lines are terminated as in <code>StringInputStream</code>: LF, CR, or
+ * CR followed immediately by LF.
+ *
+ * <p>
+ * Since the window may contain bytes beyond the current message, a single
+ * instance has to be kept for the whole life of the underlying connection.
+ *
+ * @see StringInputStream
+ * @see BufferedChunkedInputStream
+ * @version 0.1
+ *
+ */
+public class WindowedInputStream extends InputStream {
+
+    /** The default size of the window in bytes */
+    static public final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    /** The CR carrier-return constant */
+    static public final int CR = StringInputStream.CR;
+
+    /** The LF line-fees constant */
+    static public final int LF = StringInputStream.LF;
+
+    /** The base input stream */
+    private InputStream in;
+
+    /**
+     * The window. Between reads, its position marks the next byte to be
+     * returned and its limit the end of the valid data.
+     */
+    private final ByteBuffer window;
+
+    /** The backing array of the window, cached for direct access */
+    private final byte[] array;
+
+    /** Used to assemble header lines without reallocation */
+    private StringBuilder line = new StringBuilder(128);
+
+    /**
+     * Constructs a new object with a <code>InputStream</code> base object and
+     * the default window size.
+     *
+     * @param in
+     *            A <code>InputStream</code> object as a base stream.
+     */
+    public WindowedInputStream(InputStream in) {
+        this(in, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a new object with a <code>InputStream</code> base object.
+     *
+     * @param in
+     *            A <code>InputStream</code> object as a base stream.
+     * @param windowSize
+     *            The size in bytes of the reusable window.
+     */
+    public WindowedInputStream(InputStream in, int windowSize) {
+        this.in = in;
+        window = ByteBuffer.allocate(windowSize);
+        window.limit(0);
+        array = window.array();
+    }
+
+    /**
+     * This kind of stream does not support marking.
+     *
+     * @return <code>False</code>.
+     */
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Refills the window from the base stream. Must only be called when the
+     * window is empty.
+     *
+     * @return <code>False</code> if the end of the base stream was reached.
+     * @throws java.io.IOException
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(array, 0, array.length);
+
+        if (n <= 0) {
+            window.limit(0);
+            return false;
+        }
+
+        window.position(0);
+        window.limit(n);
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without blocking.
+     */
+    public int available() throws IOException {
+        return window.remaining() + in.available();
+    }
+
+    /**
+     * Returns the number of bytes that are already in the window.
+     */
+    public int buffered() {
+        return window.remaining();
+    }
+
+    /**
+     * Reads the next byte of the stream and returns it.
+     *
+     * @return The next byte read, or -1 is there is no more data.
+     * @throws java.io.IOException
+     */
+    public int read() throws IOException {
+        if (!window.hasRemaining() && !fill())
+            return -1;
+        return window.get() & 0xFF;
+    }
+
+    /**
+     * Returns the next byte of the stream without consuming it.
+     *
+     * @return The next byte, or -1 is there is no more data.
+     * @throws java.io.IOException
+     */
+    public int peek() throws IOException {
+        if (!window.hasRemaining() && !fill())
+            return -1;
+        return array[window.position()] & 0xFF;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes with a bulk copy. Requests larger than
+     * the window bypass it once the buffered data has been consumed.
+     *
+     * @return The number of bytes read, or -1 is there is no more data.
+     * @throws java.io.IOException
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len <= 0)
+            return 0;
+
+        int n = window.remaining();
+
+        if (n == 0) {
+            if (len >= array.length)
+                return in.read(b, off, len);
+            if (!fill())
+                return -1;
+            n = window.remaining();
+        }
+
+        if (n > len)
+            n = len;
+
+        window.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Skips up to <code>n</code> bytes.
+     *
+     * @return The number of bytes skipped.
+     * @throws java.io.IOException
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+
+        if (!window.hasRemaining() && !fill())
+            return 0;
+
+        int k = (int) Math.min(n, window.remaining());
+        window.position(window.position() + k);
+        return k;
+    }
+
+    /**
+     * Reads a single line of the input stream.
+     *
+     * @return The new line read or <code>null</code> if there is not more data.
+     * @throws java.io.IOException
+     */
+    public String readLine() throws IOException {
+        int c = read();
+
+        if (c == -1)
+            return null;
+
+        line.setLength(0);
+
+        while (c != LF && c != -1) {
+            if (c == CR) {
+                if (peek() == LF)
+                    window.get();
+                break;
+            }
+            line.append((char) c);
+            c = read();
+        }
+
+        return line.toString();
+    }
+}
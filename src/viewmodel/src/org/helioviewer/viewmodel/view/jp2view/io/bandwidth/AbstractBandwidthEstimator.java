@@ -0,0 +1,165 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+/**
+ * Base class of the bandwidth estimators. It splits the received bytes into
+ * sampling periods, computes the bandwidth of each period and keeps track of
+ * the estimation error. The subclasses only have to combine the samples.
+ */
+public abstract class AbstractBandwidthEstimator implements BandwidthEstimator {
+
+    /** The default length of a sampling period in milliseconds */
+    public static final long DEFAULT_SAMPLE_PERIOD = 1000;
+
+    /** The length of a sampling period in milliseconds */
+    private final long samplePeriod;
+
+    /** The start of the current period, or -1 if no period is open */
+    private long periodStart = -1;
+
+    /** The arrival time of the last data */
+    private long lastData = -1;
+
+    /** The bits received in the current period */
+    private long periodBits = 0;
+
+    /** Indicates if a new estimate has not been polled yet */
+    private boolean newEstimate = false;
+
+    /** Number of samples taken */
+    private long numSamples = 0;
+
+    /** Mean relative error, and errors by over and under estimation */
+    private double error = 0;
+    private double overEstimationError = 0;
+    private double underEstimationError = 0;
+    private long numOverEstimations = 0;
+    private long numUnderEstimations = 0;
+
+    /** Constructs an estimator with the default sampling period. */
+    protected AbstractBandwidthEstimator() {
+        this(DEFAULT_SAMPLE_PERIOD);
+    }
+
+    /**
+     * Constructs an estimator with the given sampling period.
+     *
+     * @param _samplePeriod
+     *            Length of the sampling period in milliseconds
+     */
+    protected AbstractBandwidthEstimator(long _samplePeriod) {
+        samplePeriod = Math.max(1, _samplePeriod);
+    }
+
+    /**
+     * Adds the bandwidth measured in a sampling period to the estimate.
+     *
+     * @param bandwidth
+     *            The bandwidth of the period in bits per second
+     */
+    protected abstract void addSample(double bandwidth);
+
+    /**
+     * Returns the current estimate, without the synchronization of
+     * {@link #getBandwidth()}.
+     *
+     * @return The estimate in bits per second, or -1
+     */
+    protected abstract double getEstimate();
+
+    /** Forgets the samples combined by the subclass. */
+    protected abstract void resetEstimate();
+
+    public synchronized void transferStarted(long timeMillis) {
+        if (periodStart < 0 || periodBits == 0)
+            periodStart = timeMillis;
+        else if (lastData >= 0 && timeMillis > lastData)
+            periodStart += timeMillis - lastData;
+        lastData = timeMillis;
+    }
+
+    public synchronized void dataReceived(long bytes, long timeMillis) {
+        if (bytes <= 0)
+            return;
+
+        if (periodStart < 0)
+            periodStart = timeMillis;
+
+        lastData = timeMillis;
+        periodBits += bytes * 8;
+
+        long elapsed = timeMillis - periodStart;
+        if (elapsed >= samplePeriod) {
+            double sample = periodBits * 1000.0 / elapsed;
+
+            updateError(getEstimate(), sample);
+            addSample(sample);
+
+            numSamples++;
+            newEstimate = true;
+            periodBits = 0;
+            periodStart = timeMillis;
+        }
+    }
+
+    /** Updates the error statistics with the estimate preceding a sample */
+    private void updateError(double estimate, double sample) {
+        if (estimate < 0 || sample <= 0)
+            return;
+
+        double e = Math.abs(sample - estimate) / Math.max(sample, estimate);
+        error = numOverEstimations + numUnderEstimations == 0 ? e : (error + e) / 2;
+
+        if (estimate > sample) {
+            overEstimationError = numOverEstimations == 0 ? e : (overEstimationError + e) / 2;
+            numOverEstimations++;
+        } else {
+            underEstimationError = numUnderEstimations == 0 ? e : (underEstimationError + e) / 2;
+            numUnderEstimations++;
+        }
+    }
+
+    public synchronized double getBandwidth() {
+        return getEstimate();
+    }
+
+    public synchronized boolean pollNewEstimate() {
+        boolean result = newEstimate;
+        newEstimate = false;
+        return result;
+    }
+
+    public synchronized double getRelativeError() {
+        return error;
+    }
+
+    /** Returns the mean relative error of the estimates above the sample. */
+    public synchronized double getOverEstimationError() {
+        return overEstimationError;
+    }
+
+    /** Returns the mean relative error of the estimates below the sample. */
+    public synchronized double getUnderEstimationError() {
+        return underEstimationError;
+    }
+
+    /** Returns the number of samples taken. */
+    public synchronized long getNumSamples() {
+        return numSamples;
+    }
+
+    public synchronized void reset() {
+        periodStart = -1;
+        lastData = -1;
+        periodBits = 0;
+        newEstimate = false;
+        numSamples = 0;
+        error = overEstimationError = underEstimationError = 0;
+        numOverEstimations = numUnderEstimations = 0;
+        resetEstimate();
+    }
+
+    /** Returns a string representation of the estimator state. */
+    public synchronized String toString() {
+        return getClass().getSimpleName() + String.format(" [bw=%.0f bits/s samples=%d error=%.4f over=%.4f under=%.4f]", getEstimate(), numSamples, error, overEstimationError, underEstimationError);
+    }
+}
@@ -0,0 +1,67 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+/**
+ * Estimator of the bandwidth available to a JPIP channel.
+ *
+ * <p>
+ * The estimator is fed by the transport with the bytes received and their
+ * arrival time, and it is queried by the owner of the channel for the
+ * maximum bandwidth (mbw) of its requests. Each channel has its own instance,
+ * so that every layer gets its own estimate.
+ *
+ * <p>
+ * The bandwidth is measured in sampling periods: the bytes received during a
+ * period give one sample, and the implementations differ in the way they
+ * combine the samples into the estimate.
+ *
+ * @see AbstractBandwidthEstimator
+ */
+public interface BandwidthEstimator {
+
+    /**
+     * Tells that a new transfer starts, i.e. that the header of a response has
+     * arrived. The time since the last data was received is not counted, so
+     * that idle periods do not lower the estimate.
+     *
+     * @param timeMillis
+     *            Time of the event in milliseconds
+     */
+    public void transferStarted(long timeMillis);
+
+    /**
+     * Tells that some bytes have been received.
+     *
+     * @param bytes
+     *            Number of bytes received
+     * @param timeMillis
+     *            Time of the arrival in milliseconds
+     */
+    public void dataReceived(long bytes, long timeMillis);
+
+    /**
+     * Returns the estimated bandwidth.
+     *
+     * @return The bandwidth in bits per second, or -1 if there is no estimate
+     *         yet
+     */
+    public double getBandwidth();
+
+    /**
+     * Tells if a new estimate has been computed since the last call. Used to
+     * decide when the server has to be told the new bandwidth.
+     *
+     * @return True, only once for each new estimate
+     */
+    public boolean pollNewEstimate();
+
+    /**
+     * Returns the mean relative error of the estimates, comparing each
+     * estimate with the sample measured in the following period.
+     *
+     * @return The error between 0 and 1, or 0 if it is not known yet
+     */
+    public double getRelativeError();
+
+    /** Forgets all the samples. */
+    public void reset();
+}
@@ -0,0 +1,50 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+/**
+ * Creates the bandwidth estimators of the JPIP channels.
+ *
+ * <p>
+ * The kind of estimator is chosen with the system property
+ * <code>jhv.jpip.bwestimator</code>, which may be <code>ewma</code> (the
+ * default), <code>percentile</code> or <code>kalman</code>.
+ */
+public class BandwidthEstimatorFactory {
+
+    /** The kinds of estimator */
+    public enum EstimatorType {
+        EWMA, PERCENTILE, KALMAN
+    };
+
+    private BandwidthEstimatorFactory() {
+    }
+
+    /**
+     * Returns the kind of estimator selected by the system property, or EWMA.
+     */
+    public static EstimatorType getDefaultType() {
+        String name = System.getProperty("jhv.jpip.bwestimator");
+        if (name != null) {
+            for (EstimatorType type : EstimatorType.values())
+                if (type.name().equalsIgnoreCase(name.trim()))
+                    return type;
+        }
+        return EstimatorType.EWMA;
+    }
+
+    /** Creates an estimator of the default kind. */
+    public static BandwidthEstimator create() {
+        return create(getDefaultType());
+    }
+
+    /** Creates an estimator of the given kind, with its default parameters. */
+    public static BandwidthEstimator create(EstimatorType type) {
+        switch (type) {
+        case PERCENTILE:
+            return new PercentileBandwidthEstimator();
+        case KALMAN:
+            return new KalmanBandwidthEstimator();
+        default:
+            return new EWMABandwidthEstimator();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+/**
+ * Estimates the bandwidth with an exponentially weighted moving average of
+ * the samples. This is the estimator the reader has always used, with a weight
+ * of 0.1 for the new sample.
+ */
+public class EWMABandwidthEstimator extends AbstractBandwidthEstimator {
+
+    /** The default weight of a new sample */
+    public static final double DEFAULT_ALPHA = 0.1;
+
+    /** The weight of a new sample */
+    private final double alpha;
+
+    /** The current estimate */
+    private double estimate = -1;
+
+    /** Constructs an estimator with the default weight. */
+    public EWMABandwidthEstimator() {
+        this(DEFAULT_ALPHA, DEFAULT_SAMPLE_PERIOD);
+    }
+
+    /**
+     * Constructs an estimator.
+     *
+     * @param _alpha
+     *            Weight of a new sample, between 0 and 1
+     * @param _samplePeriod
+     *            Length of the sampling period in milliseconds
+     */
+    public EWMABandwidthEstimator(double _alpha, long _samplePeriod) {
+        super(_samplePeriod);
+        alpha = Math.max(0, Math.min(1, _alpha));
+    }
+
+    protected void addSample(double bandwidth) {
+        estimate = estimate < 0 ? bandwidth : alpha * bandwidth + (1 - alpha) * estimate;
+    }
+
+    protected double getEstimate() {
+        return estimate;
+    }
+
+    protected void resetEstimate() {
+        estimate = -1;
+    }
+}
@@ -0,0 +1,71 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+/**
+ * Estimates the bandwidth with a one-dimensional Kalman filter. The bandwidth
+ * is modelled as a random walk observed through noisy samples. The filter
+ * works on the logarithm of the bandwidth, so that the noise variances are
+ * relative and the same parameters suit slow and fast connections.
+ */
+public class KalmanBandwidthEstimator extends AbstractBandwidthEstimator {
+
+    /** The default variance of the change of the bandwidth per period */
+    public static final double DEFAULT_PROCESS_NOISE = 0.01;
+
+    /** The default variance of a sample */
+    public static final double DEFAULT_MEASUREMENT_NOISE = 0.1;
+
+    private final double processNoise;
+    private final double measurementNoise;
+
+    /** The logarithm of the estimate */
+    private double state = 0;
+
+    /** The variance of the state, or -1 before the first sample */
+    private double variance = -1;
+
+    /** Constructs an estimator with the default noise variances. */
+    public KalmanBandwidthEstimator() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE, DEFAULT_SAMPLE_PERIOD);
+    }
+
+    /**
+     * Constructs an estimator.
+     *
+     * @param _processNoise
+     *            Variance of the change of the logarithm of the bandwidth per
+     *            period
+     * @param _measurementNoise
+     *            Variance of the logarithm of a sample
+     * @param _samplePeriod
+     *            Length of the sampling period in milliseconds
+     */
+    public KalmanBandwidthEstimator(double _processNoise, double _measurementNoise, long _samplePeriod) {
+        super(_samplePeriod);
+        processNoise = Math.max(0, _processNoise);
+        measurementNoise = Math.max(Double.MIN_VALUE, _measurementNoise);
+    }
+
+    protected void addSample(double bandwidth) {
+        double z = Math.log(Math.max(1, bandwidth));
+
+        if (variance < 0) {
+            state = z;
+            variance = measurementNoise;
+            return;
+        }
+
+        variance += processNoise;
+        double gain = variance / (variance + measurementNoise);
+        state += gain * (z - state);
+        variance *= 1 - gain;
+    }
+
+    protected double getEstimate() {
+        return variance < 0 ? -1 : Math.exp(state);
+    }
+
+    protected void resetEstimate() {
+        state = 0;
+        variance = -1;
+    }
+}
@@ -0,0 +1,77 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the bandwidth as a percentile of the last samples. A low
+ * percentile gives a conservative estimate which is robust against the bursts
+ * of the connection.
+ */
+public class PercentileBandwidthEstimator extends AbstractBandwidthEstimator {
+
+    /** The default number of samples kept */
+    public static final int DEFAULT_WINDOW_SIZE = 10;
+
+    /** The default percentile */
+    public static final double DEFAULT_PERCENTILE = 0.5;
+
+    /** The last samples, as a ring buffer */
+    private final double[] window;
+
+    /** Scratch array used to sort the samples */
+    private final double[] sorted;
+
+    /** The percentile, between 0 and 1 */
+    private final double percentile;
+
+    /** The number of samples in the window */
+    private int count = 0;
+
+    /** The next position of the ring buffer */
+    private int next = 0;
+
+    /** The current estimate */
+    private double estimate = -1;
+
+    /** Constructs an estimator with the default window and percentile. */
+    public PercentileBandwidthEstimator() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_PERCENTILE, DEFAULT_SAMPLE_PERIOD);
+    }
+
+    /**
+     * Constructs an estimator.
+     *
+     * @param _windowSize
+     *            Number of samples kept
+     * @param _percentile
+     *            Percentile of the samples, between 0 and 1
+     * @param _samplePeriod
+     *            Length of the sampling period in milliseconds
+     */
+    public PercentileBandwidthEstimator(int _windowSize, double _percentile, long _samplePeriod) {
+        super(_samplePeriod);
+        window = new double[Math.max(1, _windowSize)];
+        sorted = new double[window.length];
+        percentile = Math.max(0, Math.min(1, _percentile));
+    }
+
+    protected void addSample(double bandwidth) {
+        window[next] = bandwidth;
+        next = (next + 1) % window.length;
+        if (count < window.length)
+            count++;
+
+        System.arraycopy(window, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        estimate = sorted[(int) Math.round(percentile * (count - 1))];
+    }
+
+    protected double getEstimate() {
+        return estimate;
+    }
+
+    protected void resetEstimate() {
+        count = next = 0;
+        estimate = -1;
+    }
+}
@@ -0,0 +1,108 @@
+package org.helioviewer.viewmodel.view.jp2view.io.bandwidth;
+
+/**
+ * Corrects the estimate of another estimator with the state of the movie
+ * playback, in the manner of the TCP congestion control.
+ *
+ * <p>
+ * The owner of the channel reports how many seconds of movie are already
+ * available ahead of the current frame, and how many there were when the
+ * playback started. If the buffer is draining, the requested bandwidth is
+ * reduced, the more the closer the buffer is to being empty, so that the
+ * server sends fewer quality layers and the frames arrive in time. If the
+ * buffer is growing, the requested bandwidth is raised by the estimation
+ * error.
+ */
+public class PlaybackBandwidthEstimator implements BandwidthEstimator {
+
+    /** The reduction when the buffer is empty */
+    private static final double MAX_REDUCTION = 0.50;
+
+    /** The reduction when the buffer is at the set point */
+    private static final double MIN_REDUCTION = 0.01;
+
+    /** The estimator giving the measured bandwidth */
+    private final BandwidthEstimator estimator;
+
+    /** The seconds of movie buffered ahead, or -1 if not playing */
+    private double buffered = -1;
+
+    /** The seconds of movie which should be buffered ahead */
+    private double setpoint = -1;
+
+    /**
+     * Constructs a corrector for the given estimator.
+     *
+     * @param _estimator
+     *            The estimator giving the measured bandwidth
+     */
+    public PlaybackBandwidthEstimator(BandwidthEstimator _estimator) {
+        estimator = _estimator;
+    }
+
+    /** Returns the estimator giving the measured bandwidth. */
+    public BandwidthEstimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * Reports the state of the playback.
+     *
+     * @param _buffered
+     *            Seconds of movie available ahead of the current frame
+     * @param _setpoint
+     *            Seconds of movie which should be available
+     */
+    public synchronized void setBufferLevel(double _buffered, double _setpoint) {
+        buffered = _buffered;
+        setpoint = _setpoint;
+    }
+
+    /** Reports that the movie is not being played, so nothing is corrected. */
+    public synchronized void clearBufferLevel() {
+        buffered = -1;
+        setpoint = -1;
+    }
+
+    public void transferStarted(long timeMillis) {
+        estimator.transferStarted(timeMillis);
+    }
+
+    public void dataReceived(long bytes, long timeMillis) {
+        estimator.dataReceived(bytes, timeMillis);
+    }
+
+    public synchronized double getBandwidth() {
+        double bw = estimator.getBandwidth();
+        double error = estimator.getRelativeError();
+
+        if (bw < 0 || buffered < 0 || setpoint <= 0 || error <= 0)
+            return bw;
+
+        if (buffered < setpoint) {
+            double reduction = MAX_REDUCTION + (MIN_REDUCTION - MAX_REDUCTION) * buffered / setpoint;
+            return bw * (1 - reduction);
+        } else if (buffered > setpoint) {
+            return bw * (1 + error);
+        }
+        return bw;
+    }
+
+    public boolean pollNewEstimate() {
+        return estimator.pollNewEstimate();
+    }
+
+    public double getRelativeError() {
+        return estimator.getRelativeError();
+    }
+
+    public synchronized void reset() {
+        estimator.reset();
+        clearBufferLevel();
+    }
+
+    /** Returns a string representation of the estimator state. */
+    public String toString() {
+        return getClass().getSimpleName() + " [" + estimator + "]";
+    }
+}
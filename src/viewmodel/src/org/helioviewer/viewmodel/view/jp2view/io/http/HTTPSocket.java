@@ -2,13 +2,13 @@ package org.helioviewer.viewmodel.view.jp2view.io.http;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 
-import org.helioviewer.viewmodel.view.jp2view.io.StringInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.WindowedInputStream;
 
 /**
  * 
@@ -31,6 +31,13 @@ public class HTTPSocket extends Socket {
     /** The last used host */
     private String lastUsedHost = null;
 
+    /**
+     * The buffered input of the connection. It is shared by all the messages
+     * received, since its window may already hold the beginning of the next
+     * one.
+     */
+    private WindowedInputStream windowedInput = null;
+
     /** The default port for the HTTP socket */
     static public final int PORT = 80;
 
@@ -72,6 +79,7 @@ public class HTTPSocket extends Socket {
      * @throws java.io.IOException
      */
     public void reconnect() throws IOException {
+        windowedInput = null;
         super.connect(new InetSocketAddress(lastUsedHost, lastUsedPort), 10000);
     }
 
@@ -133,8 +141,7 @@ public class HTTPSocket extends Socket {
         String line;
         String parts[];
 
-        InputStream input = getInputStream();
-        StringInputStream lineInput = new StringInputStream(input);
+        WindowedInputStream lineInput = getWindowedInputStream();
 
         line = lineInput.readLine();
         if (line == null)
@@ -191,6 +198,54 @@ public class HTTPSocket extends Socket {
         }
     }
 
+    /**
+     * Returns the buffered input stream of the connection. The same object is
+     * returned until the socket is reconnected, and every reader of the
+     * connection has to go through it.
+     * 
+     * @return The buffered input stream of the connection
+     * @throws java.io.IOException
+     */
+    protected WindowedInputStream getWindowedInputStream() throws IOException {
+        if (windowedInput == null)
+            windowedInput = new WindowedInputStream(getInputStream());
+        return windowedInput;
+    }
+
+    /**
+     * Checks whether an idle connection can still be used. The connection is
+     * probed with a very short read timeout: the peer must neither have closed
+     * it nor have sent unsolicited data. Must only be called while no response
+     * is expected.
+     * 
+     * @return True, if the connection seems healthy
+     */
+    public boolean isReusable() {
+        if (isClosed() || !isConnected() || isInputShutdown() || isOutputShutdown())
+            return false;
+
+        int timeout = 0;
+        try {
+            timeout = getSoTimeout();
+            setSoTimeout(1);
+
+            // Any data or the end of stream means the connection is unusable
+            getWindowedInputStream().peek();
+            return false;
+
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                if (!isClosed())
+                    setSoTimeout(timeout);
+            } catch (IOException e) {
+            }
+        }
+    }
+
     /** Returns the lastUsedPort */
     public int getPort() {
         return lastUsedPort;
@@ -33,6 +33,34 @@ public class JPIPDataInputStream {
     /** The <code>InputStream</code> base. */
     private InputStream in;
 
+    /**
+     * Lookup table from the standard class identifier to the data-bin class,
+     * so the class of each segment is found without iterating (and cloning)
+     * <code>JPIPDatabinClass.values()</code>.
+     */
+    private static final JPIPDatabinClass[] databinClasses;
+
+    static {
+        int max = 0;
+        for (JPIPDatabinClass idEnum : JPIPDatabinClass.values())
+            max = Math.max(max, idEnum.getStandardClassID());
+
+        databinClasses = new JPIPDatabinClass[max + 1];
+        for (JPIPDatabinClass idEnum : JPIPDatabinClass.values())
+            databinClasses[idEnum.getStandardClassID()] = idEnum;
+    }
+
+    /**
+     * Returns the data-bin class of a standard class identifier.
+     * 
+     * @return The data-bin class, or null if the identifier is unknown
+     */
+    static JPIPDatabinClass getDatabinClass(long _classId) {
+        if ((_classId >= 0) && (_classId < databinClasses.length))
+            return databinClasses[(int) _classId];
+        return null;
+    }
+
     /** Constructs a object based on the indicated <code>InputStream</code>. */
     public JPIPDataInputStream(InputStream in) {
         this.in = in;
@@ -74,10 +102,10 @@ public class JPIPDataInputStream {
     }
 
     /**
-     * Reads the next data segment from the stream, and stores its information
-     * in the <code>JpipDataSegment</code> object passed as parameter. The data
-     * buffer is not reallocated every time. It is only reallocated if the next
-     * data length is bigger than the previous one.
+     * Reads the next data segment from the stream. The data buffer of the
+     * segment is reserved from the <code>JPIPSegmentBufferPool</code>, and
+     * should be given back with <code>JPIPDataSegment.release()</code> once it
+     * has been consumed.
      * 
      * @throws java.io.IOException
      * @return Returns <code>true</code> if a new data segment was read, or
@@ -119,9 +147,7 @@ public class JPIPDataInputStream {
             }
             seg.codestreamID = codestream;
 
-            for (JPIPDatabinClass idEnum : JPIPDatabinClass.values())
-                if (classId == idEnum.getStandardClassID())
-                    seg.classID = idEnum;
+            seg.classID = getDatabinClass(classId);
             if (seg.classID == null)
                 throw new ProtocolException("Invalid databin classID");
 
@@ -133,16 +159,30 @@ public class JPIPDataInputStream {
         }
 
         if (seg.length > 0) {
-            // Assign new array if it was null
-            if (seg.data == null)
-                seg.data = new byte[seg.length];
-            // Assign larger array if needed.
-            seg.data = seg.data.length < seg.length ? new byte[seg.length] : seg.data;
-
-            if (in.read(seg.data, 0, seg.length) != seg.length)
-                throw new EOFException("EOF reached before read " + seg.length + " bytes");
+            // The buffer is given back by the consumer of the segment
+            seg.data = JPIPSegmentBufferPool.getSingletonInstance().reserve(seg.length);
+
+            readFully(seg.data, 0, seg.length);
         }
         
         return seg;
     }
+
+    /**
+     * Reads exactly <code>len</code> bytes from the base stream. Buffered base
+     * streams deliver the data with a few bulk copies instead of one call per
+     * byte.
+     * 
+     * @throws java.io.IOException
+     */
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        int n, total = len;
+
+        while (len > 0) {
+            if ((n = in.read(b, off, len)) < 0)
+                throw new EOFException("EOF reached before read " + total + " bytes");
+            off += n;
+            len -= n;
+        }
+    }
 };
@@ -32,7 +32,10 @@ public class JPIPDataSegment implements Cloneable {
     /** Length of this segment. */
     public int length;
 
-    /** The segment data. */
+    /**
+     * The segment data. The array may be longer than <code>length</code> when
+     * it was reserved from the {@link JPIPSegmentBufferPool}.
+     */
     public byte data[];
 
     /**
@@ -51,6 +54,16 @@ public class JPIPDataSegment implements Cloneable {
     public JPIPDataSegment() {
     }
 
+    /**
+     * Gives the data buffer back to the {@link JPIPSegmentBufferPool}. Must be
+     * called only once the data has been consumed, i.e. copied into the cache.
+     * The <code>data</code> field is reset to <code>null</code>.
+     */
+    public void release() {
+        JPIPSegmentBufferPool.getSingletonInstance().release(data);
+        data = null;
+    }
+
     /** Returns a completely disjoint clone of the JPIPDataSegment */
     public JPIPDataSegment clone() {
         JPIPDataSegment ret = new JPIPDataSegment();
@@ -12,6 +12,12 @@ public class JPIPRequest extends HTTPRequest {
     /** The query in string form. */
     private String query = null;
 
+    /**
+     * Set when a newer view-window request has superseded this one, so its
+     * response should not be taken as the answer for the current window.
+     */
+    private volatile boolean cancelled = false;
+
     /**
      * Default constructor.
      * 
@@ -60,4 +66,28 @@ public class JPIPRequest extends HTTPRequest {
     public void setQuery(Object _query) {
         query = _query.toString();
     }
+
+    /**
+     * Tells if the query of this request specifies a view-window. A newer
+     * view-window request on the same channel supersedes it.
+     * 
+     * @return True, if the request specifies a view-window
+     */
+    public boolean isWindowRequest() {
+        return query != null && (query.indexOf(JPIPRequestField.FSIZ.toString() + "=") != -1 || query.indexOf(JPIPRequestField.CONTEXT.toString() + "=") != -1);
+    }
+
+    /** Marks this request as superseded by a newer one. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Tells if this request has been superseded by a newer one.
+     * 
+     * @return True, if the request was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
 }
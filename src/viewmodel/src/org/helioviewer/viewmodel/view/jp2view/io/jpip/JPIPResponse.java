@@ -20,6 +20,9 @@ public class JPIPResponse extends HTTPResponse {
     /** A list of the data segments. */
     private LinkedList<JPIPDataSegment> jpipDataList;
 
+    /** The request this response answers, null if unknown. */
+    private JPIPRequest request = null;
+
     /**
      * Used to form responses.
      * 
@@ -36,6 +39,34 @@ public class JPIPResponse extends HTTPResponse {
         jpipDataList = new LinkedList<JPIPDataSegment>();
     }
 
+    /**
+     * Sets the request this response answers.
+     * 
+     * @param _request
+     */
+    public void setRequest(JPIPRequest _request) {
+        request = _request;
+    }
+
+    /**
+     * Returns the request this response answers.
+     * 
+     * @return The request, or null if unknown
+     */
+    public JPIPRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Tells if the request of this response was superseded by a newer one
+     * after it was sent.
+     * 
+     * @return True, if the request was cancelled
+     */
+    public boolean isCancelled() {
+        return request != null && request.isCancelled();
+    }
+
     /**
      * Adds the data segment to this object.
      * 
@@ -69,6 +100,15 @@ public class JPIPResponse extends HTTPResponse {
         return size;
     }
 
+    /**
+     * Returns the EOR code which ended the response.
+     * 
+     * @return The EOR code, or -1 if no EOR message was received
+     */
+    public long getStatus() {
+        return status;
+    }
+
     /**
      * Tells if the response completes the last request.
      * 
@@ -0,0 +1,183 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the byte arrays holding the payload of JPIP data segments.
+ *
+ * <p>
+ * Every data-bin increment read by the {@link JPIPDataInputStream} needs a
+ * buffer, but the data is copied into the Kakadu cache right away, so the
+ * arrays are extremely short-lived. The pool keeps them in power-of-two size
+ * classes: a buffer is reserved with {@link #reserve(int)}, which may return an
+ * array longer than requested, and handed back with {@link #release(byte[])}
+ * once the segment has been consumed. Each size class keeps only a bounded
+ * number of free arrays, and requests larger than the biggest class are simply
+ * allocated.
+ *
+ * <p>
+ * The hit and miss counters can be used to check how effective the pool is.
+ *
+ * @see JPIPDataSegment#release()
+ */
+public class JPIPSegmentBufferPool {
+
+    // Singleton pattern
+    private static final JPIPSegmentBufferPool singletonInstance = new JPIPSegmentBufferPool();
+
+    public static JPIPSegmentBufferPool getSingletonInstance() {
+        return singletonInstance;
+    }
+
+    /** The smallest size class is 2^MIN_SHIFT bytes. */
+    private static final int MIN_SHIFT = 6;
+
+    /** The biggest size class is 2^MAX_SHIFT bytes. */
+    private static final int MAX_SHIFT = 17;
+
+    /** Maximum amount of free memory kept by every size class. */
+    private static final int MAX_BYTES_PER_CLASS = 2 * 1024 * 1024;
+
+    /** Minimum number of free arrays kept by every size class. */
+    private static final int MIN_BUFFERS_PER_CLASS = 8;
+
+    /** The free arrays, one stack per size class. */
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    private JPIPSegmentBufferPool() {
+        for (int i = 0; i < classes.length; i++) {
+            int size = 1 << (i + MIN_SHIFT);
+            classes[i] = new SizeClass(size, Math.max(MIN_BUFFERS_PER_CLASS, MAX_BYTES_PER_CLASS / size));
+        }
+    }
+
+    /**
+     * Returns the index of the smallest size class holding the given number of
+     * bytes, or -1 if it is bigger than any size class.
+     */
+    private static int classIndex(int length) {
+        if (length <= (1 << MIN_SHIFT))
+            return 0;
+
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Reserves a buffer of at least the given length. The returned array must
+     * be given back with {@link #release(byte[])} once its content is not
+     * needed any more. Its content is undefined.
+     *
+     * @param length
+     *            Minimum length of the buffer
+     * @return A buffer of at least the given length
+     */
+    public byte[] reserve(int length) {
+        int index = classIndex(length);
+
+        if (index < 0) {
+            oversized.incrementAndGet();
+            return new byte[length];
+        }
+
+        byte[] buffer = classes[index].pop();
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return new byte[classes[index].size];
+        }
+
+        hits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers which do not match a size class
+     * exactly are left to the garbage collector. The buffer must not be used
+     * after calling this method.
+     *
+     * @param buffer
+     *            Buffer to release, may be null
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+
+        int index = classIndex(buffer.length);
+
+        if (index < 0 || classes[index].size != buffer.length || !classes[index].push(buffer))
+            discarded.incrementAndGet();
+    }
+
+    /** Returns the number of reservations served from the pool. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of reservations that needed a new array. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of reservations bigger than any size class. */
+    public long getOversized() {
+        return oversized.get();
+    }
+
+    /** Returns the number of released buffers that were not kept. */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /** Returns the number of bytes currently held by the free arrays. */
+    public long getPooledBytes() {
+        long total = 0;
+        for (SizeClass sizeClass : classes)
+            total += (long) sizeClass.count() * sizeClass.size;
+        return total;
+    }
+
+    /** Returns a string representation of the pool counters. */
+    public String toString() {
+        return getClass().getSimpleName() + " [hits=" + getHits() + " misses=" + getMisses() + " oversized=" + getOversized() + " discarded=" + getDiscarded() + " pooled=" + getPooledBytes() + " bytes]";
+    }
+
+    /**
+     * A bounded stack of free arrays of one size.
+     */
+    private static class SizeClass {
+
+        final int size;
+        private final byte[][] free;
+        private int count = 0;
+
+        SizeClass(int _size, int _capacity) {
+            size = _size;
+            free = new byte[_capacity][];
+        }
+
+        synchronized byte[] pop() {
+            if (count == 0)
+                return null;
+            byte[] buffer = free[--count];
+            free[count] = null;
+            return buffer;
+        }
+
+        synchronized boolean push(byte[] buffer) {
+            if (count == free.length)
+                return false;
+            free[count++] = buffer;
+            return true;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+    }
+}
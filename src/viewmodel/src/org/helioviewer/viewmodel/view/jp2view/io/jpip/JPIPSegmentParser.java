@@ -0,0 +1,238 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+
+/**
+ *
+ * The class <code>JPIPSegmentParser</code> is the non-blocking counterpart of
+ * <code>JPIPDataInputStream</code>. Instead of pulling bytes from a stream, it
+ * is pushed the bytes of the jpp-stream as they arrive, in buffers of any size,
+ * and it emits every data segment as soon as it is complete. A segment header
+ * is only consumed once it is entirely in the buffer, while the payload is
+ * copied into the segment as it arrives.
+ *
+ * <p>
+ * As in <code>JPIPDataInputStream</code>, the payload buffers are reserved from
+ * the <code>JPIPSegmentBufferPool</code>.
+ *
+ * @see JPIPDataInputStream
+ * @see JPIPDataSegment
+ * @version 0.1
+ *
+ */
+public class JPIPSegmentParser {
+
+    /** Returned by <code>readVBAS</code> when the buffer ends inside the VBAS */
+    private static final long INCOMPLETE = -1;
+
+    /** The last class identifier read. */
+    private long classId = 0;
+
+    /** The last code-stream index read. */
+    private long codestream = 0;
+
+    /** The total length in bytes of the last VBAS read. */
+    private int vbasLength = 0;
+
+    /** The first byte of the last VBAS read. */
+    private int vbasFstByte = 0;
+
+    /** The segment whose payload is being received, or null */
+    private JPIPDataSegment pending = null;
+
+    /** The number of payload bytes of the pending segment already received */
+    private int pendingFilled = 0;
+
+    /** Default constructor. */
+    public JPIPSegmentParser() {
+    }
+
+    /**
+     * Resets the parser state for a new response. Since the class and
+     * code-stream identifiers are only inherited within a response, this has to
+     * be called before the first byte of every response.
+     */
+    public void reset() {
+        if (pending != null)
+            pending.release();
+        pending = null;
+        pendingFilled = 0;
+        classId = 0;
+        codestream = 0;
+    }
+
+    /**
+     * Tells if the parser is in the middle of a segment payload.
+     *
+     * @return True, if the payload of a segment is incomplete
+     */
+    public boolean isInsideSegment() {
+        return pending != null;
+    }
+
+    /**
+     * Reads a VBAS integer from the buffer, or returns
+     * <code>INCOMPLETE</code> if the buffer ends before it.
+     *
+     * @throws java.net.ProtocolException
+     */
+    private long readVBAS(ByteBuffer buf) throws ProtocolException {
+        int c;
+        long value = 0;
+
+        vbasLength = 0;
+
+        do {
+            if (vbasLength >= 9)
+                throw new ProtocolException("VBAS length not supported");
+
+            if (!buf.hasRemaining())
+                return INCOMPLETE;
+
+            c = buf.get() & 0xFF;
+            value = (value << 7) | (long) (c & 0x7F);
+
+            if (vbasLength == 0)
+                vbasFstByte = c;
+            vbasLength++;
+
+        } while ((c & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Parses the header of the next segment. If the buffer ends before the
+     * header, its position is restored and null is returned.
+     *
+     * @throws java.net.ProtocolException
+     */
+    private JPIPDataSegment readHeader(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+        long id;
+
+        if ((id = readVBAS(buf)) == INCOMPLETE) {
+            buf.position(start);
+            return null;
+        }
+
+        JPIPDataSegment seg = new JPIPDataSegment();
+        seg.binID = id;
+
+        // The inherited identifiers are only updated once the header is
+        // complete
+        long newClassId = classId, newCodestream = codestream, value;
+
+        if (vbasFstByte == 0) {
+            seg.isEOR = true;
+
+            if (!buf.hasRemaining()) {
+                buf.position(start);
+                return null;
+            }
+            seg.binID = buf.get() & 0xFF;
+
+            if ((value = readVBAS(buf)) == INCOMPLETE) {
+                buf.position(start);
+                return null;
+            }
+            seg.length = (int) value;
+
+        } else {
+            int firstByte = vbasFstByte;
+
+            seg.isEOR = false;
+            seg.binID &= (long) ~(0x70 << ((vbasLength - 1) * 7));
+
+            seg.isFinal = ((firstByte & 0x10) != 0);
+
+            int m = (firstByte & 0x7F) >> 5;
+
+            if (m == 0)
+                throw new ProtocolException("Invalid Bin-ID value format");
+            else if (m >= 2) {
+                if ((newClassId = readVBAS(buf)) == INCOMPLETE) {
+                    buf.position(start);
+                    return null;
+                }
+                if (m > 2 && (newCodestream = readVBAS(buf)) == INCOMPLETE) {
+                    buf.position(start);
+                    return null;
+                }
+            }
+            seg.codestreamID = newCodestream;
+
+            seg.classID = JPIPDataInputStream.getDatabinClass(newClassId);
+            if (seg.classID == null)
+                throw new ProtocolException("Invalid databin classID");
+
+            if ((value = readVBAS(buf)) == INCOMPLETE) {
+                buf.position(start);
+                return null;
+            }
+            seg.offset = (int) value;
+
+            if ((value = readVBAS(buf)) == INCOMPLETE) {
+                buf.position(start);
+                return null;
+            }
+            seg.length = (int) value;
+
+            if ((newClassId == JPIPConstants.EXTENDED_PRECINCT_DATA_BIN_CLASS) || (newClassId == JPIPConstants.EXTENDED_TILE_DATA_BIN_CLASS)) {
+                if ((value = readVBAS(buf)) == INCOMPLETE) {
+                    buf.position(start);
+                    return null;
+                }
+                seg.aux = value;
+            }
+
+            classId = newClassId;
+            codestream = newCodestream;
+        }
+
+        return seg;
+    }
+
+    /**
+     * Parses as many segments as possible from the buffer, adding the complete
+     * ones to the given queue. On return the buffer only holds the beginning
+     * of an incomplete segment header, if any, which must be passed again
+     * together with the next bytes.
+     *
+     * @param buf
+     *            Buffer ready to be read with the received bytes
+     * @param out
+     *            Queue receiving the complete segments
+     * @return The number of segments added to the queue
+     * @throws java.net.ProtocolException
+     */
+    public int parse(ByteBuffer buf, Queue<JPIPDataSegment> out) throws ProtocolException {
+        int count = 0;
+
+        for (;;) {
+            if (pending == null) {
+                if ((pending = readHeader(buf)) == null)
+                    return count;
+
+                pendingFilled = 0;
+                if (pending.length > 0)
+                    pending.data = JPIPSegmentBufferPool.getSingletonInstance().reserve(pending.length);
+            }
+
+            int n = Math.min(pending.length - pendingFilled, buf.remaining());
+            if (n > 0) {
+                buf.get(pending.data, pendingFilled, n);
+                pendingFilled += n;
+            }
+
+            if (pendingFilled < pending.length)
+                return count;
+
+            out.add(pending);
+            pending = null;
+            count++;
+        }
+    }
+}
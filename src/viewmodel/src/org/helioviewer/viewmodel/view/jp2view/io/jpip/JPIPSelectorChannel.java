@@ -0,0 +1,695 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest;
+import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPResponse;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimator;
+import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPSocket;
+import org.helioviewer.viewmodel.view.jp2view.kakadu.JHV_Kdu_cache;
+
+/**
+ * A JPIP channel over a non-blocking connection, driven by one of the I/O
+ * threads of the {@link JPIPSelectorTransport}.
+ *
+ * <p>
+ * Requests are sent with {@link #send(JPIPRequest)} from any thread. They are
+ * pipelined and superseded exactly as in {@link JPIPSocket}. The responses are
+ * parsed on the I/O thread as their bytes arrive. The data segments parsed
+ * from every read are put in the queue of the channel as a part of their
+ * response, from where the owner of the channel takes them with
+ * {@link #poll(long)} and adds them to its cache. The EOR messages of
+ * superseded requests, of the request opening the channel and of the cache
+ * model updates are dropped, so that only the responses to the current
+ * view-window can complete it.
+ *
+ * <p>
+ * The first request of the channel is the one opening it, and the other
+ * requests are only written once its response has arrived, since they need
+ * the channel ID.
+ *
+ * @see JPIPSelectorTransport
+ */
+public class JPIPSelectorChannel {
+
+    /** States of the parsing of the incoming bytes */
+    private enum ReceiveState {
+        STATUS_LINE, HEADERS, CHUNK_HEADER, CHUNK_DATA, CHUNK_END, TRAILER
+    };
+
+    /** The size of the buffer receiving the bytes of the connection */
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** The size of the buffer with the de-chunked bytes not parsed yet */
+    private static final int BODY_BUFFER_SIZE = 16 * 1024;
+
+    /** The URI the channel is opened for */
+    private final URI uri;
+
+    /** The host of the connection */
+    private final String host;
+
+    /** The port of the connection */
+    private final int port;
+
+    /** The I/O thread serving this channel */
+    private final JPIPSelectorTransport.IOThread ioThread;
+
+    /** The connection, only used by the I/O thread */
+    private SocketChannel socketChannel = null;
+
+    /** The registration of the connection with the selector */
+    private SelectionKey key = null;
+
+    /** The path of the URI line of the requests */
+    private volatile String jpipPath;
+
+    /** The jpip channel ID, null until the channel is open */
+    private volatile String jpipChannelID = null;
+
+    /** The target ID, as sent by the server */
+    private volatile String jpipTargetID = null;
+
+    /** Indicates if the channel has been closed */
+    private volatile boolean closed = false;
+
+    /** The error which closed the channel, if any */
+    private volatile IOException failure = null;
+
+    /** Maximum number of requests written whose response has not arrived */
+    private int maxPipelinedRequests = JPIPSocket.DEFAULT_MAX_PIPELINED_REQUESTS;
+
+    /** Requests written to the connection, in order, awaiting a response */
+    private final LinkedList<JPIPRequest> inFlightRequests = new LinkedList<JPIPRequest>();
+
+    /** Requests waiting for a free slot in the pipeline */
+    private final LinkedList<JPIPRequest> queuedRequests = new LinkedList<JPIPRequest>();
+
+    /** The request whose response is being received */
+    private JPIPRequest receivingRequest = null;
+
+    /** Indicates if the EOR message of the response being received is kept */
+    private boolean keepEOR = false;
+
+    /** Formatted requests not completely written yet */
+    private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+
+    /** The bytes received from the connection */
+    private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+
+    /** The de-chunked bytes of the response not parsed yet */
+    private final ByteBuffer body = ByteBuffer.allocate(BODY_BUFFER_SIZE);
+
+    /** The current state of the parsing of the incoming bytes */
+    private ReceiveState state = ReceiveState.STATUS_LINE;
+
+    /** The response being received, until its headers are complete */
+    private HTTPResponse receivingHeaders = null;
+
+    /** The response being received */
+    private JPIPResponse receiving = null;
+
+    /** The number of bytes remaining in the current chunk */
+    private int chunkLength = 0;
+
+    /** The parser of the segments of the response being received */
+    private final JPIPSegmentParser parser = new JPIPSegmentParser();
+
+    /** The segments just parsed, before being queued */
+    private final LinkedList<JPIPDataSegment> parsed = new LinkedList<JPIPDataSegment>();
+
+    /** The parts of the received responses, waiting to be added to the cache */
+    private final LinkedBlockingQueue<JPIPResponse> received = new LinkedBlockingQueue<JPIPResponse>();
+
+    /** The first response of the channel, until it is taken */
+    private JPIPResponse connectResponse = null;
+
+    /** Indicates if the connection has been shut down by the I/O thread */
+    private boolean shutDown = false;
+
+    /** Number of bytes received */
+    private volatile long receivedBytes = 0;
+
+    /** Time of the last request sent or of the last bytes received */
+    private volatile long lastActivityTime = System.currentTimeMillis();
+
+    /** The estimator the received bytes are reported to, may be null */
+    private volatile BandwidthEstimator bandwidthEstimator = null;
+
+    /**
+     * Creates a channel for the given URI. The channel is opened by the
+     * {@link JPIPSelectorTransport}.
+     */
+    JPIPSelectorChannel(URI _uri, JPIPSelectorTransport.IOThread _ioThread) {
+        uri = _uri;
+        host = _uri.getHost();
+        port = _uri.getPort() <= 0 ? HTTPSocket.PORT : _uri.getPort();
+        jpipPath = _uri.getPath();
+        ioThread = _ioThread;
+
+        JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+
+        JPIPQuery query = new JPIPQuery();
+        query.setField(JPIPRequestField.CNEW.toString(), "http");
+        query.setField(JPIPRequestField.TYPE.toString(), "jpp-stream");
+        query.setField(JPIPRequestField.TID.toString(), "0");
+        req.setQuery(query.toString());
+
+        queuedRequests.add(req);
+    }
+
+    /**
+     * Sends a JPIPRequest. The request is written by the I/O thread as soon as
+     * the pipeline has a free slot. If it is a view-window request, it
+     * supersedes all the previous view-window requests.
+     *
+     * @param _req
+     * @throws IOException
+     *             If the channel is closed
+     */
+    public void send(JPIPRequest _req) throws IOException {
+        synchronized (this) {
+            if (closed)
+                throw failure != null ? failure : new IOException("The channel is closed");
+
+            if (_req.isWindowRequest()) {
+                Iterator<JPIPRequest> it = queuedRequests.iterator();
+                while (it.hasNext()) {
+                    JPIPRequest queued = it.next();
+                    if (queued.isWindowRequest()) {
+                        queued.cancel();
+                        it.remove();
+                    }
+                }
+                for (JPIPRequest inFlight : inFlightRequests)
+                    if (inFlight.isWindowRequest())
+                        inFlight.cancel();
+                if (receivingRequest != null && receivingRequest.isWindowRequest())
+                    receivingRequest.cancel();
+            }
+
+            queuedRequests.add(_req);
+            lastActivityTime = System.currentTimeMillis();
+        }
+
+        ioThread.requestFlush(this);
+    }
+
+    /**
+     * Waits until the server has answered the request opening the channel.
+     *
+     * @param timeout
+     *            Maximum time to wait in milliseconds
+     * @return The headers of the first response of the channel, which are
+     *         returned only once. Its data arrives in the queue of the channel.
+     * @throws IOException
+     *             If the channel could not be opened in time
+     */
+    public synchronized JPIPResponse awaitOpen(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (jpipChannelID == null && !closed) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+                throw new IOException("Timeout while opening the JPIP channel");
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while opening the JPIP channel");
+            }
+        }
+
+        if (jpipChannelID == null)
+            throw failure != null ? failure : new IOException("The channel is closed");
+
+        JPIPResponse res = connectResponse;
+        connectResponse = null;
+        return res;
+    }
+
+    /**
+     * Returns the next part of a received response, waiting for it if
+     * necessary. A part holds the data segments received at once for the
+     * request it answers, and ends with the EOR message if it completes the
+     * current view-window. Its segments have to be released once consumed,
+     * as done by {@link JHV_Kdu_cache#addJPIPResponseData(JPIPResponse)}.
+     *
+     * @param timeout
+     *            Maximum time to wait in milliseconds
+     * @return The part, or null if none arrived in time
+     * @throws InterruptedException
+     */
+    public JPIPResponse poll(long timeout) throws InterruptedException {
+        return received.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /** Tells if there are received parts of responses waiting to be taken. */
+    public boolean hasReceivedData() {
+        return !received.isEmpty();
+    }
+
+    /**
+     * Closes the channel and releases the data not taken yet. The connection
+     * is closed by the I/O thread.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        ioThread.requestClose(this);
+
+        JPIPResponse res;
+        while ((res = received.poll()) != null) {
+            JPIPDataSegment seg;
+            while ((seg = res.removeJpipDataSegment()) != null)
+                seg.release();
+        }
+    }
+
+    /** Tells if the channel is closed. */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Returns the error which closed the channel, or null. */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the number of requests whose response has not been completely
+     * received yet.
+     */
+    public synchronized int getNumPendingRequests() {
+        return inFlightRequests.size() + queuedRequests.size() + (receivingRequest != null ? 1 : 0);
+    }
+
+    /**
+     * Sets the maximum number of requests written to the connection before
+     * their responses arrive.
+     */
+    public synchronized void setMaxPipelinedRequests(int _maxPipelinedRequests) {
+        maxPipelinedRequests = Math.max(1, _maxPipelinedRequests);
+        ioThread.requestFlush(this);
+    }
+
+    /** Returns the URI of the channel */
+    public URI getURI() {
+        return uri;
+    }
+
+    /** Returns the jpip channel ID, or null if the channel is not open yet */
+    public String getJpipChannelID() {
+        return jpipChannelID;
+    }
+
+    /** Returns the target ID sent by the server */
+    public String getJpipTargetID() {
+        return jpipTargetID;
+    }
+
+    /** Returns the number of bytes received */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * Returns the time in milliseconds of the last request sent or of the
+     * last bytes received, whichever came last.
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    /**
+     * Sets the estimator the transfers of this channel are reported to. It is
+     * fed from the I/O thread.
+     */
+    public void setBandwidthEstimator(BandwidthEstimator _bandwidthEstimator) {
+        bandwidthEstimator = _bandwidthEstimator;
+    }
+
+    // The following methods are only called by the I/O thread
+
+    /** Starts connecting and registers the connection with the selector. */
+    void register(Selector selector) throws IOException {
+        socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+        socketChannel.socket().setKeepAlive(true);
+        socketChannel.socket().setTcpNoDelay(true);
+
+        if (socketChannel.connect(new InetSocketAddress(host, port))) {
+            key = socketChannel.register(selector, SelectionKey.OP_READ, this);
+            flush();
+        } else {
+            key = socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /** Completes the connection. */
+    void handleConnect() throws IOException {
+        if (socketChannel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            flush();
+        }
+    }
+
+    /**
+     * Formats the requests allowed into the pipeline and updates the interest
+     * of the selector in writing.
+     */
+    void flush() {
+        if (key == null || !key.isValid())
+            return;
+
+        synchronized (this) {
+            // Only the opening request may be written before the channel ID is
+            // known
+            while (!queuedRequests.isEmpty() && inFlightRequests.size() < maxPipelinedRequests && (jpipChannelID != null || (inFlightRequests.isEmpty() && receivingRequest == null))) {
+                JPIPRequest req = queuedRequests.removeFirst();
+                inFlightRequests.add(req);
+                output.add(ByteBuffer.wrap(JPIPSocket.formatRequest(req, jpipPath, host + ":" + port, jpipChannelID).getBytes()));
+            }
+        }
+
+        if (socketChannel.isConnected())
+            key.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /** Writes as much of the formatted requests as possible. */
+    void handleWrite() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buf = output.getFirst();
+            socketChannel.write(buf);
+            if (buf.hasRemaining())
+                return;
+            output.removeFirst();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** Reads and parses the available bytes. */
+    void handleRead() throws IOException {
+        int n = socketChannel.read(input);
+
+        if (n < 0)
+            throw new EOFException("Connection closed by the server");
+
+        receivedBytes += n;
+        if (n > 0)
+            lastActivityTime = System.currentTimeMillis();
+
+        input.flip();
+        try {
+            processInput();
+        } finally {
+            input.compact();
+        }
+
+        if (!input.hasRemaining())
+            throw new ProtocolException("HTTP line too long");
+
+        queueParsed();
+    }
+
+    /**
+     * Puts the segments just parsed in the queue as a part of the response
+     * being received. The EOR message is dropped if it must not complete the
+     * current view-window. Since it is the last message of the response, the
+     * request is no longer pending once it has been parsed.
+     */
+    private void queueParsed() throws IOException {
+        boolean ended = false;
+
+        Iterator<JPIPDataSegment> it = parsed.iterator();
+        while (it.hasNext()) {
+            JPIPDataSegment seg = it.next();
+            if (seg.isEOR) {
+                ended = true;
+                if (receiving.isCancelled() || !keepEOR) {
+                    seg.release();
+                    it.remove();
+                }
+            }
+        }
+
+        if (!parsed.isEmpty()) {
+            JPIPResponse part = new JPIPResponse(receiving);
+            part.setRequest(receivingRequest);
+            for (JPIPDataSegment seg : parsed)
+                part.addJpipDataSegment(seg);
+            parsed.clear();
+
+            received.add(part);
+        }
+
+        if (ended) {
+            synchronized (this) {
+                receivingRequest = null;
+            }
+        }
+    }
+
+    /** Reads a line from the input buffer, or returns null if incomplete. */
+    private String readLine() {
+        int start = input.position(), limit = input.limit();
+
+        for (int i = start; i < limit; i++) {
+            if (input.get(i) == '\n') {
+                int end = i;
+                if (end > start && input.get(end - 1) == '\r')
+                    end--;
+                String line = new String(input.array(), input.arrayOffset() + start, end - start);
+                input.position(i + 1);
+                return line;
+            }
+        }
+        return null;
+    }
+
+    /** Advances the receiving state machine over the input buffer. */
+    private void processInput() throws IOException {
+        String line;
+
+        for (;;) {
+            switch (state) {
+            case STATUS_LINE:
+                if ((line = readLine()) == null)
+                    return;
+                if (line.length() > 0) {
+                    receivingHeaders = parseStatusLine(line);
+                    state = ReceiveState.HEADERS;
+                }
+                break;
+
+            case HEADERS:
+                if ((line = readLine()) == null)
+                    return;
+                if (line.length() > 0) {
+                    String[] parts = line.split(": ", 2);
+                    if (parts.length != 2)
+                        throw new ProtocolException("Invalid HTTP header format");
+                    receivingHeaders.setHeader(parts[0], parts[1]);
+                } else {
+                    headersReceived();
+                    state = ReceiveState.CHUNK_HEADER;
+                }
+                break;
+
+            case CHUNK_HEADER:
+                if ((line = readLine()) == null)
+                    return;
+                int end = line.indexOf(';');
+                try {
+                    chunkLength = Integer.parseInt((end < 0 ? line : line.substring(0, end)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk length format");
+                }
+                state = chunkLength == 0 ? ReceiveState.TRAILER : ReceiveState.CHUNK_DATA;
+                break;
+
+            case CHUNK_DATA:
+                if (!input.hasRemaining())
+                    return;
+
+                int n = Math.min(chunkLength, Math.min(input.remaining(), body.remaining()));
+                int limit = input.limit();
+                input.limit(input.position() + n);
+                body.put(input);
+                input.limit(limit);
+
+                BandwidthEstimator estimator = bandwidthEstimator;
+                if (estimator != null)
+                    estimator.dataReceived(n, System.currentTimeMillis());
+
+                body.flip();
+                parser.parse(body, parsed);
+                body.compact();
+
+                if ((chunkLength -= n) == 0)
+                    state = ReceiveState.CHUNK_END;
+                break;
+
+            case CHUNK_END:
+                if ((line = readLine()) == null)
+                    return;
+                if (line.length() > 0)
+                    throw new ProtocolException("An empty new line was expected after chunk");
+                state = ReceiveState.CHUNK_HEADER;
+                break;
+
+            case TRAILER:
+                if ((line = readLine()) == null)
+                    return;
+                if (line.length() == 0) {
+                    if (body.position() > 0 || parser.isInsideSegment())
+                        throw new ProtocolException("Response ended inside a data segment");
+                    queueParsed();
+                    receiving = null;
+                    synchronized (this) {
+                        receivingRequest = null;
+                    }
+                    state = ReceiveState.STATUS_LINE;
+                    flush();
+                }
+                break;
+            }
+        }
+    }
+
+    /** Parses the status line of a response */
+    private static HTTPResponse parseStatusLine(String line) throws ProtocolException {
+        String[] parts = line.split(" ", 3);
+
+        if (parts.length != 3 || !parts[0].startsWith("HTTP/"))
+            throw new ProtocolException("Invalid HTTP message");
+
+        try {
+            return new HTTPResponse(Integer.parseInt(parts[1]), parts[2]);
+        } catch (NumberFormatException ex) {
+            throw new ProtocolException("Invalid HTTP status code format");
+        }
+    }
+
+    /**
+     * Matches the response whose headers were just received with its request,
+     * and opens the channel if it is the first one.
+     */
+    private void headersReceived() throws IOException {
+        JPIPResponse res = new JPIPResponse(receivingHeaders);
+        receivingHeaders = null;
+
+        synchronized (this) {
+            receivingRequest = inFlightRequests.isEmpty() ? null : inFlightRequests.removeFirst();
+        }
+        res.setRequest(receivingRequest);
+
+        if (res.getCode() != 200)
+            throw new IOException("Invalid status code returned (" + res.getCode() + ")");
+        if ((res.getHeader("Transfer-Encoding") == null) || (!res.getHeader("Transfer-Encoding").equals("chunked")))
+            throw new IOException("Only chunked responses are supported");
+        if (res.getHeader("Content-Type") != null && !res.getHeader("Content-Type").equals("image/jpp-stream"))
+            throw new IOException("Expected image/jpp-stream content!");
+
+        // Only the responses to the view-window requests may complete it
+        keepEOR = jpipChannelID != null && receivingRequest != null && receivingRequest.getMethod() == HTTPRequest.Method.GET;
+
+        if (jpipChannelID == null) {
+            HashMap<String, String> map = JPIPSocket.parseChannelParameters(res);
+
+            if (map == null)
+                throw new IOException("The header 'JPIP-cnew' was not sent by the server!");
+            if (map.get("cid") == null)
+                throw new IOException("The channel id was not sent by the server");
+            if (map.get("transport") == null || !map.get("transport").equals("http"))
+                throw new IOException("The client currently only supports http transport.");
+
+            synchronized (this) {
+                jpipPath = "/" + map.get("path");
+                jpipTargetID = res.getHeader("JPIP-tid");
+                jpipChannelID = map.get("cid");
+                connectResponse = res;
+                notifyAll();
+            }
+        }
+
+        receiving = res;
+        parser.reset();
+
+        BandwidthEstimator estimator = bandwidthEstimator;
+        if (estimator != null)
+            estimator.transferStarted(System.currentTimeMillis());
+
+        // The response frees a slot of the pipeline
+        flush();
+    }
+
+    /**
+     * Closes the connection, trying to close the JPIP channel first, and
+     * releases the queued data.
+     *
+     * @param cause
+     *            The error closing the channel, or null
+     * @return False, if the channel had already been shut down
+     */
+    boolean shutdown(IOException cause) {
+        if (shutDown)
+            return false;
+        shutDown = true;
+
+        synchronized (this) {
+            if (cause != null && failure == null)
+                failure = cause;
+            closed = true;
+            notifyAll();
+
+            inFlightRequests.clear();
+            queuedRequests.clear();
+            receivingRequest = null;
+        }
+
+        try {
+            if (socketChannel != null) {
+                if (cause == null && jpipChannelID != null && socketChannel.isConnected()) {
+                    JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+
+                    JPIPQuery query = new JPIPQuery();
+                    query.setField(JPIPRequestField.CCLOSE.toString(), jpipChannelID);
+                    query.setField(JPIPRequestField.LEN.toString(), "0");
+                    req.setQuery(query.toString());
+
+                    // Best effort, nothing is going to be received
+                    socketChannel.write(ByteBuffer.wrap(JPIPSocket.formatRequest(req, jpipPath, host + ":" + port, null).getBytes()));
+                }
+                socketChannel.close();
+            }
+        } catch (IOException e) {
+        }
+
+        if (key != null)
+            key.cancel();
+
+        parser.reset();
+        for (JPIPDataSegment seg : parsed)
+            seg.release();
+        parsed.clear();
+
+        return true;
+    }
+}
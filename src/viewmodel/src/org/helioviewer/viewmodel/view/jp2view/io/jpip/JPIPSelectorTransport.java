@@ -0,0 +1,217 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.helioviewer.base.logging.Log;
+
+/**
+ * Non-blocking transport driving the JPIP channels of all the layers from one
+ * or two I/O threads.
+ *
+ * <p>
+ * With the blocking {@link JPIPSocket}, every layer needs a thread parked on
+ * its connection. With this transport every layer opens a
+ * {@link JPIPSelectorChannel} instead, and a single selector thread writes
+ * the requests and parses the responses of many connections, putting the
+ * received data segments in per-channel queues. The owner of a channel takes
+ * them from its queue and adds them to its cache when it suits it.
+ *
+ * <p>
+ * The transport is optional: it is only used if it has been enabled with the
+ * system property <code>jhv.jpip.nio</code>. The number of I/O threads is read
+ * from <code>jhv.jpip.nio.threads</code> and limited to {@link #MAX_THREADS}.
+ *
+ * @see JPIPSelectorChannel
+ */
+public class JPIPSelectorTransport {
+
+    // Singleton pattern
+    private static JPIPSelectorTransport singletonInstance = null;
+
+    public static synchronized JPIPSelectorTransport getSingletonInstance() {
+        if (singletonInstance == null)
+            singletonInstance = new JPIPSelectorTransport(Math.max(1, Math.min(MAX_THREADS, Integer.getInteger("jhv.jpip.nio.threads", 1))));
+        return singletonInstance;
+    }
+
+    /** Maximum number of I/O threads */
+    public static final int MAX_THREADS = 2;
+
+    /** The I/O threads */
+    private final IOThread[] threads;
+
+    /**
+     * Tells if the non-blocking transport has been enabled.
+     *
+     * @return True, if the system property <code>jhv.jpip.nio</code> is set to
+     *         true
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("jhv.jpip.nio");
+    }
+
+    private JPIPSelectorTransport(int numThreads) {
+        threads = new IOThread[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            threads[i] = new IOThread("JPIPSelector-" + i);
+    }
+
+    /**
+     * Opens a new JPIP channel for the given URI. The connection is
+     * established in the background; {@link JPIPSelectorChannel#awaitOpen}
+     * waits for it.
+     *
+     * @param uri
+     *            URI of the JPIP target
+     * @return The new channel
+     * @throws IOException
+     *             If the I/O thread could not be started
+     */
+    public JPIPSelectorChannel open(URI uri) throws IOException {
+        IOThread thread = threads[0];
+        for (int i = 1; i < threads.length; i++)
+            if (threads[i].getNumChannels() < thread.getNumChannels())
+                thread = threads[i];
+
+        JPIPSelectorChannel channel = new JPIPSelectorChannel(uri, thread);
+        thread.requestRegister(channel);
+        return channel;
+    }
+
+    /** Returns the number of channels served by all the I/O threads. */
+    public int getNumChannels() {
+        int total = 0;
+        for (IOThread thread : threads)
+            total += thread.getNumChannels();
+        return total;
+    }
+
+    /** Returns the number of I/O threads. */
+    public int getNumThreads() {
+        return threads.length;
+    }
+
+    /**
+     * An I/O thread with its selector. The channels only touch their
+     * connection from this thread; other threads post their requests to its
+     * queues and wake the selector up.
+     */
+    static class IOThread implements Runnable {
+
+        private final String name;
+        private Selector selector = null;
+        private Thread thread = null;
+
+        private final ConcurrentLinkedQueue<JPIPSelectorChannel> registrations = new ConcurrentLinkedQueue<JPIPSelectorChannel>();
+        private final ConcurrentLinkedQueue<JPIPSelectorChannel> flushes = new ConcurrentLinkedQueue<JPIPSelectorChannel>();
+        private final ConcurrentLinkedQueue<JPIPSelectorChannel> closes = new ConcurrentLinkedQueue<JPIPSelectorChannel>();
+
+        private volatile int numChannels = 0;
+
+        IOThread(String _name) {
+            name = _name;
+        }
+
+        int getNumChannels() {
+            return numChannels;
+        }
+
+        /** Starts the thread on demand */
+        private synchronized void start() throws IOException {
+            if (thread != null)
+                return;
+
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void requestRegister(JPIPSelectorChannel channel) throws IOException {
+            start();
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestFlush(JPIPSelectorChannel channel) {
+            flushes.add(channel);
+            if (selector != null)
+                selector.wakeup();
+        }
+
+        void requestClose(JPIPSelectorChannel channel) {
+            closes.add(channel);
+            if (selector != null)
+                selector.wakeup();
+        }
+
+        /** Processes the requests posted by other threads */
+        private void processRequests() {
+            JPIPSelectorChannel channel;
+
+            while ((channel = registrations.poll()) != null) {
+                numChannels++;
+                try {
+                    // A channel closed in the meantime is shut down below
+                    if (!channel.isClosed())
+                        channel.register(selector);
+                } catch (IOException e) {
+                    shutdown(channel, e);
+                }
+            }
+
+            while ((channel = flushes.poll()) != null)
+                if (!channel.isClosed())
+                    channel.flush();
+
+            while ((channel = closes.poll()) != null)
+                shutdown(channel, null);
+        }
+
+        private void shutdown(JPIPSelectorChannel channel, IOException cause) {
+            if (channel.shutdown(cause))
+                numChannels--;
+        }
+
+        public void run() {
+            for (;;) {
+                try {
+                    processRequests();
+                    selector.select();
+                } catch (IOException e) {
+                    Log.error(">> JPIPSelectorTransport.run() > Error in selector.", e);
+                    continue;
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    JPIPSelectorChannel channel = (JPIPSelectorChannel) key.attachment();
+                    if (!key.isValid() || channel.isClosed())
+                        continue;
+
+                    try {
+                        if (key.isConnectable())
+                            channel.handleConnect();
+                        if (key.isValid() && key.isWritable())
+                            channel.handleWrite();
+                        if (key.isValid() && key.isReadable())
+                            channel.handleRead();
+                    } catch (IOException e) {
+                        shutdown(channel, e);
+                    } catch (RuntimeException e) {
+                        Log.error(">> JPIPSelectorTransport.run() > Unexpected error in channel.", e);
+                        shutdown(channel, new IOException(e.getMessage()));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -3,19 +3,29 @@ package org.helioviewer.viewmodel.view.jp2view.io.jpip;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 
-import org.helioviewer.viewmodel.view.jp2view.io.ChunkedInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.BufferedChunkedInputStream;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimator;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPHeaderKey;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPResponse;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPSocket;
 import org.helioviewer.viewmodel.view.jp2view.io.http.HTTPRequest.Method;
 
-import org.helioviewer.viewmodel.view.jp2view.J2KReader;
-
 /**
  * Assumes a persistent HTTP connection.
  * 
+ * <p>
+ * Requests are pipelined: up to <code>maxPipelinedRequests</code> requests are
+ * written to the connection before the responses of the previous ones have
+ * arrived, and the rest wait in a queue. Since HTTP/1.1 responses come back in
+ * request order, each received response is matched with the oldest
+ * outstanding request. A new view-window request supersedes the older ones:
+ * those still queued are dropped and those already written are marked as
+ * cancelled.
+ * 
  * @author caplins
  * 
  */
@@ -33,6 +43,21 @@ public class JPIPSocket extends HTTPSocket {
      */
     private String jpipPath;
 
+    /** The URI the current channel was opened for */
+    private URI jpipURI;
+
+    /** The target ID of the current channel, as sent by the server */
+    private String jpipTargetID;
+
+    /** The first response of the current channel, until it is taken */
+    private JPIPResponse connectResponse;
+
+    /**
+     * The owner of the cache whose contents the server cache model of the
+     * current channel describes, set by the {@link JPIPSocketPool}
+     */
+    private Object channelOwner = null;
+
     /** Amount of data (bytes) of the last response */
     private int receivedData = 0;
 
@@ -42,6 +67,31 @@ public class JPIPSocket extends HTTPSocket {
     /** Time when received the last reply data */
     private long replyDataTm = 0;
 
+    /** The estimator fed with the received data, may be null */
+    private volatile BandwidthEstimator bandwidthEstimator = null;
+
+    /** The default number of requests that may be in flight at once */
+    public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 4;
+
+    /** Maximum number of requests written whose response has not arrived */
+    private int maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+
+    /** Requests written to the connection, in order, awaiting a response */
+    private final LinkedList<JPIPRequest> inFlightRequests = new LinkedList<JPIPRequest>();
+
+    /** Requests waiting for a free slot in the pipeline */
+    private final LinkedList<JPIPRequest> queuedRequests = new LinkedList<JPIPRequest>();
+
+    /** The request whose response is being received */
+    private JPIPRequest receivingRequest = null;
+
+    /**
+     * The body of the last response whose header was received. Until it has
+     * been read to its last chunk, the connection is in the middle of a
+     * response.
+     */
+    private volatile BufferedChunkedInputStream receivingBody = null;
+
     /** Default constructor. */
     public JPIPSocket() {
         super();
@@ -58,8 +108,24 @@ public class JPIPSocket extends HTTPSocket {
      */
     public Object connect(URI _uri) throws IOException {
         super.connect(_uri);
-        
+        return openChannel(_uri);
+    }
+
+    /**
+     * Opens a new JPIP channel for the specified URI on the already connected
+     * socket. Any previous channel must have been closed with
+     * {@link #closeChannel()}.
+     * 
+     * @param _uri
+     * @return The first response of the server for the new channel.
+     * @throws IOException
+     */
+    public JPIPResponse openChannel(URI _uri) throws IOException {
+        jpipURI = _uri;
         jpipPath = _uri.getPath();
+        jpipChannelID = null;
+        jpipTargetID = null;
+        channelOwner = null;
 
         JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
 
@@ -79,16 +145,7 @@ public class JPIPSocket extends HTTPSocket {
         if (res == null)
             throw new IOException("After conncting to the server, it did not send a response.");
 
-        HashMap<String, String> map = null;
-        String[] cnewParams = { "cid", "transport", "host", "path", "port", "auxport" };
-        if (res.getHeader("JPIP-cnew") != null) {
-            map = new HashMap<String, String>();
-            String[] parts = res.getHeader("JPIP-cnew").split(",");
-            for (int i = 0; i < parts.length; i++)
-                for (int j = 0; j < cnewParams.length; j++)
-                    if (parts[i].startsWith(cnewParams[j] + "="))
-                        map.put(cnewParams[j], parts[i].substring(cnewParams[j].length() + 1));
-        }
+        HashMap<String, String> map = parseChannelParameters(res);
 
         if (map == null)
             throw new IOException("The header 'JPIP-cnew' was not sent by the server!");
@@ -103,10 +160,85 @@ public class JPIPSocket extends HTTPSocket {
         if (map.get("transport") == null || !map.get("transport").equals("http"))
             throw new IOException("The client currently only supports http transport.");
 
+        jpipTargetID = res.getHeader("JPIP-tid");
+        connectResponse = res;
+
         return res;
 
     };
 
+    /**
+     * Parses the parameters of the new channel from the 'JPIP-cnew' header of
+     * a response.
+     * 
+     * @param res
+     * @return The parameters by name, or null if the header is missing
+     */
+    static HashMap<String, String> parseChannelParameters(JPIPResponse res) {
+        HashMap<String, String> map = null;
+        String[] cnewParams = { "cid", "transport", "host", "path", "port", "auxport" };
+        if (res.getHeader("JPIP-cnew") != null) {
+            map = new HashMap<String, String>();
+            String[] parts = res.getHeader("JPIP-cnew").split(",");
+            for (int i = 0; i < parts.length; i++)
+                for (int j = 0; j < cnewParams.length; j++)
+                    if (parts[i].startsWith(cnewParams[j] + "="))
+                        map.put(cnewParams[j], parts[i].substring(cnewParams[j].length() + 1));
+        }
+        return map;
+    }
+
+    /**
+     * Closes the current JPIP channel but keeps the connection open, so that a
+     * new channel can be opened on it with {@link #openChannel(URI)}. The
+     * response of the server is read and discarded.
+     * 
+     * @throws IOException
+     *             If the connection cannot be used any more
+     */
+    public void closeChannel() throws IOException {
+        if (jpipChannelID == null)
+            return;
+
+        JPIPRequest req = new JPIPRequest(HTTPRequest.Method.GET);
+
+        JPIPQuery query = new JPIPQuery();
+        query.setField(JPIPRequestField.CCLOSE.toString(), jpipChannelID);
+        query.setField(JPIPRequestField.LEN.toString(), "0");
+        req.setQuery(query.toString());
+
+        jpipChannelID = null;
+        jpipTargetID = null;
+        connectResponse = null;
+        channelOwner = null;
+
+        send(req);
+
+        JPIPResponse res;
+        JPIPDataSegment seg;
+
+        while (getNumPendingRequests() > 0) {
+            if ((res = receive()) == null)
+                throw new IOException("Connection closed by the server while closing the channel");
+            while ((seg = res.removeJpipDataSegment()) != null)
+                seg.release();
+        }
+    }
+
+    /**
+     * Returns the first response received when the current channel was opened,
+     * so that its data can be added to the cache. The response is returned
+     * only once; afterwards, and for channels handed out again by the
+     * {@link JPIPSocketPool}, this method returns null.
+     * 
+     * @return The first response of the channel, or null
+     */
+    public synchronized JPIPResponse takeConnectResponse() {
+        JPIPResponse res = connectResponse;
+        connectResponse = null;
+        return res;
+    }
+
     /** Closes the JPIPSocket */
     public void close() throws IOException {
         if (this.isClosed())
@@ -121,33 +253,126 @@ public class JPIPSocket extends HTTPSocket {
                 query.setField(JPIPRequestField.LEN.toString(), "0");
                 req.setQuery(query.toString());
 
-                send(req);
+                // Bypasses the pipeline, nothing is going to be received
+                write(req);
             }
 
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        endOfStreamReached();
+
         super.close();
     }
     
     /**
-     * Sends a JPIPRequest
+     * Sends a JPIPRequest. The request is written immediately if the pipeline
+     * has a free slot, otherwise it is queued until a response arrives. If it
+     * is a view-window request, it supersedes all the previous view-window
+     * requests.
      * 
      * @param _req
      * @throws IOException
      */
-    public void send(JPIPRequest _req) throws IOException {
+    public synchronized void send(JPIPRequest _req) throws IOException {
+        if (_req.isWindowRequest()) {
+            Iterator<JPIPRequest> it = queuedRequests.iterator();
+            while (it.hasNext()) {
+                JPIPRequest queued = it.next();
+                if (queued.isWindowRequest()) {
+                    queued.cancel();
+                    it.remove();
+                }
+            }
+            for (JPIPRequest inFlight : inFlightRequests)
+                if (inFlight.isWindowRequest())
+                    inFlight.cancel();
+            if (receivingRequest != null && receivingRequest.isWindowRequest())
+                receivingRequest.cancel();
+        }
+
+        queuedRequests.add(_req);
+        flushQueuedRequests();
+    }
+
+    /**
+     * Writes queued requests while the pipeline has free slots.
+     * 
+     * @throws IOException
+     */
+    private synchronized void flushQueuedRequests() throws IOException {
+        while (!queuedRequests.isEmpty() && inFlightRequests.size() < maxPipelinedRequests) {
+            JPIPRequest req = queuedRequests.removeFirst();
+            inFlightRequests.add(req);
+            write(req);
+        }
+    }
+
+    /**
+     * Removes the oldest outstanding request, which is the one answered by the
+     * response just received, and makes room for the queued ones.
+     * 
+     * @return The request answered, or null if none was outstanding
+     * @throws IOException
+     */
+    private synchronized JPIPRequest responseReceived() throws IOException {
+        receivingRequest = inFlightRequests.isEmpty() ? null : inFlightRequests.removeFirst();
+        flushQueuedRequests();
+        return receivingRequest;
+    }
+
+    /**
+     * Forgets all the outstanding requests, since no response will arrive for
+     * them once the end of stream has been reached.
+     */
+    private synchronized void endOfStreamReached() {
+        receivingRequest = null;
+        receivingBody = null;
+        inFlightRequests.clear();
+        queuedRequests.clear();
+    }
+
+    /**
+     * Formats a JPIPRequest and writes it to the connection.
+     * 
+     * @param _req
+     * @throws IOException
+     */
+    private void write(JPIPRequest _req) throws IOException {
+        String str = formatRequest(_req, jpipPath, getHost() + ":" + getPort(), jpipChannelID);
+
+        if (!isConnected()) {
+            reconnect();
+        }
+        // Writes the result to the output stream.
+        getOutputStream().write(str.getBytes());
+    }
+
+    /**
+     * Formats a JPIPRequest as an HTTP message, adding the default headers and
+     * the channel ID if they are missing.
+     * 
+     * @param _req
+     * @param _path
+     *            The path of the URI line
+     * @param _host
+     *            The value of the Host header, as host:port
+     * @param _channelID
+     *            The JPIP channel ID, or null if there is no channel
+     * @return The message ready to be written to the connection
+     */
+    static String formatRequest(JPIPRequest _req, String _path, String _host, String _channelID) {
         String queryStr = _req.getQuery();
 
         // Adds some default headers if they were not already added.
         if (!_req.headerExists(HTTPHeaderKey.CACHE_CONTROL.toString()))
             _req.setHeader(HTTPHeaderKey.CACHE_CONTROL.toString(), "no-cache");
         if (!_req.headerExists(HTTPHeaderKey.HOST.toString()))
-            _req.setHeader(HTTPHeaderKey.HOST.toString(), (getHost() + ":" + getPort()));
+            _req.setHeader(HTTPHeaderKey.HOST.toString(), _host);
         // Adds a necessary JPIP request field
-        if ((queryStr.indexOf("cid=") == -1) && (queryStr.indexOf("cclose") == -1) && jpipChannelID != null)
-            queryStr += "&cid=" + jpipChannelID;
+        if ((queryStr.indexOf("cid=") == -1) && (queryStr.indexOf("cclose") == -1) && _channelID != null)
+            queryStr += "&cid=" + _channelID;
 
         if (_req.getMethod() == Method.GET) {
             if (!_req.headerExists(HTTPHeaderKey.CONNECTION.toString()))
@@ -163,7 +388,7 @@ public class JPIPSocket extends HTTPSocket {
 
         // Adds the URI line.
         str.append(_req.getMethod() + " ");
-        str.append(jpipPath);
+        str.append(_path);
         if (_req.getMethod() == Method.GET)
             str.append("?" + queryStr);
         str.append(" ");
@@ -178,11 +403,7 @@ public class JPIPSocket extends HTTPSocket {
         if (_req.getMethod() == HTTPRequest.Method.POST)
             str.append(queryStr);
 
-        if (!isConnected()) {
-            reconnect();
-        }
-        // Writes the result to the output stream.
-        getOutputStream().write(str.toString().getBytes());
+        return str.toString();
     }
 
     /** Receives a JPIPResponse returning null if EOS reached */
@@ -190,10 +411,16 @@ public class JPIPSocket extends HTTPSocket {
         //long tini = System.currentTimeMillis();
 
         HTTPResponse httpRes = (HTTPResponse) super.receive();
-        if (httpRes == null)
+        if (httpRes == null) {
+            endOfStreamReached();
             return null;
+        }
 
         JPIPResponse res = new JPIPResponse(httpRes);
+        res.setRequest(responseReceived());
+
+        BufferedChunkedInputStream input = new BufferedChunkedInputStream(getWindowedInputStream());
+        receivingBody = input;
 
         if (res.getCode() != 200)
             throw new IOException("Invalid status code returned (" + res.getCode() + ")");
@@ -204,7 +431,11 @@ public class JPIPSocket extends HTTPSocket {
 
         replyTextTm = System.currentTimeMillis();
 
-        ChunkedInputStream input = new ChunkedInputStream(getInputStream());
+        BandwidthEstimator estimator = bandwidthEstimator;
+        if (estimator != null)
+            estimator.transferStarted(replyTextTm);
+
+        input.setBandwidthEstimator(estimator);
         JPIPDataInputStream jpip = new JPIPDataInputStream(input);
 
         JPIPDataSegment seg;
@@ -216,53 +447,133 @@ public class JPIPSocket extends HTTPSocket {
         replyDataTm = System.currentTimeMillis();
         receivedData = input.getTotalLength();
 
-        if (receivedData > 0){
-            System.out.println("[receive] receivedData: " + receivedData);
-            System.out.println("[receive] replyDataTm: " + replyDataTm);
-            System.out.println("[receive] replyTextTm: " + replyTextTm);
-                  
-            // In bits/seconds
-            System.out.format("[receive] Bandwidth: %.2f bits/seg.\n", (double)(receivedData * 8.0) / (double)((replyDataTm - replyTextTm)/1000.0));
-            // In KB/seconds
-            System.out.format("[receive] Bandwidth: %.2f bits/seg.\n", (((double)(receivedData * 8.0) / (double)((replyDataTm - replyTextTm)/1000.0)/8)/1024));            
-            
-            // In bits/seconds
-            J2KReader.bw_last = (double)(receivedData * 8.0) / (double)((replyDataTm - replyTextTm)/1000.0);
-        }
-
         return res;
     }
     
     /** Receive the header of a JPIPResponse message */
     public JPIPResponse receiveHeader() throws IOException {    	
     	HTTPResponse httpRes = (HTTPResponse) super.receive();
-        if (httpRes == null)
+        if (httpRes == null) {
+            endOfStreamReached();
             return null;
+        }
+
+        JPIPResponse res = new JPIPResponse(httpRes);
+        res.setRequest(responseReceived());
+
+        receivingBody = new BufferedChunkedInputStream(getWindowedInputStream());
 
-        JPIPResponse res = new JPIPResponse(httpRes);        
-        
         if (res.getCode() != 200)
             throw new IOException("Invalid status code returned (" + res.getCode() + ")");
         if ((res.getHeader("Transfer-Encoding") == null) || (!res.getHeader("Transfer-Encoding").equals("chunked")))
             throw new IOException("Only chunked responses are supported");
         if (res.getHeader("Content-Type") != null && !res.getHeader("Content-Type").equals("image/jpp-stream"))
-            throw new IOException("Expected image/jpp-stream content!");      
-        
+            throw new IOException("Expected image/jpp-stream content!");
+
+        BandwidthEstimator estimator = bandwidthEstimator;
+        if (estimator != null)
+            estimator.transferStarted(System.currentTimeMillis());
+
         return res;
     }
     
-    /** Returns a JPIPDataInputStream */
+    /**
+     * Returns a JPIPDataInputStream over the body of the response whose header
+     * was received last
+     */
     public JPIPDataInputStream receiveJPIPDataStream() throws IOException {
-    	ChunkedInputStream input = new ChunkedInputStream(getInputStream()); 	
+        BufferedChunkedInputStream input = receivingBody;
+        if (input == null)
+            throw new IOException("No response is being received");
+
+    	input.setBandwidthEstimator(bandwidthEstimator);
         JPIPDataInputStream jpip = new JPIPDataInputStream(input);
     	return jpip;
     }    
+
+    /**
+     * Tells if the connection is in the middle of a response, i.e. if the body
+     * of the last response received has not been read to its end. The rest of
+     * that body would be taken for the next response.
+     */
+    public boolean isReceivingResponse() {
+        BufferedChunkedInputStream input = receivingBody;
+        return input != null && !input.isFinished();
+    }
        
+    /**
+     * Returns the number of requests sent whose response has not been
+     * received yet, including the ones still waiting in the queue.
+     */
+    public synchronized int getNumPendingRequests() {
+        return inFlightRequests.size() + queuedRequests.size();
+    }
+
+    /**
+     * Sets the maximum number of requests written to the connection before
+     * their responses arrive. A value of 1 disables pipelining.
+     * 
+     * @param _maxPipelinedRequests
+     * @throws IOException
+     */
+    public synchronized void setMaxPipelinedRequests(int _maxPipelinedRequests) throws IOException {
+        maxPipelinedRequests = Math.max(1, _maxPipelinedRequests);
+        flushQueuedRequests();
+    }
+
+    /** Returns the maximum number of requests in flight at once. */
+    public synchronized int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
+    /**
+     * Sets the estimator to be fed with the bytes received and their arrival
+     * times.
+     * 
+     * @param _bandwidthEstimator
+     *            The estimator, or null to stop feeding any
+     */
+    public void setBandwidthEstimator(BandwidthEstimator _bandwidthEstimator) {
+        bandwidthEstimator = _bandwidthEstimator;
+    }
+
+    /** Returns the estimator fed with the received data, or null */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return bandwidthEstimator;
+    }
+
     /** Returns the JPIP channel ID */
     public String getJpipChannelID() {
         return jpipChannelID;
     }
 
+    /** Returns the JPIP target ID of the current channel */
+    public String getJpipTargetID() {
+        return jpipTargetID;
+    }
+
+    /** Returns the URI the current channel was opened for */
+    public URI getJpipURI() {
+        return jpipURI;
+    }
+
+    /** Returns the owner of the cache the current channel was used for */
+    Object getChannelOwner() {
+        return channelOwner;
+    }
+
+    /** Sets the owner of the cache the current channel is used for */
+    void setChannelOwner(Object _channelOwner) {
+        channelOwner = _channelOwner;
+    }
+
+    /** Forgets the times and the size of the last response. */
+    void resetTransferStatistics() {
+        receivedData = 0;
+        replyTextTm = 0;
+        replyDataTm = 0;
+    }
+
     /**
      * Returns the JPIP path.
      */
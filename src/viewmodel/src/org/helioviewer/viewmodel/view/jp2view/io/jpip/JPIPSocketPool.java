@@ -0,0 +1,380 @@
+package org.helioviewer.viewmodel.view.jp2view.io.jpip;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.viewmodel.view.jp2view.io.bandwidth.BandwidthEstimator;
+
+/**
+ * Pool of keep-alive JPIP connections, shared by all the images and layers.
+ *
+ * <p>
+ * A {@link JPIPSocket} is handed out exclusively with {@link #acquire(URI)}
+ * and given back with {@link #release(JPIPSocket)} when its user does not need
+ * it any more, or with {@link #invalidate(JPIPSocket)} when it is broken. Idle
+ * connections are kept per host. An idle connection whose channel was opened
+ * for the requested target and used for the same cache is reused as it is,
+ * without any round trip to the server: the server cache model of the channel
+ * describes what that cache holds. Otherwise an idle connection to the same
+ * host gets its channel closed and a new one opened on it, which saves the TCP
+ * handshake, since the server would assume a new cache holds everything sent
+ * on the old channel. Only if no idle connection exists a new socket is
+ * connected.
+ *
+ * <p>
+ * Every idle connection is probed before being handed out, and connections
+ * idle for longer than the idle timeout are closed by a background timer.
+ *
+ * @see JPIPSocket
+ */
+public class JPIPSocketPool {
+
+    // Singleton pattern
+    private static final JPIPSocketPool singletonInstance = new JPIPSocketPool();
+
+    public static JPIPSocketPool getSingletonInstance() {
+        return singletonInstance;
+    }
+
+    /** Default time in milliseconds after which an idle connection is closed */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /** Maximum number of idle connections kept per host */
+    public static final int MAX_IDLE_PER_HOST = 8;
+
+    /** Period in milliseconds of the eviction of idle connections */
+    private static final long EVICTION_PERIOD = 5000;
+
+    /** The idle connections, per host and in order of release */
+    private final HashMap<String, LinkedList<IdleSocket>> idleSockets = new HashMap<String, LinkedList<IdleSocket>>();
+
+    /** Timer evicting the idle connections, created on demand */
+    private Timer evictionTimer = null;
+
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private int leased = 0;
+    private long created = 0;
+    private long reusedChannels = 0;
+    private long reusedConnections = 0;
+    private long evicted = 0;
+    private long failedHealthChecks = 0;
+
+    private JPIPSocketPool() {
+    }
+
+    /** Returns the key identifying the host of an URI */
+    private static String hostKey(URI uri) {
+        return uri.getHost() + ":" + (uri.getPort() <= 0 ? JPIPSocket.PORT : uri.getPort());
+    }
+
+    /**
+     * Returns a connected socket with an open JPIP channel for the given URI.
+     * If the socket was connected or its channel opened by this call, the
+     * first response of the server is available through
+     * {@link JPIPSocket#takeConnectResponse()}.
+     *
+     * @param uri
+     *            URI of the JPIP target
+     * @param owner
+     *            The owner of the cache the data is added to, e.g. the image.
+     *            A channel is only handed out as it is to the same owner; null
+     *            always gets a new channel.
+     * @return A socket for the exclusive use of the caller
+     * @throws IOException
+     *             If no connection could be established
+     */
+    public JPIPSocket acquire(URI uri, Object owner) throws IOException {
+        String key = hostKey(uri);
+
+        for (;;) {
+            IdleSocket idle = null;
+
+            synchronized (this) {
+                LinkedList<IdleSocket> list = idleSockets.get(key);
+
+                if (list != null && !list.isEmpty()) {
+                    for (IdleSocket candidate : list)
+                        if (isReusableChannel(candidate.socket, uri, owner)) {
+                            idle = candidate;
+                            break;
+                        }
+
+                    if (idle != null)
+                        list.remove(idle);
+                    else
+                        idle = list.removeLast();
+                }
+            }
+
+            if (idle == null)
+                break;
+
+            JPIPSocket socket = idle.socket;
+
+            if (!socket.isReusable()) {
+                synchronized (this) {
+                    failedHealthChecks++;
+                }
+                close(socket);
+                continue;
+            }
+
+            if (isReusableChannel(socket, uri, owner)) {
+                synchronized (this) {
+                    reusedChannels++;
+                    leased++;
+                }
+                return socket;
+            }
+
+            try {
+                socket.closeChannel();
+                socket.openChannel(uri);
+                socket.setChannelOwner(owner);
+                synchronized (this) {
+                    reusedConnections++;
+                    leased++;
+                }
+                return socket;
+            } catch (IOException e) {
+                Log.debug(">> JPIPSocketPool.acquire() > Could not switch channel of idle connection to " + uri, e);
+                close(socket);
+            }
+        }
+
+        JPIPSocket socket = new JPIPSocket();
+        try {
+            socket.connect(uri);
+            socket.setChannelOwner(owner);
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+
+        synchronized (this) {
+            created++;
+            leased++;
+        }
+        return socket;
+    }
+
+    /**
+     * Tells if the channel of a socket can be handed out as it is: opened for
+     * the same target, and used for the cache of the same owner.
+     */
+    private static boolean isReusableChannel(JPIPSocket socket, URI uri, Object owner) {
+        return owner != null && owner == socket.getChannelOwner() && uri.equals(socket.getJpipURI());
+    }
+
+    /**
+     * Gives a socket back to the pool. Sockets which are closed, still
+     * expecting responses or in the middle of a response, e.g. because their
+     * user stopped reading, are closed instead of being kept.
+     *
+     * @param socket
+     *            Socket to release, may be null
+     */
+    public void release(JPIPSocket socket) {
+        if (socket == null)
+            return;
+
+        JPIPSocket surplus = null;
+
+        synchronized (this) {
+            leased--;
+
+            if (socket.isClosed() || socket.getJpipChannelID() == null || socket.getNumPendingRequests() > 0 || socket.isReceivingResponse()) {
+                surplus = socket;
+            } else {
+                String key = hostKey(socket.getJpipURI());
+                LinkedList<IdleSocket> list = idleSockets.get(key);
+                if (list == null) {
+                    list = new LinkedList<IdleSocket>();
+                    idleSockets.put(key, list);
+                }
+
+                // The first response and the estimates only concern the
+                // previous user
+                socket.takeConnectResponse();
+                BandwidthEstimator estimator = socket.getBandwidthEstimator();
+                if (estimator != null)
+                    estimator.reset();
+                socket.setBandwidthEstimator(null);
+                socket.resetTransferStatistics();
+                list.add(new IdleSocket(socket));
+
+                if (list.size() > MAX_IDLE_PER_HOST)
+                    surplus = list.removeFirst().socket;
+
+                startEvictionTimer();
+            }
+        }
+
+        if (surplus != null)
+            close(surplus);
+    }
+
+    /**
+     * Closes a socket obtained from the pool which is not usable any more.
+     *
+     * @param socket
+     *            Socket to close, may be null
+     */
+    public void invalidate(JPIPSocket socket) {
+        if (socket == null)
+            return;
+
+        synchronized (this) {
+            leased--;
+        }
+        close(socket);
+    }
+
+    /** Closes all the idle connections. */
+    public void clear() {
+        LinkedList<JPIPSocket> toClose = new LinkedList<JPIPSocket>();
+
+        synchronized (this) {
+            for (LinkedList<IdleSocket> list : idleSockets.values())
+                for (IdleSocket idle : list)
+                    toClose.add(idle.socket);
+            idleSockets.clear();
+        }
+
+        for (JPIPSocket socket : toClose)
+            close(socket);
+    }
+
+    /** Closes the connections which have been idle for too long. */
+    private void evictIdleSockets() {
+        LinkedList<JPIPSocket> toClose = new LinkedList<JPIPSocket>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Iterator<LinkedList<IdleSocket>> lists = idleSockets.values().iterator();
+            while (lists.hasNext()) {
+                LinkedList<IdleSocket> list = lists.next();
+                Iterator<IdleSocket> it = list.iterator();
+                while (it.hasNext()) {
+                    IdleSocket idle = it.next();
+                    if (now - idle.since >= idleTimeout) {
+                        toClose.add(idle.socket);
+                        it.remove();
+                        evicted++;
+                    }
+                }
+                if (list.isEmpty())
+                    lists.remove();
+            }
+
+            if (idleSockets.isEmpty() && evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+        }
+
+        for (JPIPSocket socket : toClose)
+            close(socket);
+    }
+
+    /** Starts the eviction timer if it is not running. */
+    private synchronized void startEvictionTimer() {
+        if (evictionTimer != null)
+            return;
+
+        evictionTimer = new Timer("JPIPSocketPoolEviction", true);
+        evictionTimer.schedule(new TimerTask() {
+            public void run() {
+                evictIdleSockets();
+            }
+        }, EVICTION_PERIOD, EVICTION_PERIOD);
+    }
+
+    /** Closes a socket, logging errors. */
+    private static void close(JPIPSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.error(">> JPIPSocketPool.close() > Error closing socket.", e);
+        }
+    }
+
+    /**
+     * Sets the time after which an idle connection is closed.
+     *
+     * @param _idleTimeout
+     *            Idle timeout in milliseconds
+     */
+    public synchronized void setIdleTimeout(long _idleTimeout) {
+        idleTimeout = _idleTimeout;
+    }
+
+    /** Returns the time in milliseconds after which idle connections close. */
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /** Returns the number of connections currently handed out. */
+    public synchronized int getNumLeased() {
+        return leased;
+    }
+
+    /** Returns the number of idle connections. */
+    public synchronized int getNumIdle() {
+        int total = 0;
+        for (LinkedList<IdleSocket> list : idleSockets.values())
+            total += list.size();
+        return total;
+    }
+
+    /** Returns the number of new connections established. */
+    public synchronized long getNumCreated() {
+        return created;
+    }
+
+    /** Returns the number of connections handed out with their channel. */
+    public synchronized long getNumReusedChannels() {
+        return reusedChannels;
+    }
+
+    /** Returns the number of connections handed out with a new channel. */
+    public synchronized long getNumReusedConnections() {
+        return reusedConnections;
+    }
+
+    /** Returns the number of idle connections closed after the timeout. */
+    public synchronized long getNumEvicted() {
+        return evicted;
+    }
+
+    /** Returns the number of idle connections found to be broken. */
+    public synchronized long getNumFailedHealthChecks() {
+        return failedHealthChecks;
+    }
+
+    /** Returns a string representation of the pool statistics. */
+    public synchronized String toString() {
+        return getClass().getSimpleName() + " [leased=" + leased + " idle=" + getNumIdle() + " created=" + created + " reusedChannels=" + reusedChannels + " reusedConnections=" + reusedConnections + " evicted=" + evicted + " failedHealthChecks=" + failedHealthChecks + "]";
+    }
+
+    /**
+     * An idle connection and the time it was released.
+     */
+    private static class IdleSocket {
+
+        final JPIPSocket socket;
+        final long since;
+
+        IdleSocket(JPIPSocket _socket) {
+            socket = _socket;
+            since = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package org.helioviewer.viewmodel.view.jp2view.kakadu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.helioviewer.base.logging.Log;
+
+/**
+ * Manager of the cache files on disk.
+ *
+ * <p>
+ * The manager keeps an index of the cache files with their target ID, size,
+ * time of last access and pin count, in the order of their last access. The
+ * index is loaded once, when the cache directory is set, and saved back to
+ * the directory after every maintenance, so the directory is only listed at
+ * start-up. Opening a cache file or reading data from it counts as an access;
+ * a file is pinned while its image is open, and pinned files are never
+ * evicted.
+ *
+ * <p>
+ * When the total size exceeds the quota (the high watermark), the least
+ * recently used files are deleted until it is below the low watermark, a
+ * fraction of the quota, so that the eviction does not run on every new
+ * image. The maintenance runs on the thread of the
+ * {@link CachePersistenceService}.
+ */
+public class CacheManager {
+
+    // Singleton pattern
+    private static CacheManager singletonInstance = null;
+
+    public static synchronized CacheManager getSingletonInstance() {
+        if (singletonInstance == null)
+            singletonInstance = new CacheManager();
+        return singletonInstance;
+    }
+
+    /** Name of the index in the cache directory */
+    public static final String INDEX_NAME = "hvc.index";
+
+    /** First line of the index */
+    private static final String INDEX_VERSION = "hvi/1.0\n";
+
+    /** The low watermark, as a fraction of the quota */
+    public static final double DEFAULT_LOW_WATERMARK = 0.8;
+
+    /** An entry of the index */
+    private static class Entry {
+        final String targetID;
+        long size;
+        long lastAccess;
+        int pinCount = 0;
+
+        Entry(String _targetID, long _size, long _lastAccess) {
+            targetID = _targetID;
+            size = _size;
+            lastAccess = _lastAccess;
+        }
+    }
+
+    /** The cache directory, null until it is set */
+    private File cachePath = null;
+
+    /**
+     * The entries, from the least to the most recently used. The map is in
+     * insertion order, and an access moves its entry to the end explicitly,
+     * so that looking an entry up does not change the order.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, false);
+
+    /** The total size of the files */
+    private long totalSize = 0;
+
+    /** The quota in bytes, 0 if unlimited */
+    private long quota = 0;
+
+    private double lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    /** Whether the index has changed since it was saved */
+    private boolean dirty = false;
+
+    // Statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictedFiles = 0;
+    private long evictedBytes = 0;
+
+    private CacheManager() {
+    }
+
+    /**
+     * Sets the cache directory, loading its index. Files which are not in the
+     * index are added to it, and entries whose file is missing are removed.
+     *
+     * @param _cachePath
+     */
+    public synchronized void setCachePath(File _cachePath) {
+        cachePath = _cachePath;
+        entries.clear();
+        totalSize = 0;
+
+        HashMap<String, Entry> loaded = loadIndex();
+
+        File[] files = getCacheFiles(cachePath);
+        if (files == null)
+            return;
+
+        ArrayList<Entry> found = new ArrayList<Entry>(files.length);
+        for (File f : files) {
+            String targetID = getTargetID(f);
+            Entry entry = loaded.get(targetID);
+            if (entry == null) {
+                entry = new Entry(targetID, 0, f.lastModified());
+                dirty = true;
+            }
+            if (entry.size != f.length())
+                dirty = true;
+            entry.size = f.length();
+            found.add(entry);
+        }
+        if (found.size() != loaded.size())
+            dirty = true;
+
+        // Inserted from the least to the most recently used
+        Collections.sort(found, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return e1.lastAccess < e2.lastAccess ? -1 : (e1.lastAccess == e2.lastAccess ? 0 : 1);
+            }
+        });
+        for (Entry entry : found) {
+            entries.put(entry.targetID, entry);
+            totalSize += entry.size;
+        }
+    }
+
+    /**
+     * @return All the cache files stored in the cache directory.
+     */
+    public static File[] getCacheFiles(File cachePath) {
+        return cachePath.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return (name.toUpperCase().endsWith(".HVC"));
+            }
+        });
+    }
+
+    /** Returns the target ID of a cache file */
+    private static String getTargetID(File f) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    /** Tells if a file is in the managed directory */
+    private boolean isManaged(File f) {
+        return cachePath != null && f.getAbsoluteFile().getParentFile().equals(cachePath.getAbsoluteFile());
+    }
+
+    /**
+     * Sets the quota of the cache directory.
+     *
+     * @param _quota
+     *            The maximum size in bytes, 0 if unlimited
+     */
+    public synchronized void setQuota(long _quota) {
+        quota = Math.max(0, _quota);
+    }
+
+    /** Returns the quota in bytes, 0 if unlimited. */
+    public synchronized long getQuota() {
+        return quota;
+    }
+
+    /** Tells if the size of the cache files exceeds the quota. */
+    public synchronized boolean isOverQuota() {
+        return cachePath != null && quota > 0 && totalSize > quota;
+    }
+
+    /**
+     * Sets the low watermark.
+     *
+     * @param _lowWatermark
+     *            The size after an eviction, as a fraction of the quota
+     */
+    public synchronized void setLowWatermark(double _lowWatermark) {
+        lowWatermark = Math.max(0.0, Math.min(1.0, _lowWatermark));
+    }
+
+    /**
+     * Registers the opening of a cache file: the file is pinned and its access
+     * time updated.
+     *
+     * @param f
+     *            The cache file
+     * @return True, if the file had data before (a hit)
+     */
+    public synchronized boolean open(File f) {
+        if (!isManaged(f))
+            return false;
+
+        String targetID = getTargetID(f);
+        Entry entry = entries.get(targetID);
+        boolean hit = entry != null && entry.size > 0;
+
+        if (entry == null)
+            entry = new Entry(targetID, 0, System.currentTimeMillis());
+        entry.pinCount++;
+        accessed(entry);
+
+        if (hit)
+            hits++;
+        else
+            misses++;
+        return hit;
+    }
+
+    /**
+     * Registers a read of a cache file.
+     *
+     * @param f
+     *            The cache file
+     */
+    public synchronized void touch(File f) {
+        if (!isManaged(f))
+            return;
+
+        Entry entry = entries.get(getTargetID(f));
+        if (entry != null)
+            accessed(entry);
+    }
+
+    /** Updates the access time of an entry and makes it the most recent */
+    private void accessed(Entry entry) {
+        entry.lastAccess = System.currentTimeMillis();
+        entries.remove(entry.targetID);
+        entries.put(entry.targetID, entry);
+        dirty = true;
+    }
+
+    /**
+     * Registers data appended to a cache file.
+     *
+     * @param f
+     *            The cache file
+     * @param bytes
+     *            Number of bytes appended
+     */
+    public synchronized void grow(File f, long bytes) {
+        if (!isManaged(f))
+            return;
+
+        // Does not count as an access
+        Entry entry = entries.get(getTargetID(f));
+        if (entry != null) {
+            entry.size += bytes;
+            totalSize += bytes;
+        }
+    }
+
+    /**
+     * Registers the closing of a cache file: the file is unpinned and its size
+     * updated.
+     *
+     * @param f
+     *            The cache file
+     */
+    public synchronized void close(File f) {
+        if (!isManaged(f))
+            return;
+
+        Entry entry = entries.get(getTargetID(f));
+        if (entry == null)
+            return;
+
+        entry.pinCount = Math.max(0, entry.pinCount - 1);
+        totalSize += f.length() - entry.size;
+        entry.size = f.length();
+        dirty = true;
+    }
+
+    /**
+     * Evicts the least recently used files if the quota is exceeded, and saves
+     * the index if it has changed. Called on the thread of the
+     * CachePersistenceService.
+     */
+    synchronized void maintain() {
+        if (cachePath == null)
+            return;
+
+        if (isOverQuota()) {
+            long target = (long) (quota * lowWatermark);
+            Iterator<Entry> it = entries.values().iterator();
+
+            while (totalSize > target && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.pinCount > 0)
+                    continue;
+
+                File f = new File(cachePath, entry.targetID + ".hvc");
+                if (f.exists() && !f.delete())
+                    continue;
+
+                it.remove();
+                totalSize -= entry.size;
+                evictedFiles++;
+                evictedBytes += entry.size;
+                dirty = true;
+            }
+        }
+
+        if (dirty)
+            saveIndex();
+    }
+
+    /** Loads the index of the cache directory */
+    private HashMap<String, Entry> loadIndex() {
+        HashMap<String, Entry> loaded = new HashMap<String, Entry>();
+        File index = new File(cachePath, INDEX_NAME);
+        if (!index.exists())
+            return loaded;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+
+            byte[] version = new byte[INDEX_VERSION.length()];
+            in.readFully(version);
+            if (!INDEX_VERSION.equals(new String(version)))
+                throw new IOException("Wrong index format");
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String targetID = in.readUTF();
+                long size = in.readLong();
+                long lastAccess = in.readLong();
+                // The pins of the previous session are meaningless
+                in.readInt();
+                loaded.put(targetID, new Entry(targetID, size, lastAccess));
+            }
+        } catch (IOException e) {
+            Log.warn(">> CacheManager.loadIndex() > Could not read the cache index, rebuilding it: " + e.getMessage());
+            loaded.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /** Saves the index to the cache directory, replacing the previous one */
+    private void saveIndex() {
+        File index = new File(cachePath, INDEX_NAME);
+        File tmpIndex = new File(cachePath, INDEX_NAME + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpIndex)));
+            out.write(INDEX_VERSION.getBytes());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(entry.targetID);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastAccess);
+                out.writeInt(entry.pinCount);
+            }
+            out.close();
+            out = null;
+
+            if ((!index.exists() || index.delete()) && tmpIndex.renameTo(index))
+                dirty = false;
+        } catch (IOException e) {
+            Log.error(">> CacheManager.saveIndex() > Could not write the cache index.", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /** Returns the total size of the cache files in bytes. */
+    public synchronized long getOccupiedSize() {
+        return totalSize;
+    }
+
+    /** Returns the number of cache files. */
+    public synchronized int getNumFiles() {
+        return entries.size();
+    }
+
+    /** Returns the number of cache files open at the moment. */
+    public synchronized int getNumPinnedFiles() {
+        int pinned = 0;
+        for (Entry entry : entries.values())
+            if (entry.pinCount > 0)
+                pinned++;
+        return pinned;
+    }
+
+    /** Returns the number of images opened with data in the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of images opened without data in the cache. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of the images opened with data in the cache.
+     *
+     * @return The hit rate, or -1 if no image has been opened
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? -1 : hits / (double) (hits + misses);
+    }
+
+    /** Returns the number of files evicted. */
+    public synchronized long getEvictedFiles() {
+        return evictedFiles;
+    }
+
+    /** Returns the number of bytes evicted. */
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+}
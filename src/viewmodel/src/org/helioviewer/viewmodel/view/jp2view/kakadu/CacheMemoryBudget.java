@@ -0,0 +1,125 @@
+package org.helioviewer.viewmodel.view.jp2view.kakadu;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Budget of the memory used by the cache objects of the remote images.
+ *
+ * <p>
+ * A cache object never gives back the memory of its data-bins, so during a
+ * long session it grows with every frame downloaded. The budget limits the
+ * memory of every cache object, and of all of them together: once a cache
+ * object exceeds its share, its reader trims it down to a fraction of the
+ * share (the low watermark), keeping the data-bins most recently used.
+ */
+public class CacheMemoryBudget {
+
+    // Singleton pattern
+    private static CacheMemoryBudget singletonInstance = null;
+
+    public static synchronized CacheMemoryBudget getSingletonInstance() {
+        if (singletonInstance == null)
+            singletonInstance = new CacheMemoryBudget();
+        return singletonInstance;
+    }
+
+    /** The default memory budget of every image (bytes) */
+    public static final long DEFAULT_IMAGE_BUDGET = 512L * 1024 * 1024;
+
+    /** The default memory budget of all the images together (bytes) */
+    public static final long DEFAULT_GLOBAL_BUDGET = 1536L * 1024 * 1024;
+
+    /** The memory left after a trim, as a fraction of the budget */
+    public static final double DEFAULT_LOW_WATERMARK = 0.5;
+
+    private long imageBudget = DEFAULT_IMAGE_BUDGET;
+    private long globalBudget = DEFAULT_GLOBAL_BUDGET;
+    private double lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    /** The cache objects alive */
+    private final HashSet<JHV_Kdu_cache> caches = new HashSet<JHV_Kdu_cache>();
+
+    /** Number of trims done */
+    private long trims = 0;
+
+    private CacheMemoryBudget() {
+    }
+
+    /** Registers a new cache object. */
+    synchronized void register(JHV_Kdu_cache cache) {
+        caches.add(cache);
+    }
+
+    /** Unregisters a cache object when it is closed. */
+    synchronized void unregister(JHV_Kdu_cache cache) {
+        caches.remove(cache);
+    }
+
+    /**
+     * Returns the memory every cache object may use, which is the budget of an
+     * image unless all of them together exceed the global budget.
+     */
+    public long getBudget() {
+        long total = getTotalMemoryUsage();
+        synchronized (this) {
+            if (total <= globalBudget)
+                return imageBudget;
+            return Math.min(imageBudget, globalBudget / Math.max(1, caches.size()));
+        }
+    }
+
+    /** Tells if the given cache object must be trimmed. */
+    public boolean isOverBudget(JHV_Kdu_cache cache) {
+        return cache.getMemoryUsage() > getBudget();
+    }
+
+    /** Returns the memory a cache object has to be trimmed down to. */
+    public long getTrimTarget() {
+        long budget = getBudget();
+        synchronized (this) {
+            return (long) (budget * lowWatermark);
+        }
+    }
+
+    /** Returns the memory used by all the cache objects (bytes). */
+    public long getTotalMemoryUsage() {
+        ArrayList<JHV_Kdu_cache> alive;
+        synchronized (this) {
+            alive = new ArrayList<JHV_Kdu_cache>(caches);
+        }
+
+        long total = 0;
+        for (JHV_Kdu_cache cache : alive)
+            total += cache.getMemoryUsage();
+        return total;
+    }
+
+    /**
+     * Sets the budgets.
+     *
+     * @param _imageBudget
+     *            The memory of every image (bytes)
+     * @param _globalBudget
+     *            The memory of all the images together (bytes)
+     */
+    public synchronized void setBudgets(long _imageBudget, long _globalBudget) {
+        imageBudget = Math.max(1, _imageBudget);
+        globalBudget = Math.max(1, _globalBudget);
+    }
+
+    /** Sets the memory left after a trim, as a fraction of the budget. */
+    public synchronized void setLowWatermark(double _lowWatermark) {
+        lowWatermark = Math.max(0.0, Math.min(1.0, _lowWatermark));
+    }
+
+    /** Counts a trim. */
+    synchronized void trimmed() {
+        trims++;
+    }
+
+    /** Returns the number of trims done. */
+    public synchronized long getNumTrims() {
+        return trims;
+    }
+}
@@ -0,0 +1,492 @@
+package org.helioviewer.viewmodel.view.jp2view.kakadu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
+
+/**
+ * Background service writing the cache files, so that neither the reader
+ * threads nor the closing of an image wait for the disk.
+ *
+ * <p>
+ * The data segments received are queued as they are added to the cache, and a
+ * single thread appends them to their <code>hvc/2.0</code> file. The
+ * buffered records are flushed whenever the queue is idle. Closing a cache
+ * only queues the closing of its file, which happens after the rest of its
+ * data has been written, and the maintenance of the cache directory runs on
+ * the same thread, along with the eviction of the {@link CacheManager}. The
+ * queue is bounded: if the disk cannot keep up, the
+ * producers wait.
+ *
+ * <p>
+ * When the application quits, the queue is drained for a limited time. The
+ * segments still queued then are written to a journal in the cache
+ * directory, which is appended to the cache files on the next start.
+ */
+public class CachePersistenceService implements Runnable {
+
+    // Singleton pattern
+    private static CachePersistenceService singletonInstance = null;
+
+    public static synchronized CachePersistenceService getSingletonInstance() {
+        if (singletonInstance == null)
+            singletonInstance = new CachePersistenceService();
+        return singletonInstance;
+    }
+
+    /** Maximum number of tasks waiting to be written */
+    public static final int MAX_QUEUED_TASKS = 4096;
+
+    /** Time given to the queue to drain when the application quits (ms) */
+    public static final long SHUTDOWN_DRAIN_TIMEOUT = 3000;
+
+    /** Time the queue has to be idle before the files are flushed (ms) */
+    private static final long IDLE_FLUSH_DELAY = 500;
+
+    /** Name of the journal in the cache directory */
+    public static final String JOURNAL_NAME = "hvc.journal";
+
+    /** First line of the journal */
+    private static final String JOURNAL_VERSION = "hvj/1.0\n";
+
+    private final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<Task>(MAX_QUEUED_TASKS);
+
+    /** Files with buffered records */
+    private final HashSet<HVCCacheFile> dirtyFiles = new HashSet<HVCCacheFile>();
+
+    /** Files whose closing has been queued but not done yet */
+    private final HashSet<File> closingFiles = new HashSet<File>();
+
+    private final Thread thread;
+
+    private volatile boolean stop = false;
+
+    private CachePersistenceService() {
+        thread = new Thread(this, "CachePersistence");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        }, "CachePersistenceShutdown"));
+    }
+
+    /**
+     * Queues a data segment to be appended to a cache file. The data is copied,
+     * so the segment buffer can be released at once.
+     *
+     * @param file
+     * @param classID
+     *            Kakadu class of the data-bin
+     * @param seg
+     */
+    public void append(HVCCacheFile file, int classID, JPIPDataSegment seg) {
+        byte[] data = new byte[seg.length];
+        if (seg.length > 0)
+            System.arraycopy(seg.data, 0, data, 0, seg.length);
+        enqueue(new AppendTask(file, classID, seg.codestreamID, seg.binID, data, seg.offset, seg.isFinal));
+    }
+
+    /**
+     * Queues the closing of a cache file, after the data queued before.
+     *
+     * @param file
+     */
+    public void close(HVCCacheFile file) {
+        synchronized (closingFiles) {
+            closingFiles.add(file.getFile());
+        }
+        enqueue(new CloseTask(file));
+    }
+
+    /**
+     * Waits until the queued closing of a file, if any, is done. A cache file
+     * must not be opened again before.
+     *
+     * @param file
+     */
+    public void awaitClosed(File file) {
+        boolean interrupted = false;
+        synchronized (closingFiles) {
+            while (closingFiles.contains(file) && !stop) {
+                try {
+                    closingFiles.wait(IDLE_FLUSH_DELAY);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Queues the maintenance of the cache directory: the removal of the cache
+     * files exceeding the size limit and the saving of the index.
+     */
+    public void maintainCacheDirectory() {
+        enqueue(new Task(null) {
+            void run() {
+                CacheManager.getSingletonInstance().maintain();
+            }
+        });
+    }
+
+    /**
+     * Queues a task, waiting if the queue is full. An interruption of the
+     * calling thread does not discard the task, but is kept for its owner.
+     */
+    private void enqueue(Task task) {
+        // Once the application quits, the new data is not persisted
+        if (stop)
+            return;
+
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                queue.put(task);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Waits until all the tasks queued so far have been executed.
+     *
+     * @param timeout
+     *            Maximum time to wait in ms
+     * @return True, if the queue was drained
+     * @throws InterruptedException
+     */
+    public boolean awaitDrained(long timeout) throws InterruptedException {
+        final Object done = new Object();
+        final boolean[] drained = { false };
+
+        enqueue(new Task(null) {
+            void run() {
+                synchronized (done) {
+                    drained[0] = true;
+                    done.notifyAll();
+                }
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (done) {
+            long left;
+            while (!drained[0] && (left = deadline - System.currentTimeMillis()) > 0)
+                done.wait(left);
+            return drained[0];
+        }
+    }
+
+    /** Returns the number of tasks waiting to be written. */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public void run() {
+        while (!stop) {
+            Task task;
+            try {
+                task = queue.poll(IDLE_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (task == null) {
+                flushDirtyFiles();
+
+                // A movie being downloaded can exceed the quota by itself
+                CacheManager manager = CacheManager.getSingletonInstance();
+                if (manager.isOverQuota())
+                    manager.maintain();
+                continue;
+            }
+
+            execute(task);
+        }
+    }
+
+    /** Executes a task, giving up its file if it cannot be written */
+    private void execute(Task task) {
+        try {
+            task.run();
+            if (task instanceof AppendTask)
+                dirtyFiles.add(task.file);
+            else if (task instanceof CloseTask)
+                dirtyFiles.remove(task.file);
+        } catch (ClosedChannelException e) {
+            // The file was closed under the write, it is not corrupt
+            Log.warn(">> CachePersistenceService > Cache file closed while writing: " + task.file.getFile());
+            dirtyFiles.remove(task.file);
+        } catch (IOException e) {
+            Log.error(">> CachePersistenceService > Error writing the cache file " + task.file.getFile(), e);
+            discard(task.file);
+        } catch (RuntimeException e) {
+            Log.error(">> CachePersistenceService > Unexpected error.", e);
+        } finally {
+            if (task instanceof CloseTask)
+                closed(task.file);
+        }
+    }
+
+    /** Flushes the buffered records of all the files */
+    private void flushDirtyFiles() {
+        for (HVCCacheFile file : dirtyFiles) {
+            try {
+                file.flush();
+            } catch (ClosedChannelException e) {
+                Log.warn(">> CachePersistenceService > Cache file closed while flushing: " + file.getFile());
+            } catch (IOException e) {
+                Log.error(">> CachePersistenceService > Error flushing the cache file " + file.getFile(), e);
+                discard(file);
+            }
+        }
+        dirtyFiles.clear();
+    }
+
+    /** Closes and deletes a cache file which cannot be written */
+    private void discard(HVCCacheFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+        }
+        file.getFile().delete();
+    }
+
+    /**
+     * Drains the queue for a limited time, and writes what is left to the
+     * journal. Called when the application quits.
+     *
+     * <p>
+     * The writing thread is never interrupted, since an interrupted write
+     * closes the channel of the file; it stops after the task at hand.
+     */
+    void shutdown() {
+        try {
+            awaitDrained(SHUTDOWN_DRAIN_TIMEOUT);
+        } catch (InterruptedException e) {
+        }
+
+        stop = true;
+        // Wakes up the thread if it is waiting for a task
+        queue.offer(new Task(null) {
+            void run() {
+            }
+        });
+        try {
+            thread.join(SHUTDOWN_DRAIN_TIMEOUT);
+        } catch (InterruptedException e) {
+        }
+
+        // The thread does not take any more tasks once it sees the flag
+        ArrayList<Task> left = new ArrayList<Task>();
+        queue.drainTo(left);
+        boolean writing = thread.isAlive();
+
+        HashMap<File, DataOutputStream> journals = new HashMap<File, DataOutputStream>();
+        try {
+            for (Task task : left) {
+                if (task instanceof AppendTask)
+                    writeToJournal(journals, (AppendTask) task);
+            }
+        } catch (IOException e) {
+            Log.error(">> CachePersistenceService > Error writing the journal.", e);
+        } finally {
+            for (DataOutputStream out : journals.values()) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // The files are left to the thread if it is still writing
+        if (writing)
+            return;
+
+        // What was written before is kept
+        flushDirtyFiles();
+        for (Task task : left) {
+            if (task instanceof CloseTask) {
+                try {
+                    task.file.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        CacheManager.getSingletonInstance().maintain();
+    }
+
+    /** Writes a segment to the journal of the directory of its file */
+    private static void writeToJournal(Map<File, DataOutputStream> journals, AppendTask task) throws IOException {
+        File dir = task.file.getFile().getAbsoluteFile().getParentFile();
+        DataOutputStream out = journals.get(dir);
+
+        if (out == null) {
+            File journal = new File(dir, JOURNAL_NAME);
+            boolean exists = journal.exists() && journal.length() > 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+            if (!exists)
+                out.write(JOURNAL_VERSION.getBytes());
+            journals.put(dir, out);
+        }
+
+        out.writeUTF(task.file.getFile().getName());
+        out.writeByte((task.classID << 1) | (task.isFinal ? 1 : 0));
+        out.writeInt(task.offset);
+        out.writeInt(task.data.length);
+        out.writeLong(task.codestreamID);
+        out.writeLong(task.binID);
+        out.write(task.data);
+    }
+
+    /**
+     * Appends the segments of the journal of a cache directory to their cache
+     * files, and deletes the journal. Must be called before any cache file of
+     * the directory is opened.
+     *
+     * @param cachePath
+     *            The cache directory
+     */
+    public static void recoverJournal(File cachePath) {
+        File journal = new File(cachePath, JOURNAL_NAME);
+        if (!journal.exists())
+            return;
+
+        HashMap<String, HVCCacheFile> files = new HashMap<String, HVCCacheFile>();
+        DataInputStream in = null;
+        int count = 0;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+
+            byte[] version = new byte[JOURNAL_VERSION.length()];
+            in.readFully(version);
+            if (!JOURNAL_VERSION.equals(new String(version)))
+                throw new IOException("Wrong journal format");
+
+            for (;;) {
+                String name;
+                try {
+                    name = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                int flags = in.readUnsignedByte();
+                int offset = in.readInt();
+                int length = in.readInt();
+                long codestreamID = in.readLong();
+                long binID = in.readLong();
+                byte[] data = new byte[length];
+                in.readFully(data);
+
+                HVCCacheFile file = files.get(name);
+                if (file == null) {
+                    file = new HVCCacheFile(new File(cachePath, name));
+                    files.put(name, file);
+                }
+                file.append(flags >> 1, codestreamID, binID, data, offset, length, (flags & 1) != 0);
+                count++;
+            }
+        } catch (IOException e) {
+            // A torn entry at the end is expected if the journal was not
+            // completely written
+            Log.warn(">> CachePersistenceService > Journal recovered partially: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            for (HVCCacheFile file : files.values()) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.error(">> CachePersistenceService > Error closing the cache file " + file.getFile(), e);
+                }
+            }
+            journal.delete();
+        }
+        Log.info(">> CachePersistenceService > Recovered " + count + " segments from the journal.");
+    }
+
+    /** A write to be done by the service thread */
+    private static abstract class Task {
+        final HVCCacheFile file;
+
+        Task(HVCCacheFile _file) {
+            file = _file;
+        }
+
+        abstract void run() throws IOException;
+    }
+
+    private static class AppendTask extends Task {
+        final int classID;
+        final long codestreamID, binID;
+        final byte[] data;
+        final int offset;
+        final boolean isFinal;
+
+        AppendTask(HVCCacheFile _file, int _classID, long _codestreamID, long _binID, byte[] _data, int _offset, boolean _isFinal) {
+            super(_file);
+            classID = _classID;
+            codestreamID = _codestreamID;
+            binID = _binID;
+            data = _data;
+            offset = _offset;
+            isFinal = _isFinal;
+        }
+
+        void run() throws IOException {
+            file.append(classID, codestreamID, binID, data, offset, data.length, isFinal);
+            CacheManager.getSingletonInstance().grow(file.getFile(), HVCCacheFile.RECORD_HEADER_SIZE + data.length);
+        }
+    }
+
+    private static class CloseTask extends Task {
+        CloseTask(HVCCacheFile _file) {
+            super(_file);
+        }
+
+        void run() throws IOException {
+            file.close();
+        }
+    }
+
+    /** Called once a file has been closed */
+    private void closed(HVCCacheFile file) {
+        CacheManager.getSingletonInstance().close(file.getFile());
+
+        synchronized (closingFiles) {
+            closingFiles.remove(file.getFile());
+            closingFiles.notifyAll();
+        }
+    }
+}
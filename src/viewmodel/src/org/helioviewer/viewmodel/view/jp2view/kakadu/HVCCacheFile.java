@@ -0,0 +1,669 @@
+package org.helioviewer.viewmodel.view.jp2view.kakadu;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import kdu_jni.KduException;
+import kdu_jni.Kdu_cache;
+
+import org.helioviewer.base.logging.Log;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDatabinClass;
+
+/**
+ * Cache file in the <code>hvc/2.0</code> format.
+ *
+ * <p>
+ * The file is an append-only log of data-bin increments, exactly as they are
+ * received from the JPIP server:
+ *
+ * <pre>
+ * "hvc/2.0\n"
+ * record*
+ *
+ * record := flags(1) reserved(3) offset(4) length(4) codestream(8) binID(8) data(length)
+ * flags  := (databin class &lt;&lt; 1) | is final
+ * </pre>
+ *
+ * All the integers are big-endian. New data is appended while the image is
+ * open, so closing the cache does not need to rewrite it. A record which was
+ * not completely written, for example because the application was killed, is
+ * cut off when the file is opened again.
+ *
+ * <p>
+ * When the file is opened only the record headers are scanned, through a
+ * memory mapping of the file, to build an index of the records of every
+ * codestream. The header and metadata bins are small and needed by the
+ * Kakadu machinery as soon as the image is opened, so they are loaded
+ * eagerly; the precinct data of a codestream is only loaded when it is
+ * rendered for the first time. This way a movie of hundreds of frames can be
+ * resumed without loading all of it into memory.
+ *
+ * <p>
+ * The precinct records appended while the image is open are indexed as well,
+ * and the file is mapped again when they have to be read. This way the data
+ * of a codestream removed from the cache object by a trim is loaded again
+ * from the file, instead of being sent again by the server.
+ *
+ * <p>
+ * Files in the previous <code>hvc/1.0</code> format, where the whole cache
+ * was rewritten on close, are converted when they are opened.
+ */
+public class HVCCacheFile {
+
+    /** First line of the files in the current format */
+    public static final String VERSION = "hvc/2.0\n";
+
+    /** First line of the files in the previous format */
+    public static final String LEGACY_VERSION = "hvc/1.0\n";
+
+    /** Size of the file header */
+    private static final int FILE_HEADER_SIZE = 8;
+
+    /** Size of the header of a record */
+    static final int RECORD_HEADER_SIZE = 28;
+
+    /** Size of the buffer of appended records */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /** Number of databin classes stored */
+    private static final int NUM_CLASSES = 5;
+
+    private final File file;
+
+    /** The mapped records, mapped again when newer ones have to be read */
+    private MappedByteBuffer map = null;
+
+    /** The records of the header and metadata bins */
+    private final RecordList eagerRecords = new RecordList();
+
+    /** The records of the precinct bins, by codestream */
+    private final HashMap<Long, RecordList> precinctRecords = new HashMap<Long, RecordList>();
+
+    /** The codestreams with precinct data in the file when it was opened */
+    private final TreeSet<Long> storedCodestreams = new TreeSet<Long>();
+
+    /** The codestreams whose records are not in the cache object */
+    private final TreeSet<Long> unloadedCodestreams = new TreeSet<Long>();
+
+    /**
+     * The stored precinct bins of the codestreams which lost bins the server
+     * sends again, so that they are not appended again
+     */
+    private final HashMap<Long, TreeMap<Long, long[]>> removedBins = new HashMap<Long, TreeMap<Long, long[]>>();
+
+    /** The codestreams not loaded yet which were told to the server */
+    private final HashSet<Long> reportedCodestreams = new HashSet<Long>();
+
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+    /** Reusable buffer to hand the records to Kakadu */
+    private byte[] byteBuffer = new byte[512];
+
+    /**
+     * Opens a cache file, creating it if it does not exist, and indexes its
+     * records.
+     *
+     * <p>
+     * The file is validated, cut off and converted before it is mapped, since
+     * a mapped file can be neither truncated nor replaced on some platforms.
+     *
+     * @param _file
+     *            The cache file
+     * @throws IOException
+     */
+    public HVCCacheFile(File _file) throws IOException {
+        file = _file;
+
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        long size = channel.size();
+        if (size == 0) {
+            writeHeader();
+            return;
+        }
+
+        if (size > Integer.MAX_VALUE) {
+            Log.warn(">> HVCCacheFile > Cache file too large, discarding it: " + file);
+            channel.truncate(0);
+            writeHeader();
+            return;
+        }
+
+        String version = readVersion();
+        if (LEGACY_VERSION.equals(version)) {
+            migrate();
+            size = channel.size();
+        } else if (!VERSION.equals(version)) {
+            Log.warn(">> HVCCacheFile > Wrong cache file format, discarding it: " + file);
+            channel.truncate(0);
+            writeHeader();
+            return;
+        }
+
+        int validSize = scan((int) size);
+        if (validSize < size) {
+            Log.warn(">> HVCCacheFile > Incomplete record at the end of " + file + ", cutting it off.");
+            channel.truncate(validSize);
+        }
+
+        // Only the complete records are mapped
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, validSize);
+        channel.position(validSize);
+    }
+
+    /** Writes the header of an empty file */
+    private void writeHeader() throws IOException {
+        channel.write(ByteBuffer.wrap(VERSION.getBytes()), 0);
+        channel.position(FILE_HEADER_SIZE);
+    }
+
+    /** Returns the first line of the file, or null */
+    private String readVersion() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (!readFully(channel, header, 0))
+            return null;
+        return new String(header.array());
+    }
+
+    /**
+     * Reads bytes at a position of a file until the buffer is full.
+     *
+     * @return False, if the end of the file was reached before
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        buf.flip();
+        return true;
+    }
+
+    /**
+     * Builds the index of the records of the file, reading only their
+     * headers.
+     *
+     * @param limit
+     *            The size of the file
+     * @return The size of the file up to the last complete record
+     * @throws IOException
+     */
+    private int scan(int limit) throws IOException {
+        int pos = FILE_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        while (pos + RECORD_HEADER_SIZE <= limit) {
+            header.clear();
+            if (!readFully(channel, header, pos))
+                break;
+
+            int classID = (header.get(0) & 0xFF) >> 1;
+            int length = header.getInt(8);
+
+            if (classID >= NUM_CLASSES || length < 0 || length > limit - pos - RECORD_HEADER_SIZE)
+                break;
+
+            if (classID == KakaduConstants.KDU_PRECINCT_DATABIN) {
+                Long codestreamID = Long.valueOf(header.getLong(12));
+                addPrecinctRecord(codestreamID, pos);
+                storedCodestreams.add(codestreamID);
+                unloadedCodestreams.add(codestreamID);
+            } else {
+                eagerRecords.add(pos);
+            }
+
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Converts a file in the <code>hvc/1.0</code> format. Since every bin was
+     * stored as a whole, each of them becomes a record at offset 0. The old
+     * file is read as a stream, without mapping it, and the converted file
+     * replaces it.
+     *
+     * @throws IOException
+     */
+    private void migrate() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile tmpRaf = new RandomAccessFile(tmpFile, "rw");
+        FileChannel tmpChannel = tmpRaf.getChannel();
+
+        try {
+            tmpChannel.truncate(0);
+            tmpChannel.write(ByteBuffer.wrap(VERSION.getBytes()));
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(FILE_HEADER_SIZE)), WRITE_BUFFER_SIZE));
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            byte[] data = new byte[4096];
+
+            try {
+                while (true) {
+                    int flags = in.read();
+                    int sizes = in.read();
+                    if (sizes < 0)
+                        break;
+
+                    long codestreamID = 0, databinID = 0;
+                    for (int j = 0; j < ((sizes >> 4) & 0x0F); j++)
+                        codestreamID = (codestreamID << 8) | in.readUnsignedByte();
+                    for (int j = 0; j < (sizes & 0x0F); j++)
+                        databinID = (databinID << 8) | in.readUnsignedByte();
+                    int length = in.readInt();
+
+                    if (length < 0)
+                        break;
+                    if (length > data.length)
+                        data = new byte[length];
+                    in.readFully(data, 0, length);
+
+                    if ((flags >> 1) < NUM_CLASSES) {
+                        header.clear();
+                        header.put((byte) flags).put((byte) 0).putShort((short) 0);
+                        header.putInt(0).putInt(length).putLong(codestreamID).putLong(databinID);
+                        header.flip();
+                        tmpChannel.write(header);
+
+                        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+                        while (buf.hasRemaining())
+                            tmpChannel.write(buf);
+                    }
+                }
+            } catch (EOFException e) {
+                // An incomplete last bin is dropped
+            }
+            tmpChannel.force(false);
+        } finally {
+            tmpChannel.close();
+            tmpRaf.close();
+        }
+
+        // Swaps the files
+        channel.close();
+        raf.close();
+
+        if (!file.delete() || !tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not replace the cache file " + file);
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        Log.info(">> HVCCacheFile > Converted cache file to " + VERSION.trim() + ": " + file);
+    }
+
+    /** Adds a precinct record to the index of its codestream */
+    private void addPrecinctRecord(Long codestreamID, int pos) {
+        RecordList records = precinctRecords.get(codestreamID);
+        if (records == null) {
+            records = new RecordList();
+            precinctRecords.put(codestreamID, records);
+        }
+        records.add(pos);
+    }
+
+    /**
+     * Maps the file again if some of the given records were appended after
+     * it was mapped.
+     *
+     * @throws IOException
+     */
+    private void ensureMapped(RecordList records) throws IOException {
+        if (records.size == 0 || (map != null && records.positions[records.size - 1] < map.limit()))
+            return;
+
+        flush();
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.position());
+    }
+
+    /**
+     * Loads the header and metadata bins into the cache object. The bins are
+     * marked, so that they can be told to the server.
+     *
+     * @param cache
+     * @throws KduException
+     */
+    public synchronized void loadEager(Kdu_cache cache) throws KduException {
+        load(cache, eagerRecords);
+    }
+
+    /**
+     * Loads the precinct data of a codestream into the cache object, unless it
+     * is already there.
+     *
+     * @param cache
+     * @param codestreamID
+     * @return True, if some data was read from the file
+     * @throws KduException
+     * @throws IOException
+     */
+    public synchronized boolean loadCodestream(Kdu_cache cache, long codestreamID) throws KduException, IOException {
+        Long key = Long.valueOf(codestreamID);
+        if (channel == null || !unloadedCodestreams.contains(key))
+            return false;
+
+        RecordList records = precinctRecords.get(key);
+        ensureMapped(records);
+        unloadedCodestreams.remove(key);
+
+        load(cache, records);
+        return true;
+    }
+
+    /** Loads the given records of the mapped file */
+    private void load(Kdu_cache cache, RecordList records) throws KduException {
+        for (int r = 0; r < records.size; r++) {
+            int pos = records.positions[r];
+            int flags = map.get(pos) & 0xFF;
+            int offset = map.getInt(pos + 4);
+            int length = map.getInt(pos + 8);
+            long codestreamID = map.getLong(pos + 12);
+            long databinID = map.getLong(pos + 20);
+
+            if (length > byteBuffer.length)
+                byteBuffer = new byte[length + 256];
+
+            ByteBuffer data = map.duplicate();
+            data.position(pos + RECORD_HEADER_SIZE);
+            data.get(byteBuffer, 0, length);
+
+            cache.Add_to_databin(flags >> 1, codestreamID, databinID, byteBuffer, offset, length, (flags & 1) != 0, false, true);
+        }
+    }
+
+    /**
+     * Tells that the precinct bins of a codestream have been removed from a
+     * cache object. If the file holds all of them, the codestream is loaded
+     * again from the file when needed, and the server, which still has them
+     * in its model, does not have to be told. Otherwise the server has to
+     * send them again, as in {@link #databinsRemoved(long)}.
+     *
+     * @param cache
+     *            The cache object which held the bins
+     * @param codestreamID
+     * @param databins
+     *            The precinct bins removed
+     * @return True, if the codestream is loaded again from the file
+     * @throws KduException
+     * @throws IOException
+     */
+    public synchronized boolean unloadCodestream(Kdu_cache cache, long codestreamID, Iterable<Long> databins) throws KduException, IOException {
+        Long key = Long.valueOf(codestreamID);
+        if (channel == null || !precinctRecords.containsKey(key))
+            return false;
+
+        TreeMap<Long, long[]> stored = getStoredBins(key);
+        boolean allStored = true;
+        boolean complete[] = new boolean[1];
+
+        for (long databinID : databins) {
+            int length = cache.Get_databin_length(KakaduConstants.KDU_PRECINCT_DATABIN, codestreamID, databinID, complete);
+            long[] bin = stored.get(Long.valueOf(databinID));
+            if (bin == null || (bin[1] == 0 && (complete[0] || bin[0] < length))) {
+                allStored = false;
+                break;
+            }
+        }
+
+        if (allStored) {
+            unloadedCodestreams.add(key);
+            reportedCodestreams.add(key);
+        } else {
+            removedBins.put(key, stored);
+        }
+        return allStored;
+    }
+
+    /**
+     * Tells that some precinct bins of a codestream have been removed from a
+     * cache object, and that the server sends them again. The bins already
+     * stored are not appended again.
+     *
+     * @param codestreamID
+     * @throws IOException
+     */
+    public synchronized void databinsRemoved(long codestreamID) throws IOException {
+        Long key = Long.valueOf(codestreamID);
+        if (channel != null && precinctRecords.containsKey(key))
+            removedBins.put(key, getStoredBins(key));
+    }
+
+    /**
+     * Tells if the file already holds an increment of a precinct bin sent
+     * again by the server after a trim.
+     *
+     * @param classID
+     *            Kakadu class of the data-bin
+     * @param codestreamID
+     * @param databinID
+     * @param end
+     *            The end of the increment in the data-bin
+     * @param isFinal
+     *            Whether the increment completes the data-bin
+     * @return True, if the increment must not be appended
+     */
+    public synchronized boolean isStored(int classID, long codestreamID, long databinID, int end, boolean isFinal) {
+        if (classID != KakaduConstants.KDU_PRECINCT_DATABIN || removedBins.isEmpty())
+            return false;
+
+        TreeMap<Long, long[]> stored = removedBins.get(Long.valueOf(codestreamID));
+        long[] bin = stored == null ? null : stored.get(Long.valueOf(databinID));
+        return bin != null && (bin[1] != 0 || (!isFinal && bin[0] >= end));
+    }
+
+    /**
+     * Returns the contiguous length and the completeness of the precinct bins
+     * of a codestream stored in the file.
+     *
+     * @throws IOException
+     */
+    private TreeMap<Long, long[]> getStoredBins(Long codestreamID) throws IOException {
+        TreeMap<Long, long[]> bins = new TreeMap<Long, long[]>();
+        RecordList records = precinctRecords.get(codestreamID);
+        if (records == null)
+            return bins;
+
+        ensureMapped(records);
+        for (int r = 0; r < records.size; r++) {
+            int pos = records.positions[r];
+            Long databinID = Long.valueOf(map.getLong(pos + 20));
+            int offset = map.getInt(pos + 4);
+            int length = map.getInt(pos + 8);
+
+            long[] bin = bins.get(databinID);
+            if (bin == null) {
+                bin = new long[2];
+                bins.put(databinID, bin);
+            }
+            if (offset <= bin[0])
+                bin[0] = Math.max(bin[0], offset + length);
+            if ((map.get(pos) & 1) != 0)
+                bin[1] = 1;
+        }
+        return bins;
+    }
+
+    /**
+     * Returns the codestreams with precinct data in the file when it was
+     * opened.
+     * 
+     * @return The codestream identifiers, in increasing order
+     */
+    public synchronized long[] getStoredCodestreams() {
+        long[] codestreams = new long[storedCodestreams.size()];
+        int i = 0;
+        for (Long codestreamID : storedCodestreams)
+            codestreams[i++] = codestreamID.longValue();
+        return codestreams;
+    }
+
+    /**
+     * Tells if the file had any record when it was opened.
+     *
+     * @return True, if some data was read from the file
+     */
+    public synchronized boolean hasStoredData() {
+        return eagerRecords.size > 0 || !storedCodestreams.isEmpty();
+    }
+
+    /**
+     * Appends a data-bin increment to the file.
+     *
+     * @param classID
+     *            Kakadu class of the data-bin
+     * @param codestreamID
+     * @param databinID
+     * @param data
+     * @param offset
+     *            Offset of the increment in the data-bin
+     * @param length
+     * @param isFinal
+     *            Whether the increment completes the data-bin
+     * @throws IOException
+     */
+    public synchronized void append(int classID, long codestreamID, long databinID, byte[] data, int offset, int length, boolean isFinal) throws IOException {
+        if (channel == null)
+            return;
+
+        if (writeBuffer.remaining() < RECORD_HEADER_SIZE + length)
+            flush();
+
+        // Only the positions which can be mapped are indexed
+        long position = channel.position() + writeBuffer.position();
+        if (classID == KakaduConstants.KDU_PRECINCT_DATABIN && position + RECORD_HEADER_SIZE + length <= Integer.MAX_VALUE)
+            addPrecinctRecord(Long.valueOf(codestreamID), (int) position);
+
+        writeBuffer.put((byte) ((classID << 1) | (isFinal ? 1 : 0))).put((byte) 0).putShort((short) 0);
+        writeBuffer.putInt(offset).putInt(length).putLong(codestreamID).putLong(databinID);
+
+        if (length <= writeBuffer.remaining()) {
+            writeBuffer.put(data, 0, length);
+        } else {
+            flush();
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+            while (buf.hasRemaining())
+                channel.write(buf);
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (channel == null)
+            return;
+
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining())
+            channel.write(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    /**
+     * Flushes and closes the file. The records not loaded yet remain in the
+     * file.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+
+        try {
+            flush();
+        } finally {
+            channel.close();
+            raf.close();
+            channel = null;
+            raf = null;
+            map = null;
+            precinctRecords.clear();
+            unloadedCodestreams.clear();
+            removedBins.clear();
+        }
+    }
+
+    /**
+     * Returns the first codestream after the given one whose precinct data is
+     * stored in the file but has not been loaded yet.
+     * 
+     * @param lastCodestreamID
+     *            The previous codestream, or -1 to get the first one
+     * @return The codestream, or -1 if there are no more
+     */
+    public synchronized long getNextUnloadedCodestream(long lastCodestreamID) {
+        Long next = unloadedCodestreams.higher(Long.valueOf(lastCodestreamID));
+        return next == null ? -1 : next.longValue();
+    }
+
+    /**
+     * Appends to a cache model the precinct bins of a codestream stored in
+     * the file but not loaded yet, since Kakadu does not know about them.
+     * 
+     * @param cacheModel
+     *            The cache model being built
+     * @param codestreamID
+     *            The codestream, whose label has already been appended
+     * @param force
+     *            Whether the bins already told must be told again
+     * @return True, if some bin was appended
+     * @throws IOException
+     */
+    public synchronized boolean appendCacheModel(StringBuilder cacheModel, long codestreamID, boolean force) throws IOException {
+        Long key = Long.valueOf(codestreamID);
+        if (channel == null || !unloadedCodestreams.contains(key) || (!reportedCodestreams.add(key) && !force))
+            return false;
+
+        TreeMap<Long, long[]> bins = getStoredBins(key);
+
+        String precinctString = JPIPDatabinClass.PRECINCT_DATABIN.getJpipString();
+        for (Map.Entry<Long, long[]> bin : bins.entrySet()) {
+            cacheModel.append(precinctString).append(bin.getKey());
+            if (bin.getValue()[1] == 0)
+                cacheModel.append(':').append(bin.getValue()[0]);
+            cacheModel.append(',');
+        }
+        return !bins.isEmpty();
+    }
+
+    /** Returns the file */
+    public File getFile() {
+        return file;
+    }
+
+    /** A growable list of record positions */
+    private static class RecordList {
+        int[] positions = new int[16];
+        int size = 0;
+
+        void add(int pos) {
+            if (size == positions.length) {
+                int[] newPositions = new int[size * 2];
+                System.arraycopy(positions, 0, newPositions, 0, size);
+                positions = newPositions;
+            }
+            positions[size++] = pos;
+        }
+    }
+}
@@ -1,19 +1,21 @@
 package org.helioviewer.viewmodel.view.jp2view.kakadu;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 import kdu_jni.KduException;
 import kdu_jni.Kdu_cache;
 
+import org.helioviewer.base.logging.Log;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus;
 import org.helioviewer.viewmodel.view.cache.ImageCacheStatus.CacheStatus;
+import org.helioviewer.viewmodel.view.jp2view.concurrency.ProgressSignal;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDataSegment;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDatabinClass;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
@@ -39,8 +41,26 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     private final File cacheFile;
 
+    /** The opened cache file, null if the data is not persisted */
+    private volatile HVCCacheFile hvcFile = null;
+
+    /** The channel whose server cache model knows all the databins */
+    private volatile String serverModelChannelID = null;
+
+    /**
+     * Segments of a cache model with the databins removed by a trim, which
+     * the server has to be told about
+     */
+    private final LinkedList<String> removedModel = new LinkedList<String>();
+
     private ImageCacheStatus status;
 
+    /**
+     * Signaled when a meta data bin or the main header of a codestream is
+     * completed, or a codestream gets its first precinct data
+     */
+    private volatile ProgressSignal dataSignal = null;
+
     /**
      * The targetID for the image as given by the JPIP server. Should be a
      * unique hash for the image and thus serves as a good way of naming the
@@ -59,8 +79,6 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     private boolean iamPersistent = true;
 
-    private static long maxCacheSize = 0;
-
     /**
      * Main constructor used when you want to use a cache file.
      * 
@@ -78,7 +96,9 @@ public class JHV_Kdu_cache extends Kdu_cache {
         newData = 0;
 
         if (cacheFile != null)
-            readCacheFromFile();
+            openCacheFile();
+
+        CacheMemoryBudget.getSingletonInstance().register(this);
     }
 
     /**
@@ -99,7 +119,27 @@ public class JHV_Kdu_cache extends Kdu_cache {
         newData = 0;
 
         if ((cacheFile != null) && iamPersistent)
-            readCacheFromFile();
+            openCacheFile();
+
+        CacheMemoryBudget.getSingletonInstance().register(this);
+    }
+
+    /**
+     * Constructor used by trim(), which hands over the cache file already
+     * opened, together with its index and the data queued to be written.
+     * 
+     * @param _targetID
+     * @param _hvcFile
+     *            The opened cache file, or null
+     */
+    private JHV_Kdu_cache(String _targetID, HVCCacheFile _hvcFile) {
+        super();
+        targetID = _targetID;
+        cacheFile = _hvcFile == null ? null : _hvcFile.getFile();
+        hvcFile = _hvcFile;
+        newData = 0;
+
+        CacheMemoryBudget.getSingletonInstance().register(this);
     }
 
     /**
@@ -110,6 +150,16 @@ public class JHV_Kdu_cache extends Kdu_cache {
         status = imageCacheStatus;
     }
 
+    /**
+     * Sets the signal of the data which makes the meta data or the frames
+     * accessible.
+     * 
+     * @param _dataSignal
+     */
+    public void setDataSignal(ProgressSignal _dataSignal) {
+        dataSignal = _dataSignal;
+    }
+
     /**
      * Returns the amount of new data.
      * 
@@ -136,6 +186,20 @@ public class JHV_Kdu_cache extends Kdu_cache {
         return totalSize;
     }
 
+    /**
+     * Returns the memory used by the cache object. Since the memory of the
+     * databins is never released, it is the peak memory.
+     * 
+     * @return Memory used in bytes
+     */
+    public long getMemoryUsage() {
+        try {
+            return Get_peak_cache_memory();
+        } catch (KduException ex) {
+            return 0;
+        }
+    }
+
     /**
      * Returns whether or not the databin is complete.
      * 
@@ -176,8 +240,13 @@ public class JHV_Kdu_cache extends Kdu_cache {
      * not be used again.
      */
     public boolean Close() {
-        if ((cacheFile != null) && iamPersistent)
-            writeCacheToFile();
+        CacheMemoryBudget.getSingletonInstance().unregister(this);
+
+        // The rest of the data is written in the background
+        if (hvcFile != null) {
+            CachePersistenceService.getSingletonInstance().close(hvcFile);
+            hvcFile = null;
+        }
 
         try {
             super.Close();
@@ -206,6 +275,8 @@ public class JHV_Kdu_cache extends Kdu_cache {
 
     /**
      * Adds a JPIPResponse to the cache object using the addDataSegment methods.
+     * The data buffers of the consumed segments are given back to the
+     * JPIPSegmentBufferPool.
      * 
      * @param jRes
      * @return True, the response is complete
@@ -213,8 +284,20 @@ public class JHV_Kdu_cache extends Kdu_cache {
      */
     public boolean addJPIPResponseData(JPIPResponse jRes) throws JHV_KduException {
         JPIPDataSegment data;
-        while ((data = jRes.removeJpipDataSegment()) != null && !data.isEOR) {
-            addDataSegment(data);
+        try {
+            while ((data = jRes.removeJpipDataSegment()) != null) {
+                try {
+                    if (data.isEOR)
+                        break;
+                    addDataSegment(data);
+                } finally {
+                    data.release();
+                }
+            }
+        } finally {
+            // The segments after the EOR, or after an error, are only released
+            while ((data = jRes.removeJpipDataSegment()) != null)
+                data.release();
         }
         return jRes.isResponseComplete();
     }
@@ -226,11 +309,27 @@ public class JHV_Kdu_cache extends Kdu_cache {
      * @throws JHV_KduException
      */
     public void addDataSegment(JPIPDataSegment _data) throws JHV_KduException {
+        int classID = _data.classID.getKakaduClassID();
+        boolean progress = _data.isFinal && (classID == KakaduConstants.KDU_META_DATABIN || classID == KakaduConstants.KDU_MAIN_HEADER_DATABIN);
+
         try {
-            Add_to_databin(_data.classID.getKakaduClassID(), _data.codestreamID, _data.binID, _data.data, _data.offset, _data.length, _data.isFinal, true, false);
+            // Only the data which is new to the cache and to the file is
+            // persisted
+            HVCCacheFile file = hvcFile;
+            boolean persist = false;
+            if (file != null) {
+                boolean complete[] = new boolean[1];
+                int length = Get_databin_length(classID, _data.codestreamID, _data.binID, complete);
+                persist = !complete[0] && (_data.offset + _data.length > length || _data.isFinal) && !file.isStored(classID, _data.codestreamID, _data.binID, _data.offset + _data.length, _data.isFinal);
+            }
+
+            Add_to_databin(classID, _data.codestreamID, _data.binID, _data.data, _data.offset, _data.length, _data.isFinal, true, false);
 
             newData += _data.length;
 
+            if (persist)
+                CachePersistenceService.getSingletonInstance().append(file, classID, _data);
+
         } catch (KduException ex) {
             throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
         }
@@ -240,308 +339,438 @@ public class JHV_Kdu_cache extends Kdu_cache {
 
             if (compositionLayer >= 0) {
 
-                if (_data.classID.getKakaduClassID() == KakaduConstants.KDU_PRECINCT_DATABIN && status.getImageStatus(compositionLayer) == CacheStatus.HEADER)
+                if (_data.classID.getKakaduClassID() == KakaduConstants.KDU_PRECINCT_DATABIN && status.getImageStatus(compositionLayer) == CacheStatus.HEADER) {
                     status.setImageStatus(compositionLayer, CacheStatus.PARTIAL);
+                    progress = true;
 
-                else if (_data.classID.getKakaduClassID() == KakaduConstants.KDU_MAIN_HEADER_DATABIN && _data.isFinal)
+                } else if (_data.classID.getKakaduClassID() == KakaduConstants.KDU_MAIN_HEADER_DATABIN && _data.isFinal)
                     status.setImageStatus(compositionLayer, CacheStatus.HEADER);
             }
         }
+
+        // The threads waiting for the data are woken up
+        ProgressSignal signal = dataSignal;
+        if (progress && signal != null)
+            signal.signal();
     }
 
     /**
-     * Attempts to write the present cache object to a file as specified by the
-     * cacheFile variable. The file format is firmly based on the one used in
-     * the kdu_show application.
+     * Opens the cache file specified by the cacheFile variable and loads the
+     * header and metadata bins stored in it. The precinct data is loaded
+     * codestream by codestream, when needed. All data inserted into the cache
+     * object from a file is marked. This mark signifies that the servers cache
+     * model has not yet been informed about the data.
      * 
-     * @return true, if the file could be written successfully, false otherwise
+     * @return true, if the cache file could be opened successfully, false
+     *         otherwise
      */
-    private boolean writeCacheToFile() {
-        File fTarget = cacheFile;
-        FileOutputStream fStream = null;
+    private boolean openCacheFile() {
+        // The file may still be being written after a previous session
+        CachePersistenceService.getSingletonInstance().awaitClosed(cacheFile);
+
+        // Pinned until the closing of the file is done
+        CacheManager.getSingletonInstance().open(cacheFile);
+
         try {
-            if (fTarget.exists() && !fTarget.delete())
-                return false;
-            if (!fTarget.createNewFile())
-                return false;
-            fStream = new FileOutputStream(fTarget);
-            fStream.write("hvc/1.0\n".getBytes());
+            hvcFile = new HVCCacheFile(cacheFile);
+            hvcFile.loadEager(this);
         } catch (Exception ex) {
-            System.err.println("Error in writeToCacheMethod in file (" + fTarget + ") and FileOutputStream creation.");
-            ex.printStackTrace();
+            Log.error(">> JHV_Kdu_cache.openCacheFile() > Error opening the cache file " + cacheFile, ex);
+            if (hvcFile != null) {
+                try {
+                    hvcFile.close();
+                } catch (IOException ioe) {
+                }
+                hvcFile = null;
+            }
+            cacheFile.delete();
+            CacheManager.getSingletonInstance().close(cacheFile);
             return false;
         }
+        return true;
+    }
+
+    /**
+     * Loads the data of a codestream stored in the cache file, if it has not
+     * been loaded yet. Must be called before the codestream is decompressed.
+     * 
+     * @param _codestreamID
+     * @throws JHV_KduException
+     */
+    public void loadCodestream(long _codestreamID) throws JHV_KduException {
+        HVCCacheFile file = hvcFile;
+        if (file == null)
+            return;
 
-        int bufferIndex, i;
-        byte[] headerBuffer = new byte[24];
-        byte[] byteBuffer = new byte[512];
+        try {
+            if (file.loadCodestream(this, _codestreamID))
+                CacheManager.getSingletonInstance().touch(cacheFile);
+        } catch (KduException ex) {
+            throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
+        } catch (IOException ex) {
+            throw new JHV_KduException("Error reading the cache file: " + ex.getMessage());
+        }
+    }
 
-        long codestreamID, databinID;
+    /**
+     * Tells if some data was read from the cache file.
+     * 
+     * @return True, if the cache file had data when it was opened
+     */
+    public boolean hasCachedData() {
+        HVCCacheFile file = hvcFile;
+        return file != null && file.hasStoredData();
+    }
+
+    /**
+     * This method walks through the databins of the codestreams following the
+     * given one, finds all the marked databins and unmarks them. It appends
+     * these databins to a cache model that can be sent to the JPIP server using
+     * the 'model' field to update the servers cache model. Since a movie can
+     * have thousands of codestreams, the model is built in segments: the walk
+     * stops after the codestream which makes the model exceed the given
+     * length, and it can be resumed from there.
+     * 
+     * @param cacheModel
+     *            The cache model being built
+     * @param lastCodestreamID
+     *            The last codestream of the previous segment, or -1 to start
+     * @param force
+     *            Whether all the databins must be appended, not only the
+     *            marked ones
+     * @param maxLength
+     *            Length of the model after which the walk stops
+     * @return The last codestream appended, or -1 if the walk is complete
+     * @throws JHV_KduException
+     */
+    public long appendCacheModel(StringBuilder cacheModel, long lastCodestreamID, boolean force, int maxLength) throws JHV_KduException {
+        int length;
+        long databinID;
         boolean isComplete[] = new boolean[1];
-        int databinClassID, length, idBits, codestreamBits;
+        HVCCacheFile file = hvcFile;
 
         try {
-            codestreamID = this.Get_next_codestream(-1);
-            while (codestreamID >= 0) {
-                for (databinClassID = 0; databinClassID < 5; databinClassID++) {
-                    databinID = this.Get_next_lru_databin(databinClassID, codestreamID, -1, false);
-                    while (databinID >= 0) {
-                        length = this.Get_databin_length(databinClassID, codestreamID, databinID, isComplete);
-                        if ((length > 0) || isComplete[0]) {
-                            if (length > byteBuffer.length) {
-                                byteBuffer = new byte[byteBuffer.length + length + 256];
+            // The codestreams not loaded yet from the cache file are only
+            // known by the file
+            long nextCached = this.Get_next_codestream(lastCodestreamID);
+            long nextStored = file == null ? -1 : file.getNextUnloadedCodestream(lastCodestreamID);
+
+            while (nextCached >= 0 || nextStored >= 0) {
+                long codestreamID = nextCached < 0 ? nextStored : (nextStored < 0 ? nextCached : Math.min(nextCached, nextStored));
+                int labelStart = cacheModel.length();
+                boolean appended = false;
+
+                // Append the codestream label
+                cacheModel.append('[').append(codestreamID).append("],");
+
+                if (codestreamID == nextCached) {
+                    for (JPIPDatabinClass databinClass : JPIPDatabinClass.values()) {
+                        databinID = this.Get_next_lru_databin(databinClass.getKakaduClassID(), codestreamID, -1, false);
+                        while (databinID >= 0) {
+                            if (force || Mark_databin(databinClass.getKakaduClassID(), codestreamID, databinID, false)) {
+                                length = this.Get_databin_length(databinClass.getKakaduClassID(), codestreamID, databinID, isComplete);
+                                // Append the databinClass String and the
+                                // databinID
+                                cacheModel.append(databinClass.getJpipString());
+                                if (databinClass != JPIPDatabinClass.MAIN_HEADER_DATABIN)
+                                    cacheModel.append(databinID);
+                                // If its not complete append the length of the
+                                // databin
+                                if (!isComplete[0])
+                                    cacheModel.append(':').append(length);
+                                cacheModel.append(',');
+                                appended = true;
                             }
-                            length = this.Get_databin_prefix(databinClassID, codestreamID, databinID, byteBuffer, length);
-                            bufferIndex = 0;
-                            if (isComplete[0])
-                                headerBuffer[bufferIndex++] = (byte) (2 * databinClassID + 1);
-                            else
-                                headerBuffer[bufferIndex++] = (byte) (2 * databinClassID);
-                            for (codestreamBits = 0; (codestreamID >> codestreamBits) > 0; codestreamBits += 8)
-                                ;
-                            for (idBits = 0; (databinID >> idBits) > 0; idBits += 8)
-                                ;
-                            headerBuffer[bufferIndex++] = (byte) ((codestreamBits << 1) | (idBits >> 3));
-                            for (i = codestreamBits - 8; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (codestreamID >> i);
-                            for (i = idBits - 8; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (databinID >> i);
-                            for (i = 24; i >= 0; i -= 8)
-                                headerBuffer[bufferIndex++] = (byte) (length >> i);
-                            fStream.write(headerBuffer, 0, bufferIndex);
-                            fStream.write(byteBuffer, 0, length);
+                            databinID = this.Get_next_lru_databin(databinClass.getKakaduClassID(), codestreamID, databinID, false);
                         }
-                        databinID = this.Get_next_lru_databin(databinClassID, codestreamID, databinID, false);
                     }
+                    nextCached = this.Get_next_codestream(codestreamID);
+                }
+
+                if (codestreamID == nextStored) {
+                    appended |= file.appendCacheModel(cacheModel, codestreamID, force);
+                    nextStored = file.getNextUnloadedCodestream(codestreamID);
                 }
-                codestreamID = this.Get_next_codestream(codestreamID);
+
+                // A codestream without databins to tell is left out
+                if (!appended)
+                    cacheModel.setLength(labelStart);
+                else if (cacheModel.length() >= maxLength)
+                    return codestreamID;
             }
-        } catch (Exception ex) {
-            System.err.println("Error in writeToCacheMethod in actual writing algorithm.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            byteBuffer = null;
-            headerBuffer = null;
-        }
 
-        try {
-            fStream.flush();
-            fStream.close();
-        } catch (Exception ex) {
-            System.err.println("Error in writeToCacheMethod in file and FileOutputStream closure.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            fStream = null;
+        } catch (KduException ex) {
+            throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
+        } catch (IOException ex) {
+            throw new JHV_KduException("Error reading the cache file: " + ex.getMessage());
         }
-
-        return true;
+        return -1;
     }
 
     /**
-     * Attempts to read data from a file as specified by the cacheFile variable.
-     * All data inserted into the cache object from a file is marked. This mark
-     * signifies that the servers cache model has not yet been informed about
-     * the data.
+     * Creates a copy of this cache object holding less data, so that the
+     * memory of this one can be released. Kakadu cannot remove databins from a
+     * cache object, so the header and metadata databins are copied to a new
+     * one, together with the precinct databins of the given codestreams, most
+     * recently used first, until the given size is reached. The cache file,
+     * if there is one, is handed over to the new object without closing it,
+     * so the precinct databins it has not loaded yet are still loaded when
+     * needed. The other codestreams are loaded again from the cache file when
+     * it holds all their data. The databins which are lost otherwise are told
+     * to the server with the next cache model update, so that they are sent
+     * again, and they are not appended to the cache file again.
      * 
-     * @return true, if the cache file could be read successfully, false
-     *         otherwise
+     * Once this method is called this object should not be used again, but
+     * closed.
+     * 
+     * @param _keptCodestreams
+     *            The codestreams whose precinct databins are kept, in order of
+     *            priority
+     * @param _maxSize
+     *            Amount of data to copy in bytes
+     * @param _trimmedCodestreams
+     *            Filled with the codestreams which lost data
+     * @return The new cache object
+     * @throws JHV_KduException
      */
-    private boolean readCacheFromFile() {
-        File fTarget = cacheFile;
-        // FileInputStream fStream = null;
-        BufferedInputStream fStream = null;
+    public JHV_Kdu_cache trim(long[] _keptCodestreams, long _maxSize, Collection<Long> _trimmedCodestreams) throws JHV_KduException {
+        // The new object keeps writing to the same cache file
+        HVCCacheFile file = hvcFile;
+        hvcFile = null;
+
+        JHV_Kdu_cache trimmed = new JHV_Kdu_cache(targetID, file);
+        trimmed.status = status;
+        trimmed.dataSignal = dataSignal;
+        trimmed.serverModelChannelID = serverModelChannelID;
+        synchronized (removedModel) {
+            trimmed.removedModel.addAll(removedModel);
+        }
+
+        final int precinctClass = JPIPDatabinClass.PRECINCT_DATABIN.getKakaduClassID();
+        HashSet<Long> kept = new HashSet<Long>();
+        StringBuilder model = new StringBuilder();
+        long[] size = { 0 };
 
         try {
-            if (!fTarget.exists())
-                return false;
+            // The headers and metadata are always kept
+            for (long codestreamID = Get_next_codestream(-1); codestreamID >= 0; codestreamID = Get_next_codestream(codestreamID)) {
+                for (JPIPDatabinClass databinClass : JPIPDatabinClass.values()) {
+                    if (databinClass.getKakaduClassID() != precinctClass)
+                        copyDatabins(trimmed, databinClass.getKakaduClassID(), codestreamID, getDatabins(databinClass.getKakaduClassID(), codestreamID), size);
+                }
+            }
 
-            // fStream = new FileInputStream(fTarget);
-            fStream = new BufferedInputStream(new FileInputStream(fTarget), 1000000);
+            for (long codestreamID : _keptCodestreams) {
+                if (!kept.add(codestreamID))
+                    continue;
+
+                ArrayList<Long> databins = getDatabins(precinctClass, codestreamID);
+
+                // The most recently used come last
+                int first = databins.size();
+                long keptSize = size[0];
+                while (first > 0) {
+                    int length = Get_databin_length(precinctClass, codestreamID, databins.get(first - 1));
+                    if (keptSize + length > _maxSize)
+                        break;
+                    keptSize += length;
+                    first--;
+                }
 
-            char c;
-            String str = "";
-            while ((c = (char) fStream.read()) != '\n') {
-                str += c;
+                copyDatabins(trimmed, precinctClass, codestreamID, databins.subList(first, databins.size()), size);
+                if (first > 0) {
+                    // Loading the rest of a codestream in use would undo the
+                    // trim, the server sends what is needed of it
+                    if (file != null)
+                        file.databinsRemoved(codestreamID);
+                    appendRemovedDatabins(model, codestreamID, databins.subList(0, first), trimmed.removedModel);
+                    _trimmedCodestreams.add(codestreamID);
+                }
             }
-            if (!str.equalsIgnoreCase("hvc/1.0"))
-                throw new JHV_KduException("Wrong cache file format.");
-        } catch (Exception ex) {
-            System.err.println("Error in readFromCacheMethod in file and FileInputStream creation.");
-            ex.printStackTrace();
-            return false;
-        }
 
-        int bufferIndex, i;
-        byte[] byteBuffer = new byte[512];
-        int[] intBuffer;
+            for (long codestreamID = Get_next_codestream(-1); codestreamID >= 0; codestreamID = Get_next_codestream(codestreamID)) {
+                // Once loaded, the records of a codestream are not loaded
+                // again from the cache file
+                if (kept.contains(codestreamID))
+                    continue;
 
-        long databinID, codestreamID;
-        int idBytes, codestreamBytes, length, databinClassID;
+                ArrayList<Long> databins = getDatabins(precinctClass, codestreamID);
+                if (databins.isEmpty() || (file != null && file.unloadCodestream(this, codestreamID, databins)))
+                    continue;
 
-        try {
-
-            while (fStream.read(byteBuffer, 0, 2) == 2) {
-
-                intBuffer = uByteToInt(byteBuffer);
-                codestreamBytes = (intBuffer[1] >> 4) & 0x0F;
-                idBytes = intBuffer[1] & 0x0F;
-                if (fStream.read(byteBuffer, 2, (codestreamBytes + idBytes + 4)) != (codestreamBytes + idBytes + 4))
-                    break;
-                intBuffer = uByteToInt(byteBuffer);
-                for (codestreamID = 0, bufferIndex = 2, i = 0; i < codestreamBytes; i++)
-                    codestreamID = (codestreamID << 8) + intBuffer[bufferIndex++];
-                for (databinID = 0, i = 0; i < idBytes; i++)
-                    databinID = (databinID << 8) + intBuffer[bufferIndex++];
-                for (length = 0, i = 0; i < 4; i++)
-                    length = (length << 8) + intBuffer[bufferIndex++];
-                boolean isComplete = ((intBuffer[0] & 1) == 1) ? true : false;
-                databinClassID = (intBuffer[0] >> 1);
-                if (length > byteBuffer.length) {
-                    byteBuffer = new byte[byteBuffer.length + length + 256];
-                }
-                if (fStream.read(byteBuffer, 0, length) != length)
-                    break;
-                if ((databinClassID >= 0) && (databinClassID < 5))
-                    this.Add_to_databin(databinClassID, codestreamID, databinID, byteBuffer, 0, length, isComplete, false, true);
+                appendRemovedDatabins(model, codestreamID, databins, trimmed.removedModel);
+                _trimmedCodestreams.add(codestreamID);
             }
-        } catch (Exception ex) {
-            System.err.println("Error in readFromCacheMethod in actual read algorithm.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            byteBuffer = null;
-            intBuffer = null;
-        }
 
-        try {
-            fStream.close();
-        } catch (Exception ex) {
-            System.err.println("Error in readFromCacheMethod in file and FileInputStream closure.");
-            ex.printStackTrace();
-            return false;
-        } finally {
-            fStream = null;
+        } catch (KduException ex) {
+            takeCacheFile(trimmed);
+            trimmed.Close();
+            trimmed.Native_destroy();
+            throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
+        } catch (IOException ex) {
+            takeCacheFile(trimmed);
+            trimmed.Close();
+            trimmed.Native_destroy();
+            throw new JHV_KduException("Error reading the cache file: " + ex.getMessage());
         }
 
-        return true;
+        if (model.length() > 0)
+            trimmed.addRemovedModel(model);
+
+        CacheMemoryBudget.getSingletonInstance().trimmed();
+        return trimmed;
     }
 
     /**
-     * This method walks through all the databins and finds all the marked
-     * databins and unmarks them. It builds a String out of these databins that
-     * can be sent to the JPIP server using the 'model' header to update the
-     * servers cache model.
+     * Takes back the cache file handed to a trimmed copy of this object, when
+     * the copy is discarded. Must be called before the copy is closed.
      * 
-     * @return String that can be sent to the JPIP server
-     * @throws JHV_KduException
+     * @param _trimmed
+     *            The object returned by trim()
      */
-    public String buildCacheModelUpdateString(boolean force) throws JHV_KduException {
-        int length;
-        long codestreamID, databinID;
-        boolean isComplete[] = new boolean[1];
-        StringBuilder cacheModel = new StringBuilder(1000);
+    public void takeCacheFile(JHV_Kdu_cache _trimmed) {
+        hvcFile = _trimmed.hvcFile;
+        _trimmed.hvcFile = null;
+    }
 
-        try {
-            codestreamID = this.Get_next_codestream(-1);
+    /** Returns the databins of a codestream, from the least recently used */
+    private ArrayList<Long> getDatabins(int _classID, long _codestreamID) throws KduException {
+        ArrayList<Long> databins = new ArrayList<Long>();
+        for (long databinID = Get_next_lru_databin(_classID, _codestreamID, -1, false); databinID >= 0; databinID = Get_next_lru_databin(_classID, _codestreamID, databinID, false))
+            databins.add(databinID);
+        return databins;
+    }
 
-            while (codestreamID >= 0) {
-                // System.out.println("Modelling the codestream " + codestreamID
-                // + "...");
-                // Append the codestream label
-                cacheModel.append("[" + codestreamID + "],");
-                for (JPIPDatabinClass databinClass : JPIPDatabinClass.values()) {
-                    databinID = this.Get_next_lru_databin(databinClass.getKakaduClassID(), codestreamID, -1, false);
-                    while (databinID >= 0) {
-                        if (force || Mark_databin(databinClass.getKakaduClassID(), codestreamID, databinID, false)) {
-                            length = this.Get_databin_length(databinClass.getKakaduClassID(), codestreamID, databinID, isComplete);
-                            // Append the databinClass String and the databinID
-                            cacheModel.append(databinClass.getJpipString() + (databinClass == JPIPDatabinClass.MAIN_HEADER_DATABIN ? "" : String.valueOf(databinID)));
-                            // If its not complete append the length of the
-                            // databin
-                            if (!isComplete[0])
-                                cacheModel.append(":" + String.valueOf(length));
-                            cacheModel.append(",");
-                        }
-                        databinID = this.Get_next_lru_databin(databinClass.getKakaduClassID(), codestreamID, databinID, false);
-                    }
+    /** Copies databins to another cache object, keeping their marks */
+    private void copyDatabins(JHV_Kdu_cache _target, int _classID, long _codestreamID, Collection<Long> _databins, long[] _size) throws KduException {
+        boolean complete[] = new boolean[1];
+        byte[] buffer = new byte[0];
+
+        for (long databinID : _databins) {
+            int length = Get_databin_length(_classID, _codestreamID, databinID, complete);
+            if (length > buffer.length)
+                buffer = new byte[length + 1024];
+            length = Get_databin_prefix(_classID, _codestreamID, databinID, buffer, length);
+
+            boolean marked = Mark_databin(_classID, _codestreamID, databinID, false);
+            _target.Add_to_databin(_classID, _codestreamID, databinID, buffer, 0, length, complete[0], true, false);
+            if (marked)
+                _target.Mark_databin(_classID, _codestreamID, databinID, true);
+            _size[0] += length;
+        }
+    }
+
+    /**
+     * Appends precinct databins to a cache model removing them, moving the
+     * model to the given segments when it is long enough
+     */
+    private static void appendRemovedDatabins(StringBuilder _model, long _codestreamID, Collection<Long> _databins, LinkedList<String> _segments) {
+        _model.append('[').append(_codestreamID).append("],");
+        for (long databinID : _databins) {
+            _model.append('-').append(JPIPDatabinClass.PRECINCT_DATABIN.getJpipString()).append(databinID).append(',');
+
+            if (_model.length() >= KakaduUtils.MAX_CACHE_MODEL_LENGTH) {
+                _model.setLength(_model.length() - 1);
+                synchronized (_segments) {
+                    _segments.add(_model.toString());
                 }
-                codestreamID = this.Get_next_codestream(codestreamID);
+                _model.setLength(0);
+                _model.append('[').append(_codestreamID).append("],");
             }
-            if (cacheModel.length() > 0)
-                cacheModel.deleteCharAt(cacheModel.length() - 1);
+        }
 
-        } catch (KduException ex) {
-            throw new JHV_KduException("Internal Kakadu error: " + ex.getMessage());
+        // A label without databins is left out
+        if (_model.charAt(_model.length() - 2) == ']')
+            _model.setLength(_model.lastIndexOf("["));
+    }
+
+    /** Queues the last segment of a cache model removing databins */
+    private void addRemovedModel(StringBuilder _model) {
+        _model.setLength(_model.length() - 1);
+        synchronized (removedModel) {
+            removedModel.add(_model.toString());
         }
-        return cacheModel.toString();
     }
 
     /**
-     * Private helped method to convert a unsigned byte array to an integer
-     * array. This method is only necessary since Java does not have unsigned
-     * types.
+     * Returns the next segment of the cache model removing the databins lost
+     * by a trim, and forgets it.
      * 
-     * @param _x
-     *            unsigned byte array to convert
-     * @return converted integer array
+     * @return The segment, or null if there is none
      */
-    private static int[] uByteToInt(byte[] _x) {
-        int[] ret = new int[_x.length];
-        for (int i = 0; i < _x.length; i++)
-            ret[i] = (_x[i] & 0xFF);
-        return ret;
+    public String pollRemovedModel() {
+        synchronized (removedModel) {
+            return removedModel.poll();
+        }
     }
 
     /**
-     * @return All the cache files stored in the cache directory.
+     * Puts back removal statements of the model which may not have reached
+     * the server, before the ones not sent yet.
+     * 
+     * @param _models
+     *            The statements, in the order they were polled
      */
-    public static File[] getCacheFiles(File cachePath) {
-        return cachePath.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return (name.toUpperCase().endsWith(".HVC"));
-            }
-        });
+    public void restoreRemovedModel(List<String> _models) {
+        synchronized (removedModel) {
+            removedModel.addAll(0, _models);
+        }
     }
 
     /**
-     * @return The associated cache file.
+     * Returns the channel whose server cache model has been told all the
+     * databins, or null.
      */
-    public File getCacheFile() {
-        return cacheFile;
+    public String getServerModelChannelID() {
+        return serverModelChannelID;
     }
 
-    public static void updateCacheDirectory(File cachePath, double maxSize) {
-        maxCacheSize = Math.round(maxSize * 1048576.0);
-        updateCacheDirectory(cachePath);
+    /**
+     * Sets the channel whose server cache model has been told all the
+     * databins.
+     */
+    public void setServerModelChannelID(String _channelID) {
+        serverModelChannelID = _channelID;
     }
 
     /**
-     * This method allows to remove the cache files according to the size limit
-     * specified in the properties of the application. The files are removed
-     * following a LRU order.
+     * Marks the codestreams with data in the cache file as partially cached,
+     * so that a movie can be played up to where it was downloaded before.
+     * 
+     * @param _maxCodestreamID
+     *            The last composition layer of the image
      */
-    public static void updateCacheDirectory(File cachePath) {
-        if (maxCacheSize <= 0)
+    public void markStoredCodestreams(int _maxCodestreamID) {
+        HVCCacheFile file = hvcFile;
+        if (file == null || status == null)
             return;
 
-        File[] list = getCacheFiles(cachePath);
-
-        Arrays.sort(list, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                return (int) (o1.lastModified() - o2.lastModified());
-            }
-        });
-
-        long total = 0;
+        for (long codestreamID : file.getStoredCodestreams()) {
+            if (codestreamID > _maxCodestreamID)
+                break;
+            status.setImageStatus((int) codestreamID, CacheStatus.PARTIAL);
+        }
+    }
 
-        for (File f : list)
-            total += f.length();
+    /**
+     * @return The associated cache file.
+     */
+    public File getCacheFile() {
+        return cacheFile;
+    }
 
-        for (int i = 0; (total > maxCacheSize) && (i < list.length); i++) {
-            total -= list[i].length();
-            list[i].delete();
-        }
+    /**
+     * Sets the size limit of the cache directory specified in the properties
+     * of the application. The files exceeding it are removed by the
+     * CacheManager, following a LRU order.
+     * 
+     * @param cachePath
+     *            The cache directory
+     * @param maxSize
+     *            The size limit in Mbytes, 0 if unlimited
+     */
+    public static void updateCacheDirectory(File cachePath, double maxSize) {
+        CacheManager.getSingletonInstance().setQuota(Math.round(maxSize * 1048576.0));
+        CachePersistenceService.getSingletonInstance().maintainCacheDirectory();
     }
 };
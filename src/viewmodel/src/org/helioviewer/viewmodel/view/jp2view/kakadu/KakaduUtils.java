@@ -4,6 +4,7 @@ import java.awt.Rectangle;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
 
 import kdu_jni.Jp2_input_box;
 import kdu_jni.Jp2_locator;
@@ -19,6 +20,7 @@ import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPDatabinClass;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPQuery;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPRequest;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPResponse;
+import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSelectorChannel;
 import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
 
 /**
@@ -29,6 +31,10 @@ import org.helioviewer.viewmodel.view.jp2view.io.jpip.JPIPSocket;
  * @author Juan Pablo
  */
 public class KakaduUtils {
+
+    /** Length of the cache model sent in each request */
+    public static final int MAX_CACHE_MODEL_LENGTH = 32 * 1024;
+
     /**
      * Converts a Kdu_dims object to its Java equivalent (Rectangle).
      * 
@@ -356,7 +362,11 @@ public class KakaduUtils {
 
     /**
      * This method updates the server cache model. The JPIPSocket object should
-     * be connected already.
+     * be connected already. The model is sent in segments of about
+     * MAX_CACHE_MODEL_LENGTH characters, which are pipelined, so that the
+     * model of a movie with thousands of codestreams is never built as a
+     * whole. If the channel has already been told all the databins, only the
+     * marked ones are sent, even if forced.
      * 
      * @param _socket
      * @param _cache
@@ -364,19 +374,135 @@ public class KakaduUtils {
      * @throws JHV_KduException
      */
     public static void updateServerCacheModel(JPIPSocket _socket, JHV_Kdu_cache _cache, boolean force) throws IOException, JHV_KduException {
-        String cModel = _cache.buildCacheModelUpdateString(force);
-        if (cModel == null)
-            return;
+        String channelID = _socket.getJpipChannelID();
+        if (force && channelID != null && channelID.equals(_cache.getServerModelChannelID()))
+            force = false;
+
+        StringBuilder cModel = new StringBuilder(MAX_CACHE_MODEL_LENGTH + 1024);
+        long lastCodestream = -1;
+        int pending = 0;
+        LinkedList<String> removedSent = new LinkedList<String>();
+
+        try {
+            // The databins lost by a trim of the cache object come first
+            String removed;
+            while ((removed = _cache.pollRemovedModel()) != null) {
+                removedSent.add(removed);
+                pending = sendCacheModel(_socket, _cache, removed, pending);
+            }
+
+            do {
+                cModel.setLength(0);
+                lastCodestream = _cache.appendCacheModel(cModel, lastCodestream, force, MAX_CACHE_MODEL_LENGTH);
+                if (cModel.length() == 0)
+                    continue;
+
+                // Removes the last comma
+                cModel.setLength(cModel.length() - 1);
+
+                pending = sendCacheModel(_socket, _cache, cModel.toString(), pending);
+            } while (lastCodestream >= 0);
+
+            for (; pending > 0; pending--)
+                receiveCacheModelResponse(_socket, _cache);
+
+        } catch (IOException e) {
+            // The pipelined updates may or may not have reached the server, so
+            // the next update is sent in full, and the removals again
+            _cache.setServerModelChannelID(null);
+            _cache.restoreRemovedModel(removedSent);
+            throw e;
+        }
+
+        if (force)
+            _cache.setServerModelChannelID(channelID);
+    }
+
+    /**
+     * This method updates the server cache model through a channel of the
+     * non-blocking transport, in the same segments as with a JPIPSocket. The
+     * channel pipelines the updates itself, and their responses are received
+     * with the other responses of the channel.
+     * 
+     * @param _channel
+     * @param _cache
+     * @throws IOException
+     * @throws JHV_KduException
+     */
+    public static void updateServerCacheModel(JPIPSelectorChannel _channel, JHV_Kdu_cache _cache, boolean force) throws IOException, JHV_KduException {
+        String channelID = _channel.getJpipChannelID();
+        if (force && channelID != null && channelID.equals(_cache.getServerModelChannelID()))
+            force = false;
 
+        StringBuilder cModel = new StringBuilder(MAX_CACHE_MODEL_LENGTH + 1024);
+        long lastCodestream = -1;
+        LinkedList<String> removedSent = new LinkedList<String>();
+
+        try {
+            // The databins lost by a trim of the cache object come first
+            String removed;
+            while ((removed = _cache.pollRemovedModel()) != null) {
+                removedSent.add(removed);
+                _channel.send(createCacheModelRequest(removed));
+            }
+
+            do {
+                cModel.setLength(0);
+                lastCodestream = _cache.appendCacheModel(cModel, lastCodestream, force, MAX_CACHE_MODEL_LENGTH);
+                if (cModel.length() == 0)
+                    continue;
+
+                // Removes the last comma
+                cModel.setLength(cModel.length() - 1);
+
+                _channel.send(createCacheModelRequest(cModel.toString()));
+            } while (lastCodestream >= 0);
+
+        } catch (IOException e) {
+            // The updates queued may or may not reach the server, so the next
+            // update is sent in full, and the removals again
+            _cache.setServerModelChannelID(null);
+            _cache.restoreRemovedModel(removedSent);
+            throw e;
+        }
+
+        if (force)
+            _cache.setServerModelChannelID(channelID);
+    }
+
+    /** Creates the request of a segment of a cache model update */
+    private static JPIPRequest createCacheModelRequest(String _model) {
         JPIPQuery cacheUpdateQuery = new JPIPQuery();
-        cacheUpdateQuery.setField("model", cModel);
+        cacheUpdateQuery.setField("model", _model);
 
         JPIPRequest req = new JPIPRequest(JPIPRequest.Method.POST);
         req.setQuery(cacheUpdateQuery.toString());
+        return req;
+    }
 
-        _socket.send(req);
-        JPIPResponse res = _socket.receive();
+    /**
+     * Sends a segment of a cache model update, receiving the responses to the
+     * previous ones when the pipeline is full.
+     * 
+     * @return The number of responses pending
+     */
+    private static int sendCacheModel(JPIPSocket _socket, JHV_Kdu_cache _cache, String _model, int _pending) throws IOException, JHV_KduException {
+        _socket.send(createCacheModelRequest(_model));
+        _pending++;
+
+        // Keeps the pipeline full without letting the responses pile up
+        while (_pending >= _socket.getMaxPipelinedRequests()) {
+            receiveCacheModelResponse(_socket, _cache);
+            _pending--;
+        }
+        return _pending;
+    }
 
+    /** Receives the response to a cache model update */
+    private static void receiveCacheModelResponse(JPIPSocket _socket, JHV_Kdu_cache _cache) throws IOException, JHV_KduException {
+        JPIPResponse res = _socket.receive();
+        if (res == null)
+            throw new EOFException("Connection closed while updating the server cache model");
         _cache.addJPIPResponseData(res);
     }
 };
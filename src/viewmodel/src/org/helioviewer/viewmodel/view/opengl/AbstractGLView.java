@@ -3,6 +3,7 @@ package org.helioviewer.viewmodel.view.opengl;
 import javax.media.opengl.GL;
 
 import org.helioviewer.viewmodel.changeevent.ChangeEvent;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.view.AbstractBasicView;
 import org.helioviewer.viewmodel.view.ModifiableInnerViewView;
 import org.helioviewer.viewmodel.view.RegionView;
@@ -48,7 +49,10 @@ public abstract class AbstractGLView extends AbstractBasicView implements GLView
         if (view instanceof GLView) {
             ((GLView) view).renderGL(gl);
         } else {
-            textureHelper.renderImageDataToScreen(gl, view.getAdapter(RegionView.class).getRegion(), view.getAdapter(SubimageDataView.class).getSubimageData(true));
+            ImageData imageData = view.getAdapter(SubimageDataView.class).getSubimageData(true);
+            textureHelper.renderImageDataToScreen(gl, view.getAdapter(RegionView.class).getRegion(), imageData);
+            if (imageData != null)
+                imageData.release();
         }
     }
 
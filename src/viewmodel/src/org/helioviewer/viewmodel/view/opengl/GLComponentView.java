@@ -24,6 +24,7 @@ import org.helioviewer.viewmodel.changeevent.ChangeEvent;
 import org.helioviewer.viewmodel.changeevent.LayerChangedReason;
 import org.helioviewer.viewmodel.changeevent.ViewChainChangedReason;
 import org.helioviewer.viewmodel.changeevent.LayerChangedReason.LayerChangeType;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.region.Region;
 import org.helioviewer.viewmodel.renderer.screen.GLScreenRenderGraphics;
 import org.helioviewer.viewmodel.renderer.screen.ScreenRenderer;
@@ -355,7 +356,10 @@ public class GLComponentView extends AbstractComponentView implements ViewListen
             if (view instanceof GLView) {
                 ((GLView) view).renderGL(gl);
             } else {
-                textureHelper.renderImageDataToScreen(gl, view.getAdapter(RegionView.class).getRegion(), view.getAdapter(SubimageDataView.class).getSubimageData(true));
+                ImageData imageData = view.getAdapter(SubimageDataView.class).getSubimageData(true);
+                textureHelper.renderImageDataToScreen(gl, view.getAdapter(RegionView.class).getRegion(), imageData);
+                if (imageData != null)
+                    imageData.release();
             }
             gl.glPopMatrix();
         }
@@ -11,6 +11,7 @@ import org.helioviewer.viewmodel.filter.GLFilter;
 import org.helioviewer.viewmodel.filter.GLFragmentShaderFilter;
 import org.helioviewer.viewmodel.filter.GLImageSizeFilter;
 import org.helioviewer.viewmodel.filter.GLPostFilter;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.view.StandardFilterView;
 import org.helioviewer.viewmodel.view.View;
 import org.helioviewer.viewmodel.view.ViewHelper;
@@ -78,8 +79,12 @@ public class GLFilterView extends StandardFilterView implements GLFragmentShader
             if (view instanceof GLView) {
                 ((GLView) view).renderGL(gl);
             } else {
-                if (subimageDataView != null)
-                    textureHelper.renderImageDataToScreen(gl, regionView.getRegion(), subimageDataView.getSubimageData(true));
+                if (subimageDataView != null) {
+                    ImageData data = subimageDataView.getSubimageData(true);
+                    textureHelper.renderImageDataToScreen(gl, regionView.getRegion(), data);
+                    if (data != null)
+                        data.release();
+                }
             }
 
             if (filter instanceof GLPostFilter) {
@@ -89,7 +94,10 @@ public class GLFilterView extends StandardFilterView implements GLFragmentShader
             gl.glDisable(GL.GL_FRAGMENT_PROGRAM_ARB);
 
         } else {
-            textureHelper.renderImageDataToScreen(gl, regionView.getRegion(), getSubimageData(true));
+            ImageData data = getSubimageData(true);
+            textureHelper.renderImageDataToScreen(gl, regionView.getRegion(), data);
+            if (data != null)
+                data.release();
         }
     }
 
@@ -3,6 +3,7 @@ package org.helioviewer.viewmodel.view.opengl;
 import javax.media.opengl.GL;
 
 import org.helioviewer.viewmodel.changeevent.ChangeEvent;
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.metadata.MetaData;
 import org.helioviewer.viewmodel.region.Region;
 import org.helioviewer.viewmodel.region.StaticRegion;
@@ -101,7 +102,10 @@ public class GLLayeredView extends AbstractLayeredView implements GLFragmentShad
                 if (v instanceof GLView) {
                     ((GLView) v).renderGL(gl);
                 } else {
-                    textureHelper.renderImageDataToScreen(gl, layer.regionView.getRegion(), v.getAdapter(SubimageDataView.class).getSubimageData(true));
+                    ImageData imageData = v.getAdapter(SubimageDataView.class).getSubimageData(true);
+                    textureHelper.renderImageDataToScreen(gl, layer.regionView.getRegion(), imageData);
+                    if (imageData != null)
+                        imageData.release();
                 }
             }
 
@@ -2,6 +2,7 @@ package org.helioviewer.viewmodel.view.opengl;
 
 import javax.media.opengl.GL;
 
+import org.helioviewer.viewmodel.imagedata.ImageData;
 import org.helioviewer.viewmodel.view.RegionView;
 import org.helioviewer.viewmodel.view.StandardSolarRotationTrackingView;
 import org.helioviewer.viewmodel.view.SubimageDataView;
@@ -23,7 +24,10 @@ public class GLSolarRotationTrackingView extends StandardSolarRotationTrackingVi
         if (view instanceof GLView) {
             ((GLView) view).renderGL(gl);
         } else {
-            textureHelper.renderImageDataToScreen(gl, view.getAdapter(RegionView.class).getRegion(), view.getAdapter(SubimageDataView.class).getSubimageData(true));
+            ImageData imageData = view.getAdapter(SubimageDataView.class).getSubimageData(true);
+            textureHelper.renderImageDataToScreen(gl, view.getAdapter(RegionView.class).getRegion(), imageData);
+            if (imageData != null)
+                imageData.release();
         }
     }
 }